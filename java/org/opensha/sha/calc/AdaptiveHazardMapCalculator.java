@@ -0,0 +1,362 @@
+package org.opensha.sha.calc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.commons.geo.GriddedRegion;
+import org.opensha.commons.geo.Location;
+import org.opensha.sha.earthquake.EqkRupForecastAPI;
+import org.opensha.sha.imr.ScalarIntensityMeasureRelationshipAPI;
+import org.opensha.sha.util.TRTUtils;
+import org.opensha.sha.util.TectonicRegionType;
+
+/**
+ * <p>
+ * Title: AdaptiveHazardMapCalculator
+ * </p>
+ * <p>
+ * Description: This computes a map of the IML with a given probability of
+ * exceedance (e.g. 10% in 50 years) at the nodes of a GriddedRegion, without
+ * computing the hazard curve at every node. The nodes are taken as a lattice
+ * (rows of latitude, columns of longitude) with the region's spacing, which is
+ * the finest spacing used. Curves are first computed at every 2^numLevels-th
+ * row and column; each square cell of that coarse lattice whose corner values
+ * differ by more than the tolerance (a large local gradient) is split into
+ * four, and the corners of the new cells are computed, and so on down to the
+ * spacing of the region. The nodes of cells that are not split are filled in
+ * by bilinear interpolation of the cell's corner values. Cells with a corner
+ * outside the region (or beyond the lattice) are always split, so nodes near
+ * the border are computed rather than extrapolated.
+ * </p>
+ * <p>
+ * The curves of each level of refinement are computed together with a
+ * HazardMapCalculator (so with its tiles and threads and the settings of its
+ * HazardCurveCalculator). Features smaller than the coarse spacing whose
+ * effect doesn't reach a coarse node can be missed, so the coarse spacing
+ * should be no larger than the distance over which the hazard of the smallest
+ * sources of interest changes.
+ * </p>
+ * <p>
+ * The IML at a probability is found by interpolating the curve linearly in
+ * the IML (in the units of the IMLs given, e.g. ln(PGA)) and in the log of
+ * the probability (see getIML_AtPOE()).
+ * </p>
+ */
+public class AdaptiveHazardMapCalculator {
+
+    protected final static String C = "AdaptiveHazardMapCalculator";
+    protected final static boolean D = false;
+
+    /** Default number of levels of refinement (coarse spacing 8 nodes) */
+    public final static int DEFAULT_NUM_LEVELS = 3;
+
+    /**
+     * Default tolerance on the difference of the corner values of a cell (in
+     * the units of the IMLs, so 0.1 is about 10% for ln(IML))
+     */
+    public final static double DEFAULT_TOLERANCE = 0.1;
+
+    private final HazardMapCalculator mapCalc;
+    private int numLevels = DEFAULT_NUM_LEVELS;
+    private double tolerance = DEFAULT_TOLERANCE;
+
+    // the nodes computed in the last calculation
+    private boolean[] computed;
+    private int numComputed;
+
+    /**
+     * Creates an adaptive map calculator with a default HazardMapCalculator.
+     *
+     * @throws java.rmi.RemoteException
+     */
+    public AdaptiveHazardMapCalculator() throws java.rmi.RemoteException {
+        this(new HazardMapCalculator());
+    }
+
+    /**
+     * @param mapCalc
+     *            calculator used for the curves of each level of refinement
+     */
+    public AdaptiveHazardMapCalculator(HazardMapCalculator mapCalc) {
+        this.mapCalc = mapCalc;
+    }
+
+    public HazardMapCalculator getHazardMapCalculator() {
+        return mapCalc;
+    }
+
+    /**
+     * This sets the number of levels of refinement: curves are first computed
+     * at every 2^numLevels-th node along each row and column. 0 computes every
+     * node.
+     *
+     * @param numLevels
+     */
+    public void setNumLevels(int numLevels) {
+        if (numLevels < 0 || numLevels > 20)
+            throw new RuntimeException(C + ": number of levels " + numLevels
+                    + " is not between 0 and 20");
+        this.numLevels = numLevels;
+    }
+
+    public int getNumLevels() {
+        return numLevels;
+    }
+
+    /**
+     * This sets the greatest difference between the corner values of a cell
+     * (in the units of the IMLs) for which the cell is interpolated rather
+     * than refined.
+     *
+     * @param tolerance
+     */
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    /**
+     * This computes the map using one IMR for all tectonic region types (see
+     * the imrMap version).
+     *
+     * @param region
+     * @param siteParams
+     * @param imlFunc
+     * @param poe
+     * @param imr
+     * @param eqkRupForecast
+     * @return
+     * @throws java.rmi.RemoteException
+     */
+    public double[] getIMLs_AtPOE(GriddedRegion region,
+            SiteParamsProviderAPI siteParams,
+            ArbitrarilyDiscretizedFunc imlFunc, double poe,
+            ScalarIntensityMeasureRelationshipAPI imr,
+            EqkRupForecastAPI eqkRupForecast) throws java.rmi.RemoteException {
+        return getIMLs_AtPOE(region, siteParams, imlFunc, poe, TRTUtils
+                .wrapInHashMap(imr), eqkRupForecast);
+    }
+
+    /**
+     * This computes the IML with the given probability of exceedance at every
+     * node of the region, computing curves only where the map needs them (see
+     * the class description). isComputed() and getNumNodesComputed() then
+     * tell which nodes were computed rather than interpolated.
+     *
+     * @param region
+     *            the nodes of the map, at the finest spacing wanted
+     * @param siteParams
+     *            supplies the site (with its parameters) for each node
+     * @param imlFunc
+     *            function whose x values are the IMLs (in the units expected
+     *            by the IMR, e.g. ln(PGA))
+     * @param poe
+     *            the probability of exceedance
+     * @param imrMap
+     *            IMR for each tectonic region (see
+     *            HazardCurveCalculator.getHazardCurve())
+     * @param eqkRupForecast
+     *            selected Earthquake rup forecast
+     * @return the IML at each node (in the units of the x values of imlFunc)
+     * @throws java.rmi.RemoteException
+     */
+    public
+            double[]
+            getIMLs_AtPOE(
+                    GriddedRegion region,
+                    SiteParamsProviderAPI siteParams,
+                    ArbitrarilyDiscretizedFunc imlFunc,
+                    double poe,
+                    Map<TectonicRegionType, ScalarIntensityMeasureRelationshipAPI> imrMap,
+                    EqkRupForecastAPI eqkRupForecast)
+                    throws java.rmi.RemoteException {
+
+        double[] imls = new double[imlFunc.getNum()];
+        for (int k = 0; k < imls.length; k++)
+            imls[k] = imlFunc.getX(k);
+
+        // the lattice of nodes, with -1 where there is no node
+        double spacing = region.getSpacing();
+        double minLat = region.getMinGridLat();
+        double minLon = region.getMinGridLon();
+        int numRows =
+                (int) Math.round((region.getMaxGridLat() - minLat) / spacing) + 1;
+        int numCols =
+                (int) Math.round((region.getMaxGridLon() - minLon) / spacing) + 1;
+        int[][] lattice = new int[numRows][numCols];
+        for (int r = 0; r < numRows; r++)
+            for (int c = 0; c < numCols; c++)
+                lattice[r][c] =
+                        region.indexForLocation(new Location(minLat + r
+                                * spacing, minLon + c * spacing));
+
+        int numNodes = region.getNodeCount();
+        double[] values = new double[numNodes];
+        Arrays.fill(values, Double.NaN);
+        computed = new boolean[numNodes];
+        numComputed = 0;
+
+        // the cells of the coarse lattice, as {row, col} of their lower left
+        // corners
+        int step = 1 << numLevels;
+        ArrayList<int[]> cells = new ArrayList<int[]>();
+        for (int r = 0; r < numRows; r += step)
+            for (int c = 0; c < numCols; c += step)
+                cells.add(new int[] { r, c });
+
+        while (true) {
+            // compute the corners of the cells not yet computed
+            ArrayList<Integer> toCompute = new ArrayList<Integer>();
+            boolean[] queued = new boolean[numNodes];
+            for (int[] cell : cells)
+                for (int dr = 0; dr <= step; dr += step)
+                    for (int dc = 0; dc <= step; dc += step) {
+                        int node = getNode(lattice, cell[0] + dr, cell[1] + dc);
+                        if (node >= 0 && !computed[node] && !queued[node]) {
+                            queued[node] = true;
+                            toCompute.add(node);
+                        }
+                    }
+            computeValues(region, toCompute, siteParams, imlFunc, imls, poe,
+                    imrMap, eqkRupForecast, values);
+            if (step == 1)
+                break;
+
+            // interpolate the cells that are smooth enough, split the others
+            ArrayList<int[]> refined = new ArrayList<int[]>();
+            int half = step / 2;
+            for (int[] cell : cells) {
+                int r = cell[0], c = cell[1];
+                int n00 = getNode(lattice, r, c);
+                int n01 = getNode(lattice, r, c + step);
+                int n10 = getNode(lattice, r + step, c);
+                int n11 = getNode(lattice, r + step, c + step);
+                if (n00 >= 0 && n01 >= 0 && n10 >= 0 && n11 >= 0) {
+                    double v00 = values[n00], v01 = values[n01];
+                    double v10 = values[n10], v11 = values[n11];
+                    double max = Math.max(Math.max(v00, v01), Math.max(v10, v11));
+                    double min = Math.min(Math.min(v00, v01), Math.min(v10, v11));
+                    if (max - min <= tolerance) {
+                        interpolate(lattice, r, c, step, v00, v01, v10, v11,
+                                values);
+                        continue;
+                    }
+                }
+                for (int dr = 0; dr < step; dr += half)
+                    for (int dc = 0; dc < step; dc += half)
+                        if (r + dr < numRows && c + dc < numCols)
+                            refined.add(new int[] { r + dr, c + dc });
+            }
+            if (refined.isEmpty())
+                break;
+            cells = refined;
+            step = half;
+        }
+
+        if (D)
+            System.out.println(C + ": computed " + numComputed + " of "
+                    + numNodes + " nodes");
+        return values;
+    }
+
+    /**
+     * Whether the curve at a node was computed (rather than the value
+     * interpolated) in the last calculation.
+     *
+     * @param node
+     * @return
+     */
+    public boolean isComputed(int node) {
+        return computed[node];
+    }
+
+    /**
+     * The number of nodes whose curves were computed in the last calculation.
+     */
+    public int getNumNodesComputed() {
+        return numComputed;
+    }
+
+    /**
+     * This returns the IML at which the curve has the given probability of
+     * exceedance, interpolating linearly in the IML and in ln(probability)
+     * between the IMLs around it (linearly in the probability where the
+     * lower probability is zero). Outside the curve the value is clamped: the
+     * first IML if the probability is at least that of the first IML, the last
+     * IML if it is below that of the last one.
+     *
+     * @param imls
+     *            in increasing order
+     * @param curve
+     *            the probability of exceedance of each IML (non-increasing)
+     * @param poe
+     * @return
+     */
+    public static double getIML_AtPOE(double[] imls, double[] curve,
+            double poe) {
+        return IML_AtPOE_Calculator.getX(imls, curve, poe);
+    }
+
+    // the node at a row and column of the lattice, or -1 if there is none
+    private static int getNode(int[][] lattice, int row, int col) {
+        if (row >= lattice.length || col >= lattice[0].length)
+            return -1;
+        return lattice[row][col];
+    }
+
+    // computes the curves at the nodes and sets their values
+    private
+            void
+            computeValues(
+                    GriddedRegion region,
+                    ArrayList<Integer> nodeList,
+                    SiteParamsProviderAPI siteParams,
+                    ArbitrarilyDiscretizedFunc imlFunc,
+                    double[] imls,
+                    double poe,
+                    Map<TectonicRegionType, ScalarIntensityMeasureRelationshipAPI> imrMap,
+                    EqkRupForecastAPI eqkRupForecast, double[] values)
+                    throws java.rmi.RemoteException {
+        if (nodeList.isEmpty())
+            return;
+        // the map calculator puts the nodes in Hilbert order for its tiles
+        // (unless setSpatialNodeOrder(false) was called on it, when the
+        // tiles are cut from the nodes in index order, i.e. along rows)
+        int[] nodes = new int[nodeList.size()];
+        for (int i = 0; i < nodes.length; i++)
+            nodes[i] = nodeList.get(i);
+        Arrays.sort(nodes);
+        double[][] curves =
+                mapCalc.getHazardCurves(region, nodes, siteParams, imlFunc,
+                        imrMap, eqkRupForecast);
+        for (int i = 0; i < nodes.length; i++) {
+            if (curves[i] == null)
+                throw new RuntimeException(C + ": calculation stopped");
+            values[nodes[i]] = getIML_AtPOE(imls, curves[i], poe);
+            computed[nodes[i]] = true;
+        }
+        numComputed += nodes.length;
+    }
+
+    // fills in the nodes of a cell that weren't computed by bilinear
+    // interpolation of its corner values
+    private void interpolate(int[][] lattice, int row, int col, int step,
+            double v00, double v01, double v10, double v11, double[] values) {
+        for (int dr = 0; dr <= step; dr++)
+            for (int dc = 0; dc <= step; dc++) {
+                int node = getNode(lattice, row + dr, col + dc);
+                if (node < 0 || computed[node])
+                    continue;
+                double y = (double) dr / step;
+                double x = (double) dc / step;
+                values[node] =
+                        (1 - y) * ((1 - x) * v00 + x * v01) + y
+                                * ((1 - x) * v10 + x * v11);
+            }
+    }
+}
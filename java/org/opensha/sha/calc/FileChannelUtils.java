@@ -0,0 +1,53 @@
+package org.opensha.sha.calc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Positional reads and writes of whole buffers, for the files of
+ * HazardMapCheckpoint and HazardCurveStore. Errors, including reading past
+ * the end of the file, are thrown as IOExceptions.
+ */
+final class FileChannelUtils {
+
+    private FileChannelUtils() {
+    }
+
+    /**
+     * This reads from the channel, starting at the position, until the
+     * buffer is full.
+     *
+     * @param channel
+     * @param buffer
+     * @param position
+     * @throws IOException
+     *             (an EOFException if the file ends first)
+     */
+    static void readFully(FileChannel channel, ByteBuffer buffer,
+            long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int num = channel.read(buffer, position);
+            if (num < 0)
+                throw new EOFException("unexpected end of file at "
+                        + position);
+            position += num;
+        }
+    }
+
+    /**
+     * This writes the rest of the buffer to the channel, starting at the
+     * position.
+     *
+     * @param channel
+     * @param buffer
+     * @param position
+     * @throws IOException
+     */
+    static void writeFully(FileChannel channel, ByteBuffer buffer,
+            long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+}
@@ -0,0 +1,315 @@
+package org.opensha.sha.calc;
+
+import java.util.SplittableRandom;
+
+import org.opensha.commons.data.Site;
+import org.opensha.commons.exceptions.ParameterException;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.param.ParameterAPI;
+import org.opensha.sha.earthquake.EqkRupture;
+import org.opensha.sha.imr.ScalarIntensityMeasureRelationshipAPI;
+import org.opensha.sha.imr.param.OtherParams.StdDevTypeParam;
+
+/**
+ * <p>
+ * Title: GroundMotionFieldCalculator
+ * </p>
+ * <p>
+ * Description: This computes the ground motion field of one rupture at many
+ * sites: the mean and the inter-event and intra-event standard deviations of
+ * the IMR (in its units, e.g. ln(PGA)) at each site, kept in primitive
+ * arrays, and random realizations of the field drawn from them. The rupture is
+ * set in the IMR once and each site once, so the IMR's parameter listeners
+ * run once per site rather than for each value and realization.
+ * </p>
+ * <p>
+ * A realization is mean + interSigma * eta + intraSigma * epsilon at each
+ * site, with one standard normal eta for the whole field and an independent
+ * standard normal epsilon for each site (untruncated, whatever the IMR's
+ * truncation settings). If a spatial correlation model is set (see
+ * setCorrelationModel()), the epsilons of the sites are correlated instead,
+ * and drawn by a SequentialGaussianSimulation, which is set up once for the
+ * sites and reused for every realization. If the IMR doesn't give inter- and intra-event
+ * standard deviations (see StdDevTypeParam), its total standard deviation is
+ * taken as intra-event and the inter-event one as zero, so the sites vary
+ * independently.
+ * </p>
+ * <p>
+ * Random numbers come from SplittableRandom: each realization has its own
+ * generator, seeded by mixing the master seed (setSeed()) with the
+ * realization index (as in StochasticEventSetCalculator), so a realization
+ * is fixed by the seed and its index whatever block of realizations it is
+ * drawn in.
+ * </p>
+ */
+public class GroundMotionFieldCalculator {
+
+    protected final static String C = "GroundMotionFieldCalculator";
+    protected final static boolean D = false;
+
+    /** Master seed used if setSeed() isn't called */
+    public final static long DEFAULT_SEED = 0;
+
+    /**
+     * Default greatest number of sites the intra-event residual of a site is
+     * conditioned on when they are correlated
+     */
+    public final static int DEFAULT_NUM_NEIGHBOURS = 16;
+
+    private final Site[] sites;
+    private final double[] means;
+    private final double[] interSigmas;
+    private final double[] intraSigmas;
+    private long seed = DEFAULT_SEED;
+    private SpatialCorrelationModelAPI correlationModel;
+    private int numNeighbours = DEFAULT_NUM_NEIGHBOURS;
+
+    // made from the correlation model when first needed
+    private SequentialGaussianSimulation simulation;
+
+    /**
+     * This computes the mean and standard deviations of the IMR at each site
+     * for the rupture. The IMR is left with the rupture and last site set,
+     * and its standard deviation type as it was.
+     *
+     * @param eqkRupture
+     * @param sites
+     * @param imr
+     *            with the intensity measure (and its period, etc.) set
+     */
+    public GroundMotionFieldCalculator(EqkRupture eqkRupture, Site[] sites,
+            ScalarIntensityMeasureRelationshipAPI imr) {
+        this.sites = sites.clone();
+        int numSites = sites.length;
+        means = new double[numSites];
+        interSigmas = new double[numSites];
+        intraSigmas = new double[numSites];
+
+        ParameterAPI<String> stdDevTypeParam = getStdDevTypeParam(imr);
+        boolean interIntra =
+                stdDevTypeParam != null
+                        && stdDevTypeParam
+                                .isAllowed(StdDevTypeParam.STD_DEV_TYPE_INTER)
+                        && stdDevTypeParam
+                                .isAllowed(StdDevTypeParam.STD_DEV_TYPE_INTRA);
+        String stdDevType =
+                stdDevTypeParam == null ? null : stdDevTypeParam.getValue();
+
+        imr.setEqkRupture(eqkRupture);
+        try {
+            for (int i = 0; i < numSites; i++) {
+                imr.setSite(sites[i]);
+                means[i] = imr.getMean();
+                if (interIntra) {
+                    stdDevTypeParam
+                            .setValue(StdDevTypeParam.STD_DEV_TYPE_INTER);
+                    interSigmas[i] = imr.getStdDev();
+                    stdDevTypeParam
+                            .setValue(StdDevTypeParam.STD_DEV_TYPE_INTRA);
+                    intraSigmas[i] = imr.getStdDev();
+                } else {
+                    intraSigmas[i] = imr.getStdDev();
+                }
+            }
+        } finally {
+            if (interIntra)
+                stdDevTypeParam.setValue(stdDevType);
+        }
+        if (D)
+            System.out.println(C + ": computed " + numSites + " sites"
+                    + (interIntra ? "" : " (total sigma only)"));
+    }
+
+    /**
+     * Sets the master seed from which the realizations are drawn.
+     *
+     * @param seed
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Sets the model of the spatial correlation of the intra-event residuals,
+     * or null (the default) for independent residuals.
+     *
+     * @param correlationModel
+     */
+    public synchronized void setCorrelationModel(
+            SpatialCorrelationModelAPI correlationModel) {
+        this.correlationModel = correlationModel;
+        simulation = null;
+    }
+
+    public SpatialCorrelationModelAPI getCorrelationModel() {
+        return correlationModel;
+    }
+
+    /**
+     * Sets the greatest number of sites (the nearest ones) the intra-event
+     * residual of a site is conditioned on when the residuals are correlated
+     * (see SequentialGaussianSimulation). More neighbours reproduce the
+     * correlation model more closely, at a cost of O(numNeighbours^3) per site
+     * to set up and O(numNeighbours) per site per realization.
+     *
+     * @param numNeighbours
+     */
+    public synchronized void setNumNeighbours(int numNeighbours) {
+        this.numNeighbours = numNeighbours;
+        simulation = null;
+    }
+
+    public int getNumNeighbours() {
+        return numNeighbours;
+    }
+
+    public int getNumSites() {
+        return sites.length;
+    }
+
+    /**
+     * The sites, in the order of the values of the field.
+     */
+    public Site[] getSites() {
+        return sites.clone();
+    }
+
+    /**
+     * The mean of the IMR at each site.
+     */
+    public double[] getMeans() {
+        return means.clone();
+    }
+
+    /**
+     * The inter-event standard deviation at each site.
+     */
+    public double[] getInterEventSigmas() {
+        return interSigmas.clone();
+    }
+
+    /**
+     * The intra-event standard deviation at each site.
+     */
+    public double[] getIntraEventSigmas() {
+        return intraSigmas.clone();
+    }
+
+    /**
+     * This draws realizations 0 to fields.length - 1 of the field (see the
+     * other version).
+     *
+     * @param fields
+     */
+    public void drawRealizations(double[][] fields) {
+        drawRealizations(fields, 0);
+    }
+
+    /**
+     * This draws realizations of the field into the given buffer, which can
+     * be reused for successive blocks of realizations: fields[r][site] is set
+     * to the value at each site of realization firstRealization + r.
+     *
+     * @param fields
+     *            [realization][site] (each row at least getNumSites() long)
+     * @param firstRealization
+     *            index of the realization drawn into fields[0]
+     */
+    public void drawRealizations(double[][] fields, int firstRealization) {
+        int numSites = sites.length;
+        double[] eta = new double[1];
+        for (int r = 0; r < fields.length; r++) {
+            double[] field = fields[r];
+            if (field.length < numSites)
+                throw new RuntimeException(C + ": field has " + field.length
+                        + " values, not " + numSites);
+            SplittableRandom random =
+                    new SplittableRandom(getRealizationSeed(firstRealization
+                            + r));
+            fillGaussians(random, eta, 1);
+            drawIntraEventResiduals(random, field);
+            for (int i = 0; i < numSites; i++)
+                field[i] = means[i] + interSigmas[i] * eta[0]
+                        + intraSigmas[i] * field[i];
+        }
+    }
+
+    /**
+     * This draws the (standard normal) intra-event residual of each site into
+     * the given array.
+     *
+     * @param random
+     *            generator of the realization
+     * @param residuals
+     */
+    protected void drawIntraEventResiduals(SplittableRandom random,
+            double[] residuals) {
+        SequentialGaussianSimulation simulation = getSimulation();
+        if (simulation == null)
+            fillGaussians(random, residuals, sites.length);
+        else
+            simulation.drawField(random, residuals);
+    }
+
+    // the simulation of correlated residuals, or null if they aren't
+    private synchronized SequentialGaussianSimulation getSimulation() {
+        if (correlationModel != null && simulation == null) {
+            Location[] locs = new Location[sites.length];
+            for (int i = 0; i < locs.length; i++)
+                locs[i] = sites[i].getLocation();
+            simulation =
+                    new SequentialGaussianSimulation(locs, correlationModel,
+                            numNeighbours);
+        }
+        return simulation;
+    }
+
+    /**
+     * The seed of the given realization, made from the master seed.
+     *
+     * @param realization
+     * @return
+     */
+    long getRealizationSeed(int realization) {
+        return SeedUtils.getSeed(seed, realization);
+    }
+
+    /**
+     * This fills the first num values of the array with standard normal
+     * numbers, two at a time (Marsaglia's polar method).
+     *
+     * @param random
+     * @param values
+     * @param num
+     */
+    static void fillGaussians(SplittableRandom random, double[] values,
+            int num) {
+        for (int i = 0; i < num; i += 2) {
+            double u, v, s;
+            do {
+                u = 2 * random.nextDouble() - 1;
+                v = 2 * random.nextDouble() - 1;
+                s = u * u + v * v;
+            } while (s >= 1 || s == 0);
+            double scale = Math.sqrt(-2 * Math.log(s) / s);
+            values[i] = u * scale;
+            if (i + 1 < num)
+                values[i + 1] = v * scale;
+        }
+    }
+
+    // the IMR's standard deviation type parameter, or null if it has none
+    @SuppressWarnings("unchecked")
+    private static ParameterAPI<String> getStdDevTypeParam(
+            ScalarIntensityMeasureRelationshipAPI imr) {
+        try {
+            return imr.getParameter(StdDevTypeParam.NAME);
+        } catch (ParameterException e) {
+            return null;
+        }
+    }
+}
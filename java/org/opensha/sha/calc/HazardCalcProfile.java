@@ -0,0 +1,321 @@
+package org.opensha.sha.calc;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.opensha.sha.earthquake.ProbEqkSource;
+import org.opensha.sha.imr.ScalarIntensityMeasureRelationshipAPI;
+
+/**
+ * <p>
+ * Title: HazardCalcProfile
+ * </p>
+ * <p>
+ * Description: Counters and timings of a hazard calculation, kept for each
+ * class of source and each class of IMR: the number of times a source was
+ * considered for a site, how many of these were beyond the maximum distance
+ * (and how many ruptures that skipped), how many ruptures the mag-dist filter
+ * skipped, how many were set in an IMR, how many of these were pruned as
+ * negligible for a site (see HazardCurveCalculator.setRupturePruneTolerance())
+ * and how many sets of exceedance probabilities were computed (or looked at,
+ * for those pruned), and the nanoseconds spent in
+ * ProbEqkSource.getMinDistance(), setEqkRupture() and
+ * getExceedProbabilities(). Each event is counted both for the class of the
+ * source and for the class of the IMR used with it (the distance to a source
+ * is measured before the IMR is needed, but it is still charged to the IMR of
+ * the source's tectonic region).
+ * </p>
+ * <p>
+ * HazardCurveCalculator keeps a profile for each thread of a calculation when
+ * profiling is on (see HazardCurveCalculator.setProfileCalc()), and adds them
+ * up in HazardCurveCalculator.getProfile(). getSummary() gives the totals as
+ * tab-separated text, one line per class.
+ * </p>
+ * <p>
+ * A profile is not thread safe; each thread updates its own. Counting is
+ * done through the "current" source and IMR set with setSource().
+ * </p>
+ */
+public class HazardCalcProfile {
+
+    protected final static String C = "HazardCalcProfile";
+
+    /** The first column of the summary for the lines of source classes */
+    public final static String SOURCE = "source";
+    /** The first column of the summary for the lines of IMR classes */
+    public final static String IMR = "imr";
+
+    /** The header line of the summary */
+    public final static String SUMMARY_HEADER =
+            "kind\tclass\tsources\tsourcesSkippedByDistance"
+                    + "\trupturesSkippedByDistance\trupturesSkippedByMagDist"
+                    + "\trupturesEvaluated\trupturesPruned\texceedProbCalcs"
+                    + "\tminDistanceNanos\tsetEqkRuptureNanos"
+                    + "\texceedProbNanos";
+
+    /**
+     * The totals for one class of source or IMR.
+     */
+    public static class Counters {
+
+        private long numSources;
+        private long numSourcesSkippedByDistance;
+        private long numRupturesSkippedByDistance;
+        private long numRupturesSkippedByMagDist;
+        private long numRupturesEvaluated;
+        private long numRupturesPruned;
+        private long numExceedProbCalcs;
+        private long minDistanceNanos;
+        private long setEqkRuptureNanos;
+        private long exceedProbNanos;
+
+        /** Times a source was considered for a site */
+        public long getNumSources() {
+            return numSources;
+        }
+
+        /** Times a source was beyond the maximum distance of a site */
+        public long getNumSourcesSkippedByDistance() {
+            return numSourcesSkippedByDistance;
+        }
+
+        /** Ruptures of the sources beyond the maximum distance */
+        public long getNumRupturesSkippedByDistance() {
+            return numRupturesSkippedByDistance;
+        }
+
+        /** Ruptures (for a site) below the mag-dist cutoff */
+        public long getNumRupturesSkippedByMagDist() {
+            return numRupturesSkippedByMagDist;
+        }
+
+        /** Ruptures set in an IMR */
+        public long getNumRupturesEvaluated() {
+            return numRupturesEvaluated;
+        }
+
+        /**
+         * Ruptures (for a site) found to be negligible before their
+         * exceedance probabilities were computed
+         */
+        public long getNumRupturesPruned() {
+            return numRupturesPruned;
+        }
+
+        /**
+         * Sets of exceedance probabilities computed (more than the ruptures
+         * evaluated when a rupture is evaluated for several sites)
+         */
+        public long getNumExceedProbCalcs() {
+            return numExceedProbCalcs;
+        }
+
+        public long getMinDistanceNanos() {
+            return minDistanceNanos;
+        }
+
+        public long getSetEqkRuptureNanos() {
+            return setEqkRuptureNanos;
+        }
+
+        public long getExceedProbNanos() {
+            return exceedProbNanos;
+        }
+
+        private void add(Counters counters) {
+            numSources += counters.numSources;
+            numSourcesSkippedByDistance += counters.numSourcesSkippedByDistance;
+            numRupturesSkippedByDistance +=
+                    counters.numRupturesSkippedByDistance;
+            numRupturesSkippedByMagDist += counters.numRupturesSkippedByMagDist;
+            numRupturesEvaluated += counters.numRupturesEvaluated;
+            numRupturesPruned += counters.numRupturesPruned;
+            numExceedProbCalcs += counters.numExceedProbCalcs;
+            minDistanceNanos += counters.minDistanceNanos;
+            setEqkRuptureNanos += counters.setEqkRuptureNanos;
+            exceedProbNanos += counters.exceedProbNanos;
+        }
+
+        private void append(StringBuilder line) {
+            line.append('\t').append(numSources);
+            line.append('\t').append(numSourcesSkippedByDistance);
+            line.append('\t').append(numRupturesSkippedByDistance);
+            line.append('\t').append(numRupturesSkippedByMagDist);
+            line.append('\t').append(numRupturesEvaluated);
+            line.append('\t').append(numRupturesPruned);
+            line.append('\t').append(numExceedProbCalcs);
+            line.append('\t').append(minDistanceNanos);
+            line.append('\t').append(setEqkRuptureNanos);
+            line.append('\t').append(exceedProbNanos);
+        }
+    }
+
+    private final LinkedHashMap<String, Counters> sourceCounters =
+            new LinkedHashMap<String, Counters>();
+    private final LinkedHashMap<String, Counters> imrCounters =
+            new LinkedHashMap<String, Counters>();
+
+    // the counters of the current source and IMR (see setSource())
+    private Counters source;
+    private Counters imr;
+
+    /**
+     * This sets the source and IMR to which the counts that follow apply.
+     *
+     * @param source
+     * @param imr
+     */
+    void setSource(ProbEqkSource source,
+            ScalarIntensityMeasureRelationshipAPI imr) {
+        this.source = getCounters(sourceCounters, source);
+        this.imr = getCounters(imrCounters, imr);
+    }
+
+    /**
+     * This counts the current source being considered for a site.
+     *
+     * @param minDistanceNanos
+     *            time taken by getMinDistance()
+     * @param skipped
+     *            whether it was beyond the maximum distance
+     * @param numRuptures
+     *            the ruptures of the source
+     */
+    void countSource(long minDistanceNanos, boolean skipped, int numRuptures) {
+        countSource(source, minDistanceNanos, skipped, numRuptures);
+        countSource(imr, minDistanceNanos, skipped, numRuptures);
+    }
+
+    /**
+     * This counts ruptures of the current source below the mag-dist cutoff.
+     *
+     * @param num
+     *            the number of ruptures (times sites) skipped
+     */
+    void countMagDistSkips(long num) {
+        source.numRupturesSkippedByMagDist += num;
+        imr.numRupturesSkippedByMagDist += num;
+    }
+
+    /**
+     * This counts a rupture of the current source set in the IMR.
+     *
+     * @param nanos
+     *            time taken by setEqkRupture()
+     */
+    void countRupture(long nanos) {
+        source.numRupturesEvaluated++;
+        source.setEqkRuptureNanos += nanos;
+        imr.numRupturesEvaluated++;
+        imr.setEqkRuptureNanos += nanos;
+    }
+
+    /**
+     * This counts a rupture of the current source pruned for a site (after
+     * countExceedProbs(), which includes the time taken to find it
+     * negligible).
+     */
+    void countPruned() {
+        source.numRupturesPruned++;
+        imr.numRupturesPruned++;
+    }
+
+    /**
+     * This counts a computation of exceedance probabilities.
+     *
+     * @param nanos
+     *            time taken by getExceedProbabilities()
+     */
+    void countExceedProbs(long nanos) {
+        source.numExceedProbCalcs++;
+        source.exceedProbNanos += nanos;
+        imr.numExceedProbCalcs++;
+        imr.exceedProbNanos += nanos;
+    }
+
+    /**
+     * This adds the counts of another profile to this one.
+     *
+     * @param profile
+     */
+    public void add(HazardCalcProfile profile) {
+        add(sourceCounters, profile.sourceCounters);
+        add(imrCounters, profile.imrCounters);
+    }
+
+    /**
+     * The totals for each class of source, by class name.
+     */
+    public Map<String, Counters> getSourceCounters() {
+        return sourceCounters;
+    }
+
+    /**
+     * The totals for each class of IMR, by class name.
+     */
+    public Map<String, Counters> getIMRCounters() {
+        return imrCounters;
+    }
+
+    /**
+     * The totals as tab-separated text: SUMMARY_HEADER, then a line for each
+     * class of source (starting with SOURCE) and each class of IMR (starting
+     * with IMR), in the order they were first seen.
+     *
+     * @return
+     */
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder(SUMMARY_HEADER);
+        summary.append('\n');
+        append(summary, SOURCE, sourceCounters);
+        append(summary, IMR, imrCounters);
+        return summary.toString();
+    }
+
+    @Override
+    public String toString() {
+        return getSummary();
+    }
+
+    private static void countSource(Counters counters, long minDistanceNanos,
+            boolean skipped, int numRuptures) {
+        counters.numSources++;
+        counters.minDistanceNanos += minDistanceNanos;
+        if (skipped) {
+            counters.numSourcesSkippedByDistance++;
+            counters.numRupturesSkippedByDistance += numRuptures;
+        }
+    }
+
+    private static Counters getCounters(Map<String, Counters> countersMap,
+            Object obj) {
+        String name = obj.getClass().getName();
+        Counters counters = countersMap.get(name);
+        if (counters == null) {
+            counters = new Counters();
+            countersMap.put(name, counters);
+        }
+        return counters;
+    }
+
+    private static void add(Map<String, Counters> to,
+            Map<String, Counters> from) {
+        for (Map.Entry<String, Counters> entry : from.entrySet()) {
+            Counters counters = to.get(entry.getKey());
+            if (counters == null) {
+                counters = new Counters();
+                to.put(entry.getKey(), counters);
+            }
+            counters.add(entry.getValue());
+        }
+    }
+
+    private static void append(StringBuilder summary, String kind,
+            Map<String, Counters> countersMap) {
+        for (Map.Entry<String, Counters> entry : countersMap.entrySet()) {
+            summary.append(kind).append('\t').append(entry.getKey());
+            entry.getValue().append(summary);
+            summary.append('\n');
+        }
+    }
+}
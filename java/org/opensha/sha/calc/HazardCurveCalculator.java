@@ -20,8 +20,12 @@ package org.opensha.sha.calc;
 
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.opensha.commons.data.Site;
 import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
@@ -30,15 +34,20 @@ import org.opensha.commons.param.ArbitrarilyDiscretizedFuncParameter;
 import org.opensha.commons.param.BooleanParameter;
 import org.opensha.commons.param.DoubleParameter;
 import org.opensha.commons.param.IntegerParameter;
+import org.opensha.commons.param.ParameterAPI;
 import org.opensha.commons.param.ParameterList;
+import org.opensha.commons.param.StringParameter;
 import org.opensha.commons.param.event.ParameterChangeWarningEvent;
 import org.opensha.commons.param.event.ParameterChangeWarningListener;
+import org.opensha.commons.geo.Location;
+import org.opensha.sha.earthquake.EqkRupForecast;
 import org.opensha.sha.earthquake.EqkRupForecastAPI;
 import org.opensha.sha.earthquake.EqkRupture;
 import org.opensha.sha.earthquake.ProbEqkRupture;
 import org.opensha.sha.earthquake.ProbEqkSource;
 import org.opensha.sha.imr.AttenuationRelationship;
 import org.opensha.sha.imr.ScalarIntensityMeasureRelationshipAPI;
+import org.opensha.sha.util.IMRUtils;
 import org.opensha.sha.util.TRTUtils;
 import org.opensha.sha.util.TectonicRegionType;
 
@@ -108,12 +117,104 @@ public class HazardCurveCalculator extends UnicastRemoteObject implements
     public final int NUM_STOCH_EVENT_SETS_PARAM_MAX = Integer.MAX_VALUE;
     public final static Integer NUM_STOCH_EVENT_SETS_PARAM_DEFAULT = 1;
 
+    // Info for parameter that sets the number of threads used to loop over
+    // sources
+    private IntegerParameter numThreadsParam;
+    public final static String NUM_THREADS_PARAM_NAME = "Num Threads";
+    public final String NUM_THREADS_PARAM_INFO =
+            "Number of threads sharing the loop over sources (1 means serial)";
+    public final int NUM_THREADS_PARAM_MIN = 1;
+    public final int NUM_THREADS_PARAM_MAX = 1024;
+    public final static Integer NUM_THREADS_PARAM_DEFAULT = 1;
+
+    // Info for parameter tells whether to find nearby sources with the ERF's
+    // spatial index
+    private BooleanParameter useSourceSpatialIndexParam;
+    public final static String USE_SOURCE_SPATIAL_INDEX_PARAM_NAME =
+            "Use Source Spatial Index?";
+    public final String USE_SOURCE_SPATIAL_INDEX_PARAM_INFO =
+            "This specifies whether to find the sources within the maximum "
+                    + "distance with the ERF's spatial index, rather than "
+                    + "checking the distance to every source";
+    public final boolean USE_SOURCE_SPATIAL_INDEX_PARAM_DEFAULT = false;
+
+    // Info for parameter that sets the order of the loops over sites and
+    // ruptures in multi-site calculations
+    private StringParameter calcOrderParam;
+    public final static String CALC_ORDER_PARAM_NAME = "Calculation Order";
+    public final String CALC_ORDER_PARAM_INFO =
+            "Whether multi-site calculations loop over sites for each rupture "
+                    + "(set up each rupture once) or over ruptures for each site";
+    public final static String CALC_ORDER_SITE_OUTER = "Site Outer";
+    public final static String CALC_ORDER_RUPTURE_OUTER = "Rupture Outer";
+    public final static String CALC_ORDER_PARAM_DEFAULT =
+            CALC_ORDER_SITE_OUTER;
+
+    // Info for parameter that sets the tolerance below which the contribution
+    // of a rupture is neglected
+    private DoubleParameter rupturePruneToleranceParam;
+    public final static String RUPTURE_PRUNE_TOLERANCE_PARAM_NAME =
+            "Rupture Pruning Tolerance";
+    public final String RUPTURE_PRUNE_TOLERANCE_PARAM_INFO =
+            "Ruptures that can change ln(non-exceedance probability) by less "
+                    + "than this at every IML are skipped (0 means none are)";
+    public final double RUPTURE_PRUNE_TOLERANCE_PARAM_MIN = 0;
+    public final double RUPTURE_PRUNE_TOLERANCE_PARAM_MAX = 1;
+    public final static Double RUPTURE_PRUNE_TOLERANCE_DEFAULT = new Double(0);
+
+    // Info for parameter tells whether to count and time the calculations
+    private BooleanParameter profileCalcParam;
+    public final static String PROFILE_CALC_PARAM_NAME =
+            "Profile Calculation?";
+    public final String PROFILE_CALC_PARAM_INFO =
+            "This specifies whether to count the ruptures evaluated and "
+                    + "skipped, and time the distance and IMR calls, for "
+                    + "each class of source and IMR";
+    public final boolean PROFILE_CALC_PARAM_DEFAULT = false;
+
+    // Info for parameter that sets the distance within which sites with the
+    // same parameters share a curve in multi-site calculations
+    private DoubleParameter siteClusterDistanceParam;
+    public final static String SITE_CLUSTER_DISTANCE_PARAM_NAME =
+            "Site Cluster Distance";
+    public final String SITE_CLUSTER_DISTANCE_PARAM_INFO =
+            "In multi-site calculations, sites with the same site parameters "
+                    + "within this distance of a computed site are given its "
+                    + "curve (0 means every site is computed)";
+    public final String SITE_CLUSTER_DISTANCE_PARAM_UNITS = "km";
+    public final double SITE_CLUSTER_DISTANCE_PARAM_MIN = 0;
+    public final double SITE_CLUSTER_DISTANCE_PARAM_MAX = 100;
+    public final static Double SITE_CLUSTER_DISTANCE_DEFAULT = new Double(0);
+
+    /**
+     * Source ranges are cut so that there are about this many tasks per
+     * thread, which lets idle threads steal work from those stuck on expensive
+     * (e.g. large fault) sources.
+     */
+    protected final static int TASKS_PER_THREAD = 8;
+
     private ParameterList adjustableParams;
 
     // misc counting and index variables
     protected int sourceIndex;
     protected int numSources;
 
+    // set by stopCalc() to halt the source loops
+    private volatile boolean calcStopped;
+
+    // the ruptures pruned so far (see setRupturePruneTolerance())
+    private final AtomicLong numRupturesPruned = new AtomicLong();
+
+    // the clusters of the last multi-site calculation, if sites were
+    // clustered (see setSiteClusterDistance())
+    private SiteClusters siteClusters;
+
+    // the profiles of the calculations (see setProfileCalc()): the totals
+    // so far and those of the threads of the calculation under way
+    private HazardCalcProfile totalProfile = new HazardCalcProfile();
+    private final ArrayList<HazardCalcProfile> threadProfiles =
+            new ArrayList<HazardCalcProfile>();
+
     /**
      * creates the HazardCurveCalculator object
      * 
@@ -155,11 +256,64 @@ public class HazardCurveCalculator extends UnicastRemoteObject implements
         numStochEventSetRealizationsParam
                 .setInfo(NUM_STOCH_EVENT_SETS_PARAM_INFO);
 
+        // Num Threads Parameter
+        numThreadsParam =
+                new IntegerParameter(NUM_THREADS_PARAM_NAME,
+                        NUM_THREADS_PARAM_MIN, NUM_THREADS_PARAM_MAX,
+                        NUM_THREADS_PARAM_DEFAULT);
+        numThreadsParam.setInfo(NUM_THREADS_PARAM_INFO);
+
+        // Use Source Spatial Index Parameter
+        useSourceSpatialIndexParam =
+                new BooleanParameter(USE_SOURCE_SPATIAL_INDEX_PARAM_NAME,
+                        USE_SOURCE_SPATIAL_INDEX_PARAM_DEFAULT);
+        useSourceSpatialIndexParam
+                .setInfo(USE_SOURCE_SPATIAL_INDEX_PARAM_INFO);
+
+        // Calculation Order Parameter
+        ArrayList<String> calcOrderStrings = new ArrayList<String>();
+        calcOrderStrings.add(CALC_ORDER_SITE_OUTER);
+        calcOrderStrings.add(CALC_ORDER_RUPTURE_OUTER);
+        calcOrderParam =
+                new StringParameter(CALC_ORDER_PARAM_NAME, calcOrderStrings,
+                        CALC_ORDER_PARAM_DEFAULT);
+        calcOrderParam.setInfo(CALC_ORDER_PARAM_INFO);
+
+        // Rupture Pruning Tolerance Parameter
+        rupturePruneToleranceParam =
+                new DoubleParameter(RUPTURE_PRUNE_TOLERANCE_PARAM_NAME,
+                        RUPTURE_PRUNE_TOLERANCE_PARAM_MIN,
+                        RUPTURE_PRUNE_TOLERANCE_PARAM_MAX,
+                        RUPTURE_PRUNE_TOLERANCE_DEFAULT);
+        rupturePruneToleranceParam
+                .setInfo(RUPTURE_PRUNE_TOLERANCE_PARAM_INFO);
+
+        // Profile Calculation Parameter
+        profileCalcParam =
+                new BooleanParameter(PROFILE_CALC_PARAM_NAME,
+                        PROFILE_CALC_PARAM_DEFAULT);
+        profileCalcParam.setInfo(PROFILE_CALC_PARAM_INFO);
+
+        // Site Cluster Distance Parameter
+        siteClusterDistanceParam =
+                new DoubleParameter(SITE_CLUSTER_DISTANCE_PARAM_NAME,
+                        SITE_CLUSTER_DISTANCE_PARAM_MIN,
+                        SITE_CLUSTER_DISTANCE_PARAM_MAX,
+                        SITE_CLUSTER_DISTANCE_PARAM_UNITS,
+                        SITE_CLUSTER_DISTANCE_DEFAULT);
+        siteClusterDistanceParam.setInfo(SITE_CLUSTER_DISTANCE_PARAM_INFO);
+
         adjustableParams = new ParameterList();
         adjustableParams.addParameter(maxDistanceParam);
         adjustableParams.addParameter(numStochEventSetRealizationsParam);
         adjustableParams.addParameter(includeMagDistFilterParam);
         adjustableParams.addParameter(magDistCutoffParam);
+        adjustableParams.addParameter(numThreadsParam);
+        adjustableParams.addParameter(calcOrderParam);
+        adjustableParams.addParameter(useSourceSpatialIndexParam);
+        adjustableParams.addParameter(rupturePruneToleranceParam);
+        adjustableParams.addParameter(profileCalcParam);
+        adjustableParams.addParameter(siteClusterDistanceParam);
 
     }
 
@@ -180,6 +334,240 @@ public class HazardCurveCalculator extends UnicastRemoteObject implements
         numStochEventSetRealizationsParam.setValue(numRealizations);
     }
 
+    public int getNumStochEventSetRealizations() {
+        return numStochEventSetRealizationsParam.getValue();
+    }
+
+    /**
+     * This sets the number of threads used to loop over the sources in
+     * getHazardCurve(*) with an ERF and in the rupture-outer order of
+     * getHazardCurves() for a list of sites. A value of 1 (the default) gives
+     * the original serial calculation.
+     * 
+     * @param numThreads
+     */
+    public void setNumThreads(int numThreads) {
+        numThreadsParam.setValue(numThreads);
+    }
+
+    public int getNumThreads() {
+        return numThreadsParam.getValue();
+    }
+
+    /**
+     * This sets the order of the loops in getHazardCurves() and in
+     * HazardMapCalculator: CALC_ORDER_SITE_OUTER (the default) computes each
+     * site's curve in turn, while CALC_ORDER_RUPTURE_OUTER sets each rupture
+     * in the IMR once and then evaluates all the sites within the cutoff
+     * distance of its source, so the rupture parameters (fault type, depth to
+     * top, dip, etc.) are derived once rather than once per site.
+     * 
+     * @param calcOrder
+     */
+    public void setCalcOrder(String calcOrder) {
+        calcOrderParam.setValue(calcOrder);
+    }
+
+    public String getCalcOrder() {
+        return calcOrderParam.getValue();
+    }
+
+    /**
+     * This sets whether the sources within the maximum distance of a site are
+     * found with the ERF's spatial index (EqkRupForecast.getSourceSpatialIndex())
+     * rather than by checking the distance to every source. The curves are the
+     * same either way; the index saves time when the ERF has many sources and
+     * many sites are computed after each updateForecast() (the index is made
+     * on first use, which costs about one pass over the sources). ERFs that
+     * aren't EqkRupForecasts are always looped over in full.
+     * 
+     * @param useIndex
+     */
+    public void setUseSourceSpatialIndex(boolean useIndex) {
+        useSourceSpatialIndexParam.setValue(useIndex);
+    }
+
+    public boolean getUseSourceSpatialIndex() {
+        return useSourceSpatialIndexParam.getValue();
+    }
+
+    /**
+     * This sets the tolerance below which ruptures are pruned: before the
+     * exceedance probabilities of a rupture at a site are computed, the IMR's
+     * mean and standard deviation are used to find the probability of
+     * exceeding the lowest IML, and if that times -ln(1-qkProb) (or qkProb
+     * for a non-Poisson source) is less than the tolerance, the rupture can't
+     * change the curve by more than that at any IML and is skipped (see
+     * SourceCalcWorker.computeExceedProbs()). This applies to IMRs that are
+     * AttenuationRelationships, in getHazardCurve(*) with an ERF,
+     * getHazardCurves() for a list of sites or several IMTs (and so
+     * UniformHazardSpectrumCalculator) and HazardMapCalculator. With the
+     * default of 0 no rupture is pruned.
+     * 
+     * @param tolerance
+     */
+    public void setRupturePruneTolerance(double tolerance) {
+        rupturePruneToleranceParam.setValue(tolerance);
+    }
+
+    public double getRupturePruneTolerance() {
+        return rupturePruneToleranceParam.getValue();
+    }
+
+    /**
+     * The number of ruptures pruned (once for each site; see
+     * setRupturePruneTolerance()) since the calculator was made or
+     * resetNumRupturesPruned() was called.
+     */
+    public long getNumRupturesPruned() {
+        return numRupturesPruned.get();
+    }
+
+    public void resetNumRupturesPruned() {
+        numRupturesPruned.set(0);
+    }
+
+    /**
+     * This sets whether calculations are profiled: when they are, the sources
+     * and ruptures evaluated and skipped, and the time spent in
+     * getMinDistance(), setEqkRupture() and getExceedProbabilities(), are
+     * counted for each class of source and IMR (see HazardCalcProfile) and
+     * added up over the calculations made until resetProfile() is called.
+     * This covers getHazardCurve(*) with an ERF, getHazardCurves() for a list
+     * of sites or several IMTs and HazardMapCalculator. Profiling is off by default, and then
+     * costs no more than a test against null around the timed calls.
+     * 
+     * @param profile
+     */
+    public void setProfileCalc(boolean profile) {
+        profileCalcParam.setValue(profile);
+    }
+
+    public boolean getProfileCalc() {
+        return profileCalcParam.getValue();
+    }
+
+    /**
+     * This returns the totals of the calculations profiled since the
+     * calculator was made or resetProfile() was called (a copy, which later
+     * calculations don't change). See HazardCalcProfile.getSummary() for a
+     * machine-readable summary.
+     * 
+     * @return
+     */
+    public HazardCalcProfile getProfile() {
+        HazardCalcProfile profile = new HazardCalcProfile();
+        synchronized (threadProfiles) {
+            profile.add(totalProfile);
+            for (HazardCalcProfile threadProfile : threadProfiles)
+                profile.add(threadProfile);
+        }
+        return profile;
+    }
+
+    /**
+     * This clears the totals of getProfile().
+     */
+    public void resetProfile() {
+        synchronized (threadProfiles) {
+            totalProfile = new HazardCalcProfile();
+            threadProfiles.clear();
+        }
+    }
+
+    /**
+     * This sets the distance within which sites share a curve in
+     * getHazardCurves() for a list of sites: the sites are grouped into
+     * clusters of sites with the same site parameters (and values) within this
+     * distance of one of them, the representative (see SiteClusters), and only
+     * the curves of the representatives are computed; each other site is
+     * given the curve of its representative. getSiteClusters() then tells how
+     * far (at most) each site was from the site whose curve it was given,
+     * which bounds the error. With the default of 0 every site is computed.
+     * 
+     * @param distance
+     *            in km
+     */
+    public void setSiteClusterDistance(double distance) {
+        siteClusterDistanceParam.setValue(distance);
+    }
+
+    public double getSiteClusterDistance() {
+        return siteClusterDistanceParam.getValue();
+    }
+
+    /**
+     * The clusters of the last call to getHazardCurves() for a list of sites,
+     * or null if its sites weren't clustered (see setSiteClusterDistance()).
+     * 
+     * @return
+     */
+    public SiteClusters getSiteClusters() {
+        return siteClusters;
+    }
+
+    /**
+     * This returns, in ascending order, the indices of the sources to consider
+     * for a location: all of them, or if the spatial index is used, those the
+     * index finds may be within the given distance (the caller still applies
+     * getMinDistance() to these).
+     * 
+     * @param eqkRupForecast
+     * @param loc
+     * @param distance
+     *            in km
+     * @return
+     */
+    int[] getSourceIndices(EqkRupForecastAPI eqkRupForecast, Location loc,
+            double distance) {
+        if (usesSourceSpatialIndex(eqkRupForecast))
+            return ((EqkRupForecast) eqkRupForecast).getSourceSpatialIndex()
+                    .getCandidateSources(loc, distance);
+        int[] sourceIndices = new int[eqkRupForecast.getNumSources()];
+        for (int s = 0; s < sourceIndices.length; s++)
+            sourceIndices[s] = s;
+        return sourceIndices;
+    }
+
+    /**
+     * This returns, in ascending order, the indices of the sources to consider
+     * for any of the sites: the union of those getSourceIndices() gives for
+     * each site.
+     * 
+     * @param eqkRupForecast
+     * @param sites
+     * @param distance
+     *            in km
+     * @return
+     */
+    int[] getSourceIndices(EqkRupForecastAPI eqkRupForecast, Site[] sites,
+            double distance) {
+        if (!usesSourceSpatialIndex(eqkRupForecast) || sites.length == 1)
+            return getSourceIndices(eqkRupForecast, sites[0].getLocation(),
+                    distance);
+        boolean[] found = new boolean[eqkRupForecast.getNumSources()];
+        int numFound = 0;
+        for (Site site : sites)
+            for (int s : getSourceIndices(eqkRupForecast, site.getLocation(),
+                    distance))
+                if (!found[s]) {
+                    found[s] = true;
+                    numFound++;
+                }
+        int[] sourceIndices = new int[numFound];
+        numFound = 0;
+        for (int s = 0; s < found.length; s++)
+            if (found[s])
+                sourceIndices[numFound++] = s;
+        return sourceIndices;
+    }
+
+    // whether sources are found with the ERF's spatial index
+    private boolean usesSourceSpatialIndex(EqkRupForecastAPI eqkRupForecast) {
+        return useSourceSpatialIndexParam.getValue()
+                && eqkRupForecast instanceof EqkRupForecast;
+    }
+
     /**
      * This is a direct way of getting the distance cutoff from that parameter
      */
@@ -317,10 +705,15 @@ public class HazardCurveCalculator extends UnicastRemoteObject implements
          */
         boolean poissonSource = false;
 
+        // hand off to the parallel source loop if more than one thread is
+        // wanted
+        int numThreads = numThreadsParam.getValue();
+        if (numThreads > 1 && eqkRupForecast.getNumSources() > 1)
+            return getHazardCurveParallel(hazFunction, site, imrMap,
+                    eqkRupForecast, numThreads);
+
         ArbitrarilyDiscretizedFunc condProbFunc =
                 (ArbitrarilyDiscretizedFunc) hazFunction.deepClone();
-        ArbitrarilyDiscretizedFunc sourceHazFunc =
-                (ArbitrarilyDiscretizedFunc) hazFunction.deepClone();
 
         // declare some variables used in the calculation
         double qkProb, distance;
@@ -329,9 +722,24 @@ public class HazardCurveCalculator extends UnicastRemoteObject implements
         // get the number of points
         int numPoints = hazFunction.getNum();
 
+        /*
+         * The curve is accumulated in primitive arrays rather than in the
+         * functions, whose indexed get/set walk the underlying TreeMap: the
+         * product over ruptures of (1-qkProb)^condProb is formed as the sum of
+         * ln(1-qkProb)*condProb (so no Math.pow per IML), the conditional
+         * probabilities are copied out of condProbFunc once per rupture, and
+         * hazFunction is only set at the end.
+         */
+        double[] logNonExceedProbs = new double[numPoints];
+        double[] condProbs = new double[numPoints];
+        double[] sourceExceedProbs = new double[numPoints];
+
         // define distance filtering stuff
         double maxDistance = maxDistanceParam.getValue();
         boolean includeMagDistFilter = includeMagDistFilterParam.getValue();
+        MagDistCutoffTable magDistCutoffTable =
+                includeMagDistFilter ? new MagDistCutoffTable(
+                        magDistCutoffParam.getValue()) : null;
         double magThresh = 0.0;
 
         // initialize IMRs w/ max distance, site, and reset parameter listeners
@@ -345,19 +753,22 @@ public class HazardCurveCalculator extends UnicastRemoteObject implements
         // get total number of sources
         numSources = eqkRupForecast.getNumSources();
 
-        // initialize the hazard function to 1.0
-        initDiscretizeValues(hazFunction, 1.0);
+        // null unless the calculation is profiled
+        HazardCalcProfile profile = createProfile();
+        double pruneTolerance = rupturePruneToleranceParam.getValue();
 
-        // this boolean will tell us whether a source was actually used
-        // (e.g., all sources could be outside MAX_DISTANCE, leading to
-        // numerical problems)
-        boolean sourceUsed = false;
+        // the sources to consider (all, unless the spatial index is used)
+        int[] sourceIndices =
+                getSourceIndices(eqkRupForecast, site.getLocation(),
+                        maxDistance);
+        calcStopped = false;
 
         if (D)
             System.out.println(C + ": starting hazard curve calculation");
 
         // loop over sources
-        for (sourceIndex = 0; sourceIndex < numSources; sourceIndex++) {
+        for (int s = 0; s < sourceIndices.length && !calcStopped; s++) {
+            sourceIndex = sourceIndices[s];
 
             // get the ith source
             ProbEqkSource source = eqkRupForecast.getSource(sourceIndex);
@@ -369,7 +780,15 @@ public class HazardCurveCalculator extends UnicastRemoteObject implements
 
             // compute the source's distance from the site and skip if it's too
             // far away
-            distance = source.getMinDistance(site);
+            if (profile == null)
+                distance = source.getMinDistance(site);
+            else {
+                profile.setSource(source, imr);
+                long start = System.nanoTime();
+                distance = source.getMinDistance(site);
+                profile.countSource(System.nanoTime() - start,
+                        distance > maxDistance, source.getNumRuptures());
+            }
 
             // apply distance cutoff to source
             if (distance > maxDistance) {
@@ -378,18 +797,17 @@ public class HazardCurveCalculator extends UnicastRemoteObject implements
 
             // get magThreshold if we're to use the mag-dist cutoff filter
             if (includeMagDistFilter) {
-                magThresh =
-                        magDistCutoffParam.getValue()
-                                .getInterpolatedY(distance);
+                magThresh = magDistCutoffTable.getMagThreshold(distance);
             }
 
             // determine whether it's poissonian (calcs depend on this)
             poissonSource = source.isSourcePoissonian();
 
-            // initialize the source hazard function to 0.0 if it's a
+            // initialize the source exceedance probs to 0.0 if it's a
             // non-poisson source
             if (!poissonSource)
-                initDiscretizeValues(sourceHazFunc, 0.0);
+                for (k = 0; k < numPoints; k++)
+                    sourceExceedProbs[k] = 0.0;
 
             // get the number of ruptures for the current source
             int numRuptures = source.getNumRuptures();
@@ -404,20 +822,44 @@ public class HazardCurveCalculator extends UnicastRemoteObject implements
 
                 // apply magThreshold if we're to use the mag-dist cutoff filter
                 if (includeMagDistFilter && rupture.getMag() < magThresh) {
+                    if (profile != null)
+                        profile.countMagDistSkips(1);
                     continue;
                 }
 
-                // indicate that a source has been used (put here because of
-                // above filter)
-                sourceUsed = true;
-
-                // set the EqkRup in the IMR
-                imr.setEqkRupture(rupture);
-
-                // get the conditional probability of exceedance from the IMR
-                condProbFunc =
-                        (ArbitrarilyDiscretizedFunc) imr
-                                .getExceedProbabilities(condProbFunc);
+                if (profile == null && pruneTolerance <= 0) {
+                    // set the EqkRup in the IMR
+                    imr.setEqkRupture(rupture);
+
+                    // get the conditional probability of exceedance from the
+                    // IMR
+                    condProbFunc =
+                            (ArbitrarilyDiscretizedFunc) imr
+                                    .getExceedProbabilities(condProbFunc);
+                } else {
+                    long start = profile == null ? 0 : System.nanoTime();
+                    imr.setEqkRupture(rupture);
+                    long middle = profile == null ? 0 : System.nanoTime();
+                    // this skips negligible ruptures (see
+                    // SourceCalcWorker.computeExceedProbs())
+                    DiscretizedFuncAPI func =
+                            SourceCalcWorker.computeExceedProbs(imr,
+                                    condProbFunc, poissonSource ? -Math
+                                            .log(1.0 - qkProb) : qkProb,
+                                    pruneTolerance);
+                    if (profile != null) {
+                        profile.countRupture(middle - start);
+                        profile.countExceedProbs(System.nanoTime() - middle);
+                    }
+                    if (func == null) {
+                        if (profile != null)
+                            profile.countPruned();
+                        numRupturesPruned.incrementAndGet();
+                        continue;
+                    }
+                    condProbFunc = (ArbitrarilyDiscretizedFunc) func;
+                }
+                SourceCalcWorker.getYValues(condProbFunc, condProbs);
 
                 // For poisson source
                 if (poissonSource) {
@@ -431,39 +873,118 @@ public class HazardCurveCalculator extends UnicastRemoteObject implements
                      * of events). The number 30 used in the check below
                      * provides a safe margin.
                      */
-                    if (Math.log(1.0 - qkProb) < -30.0)
+                    double logNonExceedProb = Math.log(1.0 - qkProb);
+                    if (logNonExceedProb < -30.0)
                         throw new RuntimeException(
                                 "Error: The probability for this ProbEqkRupture ("
                                         + qkProb
                                         + ") is too high for a Possion source (~infinite number of events)");
 
                     for (k = 0; k < numPoints; k++)
-                        hazFunction.set(
-                                k,
-                                hazFunction.getY(k)
-                                        * Math.pow(1 - qkProb,
-                                                condProbFunc.getY(k)));
+                        logNonExceedProbs[k] += logNonExceedProb * condProbs[k];
                 }
                 // For non-Poissin source
                 else
                     for (k = 0; k < numPoints; k++)
-                        sourceHazFunc.set(k, sourceHazFunc.getY(k) + qkProb
-                                * condProbFunc.getY(k));
+                        sourceExceedProbs[k] += qkProb * condProbs[k];
             }
             // for non-poisson source:
             if (!poissonSource)
                 for (k = 0; k < numPoints; k++)
-                    hazFunction.set(k,
-                            hazFunction.getY(k) * (1 - sourceHazFunc.getY(k)));
+                    logNonExceedProbs[k] += Math.log(1 - sourceExceedProbs[k]);
         }
 
-        int i;
-        // finalize the hazard function
-        if (sourceUsed)
-            for (i = 0; i < numPoints; ++i)
-                hazFunction.set(i, 1 - hazFunction.getY(i));
-        else
-            this.initDiscretizeValues(hazFunction, 0.0);
+        // finalize the hazard function (if no source was used, e.g., all
+        // sources are outside MAX_DISTANCE, the sums are zero and so is the
+        // probability)
+        for (k = 0; k < numPoints; k++)
+            hazFunction.set(k, -Math.expm1(logNonExceedProbs[k]));
+
+        if (profile != null)
+            collectProfiles();
+
+        if (D)
+            System.out.println(C + "hazFunction.toString"
+                    + hazFunction.toString());
+
+        return hazFunction;
+    }
+
+    /**
+     * This computes the same hazard curve as getHazardCurve(hazFunction, site,
+     * imrMap, eqkRupForecast), but splits the range of source indices over a
+     * ForkJoinPool with the given number of threads. Each thread works with
+     * its own clones of the IMRs (see createSourceCalcWorker), and each task
+     * sums ln(total non-exceedance probability) for its sources into a
+     * primitive array; the arrays are added together as tasks are joined, and
+     * the curve is 1-exp(sum). The tasks are always split and joined in the
+     * same order for a given number of threads, so results are reproducible,
+     * but because the product over sources is formed in log space and in a
+     * different order than the serial loop they agree with the serial curve
+     * only to within round-off (absolute differences of ~1e-12 or less), not
+     * bit-for-bit.
+     * <p>
+     * Sources are used concurrently, so the ERF must return independent
+     * source objects for different indices (as GEM1ERF does); calls to
+     * getSource(int) are synchronized on the ERF.
+     * 
+     * @param hazFunction
+     *            : This function is where the hazard curve is placed
+     * @param site
+     *            : site object
+     * @param imrMap
+     *            : IMR for each tectonic region (see getHazardCurve)
+     * @param eqkRupForecast
+     *            : selected Earthquake rup forecast
+     * @param numThreads
+     *            : number of threads in the pool
+     * @return
+     */
+    protected
+            DiscretizedFuncAPI
+            getHazardCurveParallel(
+                    final DiscretizedFuncAPI hazFunction,
+                    Site site,
+                    final Map<TectonicRegionType, ScalarIntensityMeasureRelationshipAPI> imrMap,
+                    EqkRupForecastAPI eqkRupForecast, int numThreads) {
+
+        numSources = eqkRupForecast.getNumSources();
+        calcStopped = false;
+
+        // the sources to consider (all, unless the spatial index is used)
+        int[] sourceIndices =
+                getSourceIndices(eqkRupForecast, site.getLocation(),
+                        maxDistanceParam.getValue());
+
+        int sourcesPerTask =
+                Math.max(1, sourceIndices.length
+                        / (numThreads * TASKS_PER_THREAD));
+
+        // each pool thread makes its own worker the first time it needs one
+        ThreadLocal<SourceCalcWorker> workers =
+                new ThreadLocal<SourceCalcWorker>() {
+                    @Override
+                    protected SourceCalcWorker initialValue() {
+                        return createSourceCalcWorker(imrMap, hazFunction);
+                    }
+                };
+
+        double[] logNonExceedProbs;
+        ForkJoinPool pool = new ForkJoinPool(numThreads);
+        try {
+            logNonExceedProbs =
+                    pool.invoke(new SourceRangeTask(workers, site,
+                            eqkRupForecast, sourceIndices, 0,
+                            sourceIndices.length, sourcesPerTask));
+        } finally {
+            pool.shutdown();
+        }
+
+        // finalize the hazard function (a sum of zero, when no source was
+        // used, gives zero probability as in the serial calculation)
+        for (int k = 0; k < logNonExceedProbs.length; k++)
+            hazFunction.set(k, -Math.expm1(logNonExceedProbs[k]));
+        collectProfiles();
 
         if (D)
             System.out.println(C + "hazFunction.toString"
@@ -472,6 +993,467 @@ public class HazardCurveCalculator extends UnicastRemoteObject implements
         return hazFunction;
     }
 
+    /**
+     * This computes hazard curves for a list of sites with one IMR for all
+     * tectonic region types (see the imrMap version).
+     * 
+     * @param hazFunctions
+     *            : one function per site, where the curves are placed
+     * @param sites
+     *            : site objects
+     * @param imr
+     *            : selected IMR object
+     * @param eqkRupForecast
+     *            : selected Earthquake rup forecast
+     */
+    public void getHazardCurves(List<DiscretizedFuncAPI> hazFunctions,
+            List<Site> sites, ScalarIntensityMeasureRelationshipAPI imr,
+            EqkRupForecastAPI eqkRupForecast) throws java.rmi.RemoteException {
+        getHazardCurves(hazFunctions, sites, TRTUtils.wrapInHashMap(imr),
+                eqkRupForecast);
+    }
+
+    /**
+     * This computes hazard curves for a list of sites, placing the curve for
+     * each site in the corresponding function of hazFunctions (all of which
+     * must have the same IMLs as x values). The loops are ordered as set by
+     * setCalcOrder(): with CALC_ORDER_SITE_OUTER this is the same as calling
+     * getHazardCurve() for each site; with CALC_ORDER_RUPTURE_OUTER the ERF is
+     * traversed once, each rupture is set in the IMR once, and the sites
+     * within the cutoff distance of its source are evaluated against it. The
+     * rupture-outer curves agree with the site-outer ones to within round-off
+     * (probabilities are combined in log space). The rupture-outer loop works
+     * with clones of the IMRs, so those passed in are left unchanged, visits
+     * only the sources the spatial index (if used) finds near some site, and
+     * with more than one thread (see setNumThreads()) splits the sources over
+     * a ForkJoinPool as getHazardCurve() does (so the ERF must then return
+     * independent source objects, as described there). If a
+     * site cluster distance is set (see setSiteClusterDistance()), only the
+     * curves of the representatives of the clusters of sites are computed.
+     * 
+     * @param hazFunctions
+     *            : one function per site, where the curves are placed
+     * @param sites
+     *            : site objects
+     * @param imrMap
+     *            : IMR for each tectonic region (see getHazardCurve)
+     * @param eqkRupForecast
+     *            : selected Earthquake rup forecast
+     */
+    public
+            void
+            getHazardCurves(
+                    List<DiscretizedFuncAPI> hazFunctions,
+                    List<Site> sites,
+                    Map<TectonicRegionType, ScalarIntensityMeasureRelationshipAPI> imrMap,
+                    EqkRupForecastAPI eqkRupForecast)
+                    throws java.rmi.RemoteException {
+        if (hazFunctions.size() != sites.size())
+            throw new RuntimeException("Number of functions ("
+                    + hazFunctions.size() + ") and sites (" + sites.size()
+                    + ") differ");
+
+        double clusterDistance = siteClusterDistanceParam.getValue();
+        if (clusterDistance <= 0) {
+            siteClusters = null;
+            computeHazardCurves(hazFunctions, sites, imrMap, eqkRupForecast);
+            return;
+        }
+
+        SiteClusters clusters = new SiteClusters(sites, clusterDistance);
+        int numClusters = clusters.getNumClusters();
+        List<DiscretizedFuncAPI> repFunctions =
+                new ArrayList<DiscretizedFuncAPI>(numClusters);
+        List<Site> repSites = new ArrayList<Site>(numClusters);
+        for (int n = 0; n < numClusters; n++) {
+            int rep = clusters.getRepresentative(n);
+            repFunctions.add(hazFunctions.get(rep));
+            repSites.add(sites.get(rep));
+        }
+        computeHazardCurves(repFunctions, repSites, imrMap, eqkRupForecast);
+        for (int i = 0; i < sites.size(); i++) {
+            DiscretizedFuncAPI repFunction =
+                    repFunctions.get(clusters.getCluster(i));
+            DiscretizedFuncAPI hazFunction = hazFunctions.get(i);
+            if (hazFunction == repFunction)
+                continue;
+            for (int k = 0; k < repFunction.getNum(); k++)
+                hazFunction.set(k, repFunction.getY(k));
+        }
+        siteClusters = clusters;
+        if (D)
+            System.out.println(C + ": computed " + numClusters + " of "
+                    + sites.size() + " sites, max offset "
+                    + clusters.getMaxOffset() + " km");
+    }
+
+    // computes the curves of getHazardCurves() for a list of sites, at every
+    // site
+    private
+            void
+            computeHazardCurves(
+                    List<DiscretizedFuncAPI> hazFunctions,
+                    List<Site> sites,
+                    final Map<TectonicRegionType, ScalarIntensityMeasureRelationshipAPI> imrMap,
+                    EqkRupForecastAPI eqkRupForecast)
+                    throws java.rmi.RemoteException {
+        if (!CALC_ORDER_RUPTURE_OUTER.equals(calcOrderParam.getValue())) {
+            for (int i = 0; i < sites.size(); i++)
+                getHazardCurve(hazFunctions.get(i), sites.get(i), imrMap,
+                        eqkRupForecast);
+            return;
+        }
+
+        if (sites.isEmpty())
+            return;
+        final Site[] siteArray = sites.toArray(new Site[sites.size()]);
+        final DiscretizedFuncAPI imlFunc = hazFunctions.get(0);
+        numSources = eqkRupForecast.getNumSources();
+        calcStopped = false;
+
+        // the sources to consider (all, unless the spatial index is used)
+        int[] sourceIndices =
+                getSourceIndices(eqkRupForecast, siteArray, maxDistanceParam
+                        .getValue());
+
+        double[][] logNonExceedProbs;
+        int numThreads = numThreadsParam.getValue();
+        if (numThreads > 1 && sourceIndices.length > 1) {
+            int sourcesPerTask =
+                    Math.max(1, sourceIndices.length
+                            / (numThreads * TASKS_PER_THREAD));
+            // each pool thread makes its own worker the first time it needs
+            // one
+            ThreadLocal<SourceCalcWorker> workers =
+                    new ThreadLocal<SourceCalcWorker>() {
+                        @Override
+                        protected SourceCalcWorker initialValue() {
+                            return createSourceCalcWorker(imrMap, imlFunc);
+                        }
+                    };
+            ForkJoinPool pool = new ForkJoinPool(numThreads);
+            try {
+                logNonExceedProbs =
+                        pool.invoke(new SitesSourceRangeTask(workers,
+                                siteArray, eqkRupForecast, sourceIndices, 0,
+                                sourceIndices.length, sourcesPerTask));
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            SourceCalcWorker worker = createSourceCalcWorker(imrMap, imlFunc);
+            logNonExceedProbs =
+                    new double[siteArray.length][worker.getNumPoints()];
+            for (int s = 0; s < sourceIndices.length && !calcStopped; s++) {
+                sourceIndex = sourceIndices[s];
+                worker.addSource(eqkRupForecast.getSource(sourceIndex),
+                        siteArray, logNonExceedProbs);
+            }
+        }
+
+        for (int i = 0; i < siteArray.length; i++) {
+            DiscretizedFuncAPI hazFunction = hazFunctions.get(i);
+            for (int k = 0; k < logNonExceedProbs[i].length; k++)
+                hazFunction.set(k, -Math.expm1(logNonExceedProbs[i][k]));
+        }
+        collectProfiles();
+    }
+
+    /**
+     * This computes hazard curves for several intensity measure types at a
+     * site with one IMR for all tectonic region types (see the imrMap
+     * version).
+     * 
+     * @param hazFunctions
+     *            : the function for each IMT, where its curve is placed
+     * @param site
+     *            : site object
+     * @param imr
+     *            : selected IMR object
+     * @param eqkRupForecast
+     *            : selected Earthquake rup forecast
+     */
+    public void getHazardCurves(
+            Map<IntensityMeasureType, DiscretizedFuncAPI> hazFunctions,
+            Site site, ScalarIntensityMeasureRelationshipAPI imr,
+            EqkRupForecastAPI eqkRupForecast) throws java.rmi.RemoteException {
+        getHazardCurves(hazFunctions, site, TRTUtils.wrapInHashMap(imr),
+                eqkRupForecast);
+    }
+
+    /**
+     * This computes hazard curves for several intensity measure types (e.g.
+     * PGA and a number of SA periods) at a site in one pass over the ERF,
+     * placing the curve for each IMT in its function in hazFunctions (the x
+     * values of which are the IMLs for that IMT). Each source is fetched from
+     * the ERF, and its distance to the site computed, once, and each of its
+     * ruptures is set in the IMR once (so the distances are computed once)
+     * and then evaluated for each IMT in turn by switching the IM (and period)
+     * of the IMR, with the same distance cutoffs, rupture pruning and
+     * profiling as getHazardCurve(). The curves are the same as those from
+     * getHazardCurve() with the IMR set to each IMT in turn (to within
+     * round-off). The IMRs passed in are left unchanged; the calculation
+     * always runs in the calling thread.
+     * 
+     * @param hazFunctions
+     *            : the function for each IMT, where its curve is placed
+     * @param site
+     *            : site object
+     * @param imrMap
+     *            : IMR for each tectonic region (see getHazardCurve); all must
+     *            support all the IMTs
+     * @param eqkRupForecast
+     *            : selected Earthquake rup forecast
+     */
+    public
+            void
+            getHazardCurves(
+                    Map<IntensityMeasureType, DiscretizedFuncAPI> hazFunctions,
+                    Site site,
+                    Map<TectonicRegionType, ScalarIntensityMeasureRelationshipAPI> imrMap,
+                    EqkRupForecastAPI eqkRupForecast)
+                    throws java.rmi.RemoteException {
+
+        int numIMTs = hazFunctions.size();
+        IntensityMeasureType[] imts =
+                hazFunctions.keySet().toArray(
+                        new IntensityMeasureType[numIMTs]);
+        DiscretizedFuncAPI[] imlFuncs = new DiscretizedFuncAPI[numIMTs];
+        for (int j = 0; j < numIMTs; j++)
+            imlFuncs[j] = hazFunctions.get(imts[j]);
+        double[][] curves =
+                computeHazardCurves(imts, imlFuncs, site, imrMap,
+                        eqkRupForecast);
+        for (int j = 0; j < numIMTs; j++)
+            for (int k = 0; k < curves[j].length; k++)
+                imlFuncs[j].set(k, curves[j][k]);
+    }
+
+    /**
+     * This computes the hazard curves for several IMTs in one pass over the
+     * ERF (see getHazardCurves()), returning them as arrays rather than
+     * setting them in functions.
+     * 
+     * @param imts
+     * @param imlFuncs
+     *            function for each IMT whose x values are its IMLs (only read)
+     * @param site
+     * @param imrMap
+     * @param eqkRupForecast
+     * @return curves[imt][iml], the probability of exceedance of each IML
+     */
+    double[][] computeHazardCurves(IntensityMeasureType[] imts,
+            DiscretizedFuncAPI[] imlFuncs, Site site,
+            Map<TectonicRegionType, ScalarIntensityMeasureRelationshipAPI> imrMap,
+            EqkRupForecastAPI eqkRupForecast) {
+
+        // one worker for all the IMTs, which sets each rupture in its IMR
+        // once and then switches it to each IMT
+        int numIMTs = imts.length;
+        SourceCalcWorker worker = createSourceCalcWorker(imrMap, imlFuncs[0]);
+        worker.setIntensityMeasures(imts, imlFuncs);
+        worker.setSite(site);
+        double[][] logNonExceedProbs = new double[numIMTs][];
+        int j;
+        for (j = 0; j < numIMTs; j++)
+            logNonExceedProbs[j] = new double[imlFuncs[j].getNum()];
+
+        numSources = eqkRupForecast.getNumSources();
+        int[] sourceIndices =
+                getSourceIndices(eqkRupForecast, site.getLocation(),
+                        maxDistanceParam.getValue());
+        calcStopped = false;
+
+        for (int s = 0; s < sourceIndices.length && !calcStopped; s++) {
+            sourceIndex = sourceIndices[s];
+            ProbEqkSource source = eqkRupForecast.getSource(sourceIndex);
+            worker.addSourceForIMTs(source, site, logNonExceedProbs);
+        }
+        collectProfiles();
+
+        // the log non-exceedance probabilities become the curves in place
+        for (j = 0; j < numIMTs; j++)
+            for (int k = 0; k < logNonExceedProbs[j].length; k++)
+                logNonExceedProbs[j][k] = -Math.expm1(logNonExceedProbs[j][k]);
+        return logNonExceedProbs;
+    }
+
+    /**
+     * This makes the per-thread state for a multi-threaded calculation: the
+     * worker gets clones of the given IMRs (see IMRUtils.cloneIMRMap) and the
+     * current values of the distance and mag-dist cutoff parameters.
+     * 
+     * @param imrMap
+     *            IMRs to clone (these are only read)
+     * @param imlFunc
+     *            function whose x values are the IMLs
+     * @return
+     */
+    SourceCalcWorker createSourceCalcWorker(
+            Map<TectonicRegionType, ScalarIntensityMeasureRelationshipAPI> imrMap,
+            DiscretizedFuncAPI imlFunc) {
+        return new SourceCalcWorker(IMRUtils.cloneIMRMap(imrMap, this),
+                imlFunc, maxDistanceParam.getValue(),
+                includeMagDistFilterParam.getValue() ? magDistCutoffParam
+                        .getValue() : null, rupturePruneToleranceParam
+                        .getValue(), numRupturesPruned, createProfile());
+    }
+
+    /**
+     * This makes a profile for one thread of a calculation, or returns null
+     * if profiling is off. The profile is added to the totals of getProfile()
+     * by the next call to collectProfiles() (which the calculation makes when
+     * it is done).
+     */
+    HazardCalcProfile createProfile() {
+        if (!profileCalcParam.getValue())
+            return null;
+        HazardCalcProfile profile = new HazardCalcProfile();
+        synchronized (threadProfiles) {
+            threadProfiles.add(profile);
+        }
+        return profile;
+    }
+
+    /**
+     * This adds the profiles made by createProfile() to the totals, once the
+     * threads using them are done.
+     */
+    void collectProfiles() {
+        synchronized (threadProfiles) {
+            for (HazardCalcProfile profile : threadProfiles)
+                totalProfile.add(profile);
+            threadProfiles.clear();
+        }
+    }
+
+    /**
+     * Computes ln(total non-exceedance probability) at each IML for the
+     * sources sourceIndices[firstSource] to sourceIndices[lastSource - 1],
+     * splitting the range in half until it has no more than sourcesPerTask
+     * sources.
+     */
+    private class SourceRangeTask extends RecursiveTask<double[]> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ThreadLocal<SourceCalcWorker> workers;
+        private final Site site;
+        private final EqkRupForecastAPI eqkRupForecast;
+        private final int[] sourceIndices;
+        private final int firstSource;
+        private final int lastSource;
+        private final int sourcesPerTask;
+
+        SourceRangeTask(ThreadLocal<SourceCalcWorker> workers, Site site,
+                EqkRupForecastAPI eqkRupForecast, int[] sourceIndices,
+                int firstSource, int lastSource, int sourcesPerTask) {
+            this.workers = workers;
+            this.site = site;
+            this.eqkRupForecast = eqkRupForecast;
+            this.sourceIndices = sourceIndices;
+            this.firstSource = firstSource;
+            this.lastSource = lastSource;
+            this.sourcesPerTask = sourcesPerTask;
+        }
+
+        @Override
+        protected double[] compute() {
+            if (lastSource - firstSource <= sourcesPerTask) {
+                SourceCalcWorker worker = workers.get();
+                worker.setSite(site);
+                double[] logProbs = new double[worker.getNumPoints()];
+                for (int s = firstSource; s < lastSource
+                        && !calcStopped; s++) {
+                    ProbEqkSource source;
+                    synchronized (eqkRupForecast) {
+                        source = eqkRupForecast.getSource(sourceIndices[s]);
+                    }
+                    worker.addSource(source, site, logProbs);
+                }
+                return logProbs;
+            }
+
+            int middle = (firstSource + lastSource) >>> 1;
+            SourceRangeTask left =
+                    new SourceRangeTask(workers, site, eqkRupForecast,
+                            sourceIndices, firstSource, middle, sourcesPerTask);
+            SourceRangeTask right =
+                    new SourceRangeTask(workers, site, eqkRupForecast,
+                            sourceIndices, middle, lastSource, sourcesPerTask);
+            left.fork();
+            double[] rightLogProbs = right.compute();
+            double[] logProbs = left.join();
+            for (int k = 0; k < logProbs.length; k++)
+                logProbs[k] += rightLogProbs[k];
+            return logProbs;
+        }
+    }
+
+    /**
+     * As SourceRangeTask, for the sites of a rupture-outer calculation:
+     * computes ln(total non-exceedance probability) at each IML at each site,
+     * logProbs[site][iml].
+     */
+    private class SitesSourceRangeTask extends RecursiveTask<double[][]> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ThreadLocal<SourceCalcWorker> workers;
+        private final Site[] sites;
+        private final EqkRupForecastAPI eqkRupForecast;
+        private final int[] sourceIndices;
+        private final int firstSource;
+        private final int lastSource;
+        private final int sourcesPerTask;
+
+        SitesSourceRangeTask(ThreadLocal<SourceCalcWorker> workers,
+                Site[] sites, EqkRupForecastAPI eqkRupForecast,
+                int[] sourceIndices, int firstSource, int lastSource,
+                int sourcesPerTask) {
+            this.workers = workers;
+            this.sites = sites;
+            this.eqkRupForecast = eqkRupForecast;
+            this.sourceIndices = sourceIndices;
+            this.firstSource = firstSource;
+            this.lastSource = lastSource;
+            this.sourcesPerTask = sourcesPerTask;
+        }
+
+        @Override
+        protected double[][] compute() {
+            if (lastSource - firstSource <= sourcesPerTask) {
+                SourceCalcWorker worker = workers.get();
+                double[][] logProbs =
+                        new double[sites.length][worker.getNumPoints()];
+                for (int s = firstSource; s < lastSource
+                        && !calcStopped; s++) {
+                    ProbEqkSource source;
+                    synchronized (eqkRupForecast) {
+                        source = eqkRupForecast.getSource(sourceIndices[s]);
+                    }
+                    worker.addSource(source, sites, logProbs);
+                }
+                return logProbs;
+            }
+
+            int middle = (firstSource + lastSource) >>> 1;
+            SitesSourceRangeTask left =
+                    new SitesSourceRangeTask(workers, sites, eqkRupForecast,
+                            sourceIndices, firstSource, middle, sourcesPerTask);
+            SitesSourceRangeTask right =
+                    new SitesSourceRangeTask(workers, sites, eqkRupForecast,
+                            sourceIndices, middle, lastSource, sourcesPerTask);
+            left.fork();
+            double[][] rightLogProbs = right.compute();
+            double[][] logProbs = left.join();
+            for (int i = 0; i < logProbs.length; i++)
+                for (int k = 0; k < logProbs[i].length; k++)
+                    logProbs[i][k] += rightLogProbs[i][k];
+            return logProbs;
+        }
+    }
+
     /**
      * This function computes an average hazard curve from a number of
      * stochastic event sets for the given Site, IMR, eqkRupForecast, where the
@@ -482,7 +1464,9 @@ public class HazardCurveCalculator extends UnicastRemoteObject implements
      * always applies a rupture distance cutoff using the value of the
      * maxDistanceParam parameter (set to a very high value if you don't want
      * this). This does not (yet?) apply the magnitude-dependent distance cutoff
-     * represented by includeMagDistFilterParam and magDistCutoffParam.
+     * represented by includeMagDistFilterParam and magDistCutoffParam. The
+     * event sets are drawn with Math.random(); see StochasticEventSetCalculator
+     * for a multi-threaded version that is reproducible for a given seed.
      * 
      * @param hazFunction
      *            : This function is where the hazard curve is placed
@@ -686,6 +1670,7 @@ public class HazardCurveCalculator extends UnicastRemoteObject implements
      */
     public void stopCalc() throws java.rmi.RemoteException {
         sourceIndex = numSources;
+        calcStopped = true;
     }
 
     /**
@@ -727,6 +1712,31 @@ public class HazardCurveCalculator extends UnicastRemoteObject implements
         this.magDistCutoffParam =
                 (ArbitrarilyDiscretizedFuncParameter) paramList
                         .getParameter(MAG_DIST_CUTOFF_PARAM_NAME);
+        // lists made before these parameters existed keep the current ones
+        if (paramList.containsParameter(NUM_THREADS_PARAM_NAME))
+            this.numThreadsParam =
+                    (IntegerParameter) paramList
+                            .getParameter(NUM_THREADS_PARAM_NAME);
+        if (paramList.containsParameter(CALC_ORDER_PARAM_NAME))
+            this.calcOrderParam =
+                    (StringParameter) paramList
+                            .getParameter(CALC_ORDER_PARAM_NAME);
+        if (paramList.containsParameter(USE_SOURCE_SPATIAL_INDEX_PARAM_NAME))
+            this.useSourceSpatialIndexParam =
+                    (BooleanParameter) paramList
+                            .getParameter(USE_SOURCE_SPATIAL_INDEX_PARAM_NAME);
+        if (paramList.containsParameter(RUPTURE_PRUNE_TOLERANCE_PARAM_NAME))
+            this.rupturePruneToleranceParam =
+                    (DoubleParameter) paramList
+                            .getParameter(RUPTURE_PRUNE_TOLERANCE_PARAM_NAME);
+        if (paramList.containsParameter(PROFILE_CALC_PARAM_NAME))
+            this.profileCalcParam =
+                    (BooleanParameter) paramList
+                            .getParameter(PROFILE_CALC_PARAM_NAME);
+        if (paramList.containsParameter(SITE_CLUSTER_DISTANCE_PARAM_NAME))
+            this.siteClusterDistanceParam =
+                    (DoubleParameter) paramList
+                            .getParameter(SITE_CLUSTER_DISTANCE_PARAM_NAME);
     }
 
     /**
@@ -734,7 +1744,7 @@ public class HazardCurveCalculator extends UnicastRemoteObject implements
      * 
      * @return
      */
-    public ListIterator getAdjustableParamsIterator()
+    public ListIterator<ParameterAPI<?>> getAdjustableParamsIterator()
             throws java.rmi.RemoteException {
         return adjustableParams.getParametersIterator();
     }
@@ -0,0 +1,310 @@
+package org.opensha.sha.calc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>
+ * Title: HazardCurveStore
+ * </p>
+ * <p>
+ * Description: A binary file of hazard curves, one per node of a map (e.g. a
+ * GriddedRegion node index), accessed through memory-mapped buffers. The file
+ * has a header (magic number, version, number of nodes, number of IMLs, bytes
+ * per value and the IMLs as doubles) followed by a block of numIMLs values per
+ * node, stored as floats or doubles, so the curve of a node is at a fixed
+ * offset and is read or written in place without parsing or copying the rest
+ * of the file. All values are little-endian.
+ * </p>
+ * <p>
+ * Curves of nodes not yet written are all zeros. putCurve() may be called by
+ * several threads at once for different nodes (as HazardMapCalculator does
+ * when it streams its results into a store). Changes reach the file when the
+ * OS writes the mapped pages back, or when force() or close() is called.
+ * </p>
+ */
+public class HazardCurveStore {
+
+    protected final static String C = "HazardCurveStore";
+    protected final static boolean D = false;
+
+    private final static int MAGIC = 0x4f534353; // "OSCS"
+    private final static int VERSION = 1;
+
+    // bytes before the IMLs: magic, version, numNodes, numIMLs, value size,
+    // unused (so the IMLs and values are 8-byte aligned)
+    private final static int HEADER_INTS_SIZE = 6 * 4;
+
+    // largest mapped segment (a MappedByteBuffer is limited to 2 GB)
+    private final static long MAX_SEGMENT_SIZE = 1L << 30;
+
+    private final RandomAccessFile file;
+    private final double[] imls;
+    private final int numNodes;
+    private final int numIMLs;
+    private final boolean floatValues;
+    private final boolean writable;
+    private final int stride;
+    private final int nodesPerSegment;
+    private final MappedByteBuffer[] segments;
+
+    private HazardCurveStore(RandomAccessFile file, double[] imls,
+            int numNodes, boolean floatValues, boolean writable)
+            throws IOException {
+        this.file = file;
+        this.imls = imls;
+        this.numNodes = numNodes;
+        this.numIMLs = imls.length;
+        this.floatValues = floatValues;
+        this.writable = writable;
+        stride = numIMLs * (floatValues ? 4 : 8);
+        long dataStart = getDataStart(numIMLs);
+
+        nodesPerSegment =
+                (int) Math.max(1, Math.min(numNodes, MAX_SEGMENT_SIZE
+                        / Math.max(1, stride)));
+        int numSegments =
+                numNodes == 0 ? 0 : (numNodes - 1) / nodesPerSegment + 1;
+        segments = new MappedByteBuffer[numSegments];
+        FileChannel channel = file.getChannel();
+        FileChannel.MapMode mode =
+                writable ? FileChannel.MapMode.READ_WRITE
+                        : FileChannel.MapMode.READ_ONLY;
+        for (int s = 0; s < numSegments; s++) {
+            int segmentNodes =
+                    Math.min(nodesPerSegment, numNodes - s * nodesPerSegment);
+            segments[s] =
+                    channel.map(mode, dataStart + (long) s * nodesPerSegment
+                            * stride, (long) segmentNodes * stride);
+            segments[s].order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    /**
+     * This creates (or overwrites) a store file for the given nodes and
+     * IMLs, with all curves zero.
+     *
+     * @param file
+     * @param imls
+     *            the IMLs (x values) of the curves
+     * @param numNodes
+     * @param floatValues
+     *            true to store the values as floats, false for doubles
+     * @return
+     */
+    public static HazardCurveStore create(File file, double[] imls,
+            int numNodes, boolean floatValues) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(0);
+            ByteBuffer header =
+                    ByteBuffer.allocate((int) getDataStart(imls.length)).order(
+                            ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(numNodes);
+            header.putInt(imls.length);
+            header.putInt(floatValues ? 4 : 8);
+            header.putInt(0);
+            for (double iml : imls)
+                header.putDouble(iml);
+            header.flip();
+            FileChannel channel = raf.getChannel();
+            FileChannelUtils.writeFully(channel, header, 0);
+            raf.setLength(getDataStart(imls.length) + (long) numNodes
+                    * imls.length * (floatValues ? 4 : 8));
+            return new HazardCurveStore(raf, imls.clone(), numNodes,
+                    floatValues, true);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * This opens an existing store file.
+     *
+     * @param file
+     * @param writable
+     *            true if curves are to be written
+     * @return
+     */
+    public static HazardCurveStore open(File file, boolean writable) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, writable ? "rw" : "r");
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header =
+                    ByteBuffer.allocate(HEADER_INTS_SIZE).order(
+                            ByteOrder.LITTLE_ENDIAN);
+            FileChannelUtils.readFully(channel, header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION)
+                throw new RuntimeException(C + ": " + file
+                        + " is not a hazard curve store");
+            int numNodes = header.getInt();
+            int numIMLs = header.getInt();
+            int valueSize = header.getInt();
+            if (valueSize != 4 && valueSize != 8)
+                throw new RuntimeException(C + ": " + file
+                        + " has values of unknown size " + valueSize);
+            ByteBuffer imlBuffer =
+                    ByteBuffer.allocate(8 * numIMLs).order(
+                            ByteOrder.LITTLE_ENDIAN);
+            FileChannelUtils.readFully(channel, imlBuffer, HEADER_INTS_SIZE);
+            imlBuffer.flip();
+            double[] imls = new double[numIMLs];
+            for (int k = 0; k < numIMLs; k++)
+                imls[k] = imlBuffer.getDouble();
+            if (channel.size() < getDataStart(numIMLs) + (long) numNodes
+                    * numIMLs * valueSize)
+                throw new RuntimeException(C + ": " + file + " is truncated");
+            HazardCurveStore store =
+                    new HazardCurveStore(raf, imls, numNodes, valueSize == 4,
+                            writable);
+            raf = null;
+            return store;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            // close the file if it couldn't be opened as a store
+            if (raf != null)
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                }
+        }
+    }
+
+    public int getNumNodes() {
+        return numNodes;
+    }
+
+    public int getNumIMLs() {
+        return numIMLs;
+    }
+
+    /**
+     * The IMLs (x values) of the curves.
+     */
+    public double[] getIMLs() {
+        return imls.clone();
+    }
+
+    /**
+     * Whether values are stored as floats (rather than doubles).
+     */
+    public boolean isFloatValues() {
+        return floatValues;
+    }
+
+    /**
+     * This writes the curve of a node.
+     *
+     * @param node
+     * @param curve
+     *            the probability of exceedance at each IML
+     */
+    public void putCurve(int node, double[] curve) {
+        if (curve.length != numIMLs)
+            throw new RuntimeException(C + ": curve has " + curve.length
+                    + " values, not " + numIMLs);
+        MappedByteBuffer segment = getSegment(node);
+        int offset = getOffset(node);
+        if (floatValues)
+            for (int k = 0; k < numIMLs; k++)
+                segment.putFloat(offset + 4 * k, (float) curve[k]);
+        else
+            for (int k = 0; k < numIMLs; k++)
+                segment.putDouble(offset + 8 * k, curve[k]);
+    }
+
+    /**
+     * This reads the curve of a node into the given array.
+     *
+     * @param node
+     * @param curve
+     *            array with at least getNumIMLs() elements
+     */
+    public void getCurve(int node, double[] curve) {
+        MappedByteBuffer segment = getSegment(node);
+        int offset = getOffset(node);
+        if (floatValues)
+            for (int k = 0; k < numIMLs; k++)
+                curve[k] = segment.getFloat(offset + 4 * k);
+        else
+            for (int k = 0; k < numIMLs; k++)
+                curve[k] = segment.getDouble(offset + 8 * k);
+    }
+
+    /**
+     * The curve of a node.
+     *
+     * @param node
+     * @return
+     */
+    public double[] getCurve(int node) {
+        double[] curve = new double[numIMLs];
+        getCurve(node, curve);
+        return curve;
+    }
+
+    /**
+     * The probability of exceedance of the k-th IML at a node, read in place.
+     *
+     * @param node
+     * @param k
+     * @return
+     */
+    public double getValue(int node, int k) {
+        if (k < 0 || k >= numIMLs)
+            throw new IndexOutOfBoundsException("IML index " + k);
+        MappedByteBuffer segment = getSegment(node);
+        int offset = getOffset(node);
+        return floatValues ? segment.getFloat(offset + 4 * k) : segment
+                .getDouble(offset + 8 * k);
+    }
+
+    /**
+     * This forces changes to the curves out to the file.
+     */
+    public void force() {
+        for (MappedByteBuffer segment : segments)
+            segment.force();
+    }
+
+    /**
+     * This forces changes out to the file and closes it (the mapped buffers
+     * are released when they are garbage collected).
+     */
+    public void close() {
+        try {
+            if (writable)
+                force();
+        } finally {
+            try {
+                file.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private MappedByteBuffer getSegment(int node) {
+        if (node < 0 || node >= numNodes)
+            throw new IndexOutOfBoundsException("node " + node);
+        return segments[node / nodesPerSegment];
+    }
+
+    private int getOffset(int node) {
+        return (node % nodesPerSegment) * stride;
+    }
+
+    private static long getDataStart(int numIMLs) {
+        return HEADER_INTS_SIZE + 8L * numIMLs;
+    }
+}
@@ -0,0 +1,699 @@
+package org.opensha.sha.calc;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.opensha.commons.data.Site;
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.commons.geo.GriddedRegion;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.geo.LocationUtils;
+import org.opensha.sha.earthquake.EqkRupForecastAPI;
+import org.opensha.sha.earthquake.ProbEqkSource;
+import org.opensha.sha.imr.ScalarIntensityMeasureRelationshipAPI;
+import org.opensha.sha.util.TRTUtils;
+import org.opensha.sha.util.TectonicRegionType;
+
+/**
+ * <p>
+ * Title: HazardMapCalculator
+ * </p>
+ * <p>
+ * Description: This computes hazard curves at every node of a GriddedRegion
+ * in one call, using the settings (maximum source distance, mag-dist cutoff,
+ * number of threads) of a HazardCurveCalculator. The curve at each node is the
+ * same one HazardCurveCalculator.getHazardCurve() gives for that site (to
+ * within round-off, since probabilities are combined in log space).
+ * </p>
+ * <p>
+ * The nodes are first put in order along a Hilbert curve over the region (see
+ * HilbertOrder and setSpatialNodeOrder()), so that each run of consecutive
+ * nodes covers a compact patch of the region rather than a strip of a row.
+ * They are then divided into tiles of consecutive nodes, which are run
+ * as fork/join tasks so idle threads steal tiles from busy ones. For each tile
+ * the sources are first screened against a circle enclosing the tile, so
+ * sources that can't be within the maximum distance of any node in the tile
+ * are skipped without computing their distance to every node (if the
+ * HazardCurveCalculator uses the ERF's source spatial index, only the sources
+ * the index finds near the tile are screened). Each thread
+ * owns its IMRs (clones of those passed in) and keeps the sources that pass
+ * the screen only until its tile is done, so no more sources are held than
+ * the tiles under way need (an ERF that doesn't cache its sources, such as
+ * GEM1ERF, stays that way). If the HazardCurveCalculator's
+ * calculation order is HazardCurveCalculator.CALC_ORDER_RUPTURE_OUTER, the
+ * nodes of a tile are evaluated together for each rupture, so each rupture is
+ * set in the IMR once per tile rather than once per node. The curves are
+ * returned (or stored) by node index, whatever order they were computed in.
+ * </p>
+ * <p>
+ * Sources are only used by one thread at a time (computations for a source
+ * are synchronized on it), so ERFs that return the same source object from
+ * every call to getSource(int) give correct results, but threads will then
+ * wait on each other; ERFs that build a new source each call (e.g. GEM1ERF)
+ * scale better, and their sources are never locked by another thread.
+ * </p>
+ * <p>
+ * If a checkpoint file is set (see setCheckpoint()), the curves of each tile
+ * are appended to it as the tile finishes, and a later run of the same job
+ * with the same file reads the tiles found there instead of computing them,
+ * so a long job that is stopped or crashes can be resumed. See
+ * HazardMapCheckpoint for the file format and when it is synced.
+ * </p>
+ * <p>
+ * Curves can also be written into a HazardCurveStore as each tile finishes,
+ * rather than returned, so large maps don't have to fit in memory.
+ * </p>
+ */
+public class HazardMapCalculator {
+
+    protected final static String C = "HazardMapCalculator";
+    protected final static boolean D = false;
+
+    /** Default number of nodes in a tile */
+    public final static int DEFAULT_TILE_SIZE = 64;
+
+    // extra distance (km) allowed when screening sources for a tile, to
+    // cover the difference between the source distance from the tile centre
+    // and the true minimum distance to the source
+    protected final static double TILE_DISTANCE_SLACK = 10.0;
+
+    /** Default least time (milliseconds) between syncs of the checkpoint */
+    public final static long DEFAULT_CHECKPOINT_SYNC_INTERVAL = 10000;
+
+    private final HazardCurveCalculator curveCalc;
+    private int tileSize = DEFAULT_TILE_SIZE;
+    private boolean spatialNodeOrder = true;
+    private volatile boolean calcStopped;
+
+    private File checkpointFile;
+    private String checkpointJobDescription;
+    private long checkpointSyncInterval = DEFAULT_CHECKPOINT_SYNC_INTERVAL;
+
+    /**
+     * Creates a map calculator with a default HazardCurveCalculator.
+     *
+     * @throws java.rmi.RemoteException
+     */
+    public HazardMapCalculator() throws java.rmi.RemoteException {
+        this(new HazardCurveCalculator());
+    }
+
+    /**
+     * @param curveCalc
+     *            calculator whose settings are used for every node
+     */
+    public HazardMapCalculator(HazardCurveCalculator curveCalc) {
+        this.curveCalc = curveCalc;
+    }
+
+    /**
+     * The HazardCurveCalculator whose settings (e.g. setNumThreads()) are
+     * used.
+     *
+     * @return
+     */
+    public HazardCurveCalculator getHazardCurveCalculator() {
+        return curveCalc;
+    }
+
+    /**
+     * Sets the number of nodes in a tile (the unit of work handed to a
+     * thread).
+     *
+     * @param tileSize
+     */
+    public void setTileSize(int tileSize) {
+        if (tileSize < 1)
+            throw new IllegalArgumentException("tile size must be positive");
+        this.tileSize = tileSize;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Sets whether the nodes are computed in order along a Hilbert curve (the
+     * default) or in the order of their indices (or, for a list of nodes, the
+     * order listed). In the Hilbert order each tile covers a compact patch, so
+     * fewer sources are near it and the sources, surfaces and distances a
+     * thread works with stay much the same from one node to the next. The
+     * curves are the same either way.
+     *
+     * @param spatialNodeOrder
+     */
+    public void setSpatialNodeOrder(boolean spatialNodeOrder) {
+        this.spatialNodeOrder = spatialNodeOrder;
+    }
+
+    public boolean getSpatialNodeOrder() {
+        return spatialNodeOrder;
+    }
+
+    /**
+     * Sets the file where finished tiles are saved, so the job can be
+     * resumed. If the file already holds tiles of the job, they are read
+     * rather than computed; if it holds another job (different description,
+     * number of nodes, tile size or IMLs) getHazardCurves() throws a
+     * RuntimeException.
+     *
+     * @param file
+     *            the checkpoint file, or null for none (the default)
+     * @param jobDescription
+     *            describes the job, e.g. the ERF, IMR and calculation
+     *            settings; it must be the same when the job is resumed
+     */
+    public void setCheckpoint(File file, String jobDescription) {
+        checkpointFile = file;
+        checkpointJobDescription = jobDescription;
+    }
+
+    public File getCheckpointFile() {
+        return checkpointFile;
+    }
+
+    /**
+     * Sets the least time between syncs (fsync) of the checkpoint file;
+     * tiles finished since the last sync are lost if the JVM dies.
+     *
+     * @param millis
+     */
+    public void setCheckpointSyncInterval(long millis) {
+        checkpointSyncInterval = millis;
+    }
+
+    public long getCheckpointSyncInterval() {
+        return checkpointSyncInterval;
+    }
+
+    /**
+     * This computes the hazard curves at all nodes of the region using one
+     * IMR for all tectonic region types.
+     *
+     * @param region
+     *            the nodes at which curves are computed
+     * @param siteParams
+     *            supplies the site (with its parameters) for each node
+     * @param imlFunc
+     *            function whose x values are the IMLs (in the units expected
+     *            by the IMR, e.g. ln(PGA))
+     * @param imr
+     *            selected IMR object
+     * @param eqkRupForecast
+     *            selected Earthquake rup forecast
+     * @return curves[node][iml], the probability of exceedance of each IML at
+     *         each node
+     * @throws java.rmi.RemoteException
+     */
+    public double[][] getHazardCurves(GriddedRegion region,
+            SiteParamsProviderAPI siteParams,
+            ArbitrarilyDiscretizedFunc imlFunc,
+            ScalarIntensityMeasureRelationshipAPI imr,
+            EqkRupForecastAPI eqkRupForecast) throws java.rmi.RemoteException {
+        return getHazardCurves(region, siteParams, imlFunc, TRTUtils
+                .wrapInHashMap(imr), eqkRupForecast);
+    }
+
+    /**
+     * This computes the hazard curves at all nodes of the region.
+     *
+     * @param region
+     *            the nodes at which curves are computed
+     * @param siteParams
+     *            supplies the site (with its parameters) for each node
+     * @param imlFunc
+     *            function whose x values are the IMLs
+     * @param imrMap
+     *            IMR for each tectonic region (see
+     *            HazardCurveCalculator.getHazardCurve()); these are cloned, not
+     *            modified
+     * @param eqkRupForecast
+     *            selected Earthquake rup forecast
+     * @return curves[node][iml], the probability of exceedance of each IML at
+     *         each node
+     * @throws java.rmi.RemoteException
+     */
+    public
+            double[][]
+            getHazardCurves(
+                    GriddedRegion region,
+                    SiteParamsProviderAPI siteParams,
+                    final ArbitrarilyDiscretizedFunc imlFunc,
+                    final Map<TectonicRegionType, ScalarIntensityMeasureRelationshipAPI> imrMap,
+                    EqkRupForecastAPI eqkRupForecast)
+                    throws java.rmi.RemoteException {
+        return calculate(region, null, siteParams, imlFunc, imrMap,
+                eqkRupForecast, null);
+    }
+
+    /**
+     * This computes the hazard curves at the given nodes of the region (e.g.
+     * those an AdaptiveHazardMapCalculator needs at one level of refinement).
+     * Unless setSpatialNodeOrder(false) was called, the nodes are computed in
+     * order along a Hilbert curve; otherwise they are divided into tiles in
+     * the order given, so nodes that are close together should be listed
+     * together. The checkpoint file, if set, is not used.
+     *
+     * @param region
+     * @param nodes
+     *            indices of the nodes of the region at which curves are
+     *            computed
+     * @param siteParams
+     *            supplies the site (with its parameters) for each node
+     * @param imlFunc
+     *            function whose x values are the IMLs
+     * @param imrMap
+     *            IMR for each tectonic region (see
+     *            HazardCurveCalculator.getHazardCurve()); these are cloned, not
+     *            modified
+     * @param eqkRupForecast
+     *            selected Earthquake rup forecast
+     * @return curves[i][iml], the probability of exceedance of each IML at
+     *         node nodes[i]
+     * @throws java.rmi.RemoteException
+     */
+    public
+            double[][]
+            getHazardCurves(
+                    GriddedRegion region,
+                    int[] nodes,
+                    SiteParamsProviderAPI siteParams,
+                    ArbitrarilyDiscretizedFunc imlFunc,
+                    Map<TectonicRegionType, ScalarIntensityMeasureRelationshipAPI> imrMap,
+                    EqkRupForecastAPI eqkRupForecast)
+                    throws java.rmi.RemoteException {
+        return calculate(region, nodes, siteParams, imlFunc, imrMap,
+                eqkRupForecast, null);
+    }
+
+    /**
+     * This computes the hazard curves at all nodes of the region using one
+     * IMR for all tectonic region types, writing them into the store (see
+     * the imrMap version).
+     *
+     * @param region
+     * @param siteParams
+     * @param imlFunc
+     * @param imr
+     * @param eqkRupForecast
+     * @param store
+     * @throws java.rmi.RemoteException
+     */
+    public void getHazardCurves(GriddedRegion region,
+            SiteParamsProviderAPI siteParams,
+            ArbitrarilyDiscretizedFunc imlFunc,
+            ScalarIntensityMeasureRelationshipAPI imr,
+            EqkRupForecastAPI eqkRupForecast, HazardCurveStore store)
+            throws java.rmi.RemoteException {
+        getHazardCurves(region, siteParams, imlFunc, TRTUtils
+                .wrapInHashMap(imr), eqkRupForecast, store);
+    }
+
+    /**
+     * This computes the hazard curves at all nodes of the region and writes
+     * each into the store (at its node index) as soon as its tile is done,
+     * so the curves of the whole map are never held in memory. The store
+     * must have the region's number of nodes and the IMLs of imlFunc.
+     *
+     * @param region
+     *            the nodes at which curves are computed
+     * @param siteParams
+     *            supplies the site (with its parameters) for each node
+     * @param imlFunc
+     *            function whose x values are the IMLs
+     * @param imrMap
+     *            IMR for each tectonic region (see
+     *            HazardCurveCalculator.getHazardCurve()); these are cloned, not
+     *            modified
+     * @param eqkRupForecast
+     *            selected Earthquake rup forecast
+     * @param store
+     *            where the curves are written
+     * @throws java.rmi.RemoteException
+     */
+    public
+            void
+            getHazardCurves(
+                    GriddedRegion region,
+                    SiteParamsProviderAPI siteParams,
+                    ArbitrarilyDiscretizedFunc imlFunc,
+                    Map<TectonicRegionType, ScalarIntensityMeasureRelationshipAPI> imrMap,
+                    EqkRupForecastAPI eqkRupForecast, HazardCurveStore store)
+                    throws java.rmi.RemoteException {
+        if (store.getNumNodes() != region.getNodeCount())
+            throw new RuntimeException(C + ": store has "
+                    + store.getNumNodes() + " nodes, region has "
+                    + region.getNodeCount());
+        double[] imls = store.getIMLs();
+        if (imls.length != imlFunc.getNum())
+            throw new RuntimeException(C
+                    + ": store IMLs differ from those of imlFunc");
+        for (int k = 0; k < imls.length; k++)
+            if (imls[k] != imlFunc.getX(k))
+                throw new RuntimeException(C
+                        + ": store IMLs differ from those of imlFunc");
+        calculate(region, null, siteParams, imlFunc, imrMap, eqkRupForecast,
+                store);
+    }
+
+    // computes the curves at all nodes or (if nodes isn't null) the nodes
+    // listed, returning them or (if store isn't null) writing them into the
+    // store
+    private
+            double[][]
+            calculate(
+                    GriddedRegion region,
+                    int[] nodes,
+                    SiteParamsProviderAPI siteParams,
+                    final ArbitrarilyDiscretizedFunc imlFunc,
+                    final Map<TectonicRegionType, ScalarIntensityMeasureRelationshipAPI> imrMap,
+                    EqkRupForecastAPI eqkRupForecast, HazardCurveStore store)
+                    throws java.rmi.RemoteException {
+
+        calcStopped = false;
+        final int numSources = eqkRupForecast.getNumSources();
+
+        ThreadLocal<MapWorker> workers = new ThreadLocal<MapWorker>() {
+            @Override
+            protected MapWorker initialValue() {
+                return new MapWorker(curveCalc.createSourceCalcWorker(imrMap,
+                        imlFunc), numSources);
+            }
+        };
+
+        int numNodes = nodes == null ? region.getNodeCount() : nodes.length;
+        HazardMapCheckpoint checkpoint = null;
+        if (checkpointFile != null && nodes == null) {
+            double[] imls = new double[imlFunc.getNum()];
+            for (int k = 0; k < imls.length; k++)
+                imls[k] = imlFunc.getX(k);
+            // the tiles of the Hilbert order hold other nodes than those of
+            // the index order, so the two can't share a checkpoint
+            String description =
+                    spatialNodeOrder ? checkpointJobDescription
+                            + " (Hilbert order)" : checkpointJobDescription;
+            checkpoint =
+                    new HazardMapCheckpoint(checkpointFile, description,
+                            region.getNodeCount(), tileSize, imls,
+                            checkpointSyncInterval);
+        }
+
+        // the position at which the curve of each position in the Hilbert
+        // order is returned
+        int[] order = null;
+        if (spatialNodeOrder && numNodes > 1) {
+            Location[] locs = new Location[numNodes];
+            for (int i = 0; i < numNodes; i++)
+                locs[i] =
+                        region.locationForIndex(nodes == null ? i : nodes[i]);
+            order = HilbertOrder.getOrder(locs);
+            int[] orderedNodes = new int[numNodes];
+            for (int i = 0; i < numNodes; i++)
+                orderedNodes[i] = nodes == null ? order[i] : nodes[order[i]];
+            nodes = orderedNodes;
+        }
+
+        MapCalcSetup setup =
+                new MapCalcSetup(region, nodes, siteParams, eqkRupForecast,
+                        workers, curveCalc.getMaxSourceDistance(), numNodes,
+                        HazardCurveCalculator.CALC_ORDER_RUPTURE_OUTER
+                                .equals(curveCalc.getCalcOrder()), checkpoint,
+                        store);
+
+        ForkJoinPool pool = new ForkJoinPool(curveCalc.getNumThreads());
+        try {
+            pool.invoke(new TileTask(setup, 0, numNodes));
+        } finally {
+            pool.shutdown();
+            if (checkpoint != null)
+                checkpoint.close();
+        }
+        // the counts of the workers, if the calculation is profiled
+        curveCalc.collectProfiles();
+
+        if (D)
+            System.out.println(C + ": computed " + numNodes + " curves");
+
+        if (order == null)
+            return setup.curves;
+        double[][] curves = new double[numNodes][];
+        for (int i = 0; i < numNodes; i++)
+            curves[order[i]] = setup.curves[i];
+        return curves;
+    }
+
+    /**
+     * This stops a calculation in progress; getHazardCurves() then returns
+     * with the curves of the unfinished nodes left null (or, with a store,
+     * not written).
+     */
+    public void stopCalc() {
+        calcStopped = true;
+    }
+
+    /**
+     * Data shared by all the tasks of one calculation. The tasks work on
+     * positions 0 to numNodes-1, which are the nodes of the region or, if
+     * nodes isn't null, the nodes listed in it; curves are kept by position.
+     */
+    private static class MapCalcSetup {
+
+        final GriddedRegion region;
+        final int[] nodes;
+        final SiteParamsProviderAPI siteParams;
+        final EqkRupForecastAPI eqkRupForecast;
+        final ThreadLocal<MapWorker> workers;
+        final double maxDistance;
+        final double[][] curves;
+        final boolean ruptureOuter;
+        final HazardMapCheckpoint checkpoint;
+        final HazardCurveStore store;
+
+        MapCalcSetup(GriddedRegion region, int[] nodes,
+                SiteParamsProviderAPI siteParams,
+                EqkRupForecastAPI eqkRupForecast,
+                ThreadLocal<MapWorker> workers, double maxDistance,
+                int numNodes, boolean ruptureOuter,
+                HazardMapCheckpoint checkpoint, HazardCurveStore store) {
+            this.region = region;
+            this.nodes = nodes;
+            this.siteParams = siteParams;
+            this.eqkRupForecast = eqkRupForecast;
+            this.workers = workers;
+            this.maxDistance = maxDistance;
+            curves = new double[numNodes][];
+            this.ruptureOuter = ruptureOuter;
+            this.checkpoint = checkpoint;
+            this.store = store;
+        }
+
+        int getNode(int position) {
+            return nodes == null ? position : nodes[position];
+        }
+
+        Location getLocation(int position) {
+            return region.locationForIndex(getNode(position));
+        }
+
+        Site getSite(int position) {
+            int node = getNode(position);
+            return siteParams.getSite(node, region.locationForIndex(node));
+        }
+    }
+
+    /**
+     * The state one thread works with: its SourceCalcWorker, the sources of
+     * the tile it is working on and its scratch arrays.
+     */
+    private static class MapWorker {
+
+        final SourceCalcWorker sourceWorker;
+        // the sources that passed the screen for the current tile (cleared
+        // when the tile is done)
+        final ProbEqkSource[] candidates;
+        final double[] logNonExceedProbs;
+
+        MapWorker(SourceCalcWorker sourceWorker, int numSources) {
+            this.sourceWorker = sourceWorker;
+            candidates = new ProbEqkSource[numSources];
+            logNonExceedProbs = new double[sourceWorker.getNumPoints()];
+        }
+    }
+
+    /**
+     * The centre of the bounding box of the locations, with longitudes taken
+     * relative to the first location so a box across the antimeridian is not
+     * turned inside out.
+     *
+     * @param locs
+     * @return
+     */
+    static Location getBoxCentre(Location[] locs) {
+        double refLon = locs[0].getLongitude();
+        double minLat = Double.MAX_VALUE, maxLat = -Double.MAX_VALUE;
+        double minLon = Double.MAX_VALUE, maxLon = -Double.MAX_VALUE;
+        for (Location loc : locs) {
+            double lon = loc.getLongitude() - refLon;
+            if (lon > 180)
+                lon -= 360;
+            else if (lon < -180)
+                lon += 360;
+            minLat = Math.min(minLat, loc.getLatitude());
+            maxLat = Math.max(maxLat, loc.getLatitude());
+            minLon = Math.min(minLon, lon);
+            maxLon = Math.max(maxLon, lon);
+        }
+        double lon = refLon + (minLon + maxLon) / 2;
+        if (lon > 180)
+            lon -= 360;
+        else if (lon < -180)
+            lon += 360;
+        return new Location((minLat + maxLat) / 2, lon);
+    }
+
+    /**
+     * Computes the curves for nodes [firstNode, lastNode), splitting the range
+     * in half until it is no bigger than a tile.
+     */
+    private class TileTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final MapCalcSetup setup;
+        private final int firstNode;
+        private final int lastNode;
+
+        TileTask(MapCalcSetup setup, int firstNode, int lastNode) {
+            this.setup = setup;
+            this.firstNode = firstNode;
+            this.lastNode = lastNode;
+        }
+
+        @Override
+        protected void compute() {
+            if (lastNode - firstNode <= tileSize) {
+                if (setup.checkpoint == null
+                        || !setup.checkpoint.readTile(firstNode, setup.curves)) {
+                    computeTile();
+                    if (setup.checkpoint != null && isTileDone())
+                        setup.checkpoint.writeTile(firstNode, lastNode
+                                - firstNode, setup.curves);
+                }
+                if (setup.store != null)
+                    for (int i = firstNode; i < lastNode; i++)
+                        if (setup.curves[i] != null) {
+                            setup.store.putCurve(setup.getNode(i),
+                                    setup.curves[i]);
+                            setup.curves[i] = null;
+                        }
+                return;
+            }
+            int middle = (firstNode + lastNode) >>> 1;
+            invokeAll(new TileTask(setup, firstNode, middle), new TileTask(
+                    setup, middle, lastNode));
+        }
+
+        // false if the calculation was stopped before all curves were set
+        private boolean isTileDone() {
+            for (int i = firstNode; i < lastNode; i++)
+                if (setup.curves[i] == null)
+                    return false;
+            return true;
+        }
+
+        private void computeTile() {
+            if (calcStopped)
+                return;
+            MapWorker worker = setup.workers.get();
+            EqkRupForecastAPI erf = setup.eqkRupForecast;
+
+            // circle enclosing the tile
+            Location[] locs = new Location[lastNode - firstNode];
+            for (int i = firstNode; i < lastNode; i++)
+                locs[i - firstNode] = setup.getLocation(i);
+            Location centre = getBoxCentre(locs);
+            double radius = 0;
+            for (Location loc : locs)
+                radius =
+                        Math.max(radius, LocationUtils.horzDistance(centre,
+                                loc));
+
+            // sources that may be within the maximum distance of some node
+            Site centreSite = new Site(centre);
+            double cutoff = setup.maxDistance + radius + TILE_DISTANCE_SLACK;
+            int numCandidates = 0;
+            for (int s : curveCalc.getSourceIndices(erf, centre, cutoff)) {
+                if (calcStopped)
+                    break;
+                ProbEqkSource source;
+                synchronized (erf) {
+                    source = erf.getSource(s);
+                }
+                boolean near;
+                synchronized (source) {
+                    near = source.getMinDistance(centreSite) <= cutoff;
+                }
+                if (near)
+                    worker.candidates[numCandidates++] = source;
+            }
+
+            try {
+                if (setup.ruptureOuter)
+                    computeTileRuptureOuter(worker, numCandidates);
+                else
+                    computeTileSiteOuter(worker, numCandidates);
+            } finally {
+                Arrays.fill(worker.candidates, 0, numCandidates, null);
+            }
+        }
+
+        // the curve of each node of the tile is computed in turn
+        private void computeTileSiteOuter(MapWorker worker, int numCandidates) {
+            double[] logProbs = worker.logNonExceedProbs;
+            for (int i = firstNode; i < lastNode && !calcStopped; i++) {
+                Site site = setup.getSite(i);
+                worker.sourceWorker.setSite(site);
+                for (int k = 0; k < logProbs.length; k++)
+                    logProbs[k] = 0.0;
+                for (int c = 0; c < numCandidates; c++) {
+                    ProbEqkSource source = worker.candidates[c];
+                    synchronized (source) {
+                        worker.sourceWorker.addSource(source, site, logProbs);
+                    }
+                }
+                double[] curve = new double[logProbs.length];
+                for (int k = 0; k < logProbs.length; k++)
+                    curve[k] = -Math.expm1(logProbs[k]);
+                setup.curves[i] = curve;
+            }
+        }
+
+        // the nodes of the tile are evaluated together for each rupture
+        private void computeTileRuptureOuter(MapWorker worker,
+                int numCandidates) {
+            int numNodes = lastNode - firstNode;
+            Site[] sites = new Site[numNodes];
+            for (int i = 0; i < numNodes; i++)
+                sites[i] = setup.getSite(firstNode + i);
+            double[][] logProbs =
+                    new double[numNodes][worker.logNonExceedProbs.length];
+            for (int c = 0; c < numCandidates && !calcStopped; c++) {
+                ProbEqkSource source = worker.candidates[c];
+                synchronized (source) {
+                    worker.sourceWorker.addSource(source, sites, logProbs);
+                }
+            }
+            if (calcStopped)
+                return;
+            for (int i = 0; i < numNodes; i++) {
+                double[] curve = logProbs[i];
+                for (int k = 0; k < curve.length; k++)
+                    curve[k] = -Math.expm1(curve[k]);
+                setup.curves[firstNode + i] = curve;
+            }
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package org.opensha.sha.calc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Title: HazardMapCheckpoint
+ * </p>
+ * <p>
+ * Description: An append-only binary file of the curves of the finished tiles
+ * of a HazardMapCalculator job, so a job that is stopped (or whose JVM dies)
+ * can be resumed without recomputing those tiles. The data file starts with a
+ * header describing the job (number of nodes, tile size, IMLs and a job
+ * description string) followed by one record per tile: the first node, the
+ * number of nodes and their curves as doubles. A small index file next to it
+ * (the data file name plus ".idx") lists the first node, number of nodes and
+ * offset of each record.
+ * </p>
+ * <p>
+ * Records are written as tiles finish, but the data file is only forced to
+ * disk (fsync) every syncInterval milliseconds and on close(); the index
+ * entries of the records written since the last sync are appended to the
+ * index (and it is forced) just after, so the index only ever lists records
+ * that are on disk. When an existing checkpoint is opened, its header must
+ * match the job (otherwise a RuntimeException is thrown) and anything after
+ * the last record listed in the index is discarded.
+ * </p>
+ * <p>
+ * The methods are synchronized, so one checkpoint can be used by all the
+ * threads of a calculation.
+ * </p>
+ */
+class HazardMapCheckpoint {
+
+    protected final static String C = "HazardMapCheckpoint";
+    protected final static boolean D = false;
+
+    /** Suffix added to the data file name for the index file */
+    public final static String INDEX_SUFFIX = ".idx";
+
+    private final static int MAGIC = 0x4f534843; // "OSHC"
+    private final static int VERSION = 1;
+
+    // bytes per index entry: first node, number of nodes, offset
+    private final static int INDEX_ENTRY_SIZE = 4 + 4 + 8;
+
+    private final int numIMLs;
+    private final long syncInterval;
+
+    private final RandomAccessFile dataFile, indexFile;
+    private final FileChannel data, index;
+
+    // offset of the record of each finished tile, by first node
+    private final Map<Integer, Long> tileOffsets = new HashMap<Integer, Long>();
+
+    private long dataEnd;
+    private long lastSyncTime;
+
+    // index entries of the records written since the last sync
+    private ByteBuffer pendingEntries = ByteBuffer.allocate(64 * INDEX_ENTRY_SIZE);
+
+    /**
+     * Opens the checkpoint file, creating it if it doesn't exist (or is
+     * empty).
+     *
+     * @param file
+     *            the data file
+     * @param jobDescription
+     *            describes the job (e.g. the ERF, IMR and calculation
+     *            settings); must be the same when the job is resumed
+     * @param numNodes
+     *            number of nodes in the map
+     * @param tileSize
+     *            number of nodes in a tile
+     * @param imls
+     *            the IMLs of the curves
+     * @param syncInterval
+     *            the least time (milliseconds) between syncs
+     */
+    HazardMapCheckpoint(File file, String jobDescription, int numNodes,
+            int tileSize, double[] imls, long syncInterval) {
+        this.numIMLs = imls.length;
+        this.syncInterval = syncInterval;
+        try {
+            dataFile = new RandomAccessFile(file, "rw");
+            indexFile =
+                    new RandomAccessFile(new File(file.getPath()
+                            + INDEX_SUFFIX), "rw");
+            data = dataFile.getChannel();
+            index = indexFile.getChannel();
+
+            ByteBuffer header =
+                    getHeader(jobDescription, numNodes, tileSize, imls);
+            if (data.size() == 0) {
+                FileChannelUtils.writeFully(data, header, 0);
+                data.force(true);
+                index.truncate(0);
+                dataEnd = header.capacity();
+            } else {
+                ByteBuffer fileHeader = ByteBuffer.allocate(header.capacity());
+                if (data.size() < header.capacity())
+                    throw new RuntimeException(C + ": " + file
+                            + " is not a checkpoint of this job");
+                FileChannelUtils.readFully(data, fileHeader, 0);
+                fileHeader.flip();
+                if (!fileHeader.equals(header))
+                    throw new RuntimeException(C + ": " + file
+                            + " is not a checkpoint of this job");
+                dataEnd = header.capacity();
+                readIndex();
+                data.truncate(dataEnd);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        lastSyncTime = System.currentTimeMillis();
+
+        if (D)
+            System.out.println(C + ": " + tileOffsets.size()
+                    + " finished tiles in " + file);
+    }
+
+    /**
+     * The number of finished tiles in the checkpoint.
+     */
+    synchronized int getNumTiles() {
+        return tileOffsets.size();
+    }
+
+    /**
+     * This reads the curves of the tile starting at firstNode into curves, if
+     * it is in the checkpoint.
+     *
+     * @param firstNode
+     * @param curves
+     *            the curves of all nodes; those of the tile are set
+     * @return false if the tile isn't in the checkpoint
+     */
+    synchronized boolean readTile(int firstNode, double[][] curves) {
+        Long offset = tileOffsets.get(firstNode);
+        if (offset == null)
+            return false;
+        try {
+            ByteBuffer head = ByteBuffer.allocate(8);
+            FileChannelUtils.readFully(data, head, offset);
+            head.flip();
+            head.getInt();
+            int numNodes = head.getInt();
+            ByteBuffer values = ByteBuffer.allocate(numNodes * numIMLs * 8);
+            FileChannelUtils.readFully(data, values, offset + 8);
+            values.flip();
+            for (int i = 0; i < numNodes; i++) {
+                double[] curve = new double[numIMLs];
+                for (int k = 0; k < numIMLs; k++)
+                    curve[k] = values.getDouble();
+                curves[firstNode + i] = curve;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return true;
+    }
+
+    /**
+     * This appends the curves of a finished tile, syncing if syncInterval has
+     * passed since the last sync.
+     *
+     * @param firstNode
+     * @param numNodes
+     * @param curves
+     *            the curves of all nodes; those of the tile are written
+     */
+    synchronized void writeTile(int firstNode, int numNodes, double[][] curves) {
+        ByteBuffer record = ByteBuffer.allocate(8 + numNodes * numIMLs * 8);
+        record.putInt(firstNode);
+        record.putInt(numNodes);
+        for (int i = 0; i < numNodes; i++)
+            for (double value : curves[firstNode + i])
+                record.putDouble(value);
+        record.flip();
+        try {
+            FileChannelUtils.writeFully(data, record, dataEnd);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        if (pendingEntries.remaining() < INDEX_ENTRY_SIZE) {
+            ByteBuffer entries =
+                    ByteBuffer.allocate(2 * pendingEntries.capacity());
+            pendingEntries.flip();
+            entries.put(pendingEntries);
+            pendingEntries = entries;
+        }
+        pendingEntries.putInt(firstNode);
+        pendingEntries.putInt(numNodes);
+        pendingEntries.putLong(dataEnd);
+        tileOffsets.put(firstNode, dataEnd);
+        dataEnd += record.capacity();
+
+        if (System.currentTimeMillis() - lastSyncTime >= syncInterval)
+            sync();
+    }
+
+    /**
+     * This forces the records written so far to disk and then adds them to
+     * the index.
+     */
+    synchronized void sync() {
+        try {
+            if (pendingEntries.position() > 0) {
+                data.force(false);
+                pendingEntries.flip();
+                FileChannelUtils.writeFully(index, pendingEntries, index.size());
+                index.force(false);
+                pendingEntries.clear();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        lastSyncTime = System.currentTimeMillis();
+    }
+
+    /**
+     * This syncs and closes the files.
+     */
+    synchronized void close() {
+        try {
+            sync();
+        } finally {
+            try {
+                dataFile.close();
+                indexFile.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    // reads the entries of the index, dropping any that are incomplete or
+    // point past the end of the data
+    private void readIndex() throws IOException {
+        long numEntries = index.size() / INDEX_ENTRY_SIZE;
+        ByteBuffer entries =
+                ByteBuffer.allocate((int) (numEntries * INDEX_ENTRY_SIZE));
+        FileChannelUtils.readFully(index, entries, 0);
+        entries.flip();
+        long dataSize = data.size();
+        int numValid = 0;
+        for (int e = 0; e < numEntries; e++) {
+            int firstNode = entries.getInt();
+            int numNodes = entries.getInt();
+            long offset = entries.getLong();
+            long end = offset + 8 + (long) numNodes * numIMLs * 8;
+            if (offset != dataEnd || end > dataSize)
+                break;
+            tileOffsets.put(firstNode, offset);
+            dataEnd = end;
+            numValid++;
+        }
+        index.truncate((long) numValid * INDEX_ENTRY_SIZE);
+    }
+
+    private static ByteBuffer getHeader(String jobDescription, int numNodes,
+            int tileSize, double[] imls) {
+        byte[] description = jobDescription.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header =
+                ByteBuffer.allocate(4 * 6 + 8 * imls.length
+                        + description.length);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(numNodes);
+        header.putInt(tileSize);
+        header.putInt(imls.length);
+        for (double iml : imls)
+            header.putDouble(iml);
+        header.putInt(description.length);
+        header.put(description);
+        header.flip();
+        return header;
+    }
+}
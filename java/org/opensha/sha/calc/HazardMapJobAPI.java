@@ -0,0 +1,69 @@
+package org.opensha.sha.calc;
+
+import java.io.Serializable;
+import java.util.Map;
+
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.commons.geo.GriddedRegion;
+import org.opensha.sha.earthquake.EqkRupForecastAPI;
+import org.opensha.sha.imr.ScalarIntensityMeasureRelationshipAPI;
+import org.opensha.sha.util.TectonicRegionType;
+
+/**
+ * <p>
+ * Title: HazardMapJobAPI
+ * </p>
+ * <p>
+ * Description: The description of a hazard map job that is sent to worker
+ * JVMs by HazardMapProcessPool. The job is serialized once per worker, so it
+ * should hold only what is needed to build the inputs (e.g. the name of an
+ * ERF and the values of its parameters, or the path of an input file) and not
+ * the ERF or IMRs themselves; each method is called once in each worker (and
+ * getRegion() and getIMLs() also in the coordinator), and builds its object
+ * there.
+ * </p>
+ * <p>
+ * The class must be on the classpath of the workers, which is that of the
+ * coordinator.
+ * </p>
+ */
+public interface HazardMapJobAPI extends Serializable {
+
+    /**
+     * The nodes at which curves are computed.
+     */
+    public GriddedRegion getRegion();
+
+    /**
+     * Supplies the site (with its parameters) for each node of the region.
+     */
+    public SiteParamsProviderAPI getSiteParams();
+
+    /**
+     * Function whose x values are the IMLs.
+     */
+    public ArbitrarilyDiscretizedFunc getIMLs();
+
+    /**
+     * IMR for each tectonic region (see
+     * HazardCurveCalculator.getHazardCurve()).
+     */
+    public Map<TectonicRegionType, ScalarIntensityMeasureRelationshipAPI>
+            getIMRMap();
+
+    /**
+     * The forecast, updated and ready to use.
+     */
+    public EqkRupForecastAPI getERF();
+
+    /**
+     * This sets the calculation settings of the job (maximum source distance,
+     * mag-dist cutoff and so on) in a worker's calculator; the number of
+     * threads is set by the pool afterwards.
+     *
+     * @param calc
+     * @throws java.rmi.RemoteException
+     */
+    public void setCalcParams(HazardCurveCalculator calc)
+            throws java.rmi.RemoteException;
+}
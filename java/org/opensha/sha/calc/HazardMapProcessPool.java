@@ -0,0 +1,348 @@
+package org.opensha.sha.calc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opensha.commons.geo.GriddedRegion;
+import org.opensha.commons.geo.Location;
+
+/**
+ * <p>
+ * Title: HazardMapProcessPool
+ * </p>
+ * <p>
+ * Description: Computes the hazard curves of a map in several worker JVMs on
+ * the local host, as an alternative to sending calculations to a
+ * HazardCurveCalculator over RMI (which serializes the ERF and IMRs with every
+ * call and handles one request at a time per stub). Each worker is a new JVM
+ * running HazardMapWorkerProcess with the classpath of this one; it is sent
+ * the job (a HazardMapJobAPI, from which it builds its own ERF, IMRs and
+ * sites) once over its standard input, and then tiles of nodes, whose curves
+ * it returns as doubles over its standard output. Each worker computes its
+ * tiles with a HazardMapCalculator using getThreadsPerWorker() threads, so
+ * the pool can use many cores, and each worker has its own heap (see
+ * setJvmArgs(), e.g. for -Xmx).
+ * </p>
+ * <p>
+ * The nodes are put in order along a Hilbert curve (see HilbertOrder) before
+ * they are cut into tiles, so each worker gets compact patches of the region.
+ * A worker is sent its next tile as soon as it returns the last one, so
+ * faster workers take more tiles. Curves are returned (or stored) by node
+ * index. The standard error of the workers goes to that of this JVM.
+ * </p>
+ */
+public class HazardMapProcessPool {
+
+    protected final static String C = "HazardMapProcessPool";
+    protected final static boolean D = false;
+
+    /** Default number of nodes sent to a worker at a time */
+    public final static int DEFAULT_TILE_SIZE = 256;
+
+    // how long (seconds) to wait for a worker to exit once it is told to
+    private final static long EXIT_TIMEOUT = 10;
+
+    private final int numWorkers;
+    private int threadsPerWorker = 1;
+    private int tileSize = DEFAULT_TILE_SIZE;
+    private List<String> jvmArgs = new ArrayList<String>();
+
+    /**
+     * @param numWorkers
+     *            number of worker JVMs started for each calculation
+     */
+    public HazardMapProcessPool(int numWorkers) {
+        if (numWorkers < 1)
+            throw new IllegalArgumentException(
+                    "number of workers must be positive");
+        this.numWorkers = numWorkers;
+    }
+
+    public int getNumWorkers() {
+        return numWorkers;
+    }
+
+    /**
+     * Sets the number of threads each worker computes with (1 by default).
+     *
+     * @param threadsPerWorker
+     */
+    public void setThreadsPerWorker(int threadsPerWorker) {
+        if (threadsPerWorker < 1)
+            throw new IllegalArgumentException(
+                    "threads per worker must be positive");
+        this.threadsPerWorker = threadsPerWorker;
+    }
+
+    public int getThreadsPerWorker() {
+        return threadsPerWorker;
+    }
+
+    /**
+     * Sets the number of nodes sent to a worker at a time.
+     *
+     * @param tileSize
+     */
+    public void setTileSize(int tileSize) {
+        if (tileSize < 1)
+            throw new IllegalArgumentException("tile size must be positive");
+        this.tileSize = tileSize;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Sets the options given to the worker JVMs (e.g. "-Xmx4g"); none by
+     * default.
+     *
+     * @param jvmArgs
+     */
+    public void setJvmArgs(List<String> jvmArgs) {
+        this.jvmArgs = new ArrayList<String>(jvmArgs);
+    }
+
+    public List<String> getJvmArgs() {
+        return new ArrayList<String>(jvmArgs);
+    }
+
+    /**
+     * This computes the hazard curves at all nodes of the job's region.
+     *
+     * @param job
+     * @return curves[node][iml], the probability of exceedance of each IML at
+     *         each node
+     */
+    public double[][] getHazardCurves(HazardMapJobAPI job) {
+        return calculate(job, null);
+    }
+
+    /**
+     * This computes the hazard curves at all nodes of the job's region and
+     * writes each into the store (at its node index) as it is received, so
+     * the curves of the whole map are never held in memory. The store must
+     * have the region's number of nodes and the IMLs of the job.
+     *
+     * @param job
+     * @param store
+     */
+    public void getHazardCurves(HazardMapJobAPI job, HazardCurveStore store) {
+        calculate(job, store);
+    }
+
+    private double[][] calculate(HazardMapJobAPI job, HazardCurveStore store) {
+        GriddedRegion region = job.getRegion();
+        int numNodes = region.getNodeCount();
+        int numIMLs = job.getIMLs().getNum();
+        if (store != null
+                && (store.getNumNodes() != numNodes
+                        || store.getNumIMLs() != numIMLs))
+            throw new RuntimeException(C + ": store has "
+                    + store.getNumNodes() + " nodes and "
+                    + store.getNumIMLs() + " IMLs, job has " + numNodes
+                    + " and " + numIMLs);
+
+        Location[] locs = new Location[numNodes];
+        for (int i = 0; i < numNodes; i++)
+            locs[i] = region.locationForIndex(i);
+        int[] order = HilbertOrder.getOrder(locs);
+
+        byte[] jobBytes;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream jobOut = new ObjectOutputStream(bytes);
+            jobOut.writeObject(job);
+            jobOut.close();
+            jobBytes = bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(C + ": job can't be serialized", e);
+        }
+
+        double[][] curves = store == null ? new double[numNodes][] : null;
+        int numTiles = (numNodes + tileSize - 1) / tileSize;
+        int numProcesses = Math.min(numWorkers, numTiles);
+        List<Worker> workers = new ArrayList<Worker>();
+        try {
+            for (int w = 0; w < numProcesses; w++)
+                workers.add(new Worker(jobBytes));
+            AtomicInteger nextTile = new AtomicInteger();
+            List<WorkerThread> threads = new ArrayList<WorkerThread>();
+            for (Worker worker : workers) {
+                WorkerThread thread =
+                        new WorkerThread(worker, order, tileSize, numTiles,
+                                nextTile, numIMLs, curves, store);
+                threads.add(thread);
+                thread.start();
+            }
+            RuntimeException error = null;
+            for (WorkerThread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(C + ": interrupted", e);
+                }
+                if (thread.error != null && error == null)
+                    error = thread.error;
+            }
+            if (error != null)
+                throw error;
+        } finally {
+            for (Worker worker : workers)
+                worker.close();
+        }
+
+        if (D)
+            System.out.println(C + ": computed " + numNodes + " curves in "
+                    + numProcesses + " workers");
+        return curves;
+    }
+
+    /**
+     * A worker JVM and the streams to and from it.
+     */
+    private class Worker {
+
+        final Process process;
+        final DataOutputStream out;
+        final DataInputStream in;
+
+        Worker(byte[] jobBytes) {
+            List<String> command = new ArrayList<String>();
+            command.add(System.getProperty("java.home") + File.separator
+                    + "bin" + File.separator + "java");
+            command.addAll(jvmArgs);
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(HazardMapWorkerProcess.class.getName());
+            ProcessBuilder builder = new ProcessBuilder(command);
+            builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+            try {
+                process = builder.start();
+            } catch (IOException e) {
+                throw new RuntimeException(C + ": can't start worker", e);
+            }
+            // the caller only closes the workers it has made, so the process
+            // is killed here if the job can't be sent to it
+            boolean sent = false;
+            try {
+                out =
+                        new DataOutputStream(new BufferedOutputStream(process
+                                .getOutputStream()));
+                in =
+                        new DataInputStream(new BufferedInputStream(process
+                                .getInputStream()));
+                out.writeInt(HazardMapWorkerProcess.MAGIC);
+                out.writeInt(HazardMapWorkerProcess.VERSION);
+                out.writeInt(threadsPerWorker);
+                out.writeInt(jobBytes.length);
+                out.write(jobBytes);
+                out.flush();
+                sent = true;
+            } catch (IOException e) {
+                throw new RuntimeException(C + ": can't send job to worker", e);
+            } finally {
+                if (!sent)
+                    process.destroyForcibly();
+            }
+        }
+
+        // reads the worker's status, throwing its error if it had one
+        void readStatus() throws IOException {
+            if (in.readInt() != HazardMapWorkerProcess.OK)
+                throw new RuntimeException(C + ": worker failed: "
+                        + in.readUTF());
+        }
+
+        // tells the worker to exit, killing it if it doesn't
+        void close() {
+            try {
+                out.writeInt(0);
+                out.flush();
+                out.close();
+            } catch (IOException e) {
+                // the worker is already gone
+            }
+            try {
+                if (!process.waitFor(EXIT_TIMEOUT, TimeUnit.SECONDS))
+                    process.destroyForcibly();
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    /**
+     * Feeds tiles to one worker until there are none left (or any worker
+     * fails).
+     */
+    private static class WorkerThread extends Thread {
+
+        final Worker worker;
+        final int[] order;
+        final int tileSize;
+        final int numTiles;
+        final AtomicInteger nextTile;
+        final int numIMLs;
+        final double[][] curves;
+        final HazardCurveStore store;
+        volatile RuntimeException error;
+
+        WorkerThread(Worker worker, int[] order, int tileSize, int numTiles,
+                AtomicInteger nextTile, int numIMLs, double[][] curves,
+                HazardCurveStore store) {
+            this.worker = worker;
+            this.order = order;
+            this.tileSize = tileSize;
+            this.numTiles = numTiles;
+            this.nextTile = nextTile;
+            this.numIMLs = numIMLs;
+            this.curves = curves;
+            this.store = store;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                worker.readStatus();
+                int tile;
+                while ((tile = nextTile.getAndIncrement()) < numTiles) {
+                    int first = tile * tileSize;
+                    int last = Math.min(first + tileSize, order.length);
+                    worker.out.writeInt(last - first);
+                    for (int i = first; i < last; i++)
+                        worker.out.writeInt(order[i]);
+                    worker.out.flush();
+                    worker.readStatus();
+                    for (int i = first; i < last; i++) {
+                        double[] curve = new double[numIMLs];
+                        for (int k = 0; k < numIMLs; k++)
+                            curve[k] = worker.in.readDouble();
+                        if (store == null)
+                            curves[order[i]] = curve;
+                        else
+                            store.putCurve(order[i], curve);
+                    }
+                }
+            } catch (IOException e) {
+                error = new RuntimeException(C + ": lost worker", e);
+            } catch (RuntimeException e) {
+                error = e;
+            }
+            // stop the other workers taking tiles
+            if (error != null)
+                nextTile.set(numTiles);
+        }
+    }
+}
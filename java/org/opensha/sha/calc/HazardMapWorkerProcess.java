@@ -0,0 +1,137 @@
+package org.opensha.sha.calc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.PrintStream;
+import java.util.Map;
+
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.commons.geo.GriddedRegion;
+import org.opensha.sha.earthquake.EqkRupForecastAPI;
+import org.opensha.sha.imr.ScalarIntensityMeasureRelationshipAPI;
+import org.opensha.sha.util.TectonicRegionType;
+
+/**
+ * <p>
+ * Title: HazardMapWorkerProcess
+ * </p>
+ * <p>
+ * Description: The main class of the worker JVMs started by
+ * HazardMapProcessPool. A worker reads its job from standard input, builds
+ * the ERF, IMRs and sites once, and then computes the curves of each tile of
+ * nodes it is sent with a HazardMapCalculator, writing them to standard
+ * output, until it is sent an empty tile. Anything the code it runs prints to
+ * standard output goes to standard error instead, so as not to corrupt the
+ * stream of results.
+ * </p>
+ * <p>
+ * The protocol is binary (java.io.DataOutputStream, big-endian):
+ * <ul>
+ * <li>coordinator: MAGIC, VERSION, number of threads, length and bytes of the
+ * serialized HazardMapJobAPI</li>
+ * <li>worker: OK, or ERROR and a message</li>
+ * <li>then for each tile, coordinator: number of nodes and their indices;
+ * worker: OK and the curve of each node (one double per IML), or ERROR and a
+ * message</li>
+ * <li>coordinator: 0 (no nodes), after which the worker exits</li>
+ * </ul>
+ * </p>
+ */
+public class HazardMapWorkerProcess {
+
+    protected final static String C = "HazardMapWorkerProcess";
+
+    final static int MAGIC = 0x4f534857; // "OSHW"
+    final static int VERSION = 1;
+
+    final static int OK = 0;
+    final static int ERROR = 1;
+
+    public static void main(String[] args) {
+        PrintStream out = System.out;
+        System.setOut(System.err);
+        DataInputStream in =
+                new DataInputStream(new BufferedInputStream(System.in));
+        DataOutputStream results =
+                new DataOutputStream(new BufferedOutputStream(out));
+        try {
+            run(in, results);
+        } catch (Throwable t) {
+            t.printStackTrace();
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    private static void run(DataInputStream in, DataOutputStream out)
+            throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            throw new RuntimeException(C + ": not a hazard map job");
+        int numThreads = in.readInt();
+        byte[] jobBytes = new byte[in.readInt()];
+        in.readFully(jobBytes);
+
+        GriddedRegion region;
+        SiteParamsProviderAPI siteParams;
+        ArbitrarilyDiscretizedFunc imlFunc;
+        Map<TectonicRegionType, ScalarIntensityMeasureRelationshipAPI> imrMap;
+        EqkRupForecastAPI erf;
+        HazardMapCalculator mapCalc;
+        try {
+            ObjectInputStream jobIn =
+                    new ObjectInputStream(new ByteArrayInputStream(jobBytes));
+            HazardMapJobAPI job = (HazardMapJobAPI) jobIn.readObject();
+            region = job.getRegion();
+            siteParams = job.getSiteParams();
+            imlFunc = job.getIMLs();
+            imrMap = job.getIMRMap();
+            erf = job.getERF();
+            HazardCurveCalculator curveCalc = new HazardCurveCalculator();
+            job.setCalcParams(curveCalc);
+            curveCalc.setNumThreads(numThreads);
+            mapCalc = new HazardMapCalculator(curveCalc);
+            // the coordinator sends tiles already in Hilbert order
+            mapCalc.setSpatialNodeOrder(false);
+        } catch (Exception e) {
+            e.printStackTrace();
+            writeError(out, e);
+            return;
+        }
+        out.writeInt(OK);
+        out.flush();
+
+        int numNodes;
+        while ((numNodes = in.readInt()) > 0) {
+            int[] nodes = new int[numNodes];
+            for (int i = 0; i < numNodes; i++)
+                nodes[i] = in.readInt();
+            double[][] curves;
+            try {
+                curves =
+                        mapCalc.getHazardCurves(region, nodes, siteParams,
+                                imlFunc, imrMap, erf);
+            } catch (Exception e) {
+                e.printStackTrace();
+                writeError(out, e);
+                continue;
+            }
+            out.writeInt(OK);
+            for (double[] curve : curves)
+                for (double value : curve)
+                    out.writeDouble(value);
+            out.flush();
+        }
+    }
+
+    private static void writeError(DataOutputStream out, Exception e)
+            throws IOException {
+        out.writeInt(ERROR);
+        out.writeUTF(String.valueOf(e));
+        out.flush();
+    }
+}
@@ -0,0 +1,103 @@
+package org.opensha.sha.calc;
+
+import java.util.Arrays;
+
+import org.opensha.commons.geo.Location;
+
+/**
+ * <p>
+ * Title: HilbertOrder
+ * </p>
+ * <p>
+ * Description: Orders locations along a Hilbert curve over their bounding box
+ * in latitude and longitude, so that locations next to each other in the
+ * order are close together on the ground and any run of consecutive locations
+ * covers a compact patch (rather than, e.g., a strip of a row of a grid).
+ * Calculations that go through the locations in this order reuse the sources
+ * (and their surfaces) they touched for the previous locations, and
+ * HazardMapCalculator's tiles of consecutive nodes enclose fewer sources.
+ * </p>
+ * <p>
+ * The bounding box is divided into a 2^16 by 2^16 lattice and each location
+ * gets the Hilbert index of its cell; locations in the same cell keep their
+ * original order. Longitudes are not wrapped, so a set of locations that
+ * straddles the date line is ordered as two patches.
+ * </p>
+ */
+public class HilbertOrder {
+
+    protected final static String C = "HilbertOrder";
+
+    // bits per coordinate of the lattice
+    private final static int BITS = 16;
+
+    /**
+     * This returns the order of the locations along the Hilbert curve: the
+     * index (in locs) of the first location, then of the second, and so on.
+     *
+     * @param locs
+     * @return
+     */
+    public static int[] getOrder(Location[] locs) {
+        int num = locs.length;
+        double minLat = Double.POSITIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        double minLon = Double.POSITIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY;
+        for (Location loc : locs) {
+            minLat = Math.min(minLat, loc.getLatitude());
+            maxLat = Math.max(maxLat, loc.getLatitude());
+            minLon = Math.min(minLon, loc.getLongitude());
+            maxLon = Math.max(maxLon, loc.getLongitude());
+        }
+        // one scale for both axes, so the cells are square in degrees
+        double extent = Math.max(maxLat - minLat, maxLon - minLon);
+        int maxCell = (1 << BITS) - 1;
+        double scale = extent > 0 ? maxCell / extent : 0;
+
+        // key (high bits) and original index (low bits), sorted together so
+        // ties keep their order
+        long[] keys = new long[num];
+        for (int i = 0; i < num; i++) {
+            int x = (int) ((locs[i].getLongitude() - minLon) * scale);
+            int y = (int) ((locs[i].getLatitude() - minLat) * scale);
+            keys[i] = (getIndex(x, y) << 31) | i;
+        }
+        Arrays.sort(keys);
+        int[] order = new int[num];
+        for (int i = 0; i < num; i++)
+            order[i] = (int) (keys[i] & Integer.MAX_VALUE);
+        return order;
+    }
+
+    /**
+     * This returns the position of a cell of the 2^16 by 2^16 lattice along
+     * the Hilbert curve that fills it.
+     *
+     * @param x
+     *            column of the cell, from 0 to 2^16 - 1
+     * @param y
+     *            row of the cell, from 0 to 2^16 - 1
+     * @return
+     */
+    public static long getIndex(int x, int y) {
+        int maxCell = (1 << BITS) - 1;
+        long index = 0;
+        for (int s = 1 << (BITS - 1); s > 0; s >>= 1) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            index += (long) s * s * ((3 * rx) ^ ry);
+            // rotate the quadrant so the curve inside it is the standard one
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = maxCell - x;
+                    y = maxCell - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return index;
+    }
+}
@@ -0,0 +1,265 @@
+package org.opensha.sha.calc;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * <p>
+ * Title: IML_AtPOE_Calculator
+ * </p>
+ * <p>
+ * Description: This reads hazard maps from a block of curves: for each node,
+ * the IML with each of several probabilities of exceedance (e.g. 10% and 2%
+ * in 50 years). The curves are rows of a double[node][iml] array over one
+ * grid of IMLs (as returned by HazardMapCalculator), so no function or
+ * DataPoint2D is made for each node, and each curve is walked once for all
+ * the probabilities. The nodes are split into blocks computed in parallel.
+ * </p>
+ * <p>
+ * Between the IMLs around the probability, ln(probability) is interpolated
+ * linearly in ln(IML), as by getFirstInterpolatedX_inLogXLogYDomain() of the
+ * functions, or linearly in the IML if the IMLs are already logarithms (e.g.
+ * ln(PGA), see the constructor); where the lower probability is zero, the
+ * probability itself is interpolated. Unlike the functions, which throw an
+ * exception, a probability outside the curve gives the first IML (if it is
+ * at least that of the first IML) or the last IML (if it is below that of the
+ * last one).
+ * </p>
+ */
+public class IML_AtPOE_Calculator {
+
+    protected final static String C = "IML_AtPOE_Calculator";
+
+    // number of nodes below which a block isn't split
+    private final static int BLOCK_SIZE = 1024;
+
+    private final double[] imls;
+    private final double[] xs;
+    private final boolean logIMLs;
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * @param imls
+     *            the IMLs of the curves, in increasing order
+     * @param logIMLs
+     *            true if the IMLs are linear values (e.g. in g), to be
+     *            interpolated in log-log space; false if they are already
+     *            logarithms
+     */
+    public IML_AtPOE_Calculator(double[] imls, boolean logIMLs) {
+        if (imls.length == 0)
+            throw new RuntimeException(C + ": no IMLs");
+        for (int k = 1; k < imls.length; k++)
+            if (imls[k] <= imls[k - 1])
+                throw new RuntimeException(C
+                        + ": IMLs must be in increasing order");
+        if (logIMLs && imls[0] <= 0)
+            throw new RuntimeException(C + ": IMLs must be positive");
+        this.imls = imls.clone();
+        this.logIMLs = logIMLs;
+        xs = new double[imls.length];
+        for (int k = 0; k < imls.length; k++)
+            xs[k] = logIMLs ? Math.log(imls[k]) : imls[k];
+    }
+
+    public double[] getIMLs() {
+        return imls.clone();
+    }
+
+    public boolean isLogIMLs() {
+        return logIMLs;
+    }
+
+    /**
+     * Sets the number of threads (by default the number of processors).
+     *
+     * @param numThreads
+     */
+    public void setNumThreads(int numThreads) {
+        if (numThreads < 1)
+            throw new IllegalArgumentException(
+                    "number of threads must be positive");
+        this.numThreads = numThreads;
+    }
+
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    /**
+     * This returns the IML with each probability of exceedance at each node.
+     *
+     * @param curves
+     *            [node][iml], the probability of exceedance of each IML
+     *            (non-increasing)
+     * @param poes
+     * @return imls[poe][node]
+     */
+    public double[][] getIMLs(double[][] curves, double[] poes) {
+        double[][] values = new double[poes.length][curves.length];
+        getIMLs(curves, poes, values);
+        return values;
+    }
+
+    /**
+     * This sets the IML with each probability of exceedance at each node in
+     * the given array (so it can be reused for successive blocks of curves).
+     *
+     * @param curves
+     *            [node][iml], the probability of exceedance of each IML
+     *            (non-increasing)
+     * @param poes
+     * @param values
+     *            [poe][node] (each row at least curves.length long)
+     */
+    public void getIMLs(double[][] curves, double[] poes, double[][] values) {
+        if (values.length < poes.length)
+            throw new RuntimeException(C + ": " + values.length
+                    + " rows for " + poes.length + " probabilities");
+        for (int p = 0; p < poes.length; p++)
+            if (values[p].length < curves.length)
+                throw new RuntimeException(C + ": row of " + values[p].length
+                        + " values for " + curves.length + " nodes");
+        for (double[] curve : curves)
+            if (curve.length != xs.length)
+                throw new RuntimeException(C + ": curve has " + curve.length
+                        + " values, not " + xs.length);
+
+        // the probabilities in decreasing order, so each curve is walked once
+        // from its first IML
+        int[] order = new int[poes.length];
+        for (int p = 0; p < poes.length; p++) {
+            int i = p;
+            while (i > 0 && poes[order[i - 1]] < poes[p]) {
+                order[i] = order[i - 1];
+                i--;
+            }
+            order[i] = p;
+        }
+
+        if (numThreads == 1 || curves.length <= BLOCK_SIZE) {
+            invert(curves, poes, order, values, 0, curves.length);
+            return;
+        }
+        ForkJoinPool pool = new ForkJoinPool(numThreads);
+        try {
+            pool.invoke(new BlockTask(curves, poes, order, values, 0,
+                    curves.length));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * This returns the IML with the given probability of exceedance on one
+     * curve.
+     *
+     * @param curve
+     * @param poe
+     * @return
+     */
+    public double getIML(double[] curve, double poe) {
+        double x = getX(xs, curve, poe);
+        return logIMLs ? Math.exp(x) : x;
+    }
+
+    /**
+     * This returns the x value at which the curve has the given probability of
+     * exceedance, interpolating ln(probability) linearly in x (see the class
+     * description).
+     *
+     * @param xs
+     *            in increasing order
+     * @param curve
+     * @param poe
+     * @return
+     */
+    static double getX(double[] xs, double[] curve, double poe) {
+        int last = xs.length - 1;
+        if (poe >= curve[0])
+            return xs[0];
+        if (poe < curve[last])
+            return xs[last];
+        int k = 0;
+        while (curve[k + 1] > poe)
+            k++;
+        return interpolate(xs, curve, k, poe);
+    }
+
+    // the x value of the probability between x[k] and x[k + 1], where
+    // curve[k] > poe >= curve[k + 1]
+    private static double interpolate(double[] xs, double[] curve, int k,
+            double poe) {
+        double fraction;
+        if (curve[k + 1] > 0)
+            fraction =
+                    Math.log(curve[k] / poe)
+                            / Math.log(curve[k] / curve[k + 1]);
+        else
+            fraction = (curve[k] - poe) / curve[k];
+        return xs[k] + fraction * (xs[k + 1] - xs[k]);
+    }
+
+    // inverts the curves of nodes [first, last) at all the probabilities,
+    // taken in the given (decreasing) order
+    private void invert(double[][] curves, double[] poes, int[] order,
+            double[][] values, int first, int last) {
+        int lastIML = xs.length - 1;
+        for (int n = first; n < last; n++) {
+            double[] curve = curves[n];
+            int k = 0;
+            for (int p : order) {
+                double poe = poes[p];
+                double x;
+                if (poe >= curve[0]) {
+                    x = xs[0];
+                } else if (poe < curve[lastIML]) {
+                    x = xs[lastIML];
+                } else {
+                    while (curve[k + 1] > poe)
+                        k++;
+                    x = interpolate(xs, curve, k, poe);
+                }
+                values[p][n] = logIMLs ? Math.exp(x) : x;
+            }
+        }
+    }
+
+    /**
+     * Inverts the curves of nodes [first, last), splitting the range in half
+     * until it is no bigger than a block.
+     */
+    private class BlockTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        final double[][] curves;
+        final double[] poes;
+        final int[] order;
+        final double[][] values;
+        final int first;
+        final int last;
+
+        BlockTask(double[][] curves, double[] poes, int[] order,
+                double[][] values, int first, int last) {
+            this.curves = curves;
+            this.poes = poes;
+            this.order = order;
+            this.values = values;
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        protected void compute() {
+            if (last - first <= BLOCK_SIZE) {
+                invert(curves, poes, order, values, first, last);
+                return;
+            }
+            int middle = (first + last) >>> 1;
+            invokeAll(new BlockTask(curves, poes, order, values, first,
+                    middle), new BlockTask(curves, poes, order, values,
+                    middle, last));
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.opensha.sha.calc;
+
+import org.opensha.commons.param.ParameterAPI;
+import org.opensha.sha.imr.ScalarIntensityMeasureRelationshipAPI;
+import org.opensha.sha.imr.param.IntensityMeasureParams.PeriodParam;
+import org.opensha.sha.imr.param.IntensityMeasureParams.SA_Param;
+
+/**
+ * <p>
+ * Title: IntensityMeasureType
+ * </p>
+ * <p>
+ * Description: Names an intensity measure type for calculations that handle
+ * several at once: the name of the IM parameter (e.g. PGA_Param.NAME or
+ * SA_Param.NAME) and, for SA, the period. Instances are immutable and can be
+ * used as map keys.
+ * </p>
+ */
+public class IntensityMeasureType {
+
+    private final String imName;
+    private final double period;
+
+    /**
+     * For an IM without a period (e.g. PGA or PGV).
+     *
+     * @param imName
+     *            name of the IM parameter
+     */
+    public IntensityMeasureType(String imName) {
+        this(imName, Double.NaN);
+    }
+
+    /**
+     * @param imName
+     *            name of the IM parameter
+     * @param period
+     *            the SA period (s), or Double.NaN if the IM has none
+     */
+    public IntensityMeasureType(String imName, double period) {
+        this.imName = imName;
+        this.period = period;
+    }
+
+    /**
+     * SA at the given period.
+     *
+     * @param period
+     *            in seconds
+     * @return
+     */
+    public static IntensityMeasureType SA(double period) {
+        return new IntensityMeasureType(SA_Param.NAME, period);
+    }
+
+    public String getName() {
+        return imName;
+    }
+
+    /**
+     * The SA period, or Double.NaN if the IM has none.
+     */
+    public double getPeriod() {
+        return period;
+    }
+
+    /**
+     * This sets this IM (and its period, if it has one) as the intensity
+     * measure of the IMR.
+     *
+     * @param imr
+     */
+    public void setIntensityMeasure(ScalarIntensityMeasureRelationshipAPI imr) {
+        imr.setIntensityMeasure(imName);
+        if (!Double.isNaN(period)) {
+            // the period parameter of an IMR holds Doubles
+            @SuppressWarnings("unchecked")
+            ParameterAPI<Double> periodParam =
+                    imr.getParameter(PeriodParam.NAME);
+            periodParam.setValue(period);
+        }
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof IntensityMeasureType))
+            return false;
+        IntensityMeasureType imt = (IntensityMeasureType) obj;
+        return imName.equals(imt.imName)
+                && Double.compare(period, imt.period) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        long bits = Double.doubleToLongBits(period);
+        return 31 * imName.hashCode() + (int) (bits ^ (bits >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return Double.isNaN(period) ? imName : imName + "(" + period + ")";
+    }
+}
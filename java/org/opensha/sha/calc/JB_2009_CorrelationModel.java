@@ -0,0 +1,62 @@
+package org.opensha.sha.calc;
+
+/**
+ * <p>
+ * Title: JB_2009_CorrelationModel
+ * </p>
+ * <p>
+ * Description: The spatial correlation model of intra-event residuals of
+ * Jayaram and Baker (2009, Correlation model for spatially distributed
+ * ground-motion intensities, Earthquake Engineering and Structural Dynamics
+ * 38, 1687-1708): rho(h) = exp(-3h / b), where h is the distance in km and
+ * the range b depends on the spectral period T (0 for PGA):
+ * <ul>
+ * <li>T < 1 s, Vs30 values clustered (case 1): b = 8.5 + 17.2 T</li>
+ * <li>T < 1 s, Vs30 values not clustered (case 2): b = 40.7 - 15.0 T</li>
+ * <li>T >= 1 s: b = 22.0 + 3.7 T</li>
+ * </ul>
+ * </p>
+ */
+public class JB_2009_CorrelationModel implements SpatialCorrelationModelAPI {
+
+    protected final static String C = "JB_2009_CorrelationModel";
+
+    // correlation at getMaxDistance()
+    private final static double MIN_CORRELATION = 0.01;
+
+    private final double range;
+
+    /**
+     * @param period
+     *            spectral period (s), 0 for PGA
+     * @param vs30Clustered
+     *            whether the Vs30 values of the region are clustered (i.e.
+     *            nearby sites tend to have similar Vs30)
+     */
+    public JB_2009_CorrelationModel(double period, boolean vs30Clustered) {
+        if (period < 0)
+            throw new RuntimeException(C + ": period " + period
+                    + " is negative");
+        if (period >= 1)
+            range = 22.0 + 3.7 * period;
+        else if (vs30Clustered)
+            range = 8.5 + 17.2 * period;
+        else
+            range = 40.7 - 15.0 * period;
+    }
+
+    /**
+     * The range b (km) of the model.
+     */
+    public double getRange() {
+        return range;
+    }
+
+    public double getCorrelation(double distance) {
+        return Math.exp(-3 * distance / range);
+    }
+
+    public double getMaxDistance() {
+        return -range * Math.log(MIN_CORRELATION) / 3;
+    }
+}
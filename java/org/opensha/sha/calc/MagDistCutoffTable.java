@@ -0,0 +1,90 @@
+package org.opensha.sha.calc;
+
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.commons.exceptions.InvalidRangeException;
+
+/**
+ * <p>
+ * Title: MagDistCutoffTable
+ * </p>
+ * <p>
+ * Description: A mag-dist cutoff function (distance on the x-axis and
+ * magnitude on the y-axis) compiled into sorted primitive arrays, so the
+ * magnitude threshold at a distance is found by a binary search rather than
+ * by ArbitrarilyDiscretizedFunc.getInterpolatedY(), whose indexed getX() and
+ * getY() walk the points of the function for each source. The table is made
+ * once per calculation and gives exactly the values of getInterpolatedY()
+ * (including an InvalidRangeException for distances outside the function).
+ * </p>
+ * <p>
+ * The table is immutable, so it may be shared by threads.
+ * </p>
+ */
+public class MagDistCutoffTable {
+
+    protected final static String C = "MagDistCutoffTable";
+
+    private final double[] distances;
+    private final double[] mags;
+
+    /**
+     * @param magDistCutoffFunc
+     *            distance on x-axis and mag on y-axis (copied, so later
+     *            changes to the function don't affect the table)
+     */
+    public MagDistCutoffTable(ArbitrarilyDiscretizedFunc magDistCutoffFunc) {
+        int num = magDistCutoffFunc.getNum();
+        if (num == 0)
+            throw new RuntimeException(C + ": the cutoff function is empty");
+        distances = new double[num];
+        mags = new double[num];
+        for (int i = 0; i < num; i++) {
+            distances[i] = magDistCutoffFunc.getX(i);
+            mags[i] = magDistCutoffFunc.getY(i);
+        }
+    }
+
+    /**
+     * The magnitude below which ruptures are ignored at the given distance,
+     * linearly interpolated between the points of the cutoff function.
+     *
+     * @param distance
+     * @return
+     */
+    public double getMagThreshold(double distance) {
+        int last = distances.length - 1;
+        if (distance > distances[last] || distance < distances[0])
+            throw new InvalidRangeException(
+                    "x Value must be within the range: " + distances[0]
+                            + " and " + distances[last]);
+        if (distance == distances[last])
+            return mags[last];
+
+        // the first segment (i, i+1) with distance <= distances[i+1], as
+        // found by getInterpolatedY()
+        int low = 0;
+        int high = last - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (distances[mid + 1] < distance)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        double x1 = distances[low];
+        double x2 = distances[low + 1];
+        double y1 = mags[low];
+        double y2 = mags[low + 1];
+        return ((y2 - y1) * (distance - x1)) / (x2 - x1) + y1;
+    }
+
+    /**
+     * The table for the given function, or null if it is null (no mag-dist
+     * filter).
+     */
+    public static MagDistCutoffTable getTable(
+            ArbitrarilyDiscretizedFunc magDistCutoffFunc) {
+        return magDistCutoffFunc == null ? null : new MagDistCutoffTable(
+                magDistCutoffFunc);
+    }
+}
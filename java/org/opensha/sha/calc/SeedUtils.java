@@ -0,0 +1,37 @@
+package org.opensha.sha.calc;
+
+/**
+ * Seeds for the SplittableRandom generators of StochasticEventSetCalculator
+ * and GroundMotionFieldCalculator: each is made by mixing a parent seed with
+ * an index (of a realization, or of a source in a realization), so the
+ * numbers drawn for an index don't depend on which others are drawn, nor in
+ * what order.
+ */
+final class SeedUtils {
+
+    // increment between the seeds mixed into generators (the odd constant
+    // used by SplittableRandom)
+    private final static long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private SeedUtils() {
+    }
+
+    /**
+     * The seed of the given index, made from the parent seed.
+     *
+     * @param seed
+     * @param index
+     * @return
+     */
+    static long getSeed(long seed, int index) {
+        return mix64(seed + (index + 1) * GOLDEN_GAMMA);
+    }
+
+    // the 64-bit finalizer of SplittableRandom (Stafford's variant 13),
+    // which turns nearby inputs into unrelated outputs
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,274 @@
+package org.opensha.sha.calc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.SplittableRandom;
+
+import org.opensha.commons.geo.GeoTools;
+import org.opensha.commons.geo.Location;
+
+/**
+ * <p>
+ * Title: SequentialGaussianSimulation
+ * </p>
+ * <p>
+ * Description: Draws standard normal fields over a fixed set of sites with a
+ * spatial correlation model, for the intra-event residuals of
+ * GroundMotionFieldCalculator. The sites are visited along a random path
+ * (fixed for the set of sites), and the value at each site is drawn from its
+ * simple kriging distribution given the values already drawn at its nearest
+ * (at most numNeighbours) sites within the model's maximum distance: the
+ * weighted sum of those values plus a conditional standard deviation times a
+ * standard normal number. With at least as many neighbours as sites this is
+ * exact (the same as a Cholesky factorization of the full correlation
+ * matrix, but for the correlations beyond the model's maximum distance, which
+ * are taken as zero); with a bounded neighbourhood it costs
+ * O(numNeighbours^3) per site to set up and O(numNeighbours) per site per
+ * field, instead of O(n^3) and O(n^2), and the correlation of distant pairs
+ * is approximate.
+ * </p>
+ * <p>
+ * The path, neighbours, kriging weights and conditional standard deviations
+ * are computed once, in the constructor, and reused for every field.
+ * Distances are measured in a plane tangent to the Earth at the mean latitude
+ * of the sites, so the correlation matrix stays positive definite.
+ * </p>
+ */
+public class SequentialGaussianSimulation {
+
+    protected final static String C = "SequentialGaussianSimulation";
+
+    // seed of the random path, fixed so the fields of a set of sites only
+    // depend on the seeds of the realizations
+    private final static long PATH_SEED = 0x5eed5eedL;
+
+    // added to the diagonal of the kriging matrices, so sites at the same
+    // location don't make them singular
+    private final static double NUGGET = 1e-10;
+
+    // greatest number of rings of cells searched for neighbours
+    private final static int MAX_RINGS = 64;
+
+    private final int numSites;
+    private final int[] path;
+    private final int[][] neighbours;
+    private final double[][] weights;
+    private final double[] condSigmas;
+
+    /**
+     * @param locs
+     *            the sites
+     * @param model
+     *            correlation of the values at two sites
+     * @param numNeighbours
+     *            greatest number of sites each value is conditioned on
+     */
+    public SequentialGaussianSimulation(Location[] locs,
+            SpatialCorrelationModelAPI model, int numNeighbours) {
+        if (numNeighbours < 0)
+            throw new RuntimeException(C + ": number of neighbours "
+                    + numNeighbours + " is negative");
+        numSites = locs.length;
+        path = new int[numSites];
+        neighbours = new int[numSites][];
+        weights = new double[numSites][];
+        condSigmas = new double[numSites];
+
+        // coordinates (km) in a plane tangent at the mean latitude
+        double meanLat = 0;
+        for (Location loc : locs)
+            meanLat += loc.getLatitude();
+        meanLat = numSites > 0 ? meanLat / numSites : 0;
+        double kmPerDegree = GeoTools.EARTH_RADIUS_MEAN * GeoTools.TO_RAD;
+        double kmPerLonDegree =
+                kmPerDegree * Math.cos(meanLat * GeoTools.TO_RAD);
+        double[] x = new double[numSites];
+        double[] y = new double[numSites];
+        double minX = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < numSites; i++) {
+            x[i] = locs[i].getLongitude() * kmPerLonDegree;
+            y[i] = locs[i].getLatitude() * kmPerDegree;
+            minX = Math.min(minX, x[i]);
+            maxX = Math.max(maxX, x[i]);
+            minY = Math.min(minY, y[i]);
+            maxY = Math.max(maxY, y[i]);
+        }
+
+        // random path (Fisher-Yates shuffle)
+        SplittableRandom random = new SplittableRandom(PATH_SEED);
+        for (int i = 0; i < numSites; i++)
+            path[i] = i;
+        for (int i = numSites - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = path[i];
+            path[i] = path[j];
+            path[j] = t;
+        }
+
+        // cells holding about numNeighbours sites each (but no more than
+        // MAX_RINGS across the maximum distance, e.g. for sites along a
+        // line), for the neighbour search among the sites visited so far
+        double maxDistance = model.getMaxDistance();
+        double area = (maxX - minX) * (maxY - minY);
+        double cellSize =
+                Math.max(Math.sqrt(area * Math.max(numNeighbours, 1)
+                        / Math.max(numSites, 1)), Math.max(maxDistance
+                        / MAX_RINGS, 1e-6));
+        int maxRing = (int) Math.ceil(maxDistance / cellSize);
+        HashMap<Long, ArrayList<Integer>> cells =
+                new HashMap<Long, ArrayList<Integer>>();
+
+        int[] nearest = new int[numNeighbours];
+        double[] nearestDists = new double[numNeighbours];
+        for (int p = 0; p < numSites; p++) {
+            int site = path[p];
+            long row = (long) Math.floor(y[site] / cellSize);
+            long col = (long) Math.floor(x[site] / cellSize);
+
+            // the nearest visited sites, searching rings of cells outward
+            // until no closer site can be found
+            int numNearest = 0;
+            for (int ring = 0; ring <= maxRing && numNeighbours > 0; ring++) {
+                if (numNearest == numNeighbours
+                        && nearestDists[numNearest - 1] <= (ring - 1)
+                                * cellSize)
+                    break;
+                for (long r = row - ring; r <= row + ring; r++) {
+                    // the whole top and bottom rows of the ring, the ends
+                    // of the others
+                    long step =
+                            Math.abs(r - row) == ring ? 1 : Math.max(
+                                    2 * ring, 1);
+                    for (long c = col - ring; c <= col + ring; c += step) {
+                        ArrayList<Integer> cell = cells.get(getKey(r, c));
+                        if (cell == null)
+                            continue;
+                        for (int other : cell) {
+                            double dist =
+                                    Math.hypot(x[other] - x[site], y[other]
+                                            - y[site]);
+                            if (dist <= maxDistance)
+                                numNearest =
+                                        insert(other, dist, nearest,
+                                                nearestDists, numNearest);
+                        }
+                    }
+                }
+            }
+
+            // simple kriging: C w = c, conditional variance 1 - w.c
+            double[][] cov = new double[numNearest][numNearest];
+            double[] rhs = new double[numNearest];
+            for (int a = 0; a < numNearest; a++) {
+                int sa = nearest[a];
+                rhs[a] = model.getCorrelation(nearestDists[a]);
+                cov[a][a] = 1 + NUGGET;
+                for (int b = 0; b < a; b++) {
+                    int sb = nearest[b];
+                    cov[a][b] =
+                            model.getCorrelation(Math.hypot(x[sa] - x[sb],
+                                    y[sa] - y[sb]));
+                    cov[b][a] = cov[a][b];
+                }
+            }
+            double[] w = solve(cov, rhs);
+            double variance = 1;
+            for (int a = 0; a < numNearest; a++)
+                variance -= w[a] * rhs[a];
+            neighbours[p] = new int[numNearest];
+            System.arraycopy(nearest, 0, neighbours[p], 0, numNearest);
+            weights[p] = w;
+            condSigmas[p] = Math.sqrt(Math.max(variance, 0));
+
+            Long key = getKey(row, col);
+            ArrayList<Integer> cell = cells.get(key);
+            if (cell == null) {
+                cell = new ArrayList<Integer>();
+                cells.put(key, cell);
+            }
+            cell.add(site);
+        }
+    }
+
+    public int getNumSites() {
+        return numSites;
+    }
+
+    /**
+     * This draws a field into the given array (the value of site i in
+     * field[i]).
+     *
+     * @param random
+     * @param field
+     *            with at least getNumSites() values
+     */
+    public void drawField(SplittableRandom random, double[] field) {
+        GroundMotionFieldCalculator.fillGaussians(random, field, numSites);
+        // the neighbours of each site come before it in the path, so their
+        // values are drawn by the time the site is reached
+        for (int p = 0; p < numSites; p++) {
+            int site = path[p];
+            int[] nbs = neighbours[p];
+            double[] w = weights[p];
+            double value = condSigmas[p] * field[site];
+            for (int a = 0; a < nbs.length; a++)
+                value += w[a] * field[nbs[a]];
+            field[site] = value;
+        }
+    }
+
+    // inserts a site into the list of nearest sites (sorted by distance,
+    // at most nearest.length long), returning the new length
+    private static int insert(int site, double dist, int[] nearest,
+            double[] dists, int num) {
+        if (num == nearest.length && dist >= dists[num - 1])
+            return num;
+        int i = num == nearest.length ? num - 1 : num++;
+        while (i > 0 && dists[i - 1] > dist) {
+            nearest[i] = nearest[i - 1];
+            dists[i] = dists[i - 1];
+            i--;
+        }
+        nearest[i] = site;
+        dists[i] = dist;
+        return num;
+    }
+
+    // solves a symmetric positive definite system by Cholesky factorization
+    private static double[] solve(double[][] a, double[] b) {
+        int n = b.length;
+        double[][] l = new double[n][n];
+        for (int i = 0; i < n; i++)
+            for (int j = 0; j <= i; j++) {
+                double sum = a[i][j];
+                for (int k = 0; k < j; k++)
+                    sum -= l[i][k] * l[j][k];
+                if (i == j)
+                    l[i][i] = Math.sqrt(Math.max(sum, NUGGET));
+                else
+                    l[i][j] = sum / l[j][j];
+            }
+        double[] z = new double[n];
+        for (int i = 0; i < n; i++) {
+            double sum = b[i];
+            for (int k = 0; k < i; k++)
+                sum -= l[i][k] * z[k];
+            z[i] = sum / l[i][i];
+        }
+        double[] x = new double[n];
+        for (int i = n - 1; i >= 0; i--) {
+            double sum = z[i];
+            for (int k = i + 1; k < n; k++)
+                sum -= l[k][i] * x[k];
+            x[i] = sum / l[i][i];
+        }
+        return x;
+    }
+
+    private static Long getKey(long row, long col) {
+        return (row << 32) ^ (col & 0xffffffffL);
+    }
+}
@@ -0,0 +1,162 @@
+package org.opensha.sha.calc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.opensha.commons.data.Site;
+import org.opensha.commons.geo.GeoTools;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.geo.LocationUtils;
+
+/**
+ * <p>
+ * Title: SiteClusters
+ * </p>
+ * <p>
+ * Description: Groups a list of sites into clusters of sites that are within
+ * a distance of the cluster's representative (one of its sites) and have the
+ * same site parameters with the same values, so the hazard can be computed
+ * once per cluster (see HazardCurveCalculator.setSiteClusterDistance()). Sites
+ * are taken in order along a Hilbert curve (see HilbertOrder); each joins the
+ * first cluster it fits, or starts a new one with itself as representative.
+ * </p>
+ * <p>
+ * The curve given to a site of a cluster is that of a site with the same
+ * parameters at most getMaxOffset() km away, so its error is bounded by how
+ * much the hazard changes over that distance; getMaxOffset() is the bound to
+ * report alongside the results.
+ * </p>
+ */
+public class SiteClusters {
+
+    protected final static String C = "SiteClusters";
+
+    private final int[] cluster;
+    private final int[] representatives;
+    private final double[] offsets;
+    private double maxOffset;
+
+    /**
+     * @param sites
+     * @param distance
+     *            greatest distance (km) of a site from the representative of
+     *            its cluster
+     */
+    public SiteClusters(List<Site> sites, double distance) {
+        int num = sites.size();
+        cluster = new int[num];
+        offsets = new double[num];
+
+        Location[] locs = new Location[num];
+        double maxAbsLat = 0;
+        for (int i = 0; i < num; i++) {
+            locs[i] = sites.get(i).getLocation();
+            maxAbsLat = Math.max(maxAbsLat, Math.abs(locs[i].getLatitude()));
+        }
+        // cells at least the distance across, so a representative within the
+        // distance of a site is in the site's cell or one next to it
+        double cellLat =
+                Math.max(distance, 1e-6) / (GeoTools.EARTH_RADIUS_MEAN
+                        * GeoTools.TO_RAD);
+        double cellLon =
+                cellLat / Math.max(Math.cos(maxAbsLat * GeoTools.TO_RAD), 0.01);
+
+        HashMap<Long, ArrayList<Integer>> cells =
+                new HashMap<Long, ArrayList<Integer>>();
+        ArrayList<Integer> reps = new ArrayList<Integer>();
+        for (int i : HilbertOrder.getOrder(locs)) {
+            Site site = sites.get(i);
+            long row = (long) Math.floor(locs[i].getLatitude() / cellLat);
+            long col = (long) Math.floor(locs[i].getLongitude() / cellLon);
+            int found = -1;
+            for (long r = row - 1; r <= row + 1 && found < 0; r++)
+                for (long c = col - 1; c <= col + 1 && found < 0; c++) {
+                    ArrayList<Integer> cellReps = cells.get(getKey(r, c));
+                    if (cellReps == null)
+                        continue;
+                    for (int n : cellReps) {
+                        Site rep = sites.get(reps.get(n));
+                        double offset =
+                                LocationUtils.horzDistance(rep.getLocation(),
+                                        locs[i]);
+                        if (offset <= distance && rep.size() == site.size()
+                                && rep.equalsParameterList(site)) {
+                            found = n;
+                            offsets[i] = offset;
+                            break;
+                        }
+                    }
+                }
+            if (found < 0) {
+                found = reps.size();
+                reps.add(i);
+                Long key = getKey(row, col);
+                ArrayList<Integer> cellReps = cells.get(key);
+                if (cellReps == null) {
+                    cellReps = new ArrayList<Integer>();
+                    cells.put(key, cellReps);
+                }
+                cellReps.add(found);
+            }
+            cluster[i] = found;
+            maxOffset = Math.max(maxOffset, offsets[i]);
+        }
+
+        representatives = new int[reps.size()];
+        for (int n = 0; n < representatives.length; n++)
+            representatives[n] = reps.get(n);
+    }
+
+    /**
+     * The number of clusters.
+     */
+    public int getNumClusters() {
+        return representatives.length;
+    }
+
+    /**
+     * The index (in the list of sites) of the representative of a cluster.
+     *
+     * @param cluster
+     * @return
+     */
+    public int getRepresentative(int cluster) {
+        return representatives[cluster];
+    }
+
+    /**
+     * The cluster of a site.
+     *
+     * @param site
+     *            index in the list of sites
+     * @return
+     */
+    public int getCluster(int site) {
+        return cluster[site];
+    }
+
+    /**
+     * The distance (km) of a site from the representative of its cluster.
+     *
+     * @param site
+     *            index in the list of sites
+     * @return
+     */
+    public double getOffset(int site) {
+        return offsets[site];
+    }
+
+    /**
+     * The greatest distance (km) of a site from the representative of its
+     * cluster: the curve of every site is that of a site with the same
+     * parameters no further than this away.
+     */
+    public double getMaxOffset() {
+        return maxOffset;
+    }
+
+    private static Long getKey(long row, long col) {
+        return (row << 32) ^ (col & 0xffffffffL);
+    }
+}
@@ -0,0 +1,33 @@
+package org.opensha.sha.calc;
+
+import org.opensha.commons.data.Site;
+import org.opensha.commons.geo.Location;
+
+/**
+ * <p>
+ * Title: SiteParamsProviderAPI
+ * </p>
+ * <p>
+ * Description: Supplies the Site (with whatever site parameters the IMRs
+ * need, such as Vs30 or depth to a given shear-wave velocity) for each node of
+ * a gridded region, so a map calculation doesn't need a list of Site objects
+ * for the whole region held in memory.
+ * </p>
+ * <p>
+ * HazardMapCalculator calls getSite() from several threads at once, so
+ * implementations must be thread safe. The returned Site is only read.
+ * </p>
+ */
+public interface SiteParamsProviderAPI {
+
+    /**
+     * This returns the site for a node of the region.
+     * 
+     * @param nodeIndex
+     *            index of the node in the gridded region
+     * @param location
+     *            location of the node
+     * @return the site, located at the given location
+     */
+    public Site getSite(int nodeIndex, Location location);
+}
@@ -0,0 +1,782 @@
+package org.opensha.sha.calc;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opensha.commons.data.DataPoint2D;
+
+import org.opensha.commons.data.Site;
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.commons.data.function.DiscretizedFuncAPI;
+import org.opensha.commons.param.ParameterAPI;
+import org.opensha.sha.earthquake.EqkRupture;
+import org.opensha.sha.earthquake.ProbEqkRupture;
+import org.opensha.sha.earthquake.ProbEqkSource;
+import org.opensha.sha.imr.AttenuationRelationship;
+import org.opensha.sha.imr.ScalarIntensityMeasureRelationshipAPI;
+import org.opensha.sha.imr.param.IntensityMeasureParams.PeriodParam;
+import org.opensha.sha.util.TectonicRegionType;
+
+/**
+ * <p>
+ * Title: SourceCalcWorker
+ * </p>
+ * <p>
+ * Description: This holds the state one thread needs to compute hazard (its
+ * own IMRs, the conditional probability function and scratch arrays) and does
+ * the body of the source loop of HazardCurveCalculator: the contribution of a
+ * source at a site is added, as ln(non-exceedance probability), into a
+ * primitive array with one element per IML. Summing these over all sources
+ * and taking 1-exp(sum) gives the hazard curve. Workers are made with
+ * HazardCurveCalculator.createSourceCalcWorker(), which copies the distance
+ * cutoffs from the calculator's parameters.
+ * </p>
+ * <p>
+ * The contribution of a source can also be added for many sites at once, with
+ * the loop over sites inside the loop over ruptures, so each rupture is set in
+ * the IMR only once.
+ * </p>
+ * <p>
+ * Likewise it can be added for several intensity measure types at once (see
+ * setIntensityMeasures()): each rupture is set in the IMR once, which
+ * computes the rupture and propagation effect parameters (distances), and
+ * the IMR is then switched to each IMT in turn to get its exceedance
+ * probabilities. The switch only sets the IM and, if it has one, the value of
+ * the period parameter (looked up once), which is all an IMR needs to pick
+ * the coefficients of the IMT; the rupture and site are left as they are.
+ * </p>
+ * <p>
+ * With a mag-dist cutoff, the magnitude threshold of a source is looked up in
+ * a MagDistCutoffTable, and the first time the worker sees a source it
+ * records the order of its ruptures by decreasing magnitude. When the source
+ * is seen again (for another site, e.g. by HazardMapCalculator) its ruptures
+ * are visited in that order, so the loop over them stops at the first one
+ * below the threshold instead of testing them all. This changes only the
+ * order in which the contributions of the ruptures are summed.
+ * </p>
+ * <p>
+ * If the worker is given a HazardCalcProfile, the calls to getMinDistance(),
+ * setEqkRupture() and getExceedProbabilities() are timed and the ruptures
+ * evaluated and skipped are counted in it; otherwise the only cost is a test
+ * of the profile against null around each of these calls.
+ * </p>
+ * <p>
+ * A worker is not thread safe; each thread needs its own.
+ * </p>
+ */
+class SourceCalcWorker {
+
+    protected final static String C = "SourceCalcWorker";
+
+    // IMRs owned by this worker (never shared with another thread)
+    private final Map<TectonicRegionType, ScalarIntensityMeasureRelationshipAPI> imrMap;
+
+    private final double maxDistance;
+    private final boolean includeMagDistFilter;
+    private final MagDistCutoffTable magDistCutoffTable;
+
+    // the rupture indices of the sources seen by this worker, by decreasing
+    // magnitude (only kept with a mag-dist cutoff; the keys are weak so
+    // sources made anew by the ERF for each request don't accumulate)
+    private final WeakHashMap<ProbEqkSource, RuptureOrder> ruptureOrders =
+            new WeakHashMap<ProbEqkSource, RuptureOrder>();
+    private double[] rupMags = new double[0];
+
+    // null unless the calculation is profiled
+    private final HazardCalcProfile profile;
+
+    // negligible ruptures are pruned if positive (see computeExceedProbs());
+    // those pruned for a source are added to numRupturesPruned at its end
+    private final double pruneTolerance;
+    private final AtomicLong numRupturesPruned;
+    private long numPruned;
+
+    private final int numPoints;
+    private ArbitrarilyDiscretizedFunc condProbFunc;
+    private final double[] sourceExceedProbs;
+    private final double[] condProbs;
+
+    // the IMTs of addSourceForIMTs(), with a conditional probability function
+    // and source exceedance probabilities for each, and the period parameter
+    // of each IMR (absent if no IMT has a period); see setIntensityMeasures()
+    private IntensityMeasureType[] imts;
+    private ArbitrarilyDiscretizedFunc[] imtCondProbFuncs;
+    private double[][] imtSourceExceedProbs;
+    private double[] imtCondProbs;
+    private final IdentityHashMap<ScalarIntensityMeasureRelationshipAPI, ParameterAPI<Double>> periodParams =
+            new IdentityHashMap<ScalarIntensityMeasureRelationshipAPI, ParameterAPI<Double>>();
+
+    // scratch space for addSource(source, sites, ...), grown as needed
+    private int[] nearSites = new int[0];
+    private double[] siteMagThresh = new double[0];
+    private double[][] siteSourceExceedProbs = new double[0][];
+
+    /**
+     * @param imrMap
+     *            IMRs for the exclusive use of this worker
+     * @param imlFunc
+     *            function whose x values are the IMLs
+     * @param maxDistance
+     *            sources farther than this (km) are skipped
+     * @param magDistCutoffFunc
+     *            mag-dist cutoff (distance on x-axis and mag on y-axis), or
+     *            null if no mag-dist filter is to be applied
+     * @param pruneTolerance
+     *            ruptures that can change the ln(non-exceedance probability)
+     *            of a site by less than this at every IML are skipped (0 for
+     *            none; see computeExceedProbs())
+     * @param numRupturesPruned
+     *            where the number of ruptures pruned (once for each site) is
+     *            added up (may be shared with other workers)
+     * @param profile
+     *            where to count and time the calculation (for the exclusive
+     *            use of this worker), or null if it isn't profiled
+     */
+    SourceCalcWorker(
+            Map<TectonicRegionType, ScalarIntensityMeasureRelationshipAPI> imrMap,
+            DiscretizedFuncAPI imlFunc, double maxDistance,
+            ArbitrarilyDiscretizedFunc magDistCutoffFunc,
+            double pruneTolerance, AtomicLong numRupturesPruned,
+            HazardCalcProfile profile) {
+        this.imrMap = imrMap;
+        this.pruneTolerance = pruneTolerance;
+        this.numRupturesPruned = numRupturesPruned;
+        this.profile = profile;
+        this.maxDistance = maxDistance;
+        includeMagDistFilter = magDistCutoffFunc != null;
+        magDistCutoffTable = MagDistCutoffTable.getTable(magDistCutoffFunc);
+        condProbFunc = (ArbitrarilyDiscretizedFunc) imlFunc.deepClone();
+        numPoints = condProbFunc.getNum();
+        sourceExceedProbs = new double[numPoints];
+        condProbs = new double[numPoints];
+
+        for (ScalarIntensityMeasureRelationshipAPI imr : imrMap.values()) {
+            imr.resetParameterEventListeners();
+            imr.setUserMaxDistance(maxDistance);
+        }
+    }
+
+    /**
+     * The number of IMLs (the length of the arrays passed to addSource).
+     */
+    int getNumPoints() {
+        return numPoints;
+    }
+
+    /**
+     * This sets the intensity measure types for which addSourceForIMTs()
+     * computes, with the IMLs of each. Each IMT is set in each IMR once here,
+     * so an IMT (or period) an IMR doesn't support fails at once.
+     *
+     * @param imts
+     * @param imlFuncs
+     *            function for each IMT whose x values are its IMLs
+     */
+    @SuppressWarnings("unchecked")
+    void setIntensityMeasures(IntensityMeasureType[] imts,
+            DiscretizedFuncAPI[] imlFuncs) {
+        int numIMTs = imts.length;
+        this.imts = imts.clone();
+        imtCondProbFuncs = new ArbitrarilyDiscretizedFunc[numIMTs];
+        imtSourceExceedProbs = new double[numIMTs][];
+        int maxPoints = 0;
+        boolean hasPeriod = false;
+        for (int j = 0; j < numIMTs; j++) {
+            imtCondProbFuncs[j] =
+                    (ArbitrarilyDiscretizedFunc) imlFuncs[j].deepClone();
+            imtSourceExceedProbs[j] = new double[imlFuncs[j].getNum()];
+            maxPoints = Math.max(maxPoints, imlFuncs[j].getNum());
+            hasPeriod |= !Double.isNaN(imts[j].getPeriod());
+        }
+        imtCondProbs = new double[maxPoints];
+
+        periodParams.clear();
+        for (ScalarIntensityMeasureRelationshipAPI imr : imrMap.values()) {
+            for (IntensityMeasureType imt : imts)
+                imt.setIntensityMeasure(imr);
+            // the period parameter of an IMR holds Doubles
+            if (hasPeriod)
+                periodParams.put(imr, imr.getParameter(PeriodParam.NAME));
+        }
+    }
+
+    /**
+     * This sets the site in all the IMRs of this worker; it must be called
+     * before addSource() is used for a new site.
+     *
+     * @param site
+     */
+    void setSite(Site site) {
+        for (ScalarIntensityMeasureRelationshipAPI imr : imrMap.values())
+            imr.setSite(site);
+    }
+
+    /**
+     * This adds ln(non-exceedance probability) at each IML for the given
+     * source into logNonExceedProbs, applying the source distance cutoff and
+     * (if set) the mag-dist cutoff. The site must already have been passed to
+     * setSite().
+     *
+     * @param source
+     * @param site
+     * @param logNonExceedProbs
+     *            the running sum, one element per IML
+     * @return false if the source was beyond the maximum distance (and so
+     *         ignored)
+     */
+    boolean addSource(ProbEqkSource source, Site site,
+            double[] logNonExceedProbs) {
+
+        ScalarIntensityMeasureRelationshipAPI imr =
+                imrMap.get(source.getTectonicRegionType());
+        long start = 0;
+        if (profile != null) {
+            profile.setSource(source, imr);
+            start = System.nanoTime();
+        }
+
+        // compute the source's distance from the site and skip if it's too
+        // far away
+        double distance = source.getMinDistance(site);
+        if (profile != null)
+            profile.countSource(System.nanoTime() - start,
+                    distance > maxDistance, source.getNumRuptures());
+        if (distance > maxDistance)
+            return false;
+
+        // get magThreshold if we're to use the mag-dist cutoff filter
+        double magThresh = 0.0;
+        if (includeMagDistFilter)
+            magThresh = magDistCutoffTable.getMagThreshold(distance);
+
+        // determine whether it's poissonian (calcs depend on this)
+        boolean poissonSource = source.isSourcePoissonian();
+        int k;
+        if (!poissonSource)
+            for (k = 0; k < numPoints; k++)
+                sourceExceedProbs[k] = 0.0;
+
+        int numRuptures = source.getNumRuptures();
+        int[] order = getRuptureOrder(source, numRuptures);
+        for (int r = 0; r < numRuptures; r++) {
+
+            int n = order == null ? r : order[r];
+            EqkRupture rupture = source.getRupture(n);
+            double qkProb = ((ProbEqkRupture) rupture).getProbability();
+            double mag = rupture.getMag();
+            if (includeMagDistFilter && order == null)
+                rupMags[n] = mag;
+
+            // apply magThreshold if we're to use the mag-dist cutoff filter
+            // (the rest are smaller if the ruptures are in order)
+            if (includeMagDistFilter && mag < magThresh) {
+                if (order != null) {
+                    if (profile != null)
+                        profile.countMagDistSkips(numRuptures - r);
+                    break;
+                }
+                if (profile != null)
+                    profile.countMagDistSkips(1);
+                continue;
+            }
+
+            double logNonExceedProb = 0.0;
+            if (poissonSource) {
+                // see HazardCurveCalculator.getHazardCurve() for this check
+                logNonExceedProb = Math.log(1.0 - qkProb);
+                if (logNonExceedProb < -30.0)
+                    throw new RuntimeException(
+                            "Error: The probability for this ProbEqkRupture ("
+                                    + qkProb
+                                    + ") is too high for a Possion source (~infinite number of events)");
+            }
+
+            setEqkRupture(imr, rupture);
+            if (!computeCondProbs(imr, poissonSource ? -logNonExceedProb
+                    : qkProb))
+                continue;
+
+            if (poissonSource) {
+                for (k = 0; k < numPoints; k++)
+                    logNonExceedProbs[k] += logNonExceedProb * condProbs[k];
+            } else
+                for (k = 0; k < numPoints; k++)
+                    sourceExceedProbs[k] += qkProb * condProbs[k];
+        }
+
+        if (includeMagDistFilter && order == null)
+            setRuptureOrder(source, numRuptures);
+        if (numPruned > 0) {
+            numRupturesPruned.addAndGet(numPruned);
+            numPruned = 0;
+        }
+
+        if (!poissonSource)
+            for (k = 0; k < numPoints; k++)
+                logNonExceedProbs[k] += Math.log(1 - sourceExceedProbs[k]);
+
+        return true;
+    }
+
+    /**
+     * This adds ln(non-exceedance probability) at each IML of each IMT of
+     * setIntensityMeasures() for the given source into logNonExceedProbs,
+     * applying the source distance cutoff and (if set) the mag-dist cutoff.
+     * Each rupture is set in the IMR once, and the IMR is switched to each IMT
+     * in turn; each is pruned on its own (see computeExceedProbs()). The site
+     * must already have been passed to setSite().
+     *
+     * @param source
+     * @param site
+     * @param logNonExceedProbs
+     *            the running sums, logNonExceedProbs[imt][iml]
+     * @return false if the source was beyond the maximum distance (and so
+     *         ignored)
+     */
+    boolean addSourceForIMTs(ProbEqkSource source, Site site,
+            double[][] logNonExceedProbs) {
+
+        ScalarIntensityMeasureRelationshipAPI imr =
+                imrMap.get(source.getTectonicRegionType());
+        ParameterAPI<Double> periodParam = periodParams.get(imr);
+        long start = 0;
+        if (profile != null) {
+            profile.setSource(source, imr);
+            start = System.nanoTime();
+        }
+
+        // compute the source's distance from the site and skip if it's too
+        // far away
+        double distance = source.getMinDistance(site);
+        if (profile != null)
+            profile.countSource(System.nanoTime() - start,
+                    distance > maxDistance, source.getNumRuptures());
+        if (distance > maxDistance)
+            return false;
+
+        // get magThreshold if we're to use the mag-dist cutoff filter
+        double magThresh = 0.0;
+        if (includeMagDistFilter)
+            magThresh = magDistCutoffTable.getMagThreshold(distance);
+
+        int numIMTs = imts.length;
+        boolean poissonSource = source.isSourcePoissonian();
+        int j, k;
+        if (!poissonSource)
+            for (j = 0; j < numIMTs; j++)
+                Arrays.fill(imtSourceExceedProbs[j], 0.0);
+
+        int numRuptures = source.getNumRuptures();
+        int[] order = getRuptureOrder(source, numRuptures);
+        for (int r = 0; r < numRuptures; r++) {
+
+            int n = order == null ? r : order[r];
+            EqkRupture rupture = source.getRupture(n);
+            double qkProb = ((ProbEqkRupture) rupture).getProbability();
+            double mag = rupture.getMag();
+            if (includeMagDistFilter && order == null)
+                rupMags[n] = mag;
+
+            // apply magThreshold if we're to use the mag-dist cutoff filter
+            // (the rest are smaller if the ruptures are in order)
+            if (includeMagDistFilter && mag < magThresh) {
+                if (order != null) {
+                    if (profile != null)
+                        profile.countMagDistSkips(numRuptures - r);
+                    break;
+                }
+                if (profile != null)
+                    profile.countMagDistSkips(1);
+                continue;
+            }
+
+            double logNonExceedProb = 0.0;
+            if (poissonSource) {
+                // see HazardCurveCalculator.getHazardCurve() for this check
+                logNonExceedProb = Math.log(1.0 - qkProb);
+                if (logNonExceedProb < -30.0)
+                    throw new RuntimeException(
+                            "Error: The probability for this ProbEqkRupture ("
+                                    + qkProb
+                                    + ") is too high for a Possion source (~infinite number of events)");
+            }
+
+            // the rupture (and so the distances) once for all the IMTs
+            setEqkRupture(imr, rupture);
+            for (j = 0; j < numIMTs; j++) {
+                setIntensityMeasure(imr, periodParam, imts[j]);
+                DiscretizedFuncAPI func =
+                        computeCondProbs(imr, imtCondProbFuncs[j],
+                                poissonSource ? -logNonExceedProb : qkProb);
+                if (func == null)
+                    continue;
+                imtCondProbFuncs[j] = (ArbitrarilyDiscretizedFunc) func;
+                getYValues(func, imtCondProbs);
+                int numIMLs = logNonExceedProbs[j].length;
+                if (poissonSource) {
+                    double[] logProbs = logNonExceedProbs[j];
+                    for (k = 0; k < numIMLs; k++)
+                        logProbs[k] += logNonExceedProb * imtCondProbs[k];
+                } else {
+                    double[] exceedProbs = imtSourceExceedProbs[j];
+                    for (k = 0; k < numIMLs; k++)
+                        exceedProbs[k] += qkProb * imtCondProbs[k];
+                }
+            }
+        }
+
+        if (includeMagDistFilter && order == null)
+            setRuptureOrder(source, numRuptures);
+        if (numPruned > 0) {
+            numRupturesPruned.addAndGet(numPruned);
+            numPruned = 0;
+        }
+
+        if (!poissonSource)
+            for (j = 0; j < numIMTs; j++) {
+                double[] logProbs = logNonExceedProbs[j];
+                for (k = 0; k < logProbs.length; k++)
+                    logProbs[k] += Math.log(1 - imtSourceExceedProbs[j][k]);
+            }
+
+        return true;
+    }
+
+    /**
+     * This adds ln(non-exceedance probability) at each IML for the given
+     * source into logNonExceedProbs[i] for each site i, looping over the
+     * ruptures of the source once and, for each, over the sites within the
+     * maximum distance of the source (and, if set, the mag-dist cutoff). This
+     * leaves the last of these sites set in the IMRs, so setSite() must be
+     * called before addSource(source, site, ...) is used again.
+     *
+     * @param source
+     * @param sites
+     * @param logNonExceedProbs
+     *            the running sums, logNonExceedProbs[site][iml]
+     * @return false if the source was beyond the maximum distance of all the
+     *         sites (and so ignored)
+     */
+    boolean addSource(ProbEqkSource source, Site[] sites,
+            double[][] logNonExceedProbs) {
+
+        if (nearSites.length < sites.length) {
+            nearSites = new int[sites.length];
+            siteMagThresh = new double[sites.length];
+        }
+
+        ScalarIntensityMeasureRelationshipAPI imr =
+                imrMap.get(source.getTectonicRegionType());
+        if (profile != null)
+            profile.setSource(source, imr);
+
+        // find the sites close enough to the source
+        int numNear = 0;
+        double minMagThresh = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < sites.length; i++) {
+            double distance;
+            if (profile == null)
+                distance = source.getMinDistance(sites[i]);
+            else {
+                long start = System.nanoTime();
+                distance = source.getMinDistance(sites[i]);
+                profile.countSource(System.nanoTime() - start,
+                        distance > maxDistance, source.getNumRuptures());
+            }
+            if (distance > maxDistance)
+                continue;
+            siteMagThresh[numNear] =
+                    includeMagDistFilter ? magDistCutoffTable
+                            .getMagThreshold(distance) : 0.0;
+            minMagThresh = Math.min(minMagThresh, siteMagThresh[numNear]);
+            nearSites[numNear++] = i;
+        }
+        if (numNear == 0)
+            return false;
+
+        boolean poissonSource = source.isSourcePoissonian();
+        int j, k;
+        if (!poissonSource) {
+            if (siteSourceExceedProbs.length < numNear)
+                siteSourceExceedProbs = new double[sites.length][numPoints];
+            for (j = 0; j < numNear; j++)
+                for (k = 0; k < numPoints; k++)
+                    siteSourceExceedProbs[j][k] = 0.0;
+        }
+
+        int numRuptures = source.getNumRuptures();
+        int[] order = getRuptureOrder(source, numRuptures);
+        for (int r = 0; r < numRuptures; r++) {
+
+            int n = order == null ? r : order[r];
+            EqkRupture rupture = source.getRupture(n);
+            double qkProb = ((ProbEqkRupture) rupture).getProbability();
+            double mag = rupture.getMag();
+            if (includeMagDistFilter) {
+                if (order == null)
+                    rupMags[n] = mag;
+                // no site uses this or (if in order) any later rupture
+                else if (mag < minMagThresh) {
+                    if (profile != null)
+                        profile.countMagDistSkips((long) (numRuptures - r)
+                                * numNear);
+                    break;
+                }
+            }
+            double logNonExceedProb = 0.0;
+            boolean rupSet = false;
+            for (j = 0; j < numNear; j++) {
+                if (includeMagDistFilter && mag < siteMagThresh[j]) {
+                    if (profile != null)
+                        profile.countMagDistSkips(1);
+                    continue;
+                }
+                // set the rupture only if some site uses it
+                if (!rupSet) {
+                    if (poissonSource) {
+                        // see HazardCurveCalculator.getHazardCurve() for this
+                        // check
+                        logNonExceedProb = Math.log(1.0 - qkProb);
+                        if (logNonExceedProb < -30.0)
+                            throw new RuntimeException(
+                                    "Error: The probability for this ProbEqkRupture ("
+                                            + qkProb
+                                            + ") is too high for a Possion source (~infinite number of events)");
+                    }
+                    setEqkRupture(imr, rupture);
+                    rupSet = true;
+                }
+                int i = nearSites[j];
+                imr.setSite(sites[i]);
+                if (!computeCondProbs(imr, poissonSource ? -logNonExceedProb
+                        : qkProb))
+                    continue;
+                if (poissonSource) {
+                    double[] logProbs = logNonExceedProbs[i];
+                    for (k = 0; k < numPoints; k++)
+                        logProbs[k] += logNonExceedProb * condProbs[k];
+                } else {
+                    double[] exceedProbs = siteSourceExceedProbs[j];
+                    for (k = 0; k < numPoints; k++)
+                        exceedProbs[k] += qkProb * condProbs[k];
+                }
+            }
+        }
+
+        if (includeMagDistFilter && order == null)
+            setRuptureOrder(source, numRuptures);
+        if (numPruned > 0) {
+            numRupturesPruned.addAndGet(numPruned);
+            numPruned = 0;
+        }
+
+        if (!poissonSource)
+            for (j = 0; j < numNear; j++) {
+                double[] logProbs = logNonExceedProbs[nearSites[j]];
+                for (k = 0; k < numPoints; k++)
+                    logProbs[k] += Math.log(1 - siteSourceExceedProbs[j][k]);
+            }
+
+        return true;
+    }
+
+    // sets the rupture in the IMR, timing it if profiled
+    private void setEqkRupture(ScalarIntensityMeasureRelationshipAPI imr,
+            EqkRupture rupture) {
+        if (profile == null) {
+            imr.setEqkRupture(rupture);
+            return;
+        }
+        long start = System.nanoTime();
+        imr.setEqkRupture(rupture);
+        profile.countRupture(System.nanoTime() - start);
+    }
+
+    // switches the IMR to the IMT (see setIntensityMeasures()); the period
+    // parameter only fires its change event if the period differs
+    private static void setIntensityMeasure(
+            ScalarIntensityMeasureRelationshipAPI imr,
+            ParameterAPI<Double> periodParam, IntensityMeasureType imt) {
+        imr.setIntensityMeasure(imt.getName());
+        if (periodParam != null && !Double.isNaN(imt.getPeriod()))
+            periodParam.setValue(imt.getPeriod());
+    }
+
+    /*
+     * This puts the IMR's exceedance probabilities in condProbs, timing the
+     * IMR if profiled, unless the rupture is pruned (see
+     * computeExceedProbs()), in which case it returns false. weight is the
+     * factor of the exceedance probabilities in the sum over ruptures.
+     */
+    private boolean computeCondProbs(
+            ScalarIntensityMeasureRelationshipAPI imr, double weight) {
+        DiscretizedFuncAPI func = computeCondProbs(imr, condProbFunc, weight);
+        if (func == null)
+            return false;
+        condProbFunc = (ArbitrarilyDiscretizedFunc) func;
+        getYValues(condProbFunc, condProbs);
+        return true;
+    }
+
+    // the IMR's exceedance probabilities at the IMLs of the function (see
+    // computeExceedProbs()), timed and counted if profiled, or null if the
+    // rupture is pruned
+    private DiscretizedFuncAPI computeCondProbs(
+            ScalarIntensityMeasureRelationshipAPI imr,
+            DiscretizedFuncAPI func, double weight) {
+        long start = profile == null ? 0 : System.nanoTime();
+        func = computeExceedProbs(imr, func, weight, pruneTolerance);
+        if (profile != null)
+            profile.countExceedProbs(System.nanoTime() - start);
+        if (func == null) {
+            if (profile != null)
+                profile.countPruned();
+            numPruned++;
+        }
+        return func;
+    }
+
+    /**
+     * This puts the IMR's exceedance probabilities at the IMLs (x values) of
+     * the function in its y values (as getExceedProbabilities() does), unless
+     * the tolerance is positive, the IMR is an AttenuationRelationship and the
+     * rupture set in it is negligible:
+     * the mean and standard deviation are computed first and if weight times
+     * the probability of exceeding the lowest IML (the greatest of the
+     * exceedance probabilities) is below the tolerance, the rupture cannot
+     * change the sum over ruptures by more than that at any IML, and null is
+     * returned with the function left as it was. Otherwise the mean and
+     * standard deviation are reused for the other IMLs, so looking at them
+     * first costs nothing.
+     * 
+     * @param imr
+     *            with the site and rupture set
+     * @param condProbFunc
+     *            IMLs in increasing order
+     * @param weight
+     *            -ln(1-qkProb) for a rupture of a Poisson source (the factor
+     *            of the exceedance probabilities in ln(non-exceedance
+     *            probability)), qkProb otherwise
+     * @param tolerance
+     *            ruptures that change the sum by less than this are pruned (0
+     *            for none)
+     * @return the function returned by the IMR, or null if the rupture was
+     *         pruned
+     */
+    static DiscretizedFuncAPI computeExceedProbs(
+            ScalarIntensityMeasureRelationshipAPI imr,
+            DiscretizedFuncAPI condProbFunc, double weight, double tolerance) {
+        if (tolerance <= 0 || !(imr instanceof AttenuationRelationship))
+            return imr.getExceedProbabilities(condProbFunc);
+        AttenuationRelationship attenRel = (AttenuationRelationship) imr;
+        double mean = attenRel.getMean();
+        double stdDev = attenRel.getStdDev();
+        double maxExceedProb =
+                attenRel.getExceedProbability(mean, stdDev, condProbFunc
+                        .getX(0));
+        if (weight * maxExceedProb < tolerance)
+            return null;
+        return attenRel.getExceedProbabilities(condProbFunc, mean, stdDev);
+    }
+
+    /*
+     * The rupture indices of the source by decreasing magnitude if the worker
+     * has seen it before, or null (after making room in rupMags for the
+     * magnitudes, which the loop over the ruptures records for
+     * setRuptureOrder()). Always null without a mag-dist cutoff.
+     *
+     * The order is assumed to hold as long as the source object does: a
+     * source whose ruptures change (e.g. one an ERF updates in place when its
+     * parameters change) must change its number of ruptures or the magnitude
+     * of its largest or smallest rupture, which are checked here, or the
+     * magnitude cutoff may skip ruptures it shouldn't.
+     */
+    private int[] getRuptureOrder(ProbEqkSource source, int numRuptures) {
+        if (!includeMagDistFilter)
+            return null;
+        RuptureOrder order = ruptureOrders.get(source);
+        if (order != null && order.isValid(source, numRuptures))
+            return order.indices;
+        if (rupMags.length < numRuptures)
+            rupMags = new double[numRuptures];
+        return null;
+    }
+
+    // records the order of the ruptures by decreasing magnitude (in rupMags)
+    private void setRuptureOrder(ProbEqkSource source, int numRuptures) {
+        ruptureOrders.put(source, new RuptureOrder(
+                getIndicesByDecreasingValue(rupMags, numRuptures), rupMags));
+    }
+
+    /*
+     * The rupture indices of a source by decreasing magnitude, with the
+     * magnitudes of its first and last ruptures in that order.
+     */
+    private static class RuptureOrder {
+
+        final int[] indices;
+        final double firstMag, lastMag;
+
+        RuptureOrder(int[] indices, double[] mags) {
+            this.indices = indices;
+            int num = indices.length;
+            firstMag = num == 0 ? Double.NaN : mags[indices[0]];
+            lastMag = num == 0 ? Double.NaN : mags[indices[num - 1]];
+        }
+
+        // whether the source still has the ruptures of the order
+        boolean isValid(ProbEqkSource source, int numRuptures) {
+            int num = indices.length;
+            if (num != numRuptures)
+                return false;
+            if (num == 0)
+                return true;
+            return source.getRupture(indices[0]).getMag() == firstMag
+                    && source.getRupture(indices[num - 1]).getMag() == lastMag;
+        }
+    }
+
+    /**
+     * The indices of the first num values, sorted by decreasing value (equal
+     * values keep their order).
+     *
+     * @param values
+     * @param num
+     * @return
+     */
+    static int[] getIndicesByDecreasingValue(final double[] values, int num) {
+        Integer[] indices = new Integer[num];
+        for (int n = 0; n < num; n++)
+            indices[n] = n;
+        Arrays.sort(indices, new Comparator<Integer>() {
+            public int compare(Integer n1, Integer n2) {
+                return Double.compare(values[n2], values[n1]);
+            }
+        });
+        int[] order = new int[num];
+        for (int n = 0; n < num; n++)
+            order[n] = indices[n];
+        return order;
+    }
+
+    /**
+     * This copies the y values of the function into the array in one pass
+     * over its points (indexed getY() walks the points of an
+     * ArbitrarilyDiscretizedFunc from the start each time).
+     *
+     * @param func
+     * @param yValues
+     *            array with at least func.getNum() elements
+     */
+    static void getYValues(DiscretizedFuncAPI func, double[] yValues) {
+        Iterator<?> it = func.getPointsIterator();
+        int k = 0;
+        while (it.hasNext())
+            yValues[k++] = ((DataPoint2D) it.next()).getY();
+    }
+}
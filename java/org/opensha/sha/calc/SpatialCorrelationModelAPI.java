@@ -0,0 +1,33 @@
+package org.opensha.sha.calc;
+
+/**
+ * <p>
+ * Title: SpatialCorrelationModelAPI
+ * </p>
+ * <p>
+ * Description: A model of the correlation of the intra-event residuals of
+ * ground motion at two sites as a function of the distance between them (see
+ * GroundMotionFieldCalculator.setCorrelationModel()). The correlation must be
+ * 1 at zero distance and be a valid (positive definite) correlation function
+ * in the plane, such as an exponential one.
+ * </p>
+ */
+public interface SpatialCorrelationModelAPI {
+
+    /**
+     * The correlation of the residuals at two sites.
+     *
+     * @param distance
+     *            between the sites (km)
+     * @return
+     */
+    public double getCorrelation(double distance);
+
+    /**
+     * The distance (km) beyond which the correlation is negligible (e.g. below
+     * 0.01), so more distant sites can be treated as independent.
+     *
+     * @return
+     */
+    public double getMaxDistance();
+}
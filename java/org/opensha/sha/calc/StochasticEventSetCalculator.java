@@ -0,0 +1,394 @@
+package org.opensha.sha.calc;
+
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.opensha.commons.data.Site;
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.commons.data.function.DiscretizedFuncAPI;
+import org.opensha.sha.earthquake.EqkRupForecastAPI;
+import org.opensha.sha.earthquake.ProbEqkRupture;
+import org.opensha.sha.earthquake.ProbEqkSource;
+import org.opensha.sha.imr.ScalarIntensityMeasureRelationshipAPI;
+import org.opensha.sha.util.IMRUtils;
+import org.opensha.sha.util.TRTUtils;
+import org.opensha.sha.util.TectonicRegionType;
+
+/**
+ * <p>
+ * Title: StochasticEventSetCalculator
+ * </p>
+ * <p>
+ * Description: This draws stochastic event sets from an ERF and computes
+ * average event-set hazard curves (as
+ * HazardCurveCalculator.getAverageEventSetHazardCurve() does) with the
+ * realizations run on a ForkJoinPool. The number of realizations, maximum
+ * source distance and number of threads are those of a HazardCurveCalculator.
+ * </p>
+ * <p>
+ * Random numbers come from SplittableRandom rather than Math.random(). Each
+ * realization has a seed made by mixing the master seed (setSeed()) with the
+ * realization index, and each source in a realization has its own generator
+ * seeded by mixing the realization seed with the source index, which draws one
+ * number per rupture. An event set is therefore fixed by the master seed and
+ * the realization index alone: it doesn't depend on which thread computes it,
+ * nor on which sources are skipped as too far from the site (so all sites see
+ * the same events). The curves of the realizations are summed in a tree whose
+ * shape depends only on the number of realizations, so the average curve is
+ * the same, bit-for-bit, for any number of threads.
+ * </p>
+ * <p>
+ * Events are passed to a StochasticEventVisitorAPI as they are drawn, with the
+ * number of times each rupture occurs, rather than collected as clones of the
+ * ruptures. Only Poisson sources are supported, as in
+ * ProbEqkSource.drawRandomEqkRuptures().
+ * </p>
+ * <p>
+ * Sources are only used by one thread at a time (computations for a source
+ * are synchronized on it); as for HazardMapCalculator, ERFs that build a new
+ * source each call to getSource(int) scale better.
+ * </p>
+ */
+public class StochasticEventSetCalculator {
+
+    protected final static String C = "StochasticEventSetCalculator";
+    protected final static boolean D = false;
+
+    /** Master seed used if setSeed() isn't called */
+    public final static long DEFAULT_SEED = 0;
+
+    // number of realizations computed by one task; fixed (rather than
+    // derived from the number of threads) so the order in which the curves
+    // are summed is the same for any number of threads
+    private final static int REALIZATIONS_PER_TASK = 8;
+
+    private final HazardCurveCalculator curveCalc;
+    private long seed = DEFAULT_SEED;
+    private volatile boolean calcStopped;
+
+    /**
+     * Creates a calculator with a default HazardCurveCalculator.
+     *
+     * @throws java.rmi.RemoteException
+     */
+    public StochasticEventSetCalculator() throws java.rmi.RemoteException {
+        this(new HazardCurveCalculator());
+    }
+
+    /**
+     * @param curveCalc
+     *            calculator whose settings (number of event-set
+     *            realizations, maximum source distance, number of threads)
+     *            are used
+     */
+    public StochasticEventSetCalculator(HazardCurveCalculator curveCalc) {
+        this.curveCalc = curveCalc;
+    }
+
+    public HazardCurveCalculator getHazardCurveCalculator() {
+        return curveCalc;
+    }
+
+    /**
+     * Sets the master seed from which the event sets of all realizations are
+     * drawn.
+     *
+     * @param seed
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * This draws the event set of the given realization (for the current
+     * master seed), passing each rupture that occurs to the visitor, source by
+     * source in index order. The same realization always gives the same
+     * events.
+     *
+     * @param eqkRupForecast
+     *            selected Earthquake rup forecast
+     * @param realization
+     *            index of the realization
+     * @param visitor
+     *            receives the events
+     */
+    public void drawEventSet(EqkRupForecastAPI eqkRupForecast,
+            int realization, StochasticEventVisitorAPI visitor) {
+        long realizationSeed = getRealizationSeed(realization);
+        int numSources = eqkRupForecast.getNumSources();
+        for (int s = 0; s < numSources; s++)
+            drawSourceEvents(s, eqkRupForecast.getSource(s), realizationSeed,
+                    visitor);
+    }
+
+    /**
+     * This computes the average event-set hazard curve using one IMR for all
+     * tectonic region types (see the imrMap version).
+     *
+     * @param hazFunction
+     *            : This function is where the hazard curve is placed
+     * @param site
+     *            : site object
+     * @param imr
+     *            : selected IMR object
+     * @param eqkRupForecast
+     *            : selected Earthquake rup forecast
+     * @return
+     * @throws java.rmi.RemoteException
+     */
+    public DiscretizedFuncAPI getAverageEventSetHazardCurve(
+            DiscretizedFuncAPI hazFunction, Site site,
+            ScalarIntensityMeasureRelationshipAPI imr,
+            EqkRupForecastAPI eqkRupForecast) throws java.rmi.RemoteException {
+        return getAverageEventSetHazardCurve(hazFunction, site, TRTUtils
+                .wrapInHashMap(imr), eqkRupForecast);
+    }
+
+    /**
+     * This computes the hazard curve averaged over the event sets of the
+     * HazardCurveCalculator's number of realizations. The curve of each event
+     * set is the probability that at least one of its events exceeds each IML
+     * (as in HazardCurveCalculator.getEventSetHazardCurve()); sources beyond
+     * the maximum distance of the site are skipped. The passed in discretized
+     * function supplies the x-axis values (the IMLs) for the computation, and
+     * the result (probability) is placed in the y-axis values of this
+     * function.
+     *
+     * @param hazFunction
+     *            : This function is where the hazard curve is placed
+     * @param site
+     *            : site object
+     * @param imrMap
+     *            : IMR for each tectonic region (see
+     *            HazardCurveCalculator.getHazardCurve()); these are cloned,
+     *            not modified
+     * @param eqkRupForecast
+     *            : selected Earthquake rup forecast
+     * @return
+     * @throws java.rmi.RemoteException
+     */
+    public
+            DiscretizedFuncAPI
+            getAverageEventSetHazardCurve(
+                    final DiscretizedFuncAPI hazFunction,
+                    final Site site,
+                    final Map<TectonicRegionType, ScalarIntensityMeasureRelationshipAPI> imrMap,
+                    EqkRupForecastAPI eqkRupForecast)
+                    throws java.rmi.RemoteException {
+
+        calcStopped = false;
+        final double maxDistance = curveCalc.getMaxSourceDistance();
+        int numRealizations = curveCalc.getNumStochEventSetRealizations();
+
+        // the sources within the maximum distance (the same for every
+        // realization)
+        int[] candidates =
+                curveCalc.getSourceIndices(eqkRupForecast, site.getLocation(),
+                        maxDistance);
+        int[] nearSources = new int[candidates.length];
+        int numNear = 0;
+        for (int s : candidates)
+            if (eqkRupForecast.getSource(s).getMinDistance(site) <= maxDistance)
+                nearSources[numNear++] = s;
+
+        // each pool thread makes its own worker the first time it needs one
+        ThreadLocal<EventSetWorker> workers =
+                new ThreadLocal<EventSetWorker>() {
+                    @Override
+                    protected EventSetWorker initialValue() {
+                        return new EventSetWorker(IMRUtils.cloneIMRMap(imrMap,
+                                curveCalc), hazFunction, site, maxDistance);
+                    }
+                };
+
+        double[] curveSums;
+        ForkJoinPool pool = new ForkJoinPool(curveCalc.getNumThreads());
+        try {
+            curveSums =
+                    pool.invoke(new RealizationRangeTask(workers,
+                            eqkRupForecast, nearSources, numNear, 0,
+                            numRealizations));
+        } finally {
+            pool.shutdown();
+        }
+
+        for (int k = 0; k < curveSums.length; k++)
+            hazFunction.set(k, curveSums[k] / numRealizations);
+
+        if (D)
+            System.out.println(C + ": " + numRealizations
+                    + " realizations, " + numNear + " sources");
+
+        return hazFunction;
+    }
+
+    /**
+     * This stops a calculation in progress; realizations not yet started are
+     * then skipped (so the returned curve is meaningless).
+     */
+    public void stopCalc() {
+        calcStopped = true;
+    }
+
+    /**
+     * The seed of the given realization, made from the master seed.
+     *
+     * @param realization
+     * @return
+     */
+    long getRealizationSeed(int realization) {
+        return SeedUtils.getSeed(seed, realization);
+    }
+
+    /*
+     * This draws the number of occurrences of each rupture of the source
+     * (with its own generator, seeded from the realization seed and the source
+     * index) and passes those that occur to the visitor.
+     */
+    private static void drawSourceEvents(int sourceIndex,
+            ProbEqkSource source, long realizationSeed,
+            StochasticEventVisitorAPI visitor) {
+        if (!source.isSourcePoissonian())
+            throw new RuntimeException(
+                    "drawSourceEvents(): Non poisson sources are not yet supported");
+        SplittableRandom random =
+                new SplittableRandom(SeedUtils.getSeed(realizationSeed,
+                        sourceIndex));
+        int numRuptures = source.getNumRuptures();
+        for (int n = 0; n < numRuptures; n++) {
+            ProbEqkRupture rupture = source.getRupture(n);
+            double expected = -Math.log(1 - rupture.getProbability());
+            int num =
+                    ProbEqkSource.drawPoissonNumber(expected, random
+                            .nextDouble());
+            if (num > 0)
+                visitor.visitEvent(sourceIndex, source, n, rupture, num);
+        }
+    }
+
+    /**
+     * The state one thread works with: its IMRs (with the site set) and the
+     * running sum, for the current realization, of ln(non-exceedance
+     * probability) at each IML.
+     */
+    private static class EventSetWorker implements StochasticEventVisitorAPI {
+
+        private final Map<TectonicRegionType, ScalarIntensityMeasureRelationshipAPI> imrMap;
+        private ArbitrarilyDiscretizedFunc condProbFunc;
+        private final double[] condProbs;
+        final double[] logNonExceedProbs;
+
+        EventSetWorker(
+                Map<TectonicRegionType, ScalarIntensityMeasureRelationshipAPI> imrMap,
+                DiscretizedFuncAPI imlFunc, Site site, double maxDistance) {
+            this.imrMap = imrMap;
+            condProbFunc = (ArbitrarilyDiscretizedFunc) imlFunc.deepClone();
+            condProbs = new double[condProbFunc.getNum()];
+            logNonExceedProbs = new double[condProbFunc.getNum()];
+            for (ScalarIntensityMeasureRelationshipAPI imr : imrMap.values()) {
+                imr.resetParameterEventListeners();
+                imr.setUserMaxDistance(maxDistance);
+                imr.setSite(site);
+            }
+        }
+
+        @Override
+        public void visitEvent(int sourceIndex, ProbEqkSource source,
+                int rupIndex, ProbEqkRupture rupture, int numOccurrences) {
+            ScalarIntensityMeasureRelationshipAPI imr =
+                    imrMap.get(source.getTectonicRegionType());
+            imr.setEqkRupture(rupture);
+            condProbFunc =
+                    (ArbitrarilyDiscretizedFunc) imr
+                            .getExceedProbabilities(condProbFunc);
+            SourceCalcWorker.getYValues(condProbFunc, condProbs);
+            // each occurrence is an independent chance of exceedance
+            for (int k = 0; k < condProbs.length; k++)
+                logNonExceedProbs[k] +=
+                        numOccurrences * Math.log1p(-condProbs[k]);
+        }
+    }
+
+    /**
+     * Computes the sum of the event-set hazard curves of realizations
+     * [firstRealization, lastRealization), splitting the range in half until
+     * it has no more than REALIZATIONS_PER_TASK realizations. A task holds
+     * the sources it fetches only while it runs, so each is fetched once per
+     * task rather than once per realization.
+     */
+    private class RealizationRangeTask extends RecursiveTask<double[]> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ThreadLocal<EventSetWorker> workers;
+        private final EqkRupForecastAPI eqkRupForecast;
+        private final int[] nearSources;
+        private final int numNear;
+        private final int firstRealization;
+        private final int lastRealization;
+
+        RealizationRangeTask(ThreadLocal<EventSetWorker> workers,
+                EqkRupForecastAPI eqkRupForecast, int[] nearSources,
+                int numNear, int firstRealization, int lastRealization) {
+            this.workers = workers;
+            this.eqkRupForecast = eqkRupForecast;
+            this.nearSources = nearSources;
+            this.numNear = numNear;
+            this.firstRealization = firstRealization;
+            this.lastRealization = lastRealization;
+        }
+
+        @Override
+        protected double[] compute() {
+            if (lastRealization - firstRealization <= REALIZATIONS_PER_TASK) {
+                EventSetWorker worker = workers.get();
+                double[] logProbs = worker.logNonExceedProbs;
+                double[] curveSums = new double[logProbs.length];
+                ProbEqkSource[] sources = new ProbEqkSource[numNear];
+                for (int r = firstRealization; r < lastRealization
+                        && !calcStopped; r++) {
+                    long realizationSeed = getRealizationSeed(r);
+                    for (int k = 0; k < logProbs.length; k++)
+                        logProbs[k] = 0.0;
+                    for (int i = 0; i < numNear; i++) {
+                        int s = nearSources[i];
+                        ProbEqkSource source = sources[i];
+                        if (source == null) {
+                            synchronized (eqkRupForecast) {
+                                source = eqkRupForecast.getSource(s);
+                            }
+                            sources[i] = source;
+                        }
+                        synchronized (source) {
+                            drawSourceEvents(s, source, realizationSeed,
+                                    worker);
+                        }
+                    }
+                    for (int k = 0; k < logProbs.length; k++)
+                        curveSums[k] += -Math.expm1(logProbs[k]);
+                }
+                return curveSums;
+            }
+
+            int middle = (firstRealization + lastRealization) >>> 1;
+            RealizationRangeTask left =
+                    new RealizationRangeTask(workers, eqkRupForecast,
+                            nearSources, numNear, firstRealization, middle);
+            RealizationRangeTask right =
+                    new RealizationRangeTask(workers, eqkRupForecast,
+                            nearSources, numNear, middle, lastRealization);
+            left.fork();
+            double[] rightSums = right.compute();
+            double[] curveSums = left.join();
+            for (int k = 0; k < curveSums.length; k++)
+                curveSums[k] += rightSums[k];
+            return curveSums;
+        }
+    }
+}
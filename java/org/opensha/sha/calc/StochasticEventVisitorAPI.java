@@ -0,0 +1,35 @@
+package org.opensha.sha.calc;
+
+import org.opensha.sha.earthquake.ProbEqkRupture;
+import org.opensha.sha.earthquake.ProbEqkSource;
+
+/**
+ * <p>
+ * Title: StochasticEventVisitorAPI
+ * </p>
+ * <p>
+ * Description: Receives the events of a stochastic event set as they are
+ * drawn by StochasticEventSetCalculator, instead of having them collected in
+ * a list. The rupture passed in belongs to the source (many sources reuse one
+ * rupture object for all their ruptures), so it is only valid during the call;
+ * clone it if it has to be kept.
+ * </p>
+ */
+public interface StochasticEventVisitorAPI {
+
+    /**
+     * Called for each rupture that occurs at least once in the event set.
+     *
+     * @param sourceIndex
+     *            index of the source in the ERF
+     * @param source
+     * @param rupIndex
+     *            index of the rupture in the source
+     * @param rupture
+     * @param numOccurrences
+     *            number of times the rupture occurs in the event set (at
+     *            least 1)
+     */
+    public void visitEvent(int sourceIndex, ProbEqkSource source,
+            int rupIndex, ProbEqkRupture rupture, int numOccurrences);
+}
@@ -0,0 +1,232 @@
+package org.opensha.sha.calc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.opensha.commons.data.Site;
+import org.opensha.commons.data.function.DiscretizedFuncAPI;
+import org.opensha.sha.earthquake.EqkRupForecastAPI;
+import org.opensha.sha.imr.ScalarIntensityMeasureRelationshipAPI;
+import org.opensha.sha.imr.param.IntensityMeasureParams.PeriodParam;
+import org.opensha.sha.imr.param.IntensityMeasureParams.SA_Param;
+import org.opensha.sha.util.TRTUtils;
+import org.opensha.sha.util.TectonicRegionType;
+
+/**
+ * <p>
+ * Title: UniformHazardSpectrumCalculator
+ * </p>
+ * <p>
+ * Description: This computes uniform hazard spectra at a site: the SA at each
+ * period with a given probability of exceedance. The curves of all the
+ * periods are computed in one pass over the ERF (see
+ * HazardCurveCalculator.getHazardCurves() for several IMTs): each rupture is
+ * set in the IMR (and its distances computed) once, and the IMR is then
+ * switched to each period in turn. The curves are kept as arrays, from which
+ * the spectra for any number of probabilities are read (see
+ * AdaptiveHazardMapCalculator.getIML_AtPOE()) without making a function for
+ * each curve.
+ * </p>
+ * <p>
+ * The same IMLs are used for every period, and the SA values are in the units
+ * of their x values (e.g. ln(g) for the usual curves in log space). The
+ * settings of the HazardCurveCalculator (maximum distance, mag-dist cutoff)
+ * apply.
+ * </p>
+ */
+public class UniformHazardSpectrumCalculator {
+
+    protected final static String C = "UniformHazardSpectrumCalculator";
+    protected final static boolean D = false;
+
+    private final HazardCurveCalculator curveCalc;
+
+    /**
+     * @param curveCalc
+     *            calculator of the curves, with its settings
+     */
+    public UniformHazardSpectrumCalculator(HazardCurveCalculator curveCalc) {
+        this.curveCalc = curveCalc;
+    }
+
+    /**
+     * This uses a new HazardCurveCalculator with the default settings.
+     *
+     * @throws java.rmi.RemoteException
+     */
+    public UniformHazardSpectrumCalculator() throws java.rmi.RemoteException {
+        this(new HazardCurveCalculator());
+    }
+
+    public HazardCurveCalculator getHazardCurveCalculator() {
+        return curveCalc;
+    }
+
+    /**
+     * The SA periods supported by all the IMRs, in increasing order.
+     *
+     * @param imrMap
+     * @return
+     */
+    public static double[] getSupportedPeriods(
+            Map<TectonicRegionType, ScalarIntensityMeasureRelationshipAPI> imrMap) {
+        ArrayList<Double> periods = null;
+        for (ScalarIntensityMeasureRelationshipAPI imr : imrMap.values()) {
+            if (!imr.isIntensityMeasureSupported(SA_Param.NAME))
+                throw new RuntimeException(C + ": " + imr.getName()
+                        + " doesn't support SA");
+            ArrayList<Double> imrPeriods =
+                    ((PeriodParam) imr.getParameter(PeriodParam.NAME))
+                            .getSupportedPeriods();
+            if (periods == null)
+                periods = new ArrayList<Double>(imrPeriods);
+            else
+                periods.retainAll(imrPeriods);
+        }
+        if (periods == null)
+            return new double[0];
+        double[] values = new double[periods.size()];
+        for (int i = 0; i < values.length; i++)
+            values[i] = periods.get(i);
+        Arrays.sort(values);
+        return values;
+    }
+
+    /**
+     * This computes the spectra at all the periods supported by the IMR (see
+     * the imrMap version).
+     *
+     * @param site
+     * @param imr
+     * @param eqkRupForecast
+     * @param imlFunc
+     * @param poes
+     * @return
+     * @throws java.rmi.RemoteException
+     */
+    public double[][] getUHS(Site site,
+            ScalarIntensityMeasureRelationshipAPI imr,
+            EqkRupForecastAPI eqkRupForecast, DiscretizedFuncAPI imlFunc,
+            double[] poes) throws java.rmi.RemoteException {
+        return getUHS(site, TRTUtils.wrapInHashMap(imr), eqkRupForecast,
+                imlFunc, poes);
+    }
+
+    /**
+     * This computes the spectra at all the periods supported by the IMRs (see
+     * getSupportedPeriods()).
+     *
+     * @param site
+     * @param imrMap
+     * @param eqkRupForecast
+     * @param imlFunc
+     * @param poes
+     * @return uhs[poe][period]
+     * @throws java.rmi.RemoteException
+     */
+    public
+            double[][]
+            getUHS(Site site,
+                    Map<TectonicRegionType, ScalarIntensityMeasureRelationshipAPI> imrMap,
+                    EqkRupForecastAPI eqkRupForecast,
+                    DiscretizedFuncAPI imlFunc, double[] poes)
+                    throws java.rmi.RemoteException {
+        return getUHS(site, imrMap, eqkRupForecast, imlFunc,
+                getSupportedPeriods(imrMap), poes);
+    }
+
+    /**
+     * This computes the spectra at the given periods, one for each
+     * probability of exceedance.
+     *
+     * @param site
+     * @param imrMap
+     *            IMR for each tectonic region (see
+     *            HazardCurveCalculator.getHazardCurve()); all must support the
+     *            periods
+     * @param eqkRupForecast
+     * @param imlFunc
+     *            function whose x values are the IMLs (only read)
+     * @param periods
+     * @param poes
+     *            probabilities of exceedance
+     * @return uhs[poe][period], the SA with each probability of exceedance at
+     *         each period
+     * @throws java.rmi.RemoteException
+     */
+    public
+            double[][]
+            getUHS(Site site,
+                    Map<TectonicRegionType, ScalarIntensityMeasureRelationshipAPI> imrMap,
+                    EqkRupForecastAPI eqkRupForecast,
+                    DiscretizedFuncAPI imlFunc, double[] periods, double[] poes)
+                    throws java.rmi.RemoteException {
+        double[][] curves =
+                getHazardCurves(site, imrMap, eqkRupForecast, imlFunc, periods);
+        return getUHS(getIMLs(imlFunc), curves, poes);
+    }
+
+    /**
+     * This computes the hazard curve of each period in one pass over the ERF.
+     *
+     * @param site
+     * @param imrMap
+     * @param eqkRupForecast
+     * @param imlFunc
+     *            function whose x values are the IMLs (only read)
+     * @param periods
+     * @return curves[period][iml], the probability of exceedance of each IML
+     * @throws java.rmi.RemoteException
+     */
+    public
+            double[][]
+            getHazardCurves(Site site,
+                    Map<TectonicRegionType, ScalarIntensityMeasureRelationshipAPI> imrMap,
+                    EqkRupForecastAPI eqkRupForecast,
+                    DiscretizedFuncAPI imlFunc, double[] periods)
+                    throws java.rmi.RemoteException {
+        IntensityMeasureType[] imts = new IntensityMeasureType[periods.length];
+        DiscretizedFuncAPI[] imlFuncs = new DiscretizedFuncAPI[periods.length];
+        for (int i = 0; i < periods.length; i++) {
+            imts[i] = IntensityMeasureType.SA(periods[i]);
+            imlFuncs[i] = imlFunc;
+        }
+        double[][] curves =
+                curveCalc.computeHazardCurves(imts, imlFuncs, site, imrMap,
+                        eqkRupForecast);
+        if (D)
+            System.out.println(C + ": computed " + periods.length
+                    + " curves");
+        return curves;
+    }
+
+    /**
+     * This reads the spectra for the given probabilities of exceedance from
+     * the curves of the periods.
+     *
+     * @param imls
+     *            in increasing order
+     * @param curves
+     *            [period][iml]
+     * @param poes
+     * @return uhs[poe][period]
+     */
+    public static double[][] getUHS(double[] imls, double[][] curves,
+            double[] poes) {
+        double[][] uhs = new double[poes.length][curves.length];
+        for (int p = 0; p < poes.length; p++)
+            for (int i = 0; i < curves.length; i++)
+                uhs[p][i] =
+                        AdaptiveHazardMapCalculator.getIML_AtPOE(imls,
+                                curves[i], poes[p]);
+        return uhs;
+    }
+
+    private static double[] getIMLs(DiscretizedFuncAPI imlFunc) {
+        double[] imls = new double[imlFunc.getNum()];
+        for (int k = 0; k < imls.length; k++)
+            imls[k] = imlFunc.getX(k);
+        return imls;
+    }
+}
@@ -0,0 +1,40 @@
+package org.opensha.sha.calc;
+
+import java.util.ListIterator;
+
+import org.opensha.commons.data.Site;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.param.ParameterAPI;
+
+/**
+ * <p>
+ * Title: UniformSiteParamsProvider
+ * </p>
+ * <p>
+ * Description: A SiteParamsProviderAPI that gives every node the same site
+ * parameters, taken from a template Site. The template's parameter objects
+ * are shared by all the sites returned, so they must not be changed while a
+ * calculation is running.
+ * </p>
+ */
+public class UniformSiteParamsProvider implements SiteParamsProviderAPI {
+
+    private final Site template;
+
+    /**
+     * @param template
+     *            site holding the parameters to use (its location is ignored)
+     */
+    public UniformSiteParamsProvider(Site template) {
+        this.template = template;
+    }
+
+    @Override
+    public Site getSite(int nodeIndex, Location location) {
+        Site site = new Site(location);
+        ListIterator<ParameterAPI<?>> it = template.getParametersIterator();
+        while (it.hasNext())
+            site.addParameter(it.next());
+        return site;
+    }
+}
@@ -0,0 +1,757 @@
+/*******************************************************************************
+ * Copyright 2009 OpenSHA.org in partnership with the Southern California
+ * Earthquake Center (SCEC, http://www.scec.org) at the University of Southern
+ * California and the UnitedStates Geological Survey (USGS; http://www.usgs.gov)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+
+package org.opensha.sha.calc.disaggregation;
+
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.opensha.commons.calc.GaussianDistCalc;
+import org.opensha.commons.data.Site;
+import org.opensha.commons.data.TimeSpan;
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.commons.data.function.DiscretizedFuncAPI;
+import org.opensha.commons.exceptions.ParameterException;
+import org.opensha.commons.param.ParameterAPI;
+import org.opensha.sha.calc.MagDistCutoffTable;
+import org.opensha.sha.earthquake.EqkRupForecast;
+import org.opensha.sha.earthquake.ProbEqkRupture;
+import org.opensha.sha.earthquake.ProbEqkSource;
+import org.opensha.sha.imr.ScalarIntensityMeasureRelationshipAPI;
+import org.opensha.sha.imr.param.OtherParams.SigmaTruncLevelParam;
+import org.opensha.sha.imr.param.OtherParams.SigmaTruncTypeParam;
+import org.opensha.sha.imr.param.PropagationEffectParams.DistanceRupParameter;
+import org.opensha.sha.util.TRTUtils;
+import org.opensha.sha.util.TectonicRegionType;
+
+/**
+ * <p>
+ * Title: DisaggregationCalculator
+ * </p>
+ * <p>
+ * Description: Disaggregates the rate of exceeding one or more IMLs at a site
+ * by magnitude, rupture distance and epsilon, and by source. The rate of
+ * exceedance contributed by a rupture is its mean annual rate times the
+ * probability (from the IMR) that it exceeds the IML; epsilon is
+ * (IML-mean)/stdDev for the rupture. All the IMLs are disaggregated in a
+ * single pass over the ruptures (the mean and standard deviation of each
+ * rupture are computed once and used for every IML), with the contributions
+ * added into bins preallocated as double[dist][mag][epsilon] for each IML and
+ * into one rate per source. Only the sources with the largest contributions
+ * (see setNumSourcestoShow()) are kept for the source list, which are picked
+ * as each source is done with a bounded heap rather than by sorting all
+ * sources, so each source is got from the ERF only once.
+ * </p>
+ * <p>
+ * As the number of ruptures isn't known until every source has been got from
+ * the ERF, the total number of ruptures reported while a disaggregation is in
+ * progress (getTotRuptures()) is estimated from the mean number of ruptures
+ * of the sources done so far; it is exact once the disaggregation is done.
+ * </p>
+ * <p>
+ * Magnitude and distance bins are given by the centre of the first bin, the
+ * number of bins and their width (or, for distance, the bin edges);
+ * contributions outside the bins are counted in the totals and means and
+ * reported as a percentage outside the bins. The epsilon bins are those of
+ * EPSILON_BIN_EDGES, with the first and last open-ended. Rates are per year
+ * for the duration of the ERF's time span (one year if it has none). The
+ * results for IML i are got with the methods taking an index; those of the
+ * API refer to the first IML.
+ * </p>
+ * <p>
+ * See Bazzurro and Cornell (1999, Bull. Seism. Soc. Am., 89, pp. 501-520) for
+ * a complete discussion of disaggregation.
+ * </p>
+ */
+public class DisaggregationCalculator extends UnicastRemoteObject implements
+        DisaggregationCalculatorAPI {
+
+    protected final static String C = "DisaggregationCalculator";
+    protected final static boolean D = false;
+
+    /** Default magnitude bins: centre of the first, number and width */
+    public final static double DEFAULT_MIN_MAG = 5.0;
+    public final static int DEFAULT_NUM_MAG = 8;
+    public final static double DEFAULT_DELTA_MAG = 0.5;
+
+    /** Default distance bins (km): centre of the first, number and width */
+    public final static double DEFAULT_MIN_DIST = 5.0;
+    public final static int DEFAULT_NUM_DIST = 11;
+    public final static double DEFAULT_DELTA_DIST = 10.0;
+
+    /**
+     * Inner edges of the epsilon bins; the first bin is below the first edge
+     * and the last above the last edge
+     */
+    public final static double[] EPSILON_BIN_EDGES =
+            { -2.0, -1.0, -0.5, 0.0, 0.5, 1.0, 2.0 };
+    public final static int NUM_E = EPSILON_BIN_EDGES.length + 1;
+
+    public final static int DEFAULT_NUM_SOURCES_TO_SHOW = 100;
+
+    private static final DecimalFormat f1 = new DecimalFormat("0.00");
+    private static final DecimalFormat fRate = new DecimalFormat("0.000E0");
+
+    // bin edges (numBins+1 of them, ascending)
+    private double[] magBinEdges;
+    private double[] distBinEdges;
+
+    private int numSourcesToShow = DEFAULT_NUM_SOURCES_TO_SHOW;
+    private boolean showDistances = false;
+    private double maxZAxis = Double.NaN;
+
+    // progress
+    private volatile int currRuptures, totRuptures;
+    private volatile boolean done;
+
+    // results, by IML
+    private double[] imls;
+    private double[][][][] pdf3D;
+    private double[] totalRates, outOfBinRates;
+    private double[] mBars, dBars, eBars;
+    private DisaggregationSourceRuptureInfo[][] topSources;
+
+    public DisaggregationCalculator() throws RemoteException {
+        setMagRange(DEFAULT_MIN_MAG, DEFAULT_NUM_MAG, DEFAULT_DELTA_MAG);
+        setDistanceRange(DEFAULT_MIN_DIST, DEFAULT_NUM_DIST,
+                DEFAULT_DELTA_DIST);
+    }
+
+    @Override
+    public void setMaxZAxisForPlot(double zMax) throws RemoteException {
+        maxZAxis = zMax;
+    }
+
+    @Override
+    public boolean disaggregate(double iml, Site site,
+            ScalarIntensityMeasureRelationshipAPI imr,
+            EqkRupForecast eqkRupForecast, double maxDist,
+            ArbitrarilyDiscretizedFunc magDistFilter) throws RemoteException {
+        return disaggregate(new double[] { iml }, site, TRTUtils
+                .wrapInHashMap(imr), eqkRupForecast, maxDist, magDistFilter)[0];
+    }
+
+    @Override
+    public
+            boolean
+            disaggregate(
+                    double iml,
+                    Site site,
+                    Map<TectonicRegionType, ScalarIntensityMeasureRelationshipAPI> imrMap,
+                    EqkRupForecast eqkRupForecast, double maxDist,
+                    ArbitrarilyDiscretizedFunc magDistFilter)
+                    throws RemoteException {
+        return disaggregate(new double[] { iml }, site, imrMap,
+                eqkRupForecast, maxDist, magDistFilter)[0];
+    }
+
+    /**
+     * This disaggregates the rates of exceeding each of the IMLs in one pass
+     * over the ruptures of the ERF.
+     *
+     * @param imls
+     *            the intensity measure levels to disaggregate (in the units
+     *            of the IMR, e.g. ln(PGA))
+     * @param site
+     *            : site parameter
+     * @param imrMap
+     *            : mapping of tectonic regions to IMR objects
+     * @param eqkRupForecast
+     *            : selected Earthquake rup forecast
+     * @param maxDist
+     *            sources farther than this (km) are ignored
+     * @param magDistFilter
+     *            mag-dist cutoff (distance on x-axis and mag on y-axis), or
+     *            null for none
+     * @return for each IML, whether any rupture contributes to its rate of
+     *         exceedance
+     * @throws RemoteException
+     */
+    public
+            boolean[]
+            disaggregate(
+                    double[] imls,
+                    Site site,
+                    Map<TectonicRegionType, ScalarIntensityMeasureRelationshipAPI> imrMap,
+                    EqkRupForecast eqkRupForecast, double maxDist,
+                    ArbitrarilyDiscretizedFunc magDistFilter)
+                    throws RemoteException {
+
+        done = false;
+        int numIMLs = imls.length;
+        int numMag = magBinEdges.length - 1;
+        int numDist = distBinEdges.length - 1;
+        int numSources = eqkRupForecast.getNumSources();
+
+        this.imls = imls.clone();
+        pdf3D = new double[numIMLs][numDist][numMag][NUM_E];
+        totalRates = new double[numIMLs];
+        outOfBinRates = new double[numIMLs];
+        mBars = new double[numIMLs];
+        dBars = new double[numIMLs];
+        eBars = new double[numIMLs];
+        double[] sourceRates = new double[numIMLs];
+        ArrayList<TopSourceHeap> topSourceHeaps =
+                new ArrayList<TopSourceHeap>(numIMLs);
+        for (int i = 0; i < numIMLs; i++)
+            topSourceHeaps.add(new TopSourceHeap(numSourcesToShow));
+
+        TimeSpan timeSpan = eqkRupForecast.getTimeSpan();
+        double duration = timeSpan == null ? 1.0 : timeSpan.getDuration();
+
+        for (ScalarIntensityMeasureRelationshipAPI imr : imrMap.values()) {
+            imr.resetParameterEventListeners();
+            imr.setUserMaxDistance(maxDist);
+            imr.setSite(site);
+        }
+
+        // used for the rupture distance when the IMR doesn't compute it
+        DistanceRupParameter distRupParam = new DistanceRupParameter(0.0);
+        MagDistCutoffTable magDistCutoffTable =
+                MagDistCutoffTable.getTable(magDistFilter);
+
+        currRuptures = 0;
+        totRuptures = 0;
+        int numRuptures = 0;
+        for (int s = 0; s < numSources; s++) {
+            ProbEqkSource source = eqkRupForecast.getSource(s);
+            int numSourceRups = source.getNumRuptures();
+            numRuptures += numSourceRups;
+            totRuptures =
+                    (int) Math.round((double) numRuptures * numSources
+                            / (s + 1));
+
+            double distance = source.getMinDistance(site);
+            if (distance > maxDist) {
+                currRuptures = numRuptures;
+                continue;
+            }
+            double magThresh =
+                    magDistCutoffTable == null ? 0.0 : magDistCutoffTable
+                            .getMagThreshold(distance);
+
+            ScalarIntensityMeasureRelationshipAPI imr =
+                    imrMap.get(source.getTectonicRegionType());
+            ParameterAPI<?> imrDistRupParam = getParameter(imr,
+                    DistanceRupParameter.NAME);
+            String truncType = (String) getParameterValue(imr,
+                    SigmaTruncTypeParam.NAME);
+            int numSidesTrunc =
+                    truncType == null
+                            || truncType
+                                    .equals(SigmaTruncTypeParam.SIGMA_TRUNC_TYPE_NONE) ? 0
+                            : truncType
+                                    .equals(SigmaTruncTypeParam.SIGMA_TRUNC_TYPE_1SIDED) ? 1
+                                    : 2;
+            double truncLevel =
+                    numSidesTrunc == 0 ? 0.0 : (Double) getParameterValue(imr,
+                            SigmaTruncLevelParam.NAME);
+
+            for (int n = 0; n < numSourceRups; n++, currRuptures++) {
+                ProbEqkRupture rupture = source.getRupture(n);
+                double mag = rupture.getMag();
+                if (mag < magThresh)
+                    continue;
+
+                imr.setEqkRupture(rupture);
+                double mean = imr.getMean();
+                double stdDev = imr.getStdDev();
+                double dist;
+                if (imrDistRupParam != null)
+                    dist = (Double) imrDistRupParam.getValue();
+                else {
+                    distRupParam.setValue(rupture, site);
+                    dist = (Double) distRupParam.getValue();
+                }
+                double rate = rupture.getMeanAnnualRate(duration);
+                int iMag = getBin(magBinEdges, mag);
+                int iDist = getBin(distBinEdges, dist);
+
+                for (int i = 0; i < numIMLs; i++) {
+                    double epsilon = (imls[i] - mean) / stdDev;
+                    double exceedProb =
+                            getExceedProb(epsilon, stdDev, numSidesTrunc,
+                                    truncLevel);
+                    if (exceedProb == 0.0)
+                        continue;
+                    double exceedRate = rate * exceedProb;
+                    totalRates[i] += exceedRate;
+                    mBars[i] += exceedRate * mag;
+                    dBars[i] += exceedRate * dist;
+                    eBars[i] += exceedRate * epsilon;
+                    sourceRates[i] += exceedRate;
+                    if (iMag < 0 || iDist < 0)
+                        outOfBinRates[i] += exceedRate;
+                    else
+                        pdf3D[i][iDist][iMag][getEpsilonBin(epsilon)] +=
+                                exceedRate;
+                }
+            }
+
+            for (int i = 0; i < numIMLs; i++) {
+                if (sourceRates[i] > 0)
+                    topSourceHeaps.get(i).offer(s, sourceRates[i], source,
+                            distance);
+                sourceRates[i] = 0;
+            }
+        }
+        totRuptures = numRuptures;
+
+        // convert the sums to means and percentages, and pick the top sources
+        boolean[] success = new boolean[numIMLs];
+        topSources = new DisaggregationSourceRuptureInfo[numIMLs][];
+        for (int i = 0; i < numIMLs; i++) {
+            double total = totalRates[i];
+            success[i] = total > 0;
+            if (success[i]) {
+                mBars[i] /= total;
+                dBars[i] /= total;
+                eBars[i] /= total;
+                for (double[][] magBins : pdf3D[i])
+                    for (double[] epsBins : magBins)
+                        for (int e = 0; e < NUM_E; e++)
+                            epsBins[e] *= 100.0 / total;
+            }
+            topSources[i] = topSourceHeaps.get(i).getSources();
+        }
+
+        done = true;
+        if (D)
+            System.out.println(C + ": total rates = "
+                    + Arrays.toString(totalRates));
+        return success;
+    }
+
+    /**
+     * This disaggregates, in one pass over the ruptures, the IMLs that have
+     * the given return periods on the hazard curve of the site (as computed
+     * with HazardCurveCalculator for the same site, IMRs and ERF). The
+     * probability of exceedance for a return period T is 1-exp(-t/T) for the
+     * duration t of the ERF's time span, and its IML is interpolated on the
+     * curve linearly in x and ln(y).
+     *
+     * @param returnPeriods
+     *            in years
+     * @param hazardCurve
+     *            IMLs (x) and probabilities of exceedance (y) at the site
+     * @param site
+     * @param imrMap
+     * @param eqkRupForecast
+     * @param maxDist
+     * @param magDistFilter
+     * @return for each return period, whether any rupture contributes to its
+     *         rate of exceedance
+     * @throws RemoteException
+     */
+    public
+            boolean[]
+            disaggregateAtReturnPeriods(
+                    double[] returnPeriods,
+                    DiscretizedFuncAPI hazardCurve,
+                    Site site,
+                    Map<TectonicRegionType, ScalarIntensityMeasureRelationshipAPI> imrMap,
+                    EqkRupForecast eqkRupForecast, double maxDist,
+                    ArbitrarilyDiscretizedFunc magDistFilter)
+                    throws RemoteException {
+        TimeSpan timeSpan = eqkRupForecast.getTimeSpan();
+        double duration = timeSpan == null ? 1.0 : timeSpan.getDuration();
+        double[] targetIMLs = new double[returnPeriods.length];
+        for (int i = 0; i < returnPeriods.length; i++)
+            targetIMLs[i] =
+                    getIMLAtProb(hazardCurve, -Math.expm1(-duration
+                            / returnPeriods[i]));
+        return disaggregate(targetIMLs, site, imrMap, eqkRupForecast, maxDist,
+                magDistFilter);
+    }
+
+    /**
+     * The number of IMLs disaggregated by the last call.
+     *
+     * @return
+     */
+    public int getNumIMLs() {
+        return imls == null ? 0 : imls.length;
+    }
+
+    /**
+     * The i-th IML disaggregated by the last call.
+     */
+    public double getIML(int i) {
+        return imls[i];
+    }
+
+    /**
+     * The total rate of exceedance of the i-th IML.
+     */
+    public double getTotalRate(int i) {
+        return totalRates[i];
+    }
+
+    /**
+     * The percentage of the rate of exceedance of the i-th IML in each bin,
+     * as pdf3D[dist][mag][epsilon].
+     */
+    public double[][][] getPdf3D(int i) {
+        return pdf3D[i];
+    }
+
+    /**
+     * The percentage of the rate of exceedance of the i-th IML from ruptures
+     * outside the magnitude and distance bins.
+     */
+    public double getPercentOutsideBins(int i) {
+        return totalRates[i] > 0 ? 100.0 * outOfBinRates[i] / totalRates[i]
+                : 0.0;
+    }
+
+    public double getMbar(int i) {
+        return mBars[i];
+    }
+
+    public double getDbar(int i) {
+        return dBars[i];
+    }
+
+    public double getEbar(int i) {
+        return eBars[i];
+    }
+
+    /**
+     * The sources contributing most to the rate of exceedance of the i-th
+     * IML, largest first (at most the number set with setNumSourcestoShow()).
+     * The rate of each is its rate of exceedance.
+     */
+    public DisaggregationSourceRuptureInfo[] getTopSources(int i) {
+        return topSources[i].clone();
+    }
+
+    /**
+     * The data needed to plot the disaggregation of the i-th IML.
+     */
+    public DisaggregationPlotData getDisaggPlotData(int i) {
+        int numMag = magBinEdges.length - 1;
+        int numDist = distBinEdges.length - 1;
+        double[] magCenters = new double[numMag];
+        for (int m = 0; m < numMag; m++)
+            magCenters[m] = (magBinEdges[m] + magBinEdges[m + 1]) / 2;
+        double[] distCenters = new double[numDist];
+        for (int d = 0; d < numDist; d++)
+            distCenters[d] = (distBinEdges[d] + distBinEdges[d + 1]) / 2;
+
+        double zMax = maxZAxis;
+        if (Double.isNaN(zMax)) {
+            // the largest total over epsilon of a mag-dist bin
+            zMax = 0;
+            for (double[][] magBins : pdf3D[i])
+                for (double[] epsBins : magBins) {
+                    double sum = 0;
+                    for (double p : epsBins)
+                        sum += p;
+                    zMax = Math.max(zMax, sum);
+                }
+        }
+        return new DisaggregationPlotData(magCenters, magBinEdges.clone(),
+                distCenters, distBinEdges.clone(), zMax, NUM_E, pdf3D[i]);
+    }
+
+    @Override
+    public void setNumSourcestoShow(int numSources) throws RemoteException {
+        numSourcesToShow = numSources;
+    }
+
+    @Override
+    public void setShowDistances(boolean showDistances)
+            throws RemoteException {
+        this.showDistances = showDistances;
+    }
+
+    @Override
+    public String getDisaggregationSourceInfo() throws RemoteException {
+        return getDisaggregationSourceInfo(0);
+    }
+
+    /**
+     * The source list (see the API) for the i-th IML.
+     */
+    public String getDisaggregationSourceInfo(int i) {
+        StringBuffer info = new StringBuffer();
+        info.append("Source#\tRate\t% Contribution\t");
+        if (showDistances)
+            info.append("Distance\t");
+        info.append("Source Name\n");
+        DisaggregationSourceRuptureInfo[] sources = topSources[i];
+        for (int j = 0; j < sources.length; j++) {
+            info.append(sources[j].getId() + "\t"
+                    + fRate.format(sources[j].getRate()) + "\t"
+                    + f1.format(100 * sources[j].getRate() / totalRates[i])
+                    + "\t");
+            if (showDistances)
+                info.append(f1.format(sources[j].getDistance()) + "\t");
+            info.append(sources[j].getName() + "\n");
+        }
+        return info.toString();
+    }
+
+    @Override
+    public int getCurrRuptures() throws RemoteException {
+        return currRuptures;
+    }
+
+    @Override
+    public int getTotRuptures() throws RemoteException {
+        return totRuptures;
+    }
+
+    @Override
+    public boolean done() throws RemoteException {
+        return done;
+    }
+
+    /**
+     * Sets uniform magnitude bins.
+     *
+     * @param minMag
+     *            centre of the first bin
+     * @param numMags
+     * @param deltaMag
+     *            width of the bins
+     */
+    @Override
+    public void setMagRange(double minMag, int numMags, double deltaMag)
+            throws RemoteException {
+        magBinEdges = getUniformBinEdges(minMag, numMags, deltaMag);
+    }
+
+    /**
+     * Sets uniform distance bins.
+     *
+     * @param minDist
+     *            centre of the first bin
+     * @param numDist
+     * @param deltaDist
+     *            width of the bins
+     */
+    @Override
+    public void setDistanceRange(double minDist, int numDist, double deltaDist)
+            throws RemoteException {
+        distBinEdges = getUniformBinEdges(minDist, numDist, deltaDist);
+    }
+
+    @Override
+    public void setDistanceRange(double[] distBinEdges) throws RemoteException {
+        for (int d = 1; d < distBinEdges.length; d++)
+            if (distBinEdges[d] <= distBinEdges[d - 1])
+                throw new RuntimeException(
+                        "distance bin edges must be in increasing order");
+        this.distBinEdges = distBinEdges.clone();
+    }
+
+    @Override
+    public String getBinData() throws RemoteException {
+        return getBinData(0);
+    }
+
+    /**
+     * The percentage in each bin (see the API) for the i-th IML: one line per
+     * distance and magnitude bin, with the bin centres followed by the
+     * percentage in each epsilon bin.
+     */
+    public String getBinData(int i) {
+        StringBuffer data = new StringBuffer("Dist\tMag");
+        for (int e = 0; e < NUM_E; e++)
+            data.append("\t" + getEpsilonBinLabel(e));
+        data.append("\n");
+        for (int d = 0; d < distBinEdges.length - 1; d++)
+            for (int m = 0; m < magBinEdges.length - 1; m++) {
+                data.append(f1.format((distBinEdges[d] + distBinEdges[d + 1]) / 2)
+                        + "\t"
+                        + f1.format((magBinEdges[m] + magBinEdges[m + 1]) / 2));
+                for (int e = 0; e < NUM_E; e++)
+                    data.append("\t" + f1.format(pdf3D[i][d][m][e]));
+                data.append("\n");
+            }
+        return data.toString();
+    }
+
+    @Override
+    public String getMeanAndModeInfo() throws RemoteException {
+        return getMeanAndModeInfo(0);
+    }
+
+    /**
+     * The means, the modal bin and the total rate for the i-th IML.
+     */
+    public String getMeanAndModeInfo(int i) {
+        int modeDist = 0, modeMag = 0, modeEps = 0;
+        double[][][] pdf = pdf3D[i];
+        for (int d = 0; d < pdf.length; d++)
+            for (int m = 0; m < pdf[d].length; m++)
+                for (int e = 0; e < NUM_E; e++)
+                    if (pdf[d][m][e] > pdf[modeDist][modeMag][modeEps]) {
+                        modeDist = d;
+                        modeMag = m;
+                        modeEps = e;
+                    }
+        return "Disaggregation Results for IML = " + imls[i] + "\n"
+                + "\n  Mbar = " + f1.format(mBars[i])
+                + "\n  Dbar = " + f1.format(dBars[i])
+                + "\n  Ebar = " + f1.format(eBars[i])
+                + "\n\n  Mode (largest bin): M = "
+                + f1.format((magBinEdges[modeMag] + magBinEdges[modeMag + 1]) / 2)
+                + "; D = "
+                + f1.format((distBinEdges[modeDist] + distBinEdges[modeDist + 1]) / 2)
+                + "; Epsilon bin = " + getEpsilonBinLabel(modeEps)
+                + " (" + f1.format(pdf[modeDist][modeMag][modeEps]) + "%)"
+                + "\n\n  Total rate of exceedance = " + fRate.format(totalRates[i])
+                + "\n  Percent outside the mag-dist bins = "
+                + f1.format(getPercentOutsideBins(i)) + "\n";
+    }
+
+    // the probability of exceedance for the standardized IML, with the
+    // truncation of the IMR (as in AttenuationRelationship)
+    private static double getExceedProb(double epsilon, double stdDev,
+            int numSidesTrunc, double truncLevel) {
+        if (stdDev == 0)
+            return epsilon > 0 ? 0.0 : 1.0;
+        if (numSidesTrunc == 0)
+            return GaussianDistCalc.getExceedProb(epsilon);
+        return GaussianDistCalc.getExceedProb(epsilon, numSidesTrunc,
+                truncLevel);
+    }
+
+    // the IML at which the curve reaches the probability, interpolating
+    // linearly in x and ln(y)
+    private static double getIMLAtProb(DiscretizedFuncAPI curve, double prob) {
+        int num = curve.getNum();
+        double x0 = curve.getX(0), y0 = curve.getY(0);
+        if (prob >= y0)
+            return x0;
+        for (int k = 1; k < num; k++) {
+            double x1 = curve.getX(k), y1 = curve.getY(k);
+            if (prob >= y1) {
+                if (y1 <= 0)
+                    return x0;
+                return x0 + (x1 - x0) * Math.log(prob / y0)
+                        / Math.log(y1 / y0);
+            }
+            x0 = x1;
+            y0 = y1;
+        }
+        throw new RuntimeException("Probability " + prob
+                + " is below the hazard curve");
+    }
+
+    // the bin in which the value falls, or -1 if outside all bins
+    private static int getBin(double[] edges, double value) {
+        if (!(value >= edges[0]) || value >= edges[edges.length - 1])
+            return -1;
+        int index = Arrays.binarySearch(edges, value);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    private static int getEpsilonBin(double epsilon) {
+        int e = 0;
+        while (e < EPSILON_BIN_EDGES.length && epsilon >= EPSILON_BIN_EDGES[e])
+            e++;
+        return e;
+    }
+
+    private static String getEpsilonBinLabel(int e) {
+        if (e == 0)
+            return "e<" + EPSILON_BIN_EDGES[0];
+        if (e == NUM_E - 1)
+            return "e>=" + EPSILON_BIN_EDGES[NUM_E - 2];
+        return EPSILON_BIN_EDGES[e - 1] + "<=e<" + EPSILON_BIN_EDGES[e];
+    }
+
+    private static double[] getUniformBinEdges(double firstCentre,
+            int numBins, double delta) {
+        double[] edges = new double[numBins + 1];
+        for (int i = 0; i <= numBins; i++)
+            edges[i] = firstCentre + (i - 0.5) * delta;
+        return edges;
+    }
+
+    // the named parameter of the IMR, or null if it has none
+    private static ParameterAPI<?> getParameter(
+            ScalarIntensityMeasureRelationshipAPI imr, String name) {
+        try {
+            return imr.getParameter(name);
+        } catch (ParameterException e) {
+            return null;
+        }
+    }
+
+    private static Object getParameterValue(
+            ScalarIntensityMeasureRelationshipAPI imr, String name) {
+        ParameterAPI<?> param = getParameter(imr, name);
+        return param == null ? null : param.getValue();
+    }
+
+    /*
+     * The numSourcesToShow sources with the largest rates offered so far, in
+     * a min-heap of that size (so the smallest of those kept is replaced as
+     * larger ones are offered).
+     */
+    private static class TopSourceHeap {
+
+        private final int maxSize;
+        private final PriorityQueue<DisaggregationSourceRuptureInfo> heap;
+
+        TopSourceHeap(int maxSize) {
+            this.maxSize = Math.max(0, maxSize);
+            heap =
+                    new PriorityQueue<DisaggregationSourceRuptureInfo>(Math
+                            .max(1, maxSize),
+                            new Comparator<DisaggregationSourceRuptureInfo>() {
+                                public int compare(
+                                        DisaggregationSourceRuptureInfo s1,
+                                        DisaggregationSourceRuptureInfo s2) {
+                                    return Double.compare(s1.getRate(), s2
+                                            .getRate());
+                                }
+                            });
+        }
+
+        void offer(int id, double rate, ProbEqkSource source, double distance) {
+            if (heap.size() == maxSize) {
+                if (maxSize == 0 || rate <= heap.peek().getRate())
+                    return;
+                heap.poll();
+            }
+            heap.add(new DisaggregationSourceRuptureInfo(source.getName(), 0,
+                    rate, id, 0, distance, source));
+        }
+
+        // the sources kept, largest rate first
+        DisaggregationSourceRuptureInfo[] getSources() {
+            DisaggregationSourceRuptureInfo[] sources =
+                    heap.toArray(new DisaggregationSourceRuptureInfo[heap
+                            .size()]);
+            Arrays.sort(sources, Collections.reverseOrder(heap.comparator()));
+            return sources;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package org.opensha.sha.calc.logicTree;
+
+/**
+ * <p>
+ * Title: CurveStatistics
+ * </p>
+ * <p>
+ * Description: Weighted statistics (mean and fractiles) of the curves of the
+ * end branches of a logic tree, accumulated as the curves are added so that
+ * the curves themselves needn't be kept. The mean is exact. For the
+ * fractiles, the values added at each IML are kept as a sorted list of at most
+ * maxCentroids weighted centroids: while fewer values than that have been
+ * added each centroid is a single value and the fractiles are exact; beyond
+ * that the two neighbouring centroids closest in value are merged (into their
+ * weighted mean) for each new value, so memory is bounded whatever the number
+ * of branches and the fractiles become approximate (each is then a centroid,
+ * lying within the range of the values merged into it).
+ * </p>
+ * <p>
+ * The fractile at f is the smallest value (centroid) at which the cumulative
+ * weight, in order of increasing value, reaches f times the total weight.
+ * </p>
+ */
+public class CurveStatistics {
+
+    protected final static String C = "CurveStatistics";
+
+    /** Default greatest number of centroids kept per IML */
+    public final static int DEFAULT_MAX_CENTROIDS = 100;
+
+    private final int numIMLs;
+    private final int maxCentroids;
+
+    private double totalWeight;
+    private int numCurves;
+    private final double[] weightedSums;
+
+    // the centroids of each IML in increasing order of value
+    private final double[][] values;
+    private final double[][] weights;
+    private int numCentroids;
+
+    /**
+     * @param numIMLs
+     *            number of values of each curve
+     */
+    public CurveStatistics(int numIMLs) {
+        this(numIMLs, DEFAULT_MAX_CENTROIDS);
+    }
+
+    /**
+     * @param numIMLs
+     *            number of values of each curve
+     * @param maxCentroids
+     *            the greatest number of centroids kept per IML (the fractiles
+     *            are exact for up to this many curves)
+     */
+    public CurveStatistics(int numIMLs, int maxCentroids) {
+        if (maxCentroids < 2)
+            throw new RuntimeException(C + ": at least 2 centroids are needed");
+        this.numIMLs = numIMLs;
+        this.maxCentroids = maxCentroids;
+        weightedSums = new double[numIMLs];
+        values = new double[numIMLs][maxCentroids + 1];
+        weights = new double[numIMLs][maxCentroids + 1];
+    }
+
+    /**
+     * This adds the curve of an end branch.
+     *
+     * @param curve
+     *            the values at each IML
+     * @param weight
+     *            the weight of the branch
+     */
+    public void add(double[] curve, double weight) {
+        if (curve.length != numIMLs)
+            throw new RuntimeException(C + ": curve has " + curve.length
+                    + " values, not " + numIMLs);
+        for (int k = 0; k < numIMLs; k++) {
+            weightedSums[k] += weight * curve[k];
+            insert(values[k], weights[k], curve[k], weight);
+        }
+        numCentroids++;
+        if (numCentroids > maxCentroids) {
+            for (int k = 0; k < numIMLs; k++)
+                mergeClosest(values[k], weights[k]);
+            numCentroids--;
+        }
+        totalWeight += weight;
+        numCurves++;
+    }
+
+    /**
+     * The number of curves added.
+     */
+    public int getNumCurves() {
+        return numCurves;
+    }
+
+    /**
+     * The sum of the weights of the curves added.
+     */
+    public double getTotalWeight() {
+        return totalWeight;
+    }
+
+    /**
+     * Whether the fractiles are exact (no more curves have been added than
+     * the centroids kept).
+     */
+    public boolean isExact() {
+        return numCurves <= maxCentroids;
+    }
+
+    /**
+     * The weighted mean curve.
+     */
+    public double[] getMean() {
+        double[] mean = new double[numIMLs];
+        for (int k = 0; k < numIMLs; k++)
+            mean[k] = weightedSums[k] / totalWeight;
+        return mean;
+    }
+
+    /**
+     * The weighted fractile curve.
+     *
+     * @param fraction
+     *            between 0 and 1 (e.g. 0.5 for the median)
+     * @return
+     */
+    public double[] getFractile(double fraction) {
+        if (fraction < 0 || fraction > 1)
+            throw new RuntimeException(C + ": fraction " + fraction
+                    + " is not between 0 and 1");
+        if (numCurves == 0)
+            throw new RuntimeException(C + ": no curves have been added");
+        double target = fraction * totalWeight * (1 - 1e-12);
+        double[] fractile = new double[numIMLs];
+        for (int k = 0; k < numIMLs; k++) {
+            double cumWeight = 0;
+            int c = 0;
+            while (c < numCentroids - 1
+                    && (cumWeight += weights[k][c]) < target)
+                c++;
+            fractile[k] = values[k][c];
+        }
+        return fractile;
+    }
+
+    // inserts a value into the sorted centroids (which have room for one more)
+    private void insert(double[] values, double[] weights, double value,
+            double weight) {
+        int c = numCentroids;
+        while (c > 0 && values[c - 1] > value) {
+            values[c] = values[c - 1];
+            weights[c] = weights[c - 1];
+            c--;
+        }
+        values[c] = value;
+        weights[c] = weight;
+    }
+
+    // merges the two neighbouring centroids closest in value
+    private void mergeClosest(double[] values, double[] weights) {
+        int closest = 0;
+        for (int c = 1; c < numCentroids - 1; c++)
+            if (values[c + 1] - values[c] < values[closest + 1]
+                    - values[closest])
+                closest = c;
+        double weight = weights[closest] + weights[closest + 1];
+        if (weight > 0)
+            values[closest] =
+                    (weights[closest] * values[closest] + weights[closest + 1]
+                            * values[closest + 1])
+                            / weight;
+        weights[closest] = weight;
+        for (int c = closest + 1; c < numCentroids - 1; c++) {
+            values[c] = values[c + 1];
+            weights[c] = weights[c + 1];
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package org.opensha.sha.calc.logicTree;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import org.opensha.commons.geo.Location;
+import org.opensha.sha.earthquake.FocalMechanism;
+import org.opensha.sha.earthquake.griddedForecast.HypoMagFreqDistAtLoc;
+import org.opensha.sha.earthquake.griddedForecast.MagFreqDistsForFocalMechs;
+import org.opensha.sha.earthquake.rupForecastImpl.GEM1.SourceModelFileParser;
+import org.opensha.sha.earthquake.rupForecastImpl.GEM1.SourceData.GEMAreaSourceData;
+import org.opensha.sha.earthquake.rupForecastImpl.GEM1.SourceData.GEMFaultSourceData;
+import org.opensha.sha.earthquake.rupForecastImpl.GEM1.SourceData.GEMPointSourceData;
+import org.opensha.sha.earthquake.rupForecastImpl.GEM1.SourceData.GEMSourceData;
+import org.opensha.sha.earthquake.rupForecastImpl.GEM1.SourceData.GEMSubductionFaultSourceData;
+import org.opensha.sha.magdist.GutenbergRichterMagFreqDist;
+import org.opensha.sha.magdist.IncrementalMagFreqDist;
+
+/**
+ * <p>
+ * Title: ErfLogicTree
+ * </p>
+ * <p>
+ * Description: The ERF logic tree of an ErfLogicTree.inp file: a series of
+ * branching levels (each starting with the keyword "BranchingLevel" followed
+ * by its number, a label and the branches it applies to, "NONE" for the first
+ * level and "ALL" for the others), each with one branch set (keyword
+ * "BranchSet"). A branch set is either "inputfile", followed by a line of
+ * source model file names, a line of descriptors and a line of weights, or
+ * "rule", followed by the name of the rule, a line of values and a line of
+ * weights. The supported rules change the Gutenberg-Richter MFDs of all the
+ * sources keeping their total moment rate: RULE_MMAX_GR_RELATIVE adds the
+ * value to the maximum magnitude and RULE_B_GR_RELATIVE adds it to the b
+ * value.
+ * </p>
+ * <p>
+ * Source model file names are relative to the directory of the logic tree
+ * file; if there is no such file, the file of the same name in that directory
+ * is used.
+ * </p>
+ */
+public class ErfLogicTree {
+
+    protected final static String C = "ErfLogicTree";
+    protected final static boolean D = false;
+
+    public final static String BRANCHING_LEVEL = "BranchingLevel";
+    public final static String BRANCH_SET = "BranchSet";
+    public final static String APPLIES_TO_NONE = "NONE";
+    public final static String APPLIES_TO_ALL = "ALL";
+    public final static String INPUT_FILE = "inputfile";
+    public final static String RULE = "rule";
+
+    /** Rule adding its value to the maximum magnitude of GR MFDs */
+    public final static String RULE_MMAX_GR_RELATIVE = "mMaxGRRelative";
+    /** Rule adding its value to the b value of GR MFDs */
+    public final static String RULE_B_GR_RELATIVE = "bGRRelative";
+
+    private final ArrayList<Level> levels = new ArrayList<Level>();
+
+    // a branching level with its branch set
+    private static class Level {
+        String label;
+        String ruleName; // null for an input file level
+        File[] files;
+        String[] descriptors;
+        double[] values;
+        double[] weights;
+    }
+
+    /**
+     * This reads the logic tree from a file.
+     *
+     * @param file
+     */
+    public ErfLogicTree(File file) {
+        List<String> lines = SourceModelFileParser.readLines(file);
+        File dir = file.getAbsoluteFile().getParentFile();
+        int i = 0;
+        while (i < lines.size()) {
+            if (!lines.get(i).equals(BRANCHING_LEVEL))
+                throw new RuntimeException(C + ": expected " + BRANCHING_LEVEL
+                        + " but found " + lines.get(i) + " in " + file);
+            if (i + 9 > lines.size())
+                throw new RuntimeException(C + ": unexpected end of " + file);
+            int number = Integer.parseInt(lines.get(i + 1));
+            if (number != levels.size() + 1)
+                throw new RuntimeException(C + ": branching level " + number
+                        + " is out of order in " + file);
+            Level level = new Level();
+            level.label = lines.get(i + 2);
+            String appliesTo = lines.get(i + 3);
+            if (!appliesTo.equals(levels.isEmpty() ? APPLIES_TO_NONE
+                    : APPLIES_TO_ALL))
+                throw new RuntimeException(C + ": branching level " + number
+                        + " applies to " + appliesTo + "; only "
+                        + APPLIES_TO_NONE + " (for the first level) and "
+                        + APPLIES_TO_ALL + " are supported");
+            if (!lines.get(i + 4).equals(BRANCH_SET))
+                throw new RuntimeException(C + ": expected " + BRANCH_SET
+                        + " in branching level " + number);
+            String type = lines.get(i + 5);
+            String[] names = lines.get(i + 6).split("\\s+");
+            String[] values = lines.get(i + 7).split("\\s+");
+            if (type.equals(INPUT_FILE)) {
+                if (names.length != values.length)
+                    throw new RuntimeException(C + ": branching level "
+                            + number + " has " + names.length
+                            + " files but " + values.length + " descriptors");
+                level.files = new File[names.length];
+                for (int j = 0; j < names.length; j++)
+                    level.files[j] = resolve(dir, names[j]);
+                level.descriptors = values;
+                level.weights = parseDoubles(lines.get(i + 8));
+                i += 9;
+            } else if (type.equals(RULE)) {
+                if (names.length != 1
+                        || !(names[0].equals(RULE_MMAX_GR_RELATIVE) || names[0]
+                                .equals(RULE_B_GR_RELATIVE)))
+                    throw new RuntimeException(C + ": unsupported rule "
+                            + lines.get(i + 6));
+                if (levels.isEmpty())
+                    throw new RuntimeException(C
+                            + ": the first branching level must give the"
+                            + " source models");
+                level.ruleName = names[0];
+                level.values = parseDoubles(lines.get(i + 7));
+                level.weights = parseDoubles(lines.get(i + 8));
+                level.descriptors = new String[level.values.length];
+                for (int j = 0; j < level.values.length; j++)
+                    level.descriptors[j] =
+                            level.ruleName + "_" + level.values[j];
+                i += 9;
+            } else
+                throw new RuntimeException(C + ": unknown branch set type "
+                        + type);
+            if (level.descriptors.length != level.weights.length)
+                throw new RuntimeException(C + ": branching level " + number
+                        + " has " + level.descriptors.length + " branches but "
+                        + level.weights.length + " weights");
+            LogicTreeBranch.checkWeights(level.weights, "branching level "
+                    + number);
+            if (i < lines.size() && lines.get(i).equals(BRANCH_SET))
+                throw new RuntimeException(C + ": only one " + BRANCH_SET
+                        + " per branching level is supported");
+            levels.add(level);
+        }
+        if (levels.isEmpty() || levels.get(0).ruleName != null)
+            throw new RuntimeException(C + ": the first branching level of "
+                    + file + " must give the source models");
+        for (int l = 1; l < levels.size(); l++)
+            if (levels.get(l).ruleName == null)
+                throw new RuntimeException(C + ": only the first branching"
+                        + " level can give source models");
+    }
+
+    public int getNumBranchingLevels() {
+        return levels.size();
+    }
+
+    public String getBranchingLevelLabel(int level) {
+        return levels.get(level).label;
+    }
+
+    public int getNumBranches(int level) {
+        return levels.get(level).weights.length;
+    }
+
+    public double getBranchWeight(int level, int branch) {
+        return levels.get(level).weights[branch];
+    }
+
+    /**
+     * The descriptor of a branch (for a rule, its name and value).
+     */
+    public String getBranchDescriptor(int level, int branch) {
+        return levels.get(level).descriptors[branch];
+    }
+
+    /**
+     * The source model files of the first branching level.
+     */
+    public File[] getSourceModelFiles() {
+        return levels.get(0).files.clone();
+    }
+
+    /**
+     * The name of the rule of a branching level (null for the first one).
+     */
+    public String getRuleName(int level) {
+        return levels.get(level).ruleName;
+    }
+
+    /**
+     * The value of the rule of a branch.
+     */
+    public double getRuleValue(int level, int branch) {
+        return levels.get(level).values[branch];
+    }
+
+    /**
+     * All the end branches (the choice for level 0 being the source model).
+     */
+    public ArrayList<LogicTreeBranch> getEndBranches() {
+        return LogicTreeBranch.enumerate(getWeights());
+    }
+
+    /**
+     * This draws an end branch according to the branch weights.
+     *
+     * @param random
+     * @param weight
+     *            the weight to give the branch
+     * @return
+     */
+    public LogicTreeBranch sampleEndBranch(SplittableRandom random,
+            double weight) {
+        return LogicTreeBranch.sample(getWeights(), random, weight);
+    }
+
+    /**
+     * A name for an end branch, made of the descriptors of its branches.
+     */
+    public String getName(LogicTreeBranch branch) {
+        StringBuilder name = new StringBuilder();
+        for (int l = 0; l < levels.size(); l++) {
+            if (l > 0)
+                name.append(' ');
+            name.append(getBranchDescriptor(l, branch.getChoice(l)));
+        }
+        return name.toString();
+    }
+
+    private double[][] getWeights() {
+        double[][] weights = new double[levels.size()][];
+        for (int l = 0; l < weights.length; l++)
+            weights[l] = levels.get(l).weights;
+        return weights;
+    }
+
+    /**
+     * This applies the rule of a branch to the source data, returning it
+     * unchanged (the same object) if the value is zero.
+     *
+     * @param level
+     *            a rule level
+     * @param branch
+     * @param source
+     * @return
+     */
+    public GEMSourceData applyRule(int level, int branch,
+            GEMSourceData source) {
+        return applyRule(getRuleName(level), getRuleValue(level, branch),
+                source);
+    }
+
+    /**
+     * This applies a rule to the source data, returning it unchanged (the same
+     * object) if the value is zero; otherwise the source data is copied with
+     * new MFDs (sharing everything else).
+     *
+     * @param ruleName
+     * @param value
+     * @param source
+     * @return
+     */
+    public static GEMSourceData applyRule(String ruleName, double value,
+            GEMSourceData source) {
+        if (value == 0)
+            return source;
+        if (source instanceof GEMAreaSourceData) {
+            GEMAreaSourceData area = (GEMAreaSourceData) source;
+            MagFreqDistsForFocalMechs mfds = area.getMagfreqDistFocMech();
+            return new GEMAreaSourceData(area.getID(), area.getName(), area
+                    .getTectReg(), area.getRegion(),
+                    applyRule(ruleName, value, mfds), area.getAveRupTopVsMag(),
+                    area.getAveHypoDepth());
+        } else if (source instanceof GEMPointSourceData) {
+            GEMPointSourceData point = (GEMPointSourceData) source;
+            return new GEMPointSourceData(point.getID(), point.getName(), point
+                    .getTectReg(), (HypoMagFreqDistAtLoc) applyRule(ruleName,
+                    value, point.getHypoMagFreqDistAtLoc()), point
+                    .getAveRupTopVsMag(), point.getAveHypoDepth());
+        } else if (source instanceof GEMFaultSourceData) {
+            GEMFaultSourceData fault = (GEMFaultSourceData) source;
+            return new GEMFaultSourceData(fault.getID(), fault.getName(), fault
+                    .getTectReg(), applyRule(ruleName, value, fault.getMfd()),
+                    fault.getTrace(), fault.getDip(), fault.getRake(), fault
+                            .getSeismDepthLow(), fault.getSeismDepthUpp(),
+                    fault.getFloatRuptureFlag());
+        } else if (source instanceof GEMSubductionFaultSourceData) {
+            GEMSubductionFaultSourceData subduction =
+                    (GEMSubductionFaultSourceData) source;
+            return new GEMSubductionFaultSourceData(subduction.getID(),
+                    subduction.getName(), subduction.getTectReg(), subduction
+                            .getTopTrace(), subduction.getBottomTrace(),
+                    subduction.getRake(), applyRule(ruleName, value, subduction
+                            .getMfd()), subduction.getFloatRuptureFlag());
+        } else
+            throw new RuntimeException(C + ": " + source.getClass()
+                    + " not supported");
+    }
+
+    // a copy of the MFDs (a HypoMagFreqDistAtLoc if they are one) with the
+    // rule applied
+    private static MagFreqDistsForFocalMechs applyRule(String ruleName,
+            double value, MagFreqDistsForFocalMechs mfds) {
+        IncrementalMagFreqDist[] newMfds =
+                new IncrementalMagFreqDist[mfds.getNumMagFreqDists()];
+        for (int i = 0; i < newMfds.length; i++)
+            newMfds[i] = applyRule(ruleName, value, mfds.getMagFreqDist(i));
+        FocalMechanism[] focalMechs = mfds.getFocalMechanismList();
+        if (mfds instanceof HypoMagFreqDistAtLoc) {
+            Location loc = ((HypoMagFreqDistAtLoc) mfds).getLocation();
+            return focalMechs == null ? new HypoMagFreqDistAtLoc(newMfds, loc)
+                    : new HypoMagFreqDistAtLoc(newMfds, loc, focalMechs);
+        }
+        return focalMechs == null ? new MagFreqDistsForFocalMechs(newMfds)
+                : new MagFreqDistsForFocalMechs(newMfds, focalMechs);
+    }
+
+    private static IncrementalMagFreqDist applyRule(String ruleName,
+            double value, IncrementalMagFreqDist mfd) {
+        if (!(mfd instanceof GutenbergRichterMagFreqDist))
+            throw new RuntimeException(C + ": rule " + ruleName
+                    + " only applies to Gutenberg-Richter MFDs");
+        GutenbergRichterMagFreqDist gr = (GutenbergRichterMagFreqDist) mfd;
+        GutenbergRichterMagFreqDist newGR =
+                new GutenbergRichterMagFreqDist(gr.getMinX(), gr.getNum(), gr
+                        .getDelta());
+        newGR.setAllButTotCumRate(gr.getMagLower(), gr.getMagUpper(), gr
+                .getTotalMomentRate(), gr.get_bValue());
+        if (ruleName.equals(RULE_MMAX_GR_RELATIVE)) {
+            if (gr.getMagUpper() + value < gr.getMagLower())
+                throw new RuntimeException(C + ": " + ruleName + " " + value
+                        + " takes the maximum magnitude (" + gr.getMagUpper()
+                        + ") below the minimum (" + gr.getMagLower() + ")");
+            newGR.incrementMagUpper(value);
+        } else if (ruleName.equals(RULE_B_GR_RELATIVE))
+            newGR.incrementB(value);
+        else
+            throw new RuntimeException(C + ": unsupported rule " + ruleName);
+        return newGR;
+    }
+
+    private static double[] parseDoubles(String line) {
+        String[] tokens = line.split("\\s+");
+        double[] values = new double[tokens.length];
+        for (int i = 0; i < tokens.length; i++)
+            values[i] = Double.parseDouble(tokens[i]);
+        return values;
+    }
+
+    private static File resolve(File dir, String name) {
+        File file = new File(name);
+        if (!file.isAbsolute())
+            file = new File(dir, name);
+        if (!file.exists())
+            file = new File(dir, file.getName());
+        return file;
+    }
+}
@@ -0,0 +1,180 @@
+package org.opensha.sha.calc.logicTree;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import org.opensha.commons.param.event.ParameterChangeWarningListener;
+import org.opensha.sha.earthquake.rupForecastImpl.GEM1.SourceModelFileParser;
+import org.opensha.sha.imr.ScalarIntensityMeasureRelationshipAPI;
+import org.opensha.sha.util.TectonicRegionType;
+
+/**
+ * <p>
+ * Title: GmpeLogicTree
+ * </p>
+ * <p>
+ * Description: The GMPE logic tree of a GmpeLogicTree.inp file: for each
+ * tectonic region type, a line with its name, a line with the names of the
+ * GMPEs (IMR classes, in org.opensha.sha.imr.attenRelImpl unless the name is a
+ * full class name) and a line with their weights. Its end branches choose one
+ * GMPE for each of a given list of tectonic region types (those of the
+ * sources of the ERF).
+ * </p>
+ */
+public class GmpeLogicTree {
+
+    protected final static String C = "GmpeLogicTree";
+    protected final static boolean D = false;
+
+    /** Package of the IMR classes named without a package */
+    public final static String IMR_PACKAGE = "org.opensha.sha.imr.attenRelImpl";
+
+    private final LinkedHashMap<TectonicRegionType, String[]> gmpeNames =
+            new LinkedHashMap<TectonicRegionType, String[]>();
+    private final LinkedHashMap<TectonicRegionType, double[]> gmpeWeights =
+            new LinkedHashMap<TectonicRegionType, double[]>();
+
+    /**
+     * This reads the logic tree from a file.
+     *
+     * @param file
+     */
+    public GmpeLogicTree(File file) {
+        List<String> lines = SourceModelFileParser.readLines(file);
+        if (lines.size() % 3 != 0)
+            throw new RuntimeException(C + ": expected a tectonic region type,"
+                    + " GMPE names and weights for each branch set in " + file);
+        for (int i = 0; i < lines.size(); i += 3) {
+            if (!TectonicRegionType.isValidType(lines.get(i)))
+                throw new RuntimeException(C + ": unknown tectonic region type "
+                        + lines.get(i) + " in " + file);
+            TectonicRegionType trt =
+                    TectonicRegionType.getTypeForName(lines.get(i));
+            String[] names = lines.get(i + 1).split("\\s+");
+            String[] tokens = lines.get(i + 2).split("\\s+");
+            double[] weights = new double[tokens.length];
+            for (int j = 0; j < tokens.length; j++)
+                weights[j] = Double.parseDouble(tokens[j]);
+            if (names.length != weights.length)
+                throw new RuntimeException(C + ": " + trt + " has "
+                        + names.length + " GMPEs but " + weights.length
+                        + " weights");
+            LogicTreeBranch.checkWeights(weights, "the GMPEs of " + trt);
+            if (gmpeNames.containsKey(trt))
+                throw new RuntimeException(C + ": " + trt
+                        + " is given more than once in " + file);
+            gmpeNames.put(trt, names);
+            gmpeWeights.put(trt, weights);
+        }
+    }
+
+    /**
+     * The tectonic region types with GMPEs, in the order of the file.
+     */
+    public ArrayList<TectonicRegionType> getTectonicRegionTypes() {
+        return new ArrayList<TectonicRegionType>(gmpeNames.keySet());
+    }
+
+    public int getNumGMPEs(TectonicRegionType trt) {
+        return getNames(trt).length;
+    }
+
+    public String getGMPEName(TectonicRegionType trt, int index) {
+        return getNames(trt)[index];
+    }
+
+    public double getGMPEWeight(TectonicRegionType trt, int index) {
+        getNames(trt);
+        return gmpeWeights.get(trt)[index];
+    }
+
+    /**
+     * This makes a new instance of a GMPE with its parameters set to their
+     * defaults.
+     *
+     * @param trt
+     * @param index
+     * @param listener
+     *            the warning listener of the IMR
+     * @return
+     */
+    public ScalarIntensityMeasureRelationshipAPI createGMPE(
+            TectonicRegionType trt, int index,
+            ParameterChangeWarningListener listener) {
+        String name = getGMPEName(trt, index);
+        String className = name.indexOf('.') < 0 ? IMR_PACKAGE + "." + name
+                : name;
+        ScalarIntensityMeasureRelationshipAPI imr;
+        try {
+            imr =
+                    (ScalarIntensityMeasureRelationshipAPI) Class.forName(
+                            className).getConstructor(
+                            ParameterChangeWarningListener.class).newInstance(
+                            listener);
+        } catch (Exception e) {
+            throw new RuntimeException(C + ": can't make GMPE " + name, e);
+        }
+        imr.setParamDefaults();
+        return imr;
+    }
+
+    /**
+     * All the end branches for the given tectonic region types (the choice
+     * for level i being the GMPE of the i-th type).
+     *
+     * @param trts
+     * @return
+     */
+    public ArrayList<LogicTreeBranch> getEndBranches(
+            List<TectonicRegionType> trts) {
+        return LogicTreeBranch.enumerate(getWeights(trts));
+    }
+
+    /**
+     * This draws an end branch for the given tectonic region types according
+     * to the GMPE weights.
+     *
+     * @param trts
+     * @param random
+     * @param weight
+     *            the weight to give the branch
+     * @return
+     */
+    public LogicTreeBranch sampleEndBranch(List<TectonicRegionType> trts,
+            SplittableRandom random, double weight) {
+        return LogicTreeBranch.sample(getWeights(trts), random, weight);
+    }
+
+    /**
+     * A name for an end branch, made of the names of its GMPEs.
+     */
+    public String getName(List<TectonicRegionType> trts,
+            LogicTreeBranch branch) {
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < trts.size(); i++) {
+            if (i > 0)
+                name.append(' ');
+            name.append(getGMPEName(trts.get(i), branch.getChoice(i)));
+        }
+        return name.toString();
+    }
+
+    private double[][] getWeights(List<TectonicRegionType> trts) {
+        double[][] weights = new double[trts.size()][];
+        for (int i = 0; i < weights.length; i++) {
+            getNames(trts.get(i));
+            weights[i] = gmpeWeights.get(trts.get(i));
+        }
+        return weights;
+    }
+
+    private String[] getNames(TectonicRegionType trt) {
+        String[] names = gmpeNames.get(trt);
+        if (names == null)
+            throw new RuntimeException(C + ": no GMPE is given for " + trt);
+        return names;
+    }
+}
@@ -0,0 +1,150 @@
+package org.opensha.sha.calc.logicTree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * <p>
+ * Title: LogicTreeBranch
+ * </p>
+ * <p>
+ * Description: An end branch of a logic tree: the index of the branch chosen
+ * at each branching level (or, for a GmpeLogicTree, for each tectonic region
+ * type) and the weight of the path. Instances are immutable.
+ * </p>
+ */
+public class LogicTreeBranch implements Comparable<LogicTreeBranch> {
+
+    private final int[] choices;
+    private final double weight;
+
+    /**
+     * @param choices
+     *            index of the branch chosen at each level
+     * @param weight
+     */
+    public LogicTreeBranch(int[] choices, double weight) {
+        this.choices = choices.clone();
+        this.weight = weight;
+    }
+
+    public int getNumLevels() {
+        return choices.length;
+    }
+
+    /**
+     * The index of the branch chosen at a level.
+     *
+     * @param level
+     * @return
+     */
+    public int getChoice(int level) {
+        return choices[level];
+    }
+
+    public double getWeight() {
+        return weight;
+    }
+
+    /**
+     * Whether the same branch is chosen at each level as in the given one
+     * (whatever the weights).
+     *
+     * @param branch
+     * @return
+     */
+    public boolean isSamePath(LogicTreeBranch branch) {
+        return Arrays.equals(choices, branch.choices);
+    }
+
+    /**
+     * Orders branches by their choices, level by level, so branches sharing
+     * the first levels are next to each other.
+     */
+    @Override
+    public int compareTo(LogicTreeBranch branch) {
+        for (int i = 0; i < choices.length && i < branch.choices.length; i++)
+            if (choices[i] != branch.choices[i])
+                return choices[i] < branch.choices[i] ? -1 : 1;
+        return choices.length - branch.choices.length;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(choices) + " (" + weight + ")";
+    }
+
+    /**
+     * This returns all the end branches of a tree with the given branch
+     * weights at each level, the last level varying fastest; the weight of an
+     * end branch is the product of the weights of its branches.
+     *
+     * @param weights
+     *            the weights of the branches of each level
+     * @return
+     */
+    static ArrayList<LogicTreeBranch> enumerate(double[][] weights) {
+        ArrayList<LogicTreeBranch> branches = new ArrayList<LogicTreeBranch>();
+        int[] choices = new int[weights.length];
+        while (true) {
+            double weight = 1.0;
+            for (int i = 0; i < weights.length; i++)
+                weight *= weights[i][choices[i]];
+            branches.add(new LogicTreeBranch(choices, weight));
+            // next choices, as an odometer
+            int level = weights.length - 1;
+            while (level >= 0 && ++choices[level] == weights[level].length)
+                choices[level--] = 0;
+            if (level < 0)
+                return branches;
+        }
+    }
+
+    /**
+     * This draws an end branch, choosing the branch of each level with
+     * probability equal to its weight.
+     *
+     * @param weights
+     *            the weights of the branches of each level (each summing to
+     *            one)
+     * @param random
+     * @param weight
+     *            the weight to give the sampled branch
+     * @return
+     */
+    static LogicTreeBranch sample(double[][] weights, SplittableRandom random,
+            double weight) {
+        int[] choices = new int[weights.length];
+        for (int i = 0; i < weights.length; i++) {
+            double r = random.nextDouble();
+            int j = 0;
+            double sum = weights[i][0];
+            while (r >= sum && j < weights[i].length - 1)
+                sum += weights[i][++j];
+            choices[i] = j;
+        }
+        return new LogicTreeBranch(choices, weight);
+    }
+
+    /**
+     * This checks that the weights of a set of branches are positive and sum
+     * to one.
+     *
+     * @param weights
+     * @param description
+     *            describes the branches for the error message
+     */
+    static void checkWeights(double[] weights, String description) {
+        double sum = 0;
+        for (double weight : weights) {
+            if (!(weight > 0))
+                throw new RuntimeException("Weights of " + description
+                        + " must be positive");
+            sum += weight;
+        }
+        if (Math.abs(sum - 1.0) > 1e-6)
+            throw new RuntimeException("Weights of " + description
+                    + " sum to " + sum + ", not 1");
+    }
+}
@@ -0,0 +1,448 @@
+package org.opensha.sha.calc.logicTree;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+import org.opensha.commons.data.Site;
+import org.opensha.commons.data.function.DiscretizedFuncAPI;
+import org.opensha.commons.param.ParameterAPI;
+import org.opensha.sha.calc.HazardCurveCalculator;
+import org.opensha.sha.calc.IntensityMeasureType;
+import org.opensha.sha.earthquake.ProbEqkSource;
+import org.opensha.sha.earthquake.rupForecastImpl.GEM1.GEM1ERF;
+import org.opensha.sha.earthquake.rupForecastImpl.GEM1.SourceModelFileParser;
+import org.opensha.sha.earthquake.rupForecastImpl.GEM1.SourceData.GEMSourceData;
+import org.opensha.sha.imr.ScalarIntensityMeasureRelationshipAPI;
+import org.opensha.sha.imr.param.IntensityMeasureParams.PGA_Param;
+import org.opensha.sha.util.TectonicRegionType;
+
+/**
+ * <p>
+ * Title: LogicTreeHazardCalculator
+ * </p>
+ * <p>
+ * Description: Computes hazard curves for the end branches of an ERF logic
+ * tree combined with a GMPE logic tree (each end branch being an ERF end
+ * branch with one GMPE for each tectonic region type of the sources), and
+ * their weighted mean and fractiles. The end branches are either all
+ * enumerated (weighted by the products of the branch weights) or sampled
+ * (with equal weights). The curve of each end branch is added to a
+ * CurveStatistics for each site as soon as it is computed and then discarded,
+ * so memory doesn't grow with the number of branches.
+ * </p>
+ * <p>
+ * The end branches are visited in order of their ERF branches, so the
+ * GEM1ERF of an ERF branch is made once and used for all its GMPE branches.
+ * The source data of the rule levels are only recomputed from the first level
+ * that differs from the previous ERF branch, and a rule with a value of zero
+ * leaves the source data unchanged. The sources (ProbEqkSources) are made
+ * once per source data and kept for as long as the following ERF branches
+ * use that source data, so a source is only remade when its data changes.
+ * The IMRs are made once for each GMPE of the tree.
+ * </p>
+ * <p>
+ * The ERFs have the default GEM1ERF parameters with the duration of the time
+ * span set to the investigation time, so the curves are probabilities of
+ * exceedance in that time. The curves are computed with the settings of the
+ * HazardCurveCalculator (e.g. setNumThreads() or setCalcOrder()).
+ * </p>
+ */
+public class LogicTreeHazardCalculator {
+
+    protected final static String C = "LogicTreeHazardCalculator";
+    protected final static boolean D = false;
+
+    /** Default investigation time (years) */
+    public final static double DEFAULT_INVESTIGATION_TIME = 50;
+
+    private final ErfLogicTree erfLogicTree;
+    private final GmpeLogicTree gmpeLogicTree;
+    private final HazardCurveCalculator curveCalc;
+
+    private double investigationTime = DEFAULT_INVESTIGATION_TIME;
+    private double mfdBinWidth = SourceModelFileParser.DEFAULT_MFD_BIN_WIDTH;
+    private IntensityMeasureType imt = new IntensityMeasureType(PGA_Param.NAME);
+    private int maxCentroids = CurveStatistics.DEFAULT_MAX_CENTROIDS;
+
+    // the sources of each source model and their tectonic region types (read
+    // when first needed)
+    private ArrayList<ArrayList<GEMSourceData>> sourceModels;
+    private ArrayList<TectonicRegionType> trts;
+
+    // the IMRs made so far, by tectonic region type and GMPE index
+    private final EnumMap<TectonicRegionType,
+            ScalarIntensityMeasureRelationshipAPI[]> gmpes =
+            new EnumMap<TectonicRegionType,
+                    ScalarIntensityMeasureRelationshipAPI[]>(
+                    TectonicRegionType.class);
+
+    // the source data after each level for the choices of the last ERF
+    // branch (up to the first null)
+    private ArrayList<ArrayList<GEMSourceData>> levelSources;
+    private int[] levelChoices;
+
+    // the sources made for the source data of the current ERF branch
+    private final Map<GEMSourceData, ProbEqkSource> sourceCache =
+            new IdentityHashMap<GEMSourceData, ProbEqkSource>();
+
+    /**
+     * Creates a calculator with a default HazardCurveCalculator.
+     *
+     * @param erfLogicTree
+     * @param gmpeLogicTree
+     * @throws java.rmi.RemoteException
+     */
+    public LogicTreeHazardCalculator(ErfLogicTree erfLogicTree,
+            GmpeLogicTree gmpeLogicTree) throws java.rmi.RemoteException {
+        this(erfLogicTree, gmpeLogicTree, new HazardCurveCalculator());
+    }
+
+    /**
+     * @param erfLogicTree
+     * @param gmpeLogicTree
+     * @param curveCalc
+     *            calculator whose settings are used for every end branch
+     */
+    public LogicTreeHazardCalculator(ErfLogicTree erfLogicTree,
+            GmpeLogicTree gmpeLogicTree, HazardCurveCalculator curveCalc) {
+        this.erfLogicTree = erfLogicTree;
+        this.gmpeLogicTree = gmpeLogicTree;
+        this.curveCalc = curveCalc;
+    }
+
+    public HazardCurveCalculator getHazardCurveCalculator() {
+        return curveCalc;
+    }
+
+    public ErfLogicTree getErfLogicTree() {
+        return erfLogicTree;
+    }
+
+    public GmpeLogicTree getGmpeLogicTree() {
+        return gmpeLogicTree;
+    }
+
+    /**
+     * Sets the investigation time (years), the duration of the ERFs.
+     *
+     * @param investigationTime
+     */
+    public void setInvestigationTime(double investigationTime) {
+        if (investigationTime != this.investigationTime)
+            sourceCache.clear();
+        this.investigationTime = investigationTime;
+    }
+
+    public double getInvestigationTime() {
+        return investigationTime;
+    }
+
+    /**
+     * Sets the width of the magnitude bins of the MFDs of the source models.
+     *
+     * @param mfdBinWidth
+     */
+    public void setMfdBinWidth(double mfdBinWidth) {
+        if (mfdBinWidth != this.mfdBinWidth) {
+            sourceModels = null;
+            levelSources = null;
+            sourceCache.clear();
+        }
+        this.mfdBinWidth = mfdBinWidth;
+    }
+
+    public double getMfdBinWidth() {
+        return mfdBinWidth;
+    }
+
+    /**
+     * Sets the intensity measure type of the curves (PGA by default).
+     *
+     * @param imt
+     */
+    public void setIntensityMeasureType(IntensityMeasureType imt) {
+        this.imt = imt;
+    }
+
+    public IntensityMeasureType getIntensityMeasureType() {
+        return imt;
+    }
+
+    /**
+     * Sets the greatest number of centroids the CurveStatistics keep per IML
+     * (the fractiles are exact for up to this many end branches).
+     *
+     * @param maxCentroids
+     */
+    public void setMaxCentroids(int maxCentroids) {
+        this.maxCentroids = maxCentroids;
+    }
+
+    public int getMaxCentroids() {
+        return maxCentroids;
+    }
+
+    /**
+     * The tectonic region types of the sources of all the source models (the
+     * levels of the GMPE end branches), in the order of TectonicRegionType.
+     */
+    public ArrayList<TectonicRegionType> getTectonicRegionTypes() {
+        loadSourceModels();
+        return new ArrayList<TectonicRegionType>(trts);
+    }
+
+    /**
+     * This adds to the site the site parameters of the GMPEs (for the
+     * tectonic region types of the sources) that it doesn't already have,
+     * with their default values.
+     *
+     * @param site
+     */
+    public void addSiteParams(Site site) {
+        for (TectonicRegionType trt : getTectonicRegionTypes())
+            for (int g = 0; g < gmpeLogicTree.getNumGMPEs(trt); g++) {
+                ListIterator<ParameterAPI<?>> it =
+                        getGMPE(trt, g).getSiteParamsIterator();
+                while (it.hasNext()) {
+                    ParameterAPI<?> param = it.next();
+                    if (!site.containsParameter(param.getName()))
+                        site.addParameter((ParameterAPI) param.clone());
+                }
+            }
+    }
+
+    /**
+     * This computes the curves of all the end branches at each site and
+     * returns their statistics.
+     *
+     * @param sites
+     * @param imlFunc
+     *            function whose x values are the IMLs
+     * @return the statistics for each site
+     * @throws java.rmi.RemoteException
+     */
+    public CurveStatistics[] getCurveStatistics(List<Site> sites,
+            DiscretizedFuncAPI imlFunc) throws java.rmi.RemoteException {
+        ArrayList<LogicTreeBranch[]> endBranches =
+                new ArrayList<LogicTreeBranch[]>();
+        ArrayList<LogicTreeBranch> gmpeBranches =
+                gmpeLogicTree.getEndBranches(getTectonicRegionTypes());
+        for (LogicTreeBranch erfBranch : erfLogicTree.getEndBranches())
+            for (LogicTreeBranch gmpeBranch : gmpeBranches)
+                endBranches.add(new LogicTreeBranch[] { erfBranch,
+                        gmpeBranch });
+        return calculate(sites, imlFunc, endBranches);
+    }
+
+    /**
+     * This computes the curves of numSamples end branches drawn according to
+     * the branch weights at each site and returns their statistics (each
+     * sample having the same weight). The samples are the same for the same
+     * seed.
+     *
+     * @param sites
+     * @param imlFunc
+     *            function whose x values are the IMLs
+     * @param numSamples
+     * @param seed
+     * @return the statistics for each site
+     * @throws java.rmi.RemoteException
+     */
+    public CurveStatistics[] getCurveStatistics(List<Site> sites,
+            DiscretizedFuncAPI imlFunc, int numSamples, long seed)
+            throws java.rmi.RemoteException {
+        List<TectonicRegionType> trts = getTectonicRegionTypes();
+        SplittableRandom random = new SplittableRandom(seed);
+        ArrayList<LogicTreeBranch[]> endBranches =
+                new ArrayList<LogicTreeBranch[]>();
+        for (int i = 0; i < numSamples; i++)
+            endBranches.add(new LogicTreeBranch[] {
+                    erfLogicTree.sampleEndBranch(random, 1.0 / numSamples),
+                    gmpeLogicTree.sampleEndBranch(trts, random, 1.0) });
+        // samples of the same ERF branch are done one after the other
+        Collections.sort(endBranches, new Comparator<LogicTreeBranch[]>() {
+            @Override
+            public int compare(LogicTreeBranch[] b1, LogicTreeBranch[] b2) {
+                return b1[0].compareTo(b2[0]);
+            }
+        });
+        return calculate(sites, imlFunc, endBranches);
+    }
+
+    /**
+     * The source data of an ERF end branch: that of its source model with
+     * the rules of its branches applied in turn.
+     *
+     * @param erfBranch
+     * @return
+     */
+    public ArrayList<GEMSourceData> getSourceData(LogicTreeBranch erfBranch) {
+        loadSourceModels();
+        int numLevels = erfLogicTree.getNumBranchingLevels();
+        if (levelSources == null) {
+            levelSources = new ArrayList<ArrayList<GEMSourceData>>(numLevels);
+            for (int l = 0; l < numLevels; l++)
+                levelSources.add(null);
+            levelChoices = new int[numLevels];
+        }
+        for (int l = 0; l < numLevels; l++) {
+            int choice = erfBranch.getChoice(l);
+            if (levelSources.get(l) != null && levelChoices[l] == choice)
+                continue;
+            ArrayList<GEMSourceData> sources;
+            if (l == 0)
+                sources = sourceModels.get(choice);
+            else {
+                sources =
+                        new ArrayList<GEMSourceData>(levelSources.get(l - 1)
+                                .size());
+                for (GEMSourceData source : levelSources.get(l - 1))
+                    sources.add(erfLogicTree.applyRule(l, choice, source));
+            }
+            levelSources.set(l, sources);
+            levelChoices[l] = choice;
+            // the later levels are for other choices
+            for (int m = l + 1; m < numLevels; m++)
+                levelSources.set(m, null);
+        }
+        return levelSources.get(numLevels - 1);
+    }
+
+    private CurveStatistics[] calculate(List<Site> sites,
+            DiscretizedFuncAPI imlFunc, List<LogicTreeBranch[]> endBranches)
+            throws java.rmi.RemoteException {
+        List<TectonicRegionType> trts = getTectonicRegionTypes();
+        int numIMLs = imlFunc.getNum();
+        CurveStatistics[] stats = new CurveStatistics[sites.size()];
+        ArrayList<DiscretizedFuncAPI> hazFunctions =
+                new ArrayList<DiscretizedFuncAPI>();
+        for (int i = 0; i < stats.length; i++) {
+            stats[i] = new CurveStatistics(numIMLs, maxCentroids);
+            hazFunctions.add(imlFunc.deepClone());
+        }
+        double[] curve = new double[numIMLs];
+
+        LogicTreeBranch erfBranch = null;
+        BranchERF erf = null;
+        for (LogicTreeBranch[] endBranch : endBranches) {
+            if (erfBranch == null || !erfBranch.isSamePath(endBranch[0])) {
+                erfBranch = endBranch[0];
+                erf = getERF(erfBranch);
+            }
+            LogicTreeBranch gmpeBranch = endBranch[1];
+            HashMap<TectonicRegionType,
+                    ScalarIntensityMeasureRelationshipAPI> imrMap =
+                    new HashMap<TectonicRegionType,
+                            ScalarIntensityMeasureRelationshipAPI>();
+            for (int t = 0; t < trts.size(); t++)
+                imrMap.put(trts.get(t), getGMPE(trts.get(t), gmpeBranch
+                        .getChoice(t)));
+
+            if (D)
+                System.out.println(C + ": " + erfLogicTree.getName(erfBranch)
+                        + " " + gmpeLogicTree.getName(trts, gmpeBranch));
+            curveCalc.getHazardCurves(hazFunctions, sites, imrMap, erf);
+
+            double weight = erfBranch.getWeight() * gmpeBranch.getWeight();
+            for (int i = 0; i < stats.length; i++) {
+                DiscretizedFuncAPI hazFunction = hazFunctions.get(i);
+                for (int k = 0; k < numIMLs; k++)
+                    curve[k] = hazFunction.getY(k);
+                stats[i].add(curve, weight);
+            }
+        }
+        return stats;
+    }
+
+    // the ERF of an ERF end branch, sharing the sources of the source data it
+    // has in common with the last one
+    private BranchERF getERF(LogicTreeBranch erfBranch) {
+        ArrayList<GEMSourceData> sourceData = getSourceData(erfBranch);
+        Set<GEMSourceData> branchData =
+                Collections.newSetFromMap(
+                        new IdentityHashMap<GEMSourceData, Boolean>());
+        branchData.addAll(sourceData);
+        sourceCache.keySet().retainAll(branchData);
+
+        BranchERF erf = new BranchERF(sourceData, sourceCache);
+        erf.getTimeSpan().setDuration(investigationTime);
+        erf.updateForecast();
+        return erf;
+    }
+
+    private ScalarIntensityMeasureRelationshipAPI getGMPE(
+            TectonicRegionType trt, int index) {
+        ScalarIntensityMeasureRelationshipAPI[] trtGMPEs = gmpes.get(trt);
+        if (trtGMPEs == null) {
+            trtGMPEs =
+                    new ScalarIntensityMeasureRelationshipAPI[gmpeLogicTree
+                            .getNumGMPEs(trt)];
+            gmpes.put(trt, trtGMPEs);
+        }
+        if (trtGMPEs[index] == null)
+            trtGMPEs[index] =
+                    gmpeLogicTree.createGMPE(trt, index, curveCalc);
+        imt.setIntensityMeasure(trtGMPEs[index]);
+        return trtGMPEs[index];
+    }
+
+    private void loadSourceModels() {
+        if (sourceModels != null)
+            return;
+        SourceModelFileParser parser = new SourceModelFileParser(mfdBinWidth);
+        ArrayList<ArrayList<GEMSourceData>> models =
+                new ArrayList<ArrayList<GEMSourceData>>();
+        boolean[] hasTRT = new boolean[TectonicRegionType.values().length];
+        for (File file : erfLogicTree.getSourceModelFiles()) {
+            ArrayList<GEMSourceData> sources = parser.parse(file);
+            for (GEMSourceData source : sources)
+                hasTRT[source.getTectReg().ordinal()] = true;
+            models.add(sources);
+        }
+        trts = new ArrayList<TectonicRegionType>();
+        for (TectonicRegionType trt : TectonicRegionType.values())
+            if (hasTRT[trt.ordinal()])
+                trts.add(trt);
+        sourceModels = models;
+    }
+
+    /**
+     * A GEM1ERF that takes its sources from (and puts the ones it makes in) a
+     * cache shared with the ERFs of other branches, keyed by source data.
+     */
+    // getAdjustableParamsIterator() is inherited, raw, from EqkRupForecast
+    @SuppressWarnings("unchecked")
+    private static class BranchERF extends GEM1ERF {
+
+        private final Map<GEMSourceData, ProbEqkSource> sourceCache;
+
+        BranchERF(List<GEMSourceData> sourceData,
+                Map<GEMSourceData, ProbEqkSource> sourceCache) {
+            super(sourceData);
+            this.sourceCache = sourceCache;
+        }
+
+        @Override
+        public ProbEqkSource getSource(int iSource) {
+            GEMSourceData data = gemSourceDataList.get(iSource);
+            synchronized (sourceCache) {
+                ProbEqkSource source = sourceCache.get(data);
+                if (source == null) {
+                    source = super.getSource(iSource);
+                    sourceCache.put(data, source);
+                }
+                return source;
+            }
+        }
+    }
+}
@@ -62,6 +62,10 @@ public abstract class EqkRupForecast implements EqkRupForecastAPI,
     // if it is true it means that forecast needs to be updated
     protected boolean parameterChangeFlag = true;
 
+    // spatial index of the sources, made when first asked for and dropped
+    // whenever the forecast may change
+    private SourceSpatialIndex sourceSpatialIndex;
+
     /**
      * get the adjustable parameters for this forecast
      * 
@@ -163,6 +167,7 @@ public abstract class EqkRupForecast implements EqkRupForecastAPI,
      */
     public void timeSpanChange(EventObject event) {
         parameterChangeFlag = true;
+        clearSourceSpatialIndex();
     }
 
     /**
@@ -176,6 +181,7 @@ public abstract class EqkRupForecast implements EqkRupForecastAPI,
      */
     public void parameterChange(ParameterChangeEvent event) {
         parameterChangeFlag = true;
+        clearSourceSpatialIndex();
     }
 
     /**
@@ -276,6 +282,29 @@ public abstract class EqkRupForecast implements EqkRupForecastAPI,
         return null;
     }
 
+    /**
+     * This returns a spatial index of the current sources (see
+     * SourceSpatialIndex), making it the first time it's asked for after the
+     * forecast has been updated. The index is dropped on any parameter or
+     * timespan change; subclasses whose sources change in other ways must call
+     * clearSourceSpatialIndex() from updateForecast().
+     * 
+     * @return
+     */
+    public synchronized SourceSpatialIndex getSourceSpatialIndex() {
+        if (sourceSpatialIndex == null)
+            sourceSpatialIndex = new SourceSpatialIndex(this);
+        return sourceSpatialIndex;
+    }
+
+    /**
+     * This drops the spatial index of the sources, so a new one is made the
+     * next time getSourceSpatialIndex() is called.
+     */
+    protected synchronized void clearSourceSpatialIndex() {
+        sourceSpatialIndex = null;
+    }
+
     /**
      * 
      * @returns the adjustable ParameterList for the ERF
@@ -24,6 +24,7 @@ import java.util.Iterator;
 import org.opensha.commons.data.NamedObjectAPI;
 import org.opensha.commons.data.Site;
 import org.opensha.commons.geo.Location;
+import org.opensha.commons.geo.LocationList;
 import org.opensha.commons.geo.Region;
 import org.opensha.sha.faultSurface.EvenlyGriddedSurfaceAPI;
 import org.opensha.sha.imr.param.OtherParams.TectonicRegionTypeParam;
@@ -119,6 +120,31 @@ public abstract class ProbEqkSource implements EqkSourceAPI, NamedObjectAPI {
      */
     public abstract double getMinDistance(Site site);
 
+    /**
+     * This returns locations whose lat/lon box, widened by
+     * getExtentPadding() km on all sides, bounds what getMinDistance(Site)
+     * measures to: getMinDistance(site) is never less than the distance from
+     * the site to the widened box. SourceSpatialIndex uses this to find the
+     * sources that may be near a site without calling getMinDistance() on all
+     * of them. This returns getAllSourceLocs(); subclasses whose
+     * getMinDistance() is measured to something else should override it.
+     * 
+     * @return locations spanning the source
+     */
+    public LocationList getExtentLocs() {
+        return getAllSourceLocs();
+    }
+
+    /**
+     * The distance (km) by which the box of getExtentLocs() must be widened
+     * (see getExtentLocs()); this is zero unless overridden.
+     * 
+     * @return padding in km
+     */
+    public double getExtentPadding() {
+        return 0.0;
+    }
+
     /**
      * Get the number of ruptures for this source
      * 
@@ -380,21 +406,7 @@ public abstract class ProbEqkSource implements EqkSourceAPI, NamedObjectAPI {
                 // System.out.println("Problem!");
                 double expected = -Math.log(1 - rup.getProbability());
                 // double rand = 0.99;
-                double rand = Math.random();
-                double sum = 0;
-                double factoral = 1;
-                int maxNum = (int) Math.round(10 * expected) + 2;
-                int num;
-                for (num = 0; num < maxNum; num++) {
-                    if (num != 0)
-                        factoral *= num;
-                    double prob =
-                            Math.pow(expected, num) * Math.exp(-expected)
-                                    / factoral;
-                    sum += prob;
-                    if (rand <= sum)
-                        break;
-                }
+                int num = drawPoissonNumber(expected, Math.random());
                 for (int i = 0; i < num; i++)
                     rupList.add((ProbEqkRupture) rup.clone());
                 /*
@@ -408,6 +420,36 @@ public abstract class ProbEqkSource implements EqkSourceAPI, NamedObjectAPI {
         return rupList;
     }
 
+    /**
+     * This converts a uniform random number into a number of occurrences
+     * drawn from a Poisson distribution with the given expected number, by
+     * summing the Poisson probabilities until they exceed rand (the count is
+     * capped at round(10*expected)+2).
+     * 
+     * @param expected
+     *            expected number of occurrences, -ln(1-probability) for a
+     *            ProbEqkRupture
+     * @param rand
+     *            uniform random number in [0,1)
+     * @return
+     */
+    public static int drawPoissonNumber(double expected, double rand) {
+        double sum = 0;
+        double factoral = 1;
+        int maxNum = (int) Math.round(10 * expected) + 2;
+        int num;
+        for (num = 0; num < maxNum; num++) {
+            if (num != 0)
+                factoral *= num;
+            double prob =
+                    Math.pow(expected, num) * Math.exp(-expected) / factoral;
+            sum += prob;
+            if (rand <= sum)
+                break;
+        }
+        return num;
+    }
+
     /**
      * This gets the TectonicRegionType for this source
      */
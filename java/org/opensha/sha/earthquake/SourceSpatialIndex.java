@@ -0,0 +1,278 @@
+package org.opensha.sha.earthquake;
+
+import java.util.Arrays;
+
+import org.opensha.commons.geo.GeoTools;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.geo.LocationList;
+
+/**
+ * <p>
+ * Title: SourceSpatialIndex
+ * </p>
+ * <p>
+ * Description: A uniform lat/lon bucket grid of the bounding boxes of the
+ * sources of an ERF, used to find the sources that may be within some
+ * distance of a site without calling getMinDistance(Site) on every source.
+ * The box of each source is that of ProbEqkSource.getExtentLocs(), widened by
+ * ProbEqkSource.getExtentPadding(), and each source is listed in every cell
+ * its box overlaps.
+ * </p>
+ * <p>
+ * The candidates returned are a superset of the sources whose
+ * getMinDistance() is within the distance (the boxes are widened with some
+ * slack to cover differences between distance approximations), so a caller
+ * still applies getMinDistance() to the candidates and gets exactly the same
+ * sources as a full loop would. The index describes the sources at the time it
+ * was made; see EqkRupForecast.getSourceSpatialIndex(), which makes a new one
+ * after the forecast changes.
+ * </p>
+ * <p>
+ * An index is not changed after it is made, so it can be shared by threads.
+ * </p>
+ */
+public class SourceSpatialIndex {
+
+    protected final static String C = "SourceSpatialIndex";
+    protected final static boolean D = false;
+
+    /** Default size (degrees) of the cells of the bucket grid */
+    public final static double DEFAULT_CELL_SIZE = 1.0;
+
+    // largest number of cells; the cell size is increased to stay below this
+    private final static int MAX_NUM_CELLS = 1 << 20;
+
+    // extra distance (km) added to queries to cover differences between the
+    // distance approximations used by sources and those here
+    protected final static double DISTANCE_SLACK = 10.0;
+
+    // km per degree of latitude (slightly less than the true value, so boxes
+    // made from distances err on the large side)
+    private final static double KM_PER_DEGREE =
+            0.99 * GeoTools.EARTH_RADIUS_MEAN * GeoTools.TO_RAD;
+
+    // beyond this latitude boxes are treated as spanning all longitudes
+    private final static double MAX_LAT_FOR_LON_WIDTH = 89.0;
+
+    private final int numSources;
+
+    // widened box of each source
+    private final double[] minLats, maxLats, minLons, maxLons;
+
+    // sources that span all longitudes (polar or very large), which are
+    // checked against every query rather than put in cells
+    private final int[] globalSources;
+
+    private final double cellSize;
+    private final double gridMinLat, gridMinLon;
+    private final int numRows, numCols;
+    // source indices (ascending) in each cell, by row*numCols+col
+    private final int[][] cells;
+
+    /**
+     * Makes the index with the default cell size.
+     *
+     * @param erf
+     *            forecast whose sources are indexed (updateForecast() must
+     *            already have been called)
+     */
+    public SourceSpatialIndex(EqkRupForecastAPI erf) {
+        this(erf, DEFAULT_CELL_SIZE);
+    }
+
+    /**
+     * @param erf
+     *            forecast whose sources are indexed (updateForecast() must
+     *            already have been called)
+     * @param cellSize
+     *            size (degrees) of the bucket cells; this is increased if the
+     *            sources span too many cells
+     */
+    public SourceSpatialIndex(EqkRupForecastAPI erf, double cellSize) {
+        numSources = erf.getNumSources();
+        minLats = new double[numSources];
+        maxLats = new double[numSources];
+        minLons = new double[numSources];
+        maxLons = new double[numSources];
+
+        int numGlobal = 0;
+        int[] global = new int[numSources];
+        double gMinLat = Double.MAX_VALUE, gMaxLat = -Double.MAX_VALUE;
+        double gMinLon = Double.MAX_VALUE, gMaxLon = -Double.MAX_VALUE;
+        for (int s = 0; s < numSources; s++) {
+            ProbEqkSource source = erf.getSource(s);
+            if (!setSourceBox(s, source.getExtentLocs(), source
+                    .getExtentPadding())) {
+                global[numGlobal++] = s;
+                continue;
+            }
+            gMinLat = Math.min(gMinLat, minLats[s]);
+            gMaxLat = Math.max(gMaxLat, maxLats[s]);
+            gMinLon = Math.min(gMinLon, minLons[s]);
+            gMaxLon = Math.max(gMaxLon, maxLons[s]);
+        }
+        globalSources = Arrays.copyOf(global, numGlobal);
+
+        if (gMinLat > gMaxLat) {
+            // no source in the grid
+            this.cellSize = cellSize;
+            gridMinLat = gridMinLon = 0;
+            numRows = numCols = 0;
+            cells = new int[0][];
+            return;
+        }
+
+        while (Math.ceil((gMaxLat - gMinLat) / cellSize + 1e-9)
+                * Math.ceil((gMaxLon - gMinLon) / cellSize + 1e-9) > MAX_NUM_CELLS)
+            cellSize *= 2;
+        this.cellSize = cellSize;
+        gridMinLat = gMinLat;
+        gridMinLon = gMinLon;
+        numRows = Math.max(1, (int) Math.ceil((gMaxLat - gMinLat) / cellSize));
+        numCols = Math.max(1, (int) Math.ceil((gMaxLon - gMinLon) / cellSize));
+
+        // count, then fill, the sources in each cell
+        int[] counts = new int[numRows * numCols];
+        addSourcesToCells(counts, null);
+        cells = new int[counts.length][];
+        for (int c = 0; c < counts.length; c++) {
+            cells[c] = new int[counts[c]];
+            counts[c] = 0;
+        }
+        addSourcesToCells(counts, cells);
+
+        if (D)
+            System.out.println(C + ": " + numSources + " sources, " + numRows
+                    + "x" + numCols + " cells, " + numGlobal + " global");
+    }
+
+    // counts the sources in each cell and, if cellSources isn't null, lists
+    // them there (in ascending order)
+    private void addSourcesToCells(int[] counts, int[][] cellSources) {
+        int g = 0;
+        for (int s = 0; s < numSources; s++) {
+            if (g < globalSources.length && globalSources[g] == s) {
+                g++;
+                continue;
+            }
+            int row0 = row(minLats[s]), row1 = row(maxLats[s]);
+            int col0 = col(minLons[s]), col1 = col(maxLons[s]);
+            for (int row = row0; row <= row1; row++)
+                for (int col = col0; col <= col1; col++) {
+                    int c = row * numCols + col;
+                    if (cellSources != null)
+                        cellSources[c][counts[c]] = s;
+                    counts[c]++;
+                }
+        }
+    }
+
+    /**
+     * The number of sources in the ERF when the index was made.
+     *
+     * @return
+     */
+    public int getNumSources() {
+        return numSources;
+    }
+
+    /**
+     * This returns, in ascending order, the indices of the sources that may
+     * be within the given distance of the location; all sources whose
+     * getMinDistance() is no more than the distance are included.
+     *
+     * @param loc
+     * @param distance
+     *            in km
+     * @return
+     */
+    public int[] getCandidateSources(Location loc, double distance) {
+        double dLat = (distance + DISTANCE_SLACK) / KM_PER_DEGREE;
+        double lat = loc.getLatitude(), lon = loc.getLongitude();
+        double qMinLat = lat - dLat, qMaxLat = lat + dLat;
+        double maxAbsLat = Math.abs(lat) + dLat;
+        double qMinLon, qMaxLon;
+        if (maxAbsLat >= MAX_LAT_FOR_LON_WIDTH) {
+            qMinLon = -Double.MAX_VALUE;
+            qMaxLon = Double.MAX_VALUE;
+        } else {
+            double dLon = dLat / Math.cos(maxAbsLat * GeoTools.TO_RAD);
+            qMinLon = lon - dLon;
+            qMaxLon = lon + dLon;
+        }
+
+        int[] found = new int[16];
+        int numFound = 0;
+        for (int s : globalSources) {
+            if (numFound == found.length)
+                found = Arrays.copyOf(found, 2 * numFound);
+            found[numFound++] = s;
+        }
+
+        // longitudes are compared as they are and shifted by a full turn, so
+        // queries across the antimeridian find sources on the other side
+        for (double shift = -360; shift <= 360; shift += 360) {
+            double minLon = qMinLon + shift, maxLon = qMaxLon + shift;
+            if (numRows == 0 || qMaxLat < gridMinLat
+                    || qMinLat > gridMinLat + numRows * cellSize
+                    || maxLon < gridMinLon
+                    || minLon > gridMinLon + numCols * cellSize)
+                continue;
+            int row0 = row(qMinLat), row1 = row(qMaxLat);
+            int col0 = col(minLon), col1 = col(maxLon);
+            for (int row = row0; row <= row1; row++)
+                for (int col = col0; col <= col1; col++)
+                    for (int s : cells[row * numCols + col]) {
+                        if (maxLats[s] < qMinLat || minLats[s] > qMaxLat
+                                || maxLons[s] < minLon || minLons[s] > maxLon)
+                            continue;
+                        if (numFound == found.length)
+                            found = Arrays.copyOf(found, 2 * numFound);
+                        found[numFound++] = s;
+                    }
+        }
+
+        // sort and drop sources found in more than one cell
+        Arrays.sort(found, 0, numFound);
+        int numUnique = 0;
+        for (int i = 0; i < numFound; i++)
+            if (numUnique == 0 || found[i] != found[numUnique - 1])
+                found[numUnique++] = found[i];
+        return Arrays.copyOf(found, numUnique);
+    }
+
+    // sets the widened box of source s, returning false if it can't be put
+    // in the grid (no locations, or spanning all longitudes)
+    private boolean setSourceBox(int s, LocationList locs, double padding) {
+        if (locs == null || locs.size() == 0)
+            return false;
+        double minLat = Double.MAX_VALUE, maxLat = -Double.MAX_VALUE;
+        double minLon = Double.MAX_VALUE, maxLon = -Double.MAX_VALUE;
+        for (Location loc : locs) {
+            minLat = Math.min(minLat, loc.getLatitude());
+            maxLat = Math.max(maxLat, loc.getLatitude());
+            minLon = Math.min(minLon, loc.getLongitude());
+            maxLon = Math.max(maxLon, loc.getLongitude());
+        }
+        double dLat = padding / KM_PER_DEGREE;
+        double maxAbsLat = Math.max(Math.abs(minLat), Math.abs(maxLat)) + dLat;
+        if (maxAbsLat >= MAX_LAT_FOR_LON_WIDTH)
+            return false;
+        double dLon = dLat / Math.cos(maxAbsLat * GeoTools.TO_RAD);
+        minLats[s] = minLat - dLat;
+        maxLats[s] = maxLat + dLat;
+        minLons[s] = minLon - dLon;
+        maxLons[s] = maxLon + dLon;
+        return maxLons[s] - minLons[s] < 360;
+    }
+
+    private int row(double lat) {
+        int row = (int) Math.floor((lat - gridMinLat) / cellSize);
+        return Math.min(numRows - 1, Math.max(0, row));
+    }
+
+    private int col(double lon) {
+        int col = (int) Math.floor((lon - gridMinLon) / cellSize);
+        return Math.min(numCols - 1, Math.max(0, col));
+    }
+}
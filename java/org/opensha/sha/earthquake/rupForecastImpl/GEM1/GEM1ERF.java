@@ -1280,6 +1280,9 @@ public class GEM1ERF extends EqkRupForecast {
                     && subductionSourceDataList != null)
                 gemSourceDataList.addAll(subductionSourceDataList);
 
+            // the sources are made anew from the list above
+            clearSourceSpatialIndex();
+
             parameterChangeFlag = false;
         }
     }
@@ -0,0 +1,340 @@
+package org.opensha.sha.earthquake.rupForecastImpl.GEM1;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.commons.geo.BorderType;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.geo.LocationList;
+import org.opensha.commons.geo.Region;
+import org.opensha.sha.earthquake.FocalMechanism;
+import org.opensha.sha.earthquake.griddedForecast.HypoMagFreqDistAtLoc;
+import org.opensha.sha.earthquake.griddedForecast.MagFreqDistsForFocalMechs;
+import org.opensha.sha.earthquake.rupForecastImpl.GEM1.SourceData.GEMAreaSourceData;
+import org.opensha.sha.earthquake.rupForecastImpl.GEM1.SourceData.GEMFaultSourceData;
+import org.opensha.sha.earthquake.rupForecastImpl.GEM1.SourceData.GEMPointSourceData;
+import org.opensha.sha.earthquake.rupForecastImpl.GEM1.SourceData.GEMSourceData;
+import org.opensha.sha.earthquake.rupForecastImpl.GEM1.SourceData.GEMSubductionFaultSourceData;
+import org.opensha.sha.faultSurface.FaultTrace;
+import org.opensha.sha.magdist.GutenbergRichterMagFreqDist;
+import org.opensha.sha.magdist.IncrementalMagFreqDist;
+import org.opensha.sha.util.TectonicRegionType;
+
+/**
+ * <p>
+ * Title: SourceModelFileParser
+ * </p>
+ * <p>
+ * Description: Reads an ASCII source model file (such as the src_model*.dat
+ * files referenced by an ERF logic tree) into a list of GEMSourceData that can
+ * be given to GEM1ERF. Lines starting with "#" are comments, and blank lines
+ * and indentation are ignored. Each source starts with the keyword "newsource"
+ * followed, one per line, by its id, name, tectonic region type and typology
+ * ("area", "point", "fault" or "subduction") and then the parameters of that
+ * typology, in the order given in the example files. Magnitude-frequency
+ * distributions are given as "gr aGR bGR mMin mMax" (aGR being the cumulative
+ * a value) and are discretized into bins of the given width between mMin and
+ * mMax; an undefined strike, dip or rake is given as -999.
+ * </p>
+ */
+public class SourceModelFileParser {
+
+    protected final static String C = "SourceModelFileParser";
+    protected final static boolean D = false;
+
+    public final static String NEW_SOURCE = "newsource";
+    public final static String AREA = "area";
+    public final static String POINT = "point";
+    public final static String FAULT = "fault";
+    public final static String SUBDUCTION = "subduction";
+    public final static String GUTENBERG_RICHTER = "gr";
+
+    /** Default width of the magnitude bins of the MFDs */
+    public final static double DEFAULT_MFD_BIN_WIDTH = 0.1;
+
+    // value standing for an undefined strike, dip or rake
+    private final static double UNDEFINED = -999.0;
+
+    private final double mfdBinWidth;
+
+    // the lines of the file that aren't blank or comments
+    private List<String> lines;
+    private int lineIndex;
+    private String fileName;
+
+    public SourceModelFileParser() {
+        this(DEFAULT_MFD_BIN_WIDTH);
+    }
+
+    /**
+     * @param mfdBinWidth
+     *            width of the magnitude bins of the MFDs
+     */
+    public SourceModelFileParser(double mfdBinWidth) {
+        this.mfdBinWidth = mfdBinWidth;
+    }
+
+    /**
+     * This reads the sources in a source model file.
+     *
+     * @param file
+     * @return
+     */
+    public ArrayList<GEMSourceData> parse(File file) {
+        lines = readLines(file);
+        lineIndex = 0;
+        fileName = file.getPath();
+        ArrayList<GEMSourceData> sources = new ArrayList<GEMSourceData>();
+        while (lineIndex < lines.size()) {
+            String keyword = nextLine();
+            if (!keyword.equals(NEW_SOURCE))
+                throw parseError("expected " + NEW_SOURCE + " but found "
+                        + keyword);
+            sources.add(parseSource());
+        }
+        if (D)
+            System.out.println(C + ": " + sources.size() + " sources in "
+                    + file);
+        return sources;
+    }
+
+    /**
+     * This reads the lines of a file that aren't blank or comments (starting
+     * with "#"), with leading and trailing white space trimmed.
+     *
+     * @param file
+     * @return
+     */
+    public static List<String> readLines(File file) {
+        ArrayList<String> lines = new ArrayList<String>();
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.length() > 0 && !line.startsWith("#"))
+                        lines.add(line);
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return lines;
+    }
+
+    private GEMSourceData parseSource() {
+        String id = nextLine();
+        String name = nextLine();
+        String trtName = nextLine();
+        if (!TectonicRegionType.isValidType(trtName))
+            throw parseError("unknown tectonic region type " + trtName);
+        TectonicRegionType trt = TectonicRegionType.getTypeForName(trtName);
+        String typology = nextLine();
+        if (typology.equals(AREA))
+            return parseAreaSource(id, name, trt);
+        else if (typology.equals(POINT))
+            return parsePointSource(id, name, trt);
+        else if (typology.equals(FAULT))
+            return parseFaultSource(id, name, trt);
+        else if (typology.equals(SUBDUCTION))
+            return parseSubductionSource(id, name, trt);
+        else
+            throw parseError("unknown source typology " + typology);
+    }
+
+    private GEMAreaSourceData parseAreaSource(String id, String name,
+            TectonicRegionType trt) {
+        int numVertices = nextInt();
+        LocationList border = new LocationList();
+        for (int i = 0; i < numVertices; i++) {
+            double[] values = nextDoubles(2);
+            border.add(new Location(values[0], values[1]));
+        }
+        Region region = new Region(border, BorderType.GREAT_CIRCLE);
+        MagFreqDistsForFocalMechs mfds = parseMagFreqDistsForFocalMechs(null);
+        ArbitrarilyDiscretizedFunc aveRupTopVsMag = parseAveRupTopVsMag();
+        double aveHypoDepth = nextDoubles(1)[0];
+        return new GEMAreaSourceData(id, name, trt, region, mfds,
+                aveRupTopVsMag, aveHypoDepth);
+    }
+
+    private GEMPointSourceData parsePointSource(String id, String name,
+            TectonicRegionType trt) {
+        double[] values = nextDoubles(2);
+        Location loc = new Location(values[0], values[1]);
+        HypoMagFreqDistAtLoc mfds =
+                (HypoMagFreqDistAtLoc) parseMagFreqDistsForFocalMechs(loc);
+        ArbitrarilyDiscretizedFunc aveRupTopVsMag = parseAveRupTopVsMag();
+        double aveHypoDepth = nextDoubles(1)[0];
+        return new GEMPointSourceData(id, name, trt, mfds, aveRupTopVsMag,
+                aveHypoDepth);
+    }
+
+    private GEMFaultSourceData parseFaultSource(String id, String name,
+            TectonicRegionType trt) {
+        int numPoints = nextInt();
+        double[][] trace = new double[numPoints][];
+        for (int i = 0; i < numPoints; i++)
+            trace[i] = nextDoubles(2);
+        double dip = nextDoubles(1)[0];
+        double rake = nextDoubles(1)[0];
+        double seismDepthUpp = nextDoubles(1)[0];
+        double seismDepthLow = nextDoubles(1)[0];
+        FaultTrace faultTrace = new FaultTrace(name);
+        for (double[] point : trace)
+            faultTrace.add(new Location(point[0], point[1], seismDepthUpp));
+        IncrementalMagFreqDist mfd = parseMagFreqDist();
+        return new GEMFaultSourceData(id, name, trt, mfd, faultTrace, dip,
+                rake, seismDepthLow, seismDepthUpp, true);
+    }
+
+    private GEMSubductionFaultSourceData parseSubductionSource(String id,
+            String name, TectonicRegionType trt) {
+        FaultTrace topTrace = parseTraceWithDepths(name);
+        FaultTrace bottomTrace = parseTraceWithDepths(name);
+        double rake = nextDoubles(1)[0];
+        IncrementalMagFreqDist mfd = parseMagFreqDist();
+        return new GEMSubductionFaultSourceData(id, name, trt, topTrace,
+                bottomTrace, rake, mfd, true);
+    }
+
+    private FaultTrace parseTraceWithDepths(String name) {
+        int numPoints = nextInt();
+        FaultTrace trace = new FaultTrace(name);
+        for (int i = 0; i < numPoints; i++) {
+            double[] values = nextDoubles(3);
+            trace.add(new Location(values[0], values[1], values[2]));
+        }
+        return trace;
+    }
+
+    // the number of MFD-focal mechanism pairs followed by each MFD and focal
+    // mechanism (a HypoMagFreqDistAtLoc if loc isn't null)
+    private MagFreqDistsForFocalMechs parseMagFreqDistsForFocalMechs(
+            Location loc) {
+        int num = nextInt();
+        IncrementalMagFreqDist[] mfds = new IncrementalMagFreqDist[num];
+        FocalMechanism[] focalMechs = new FocalMechanism[num];
+        for (int i = 0; i < num; i++) {
+            mfds[i] = parseMagFreqDist();
+            double[] values = nextDoubles(3);
+            focalMechs[i] =
+                    new FocalMechanism(toAngle(values[0]), toAngle(values[1]),
+                            toAngle(values[2]));
+        }
+        if (loc != null)
+            return new HypoMagFreqDistAtLoc(mfds, loc, focalMechs);
+        return new MagFreqDistsForFocalMechs(mfds, focalMechs);
+    }
+
+    private IncrementalMagFreqDist parseMagFreqDist() {
+        String[] tokens = nextLine().split("\\s+");
+        if (!tokens[0].equals(GUTENBERG_RICHTER))
+            throw parseError("unsupported magnitude-frequency distribution "
+                    + tokens[0]);
+        if (tokens.length != 5)
+            throw parseError("expected " + GUTENBERG_RICHTER
+                    + " aGR bGR mMin mMax");
+        double aValue = parseDouble(tokens[1]);
+        double bValue = parseDouble(tokens[2]);
+        double mMin = parseDouble(tokens[3]);
+        double mMax = parseDouble(tokens[4]);
+        return getGutenbergRichterMagFreqDist(aValue, bValue, mMin, mMax,
+                mfdBinWidth);
+    }
+
+    /**
+     * This returns the Gutenberg-Richter distribution with the given
+     * cumulative a value and b value between mMin and mMax, in bins of the
+     * given width (centered from mMin + binWidth/2 to mMax - binWidth/2).
+     *
+     * @param aValue
+     *            the cumulative a value
+     * @param bValue
+     * @param mMin
+     * @param mMax
+     * @param binWidth
+     * @return
+     */
+    public static GutenbergRichterMagFreqDist getGutenbergRichterMagFreqDist(
+            double aValue, double bValue, double mMin, double mMax,
+            double binWidth) {
+        int num = (int) Math.round((mMax - mMin) / binWidth);
+        if (num < 1)
+            throw new RuntimeException(C + ": mMax (" + mMax
+                    + ") must be at least a bin above mMin (" + mMin + ")");
+        double totCumRate =
+                Math.pow(10.0, aValue - bValue * mMin)
+                        - Math.pow(10.0, aValue - bValue * mMax);
+        double min = mMin + binWidth / 2;
+        GutenbergRichterMagFreqDist mfd =
+                new GutenbergRichterMagFreqDist(min, num, binWidth);
+        mfd.setAllButTotMoRate(min, min + (num - 1) * binWidth, totCumRate,
+                bValue);
+        return mfd;
+    }
+
+    // pairs of magnitude and depth to top of rupture
+    private ArbitrarilyDiscretizedFunc parseAveRupTopVsMag() {
+        String[] tokens = nextLine().split("\\s+");
+        if (tokens.length % 2 != 0)
+            throw parseError("expected pairs of magnitude and depth");
+        ArbitrarilyDiscretizedFunc func = new ArbitrarilyDiscretizedFunc();
+        for (int i = 0; i < tokens.length; i += 2)
+            func.set(parseDouble(tokens[i]), parseDouble(tokens[i + 1]));
+        return func;
+    }
+
+    private static double toAngle(double value) {
+        return value == UNDEFINED ? Double.NaN : value;
+    }
+
+    private String nextLine() {
+        if (lineIndex >= lines.size())
+            throw new RuntimeException(C + ": unexpected end of " + fileName);
+        return lines.get(lineIndex++);
+    }
+
+    private int nextInt() {
+        String line = nextLine();
+        try {
+            return Integer.parseInt(line);
+        } catch (NumberFormatException e) {
+            lineIndex--;
+            throw parseError("expected an integer but found " + line);
+        }
+    }
+
+    private double[] nextDoubles(int num) {
+        String[] tokens = nextLine().split("\\s+");
+        if (tokens.length < num) {
+            lineIndex--;
+            throw parseError("expected " + num + " numbers");
+        }
+        double[] values = new double[num];
+        for (int i = 0; i < num; i++)
+            values[i] = parseDouble(tokens[i]);
+        return values;
+    }
+
+    private double parseDouble(String token) {
+        try {
+            return Double.parseDouble(token);
+        } catch (NumberFormatException e) {
+            throw parseError("expected a number but found " + token);
+        }
+    }
+
+    private RuntimeException parseError(String message) {
+        return new RuntimeException(C + ": " + message + " (" + fileName
+                + ", line " + lineIndex + " of its non-comment lines)");
+    }
+}
@@ -259,6 +259,14 @@ public class GriddedRegionPoissonEqkSource extends ProbEqkSource implements
         return ((Region) region).distanceToLocation(site.getLocation());
     }
 
+    /**
+     * The border of the region (the nodes can lie inside it).
+     */
+    @Override
+    public LocationList getExtentLocs() {
+        return region.getBorder();
+    }
+
     /**
      * get the name of this class
      * 
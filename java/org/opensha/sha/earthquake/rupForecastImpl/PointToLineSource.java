@@ -448,6 +448,24 @@ public class PointToLineSource extends ProbEqkSource implements
                 - maxLength / 2;
     }
 
+    /**
+     * The point location (getMinDistance() is measured to this).
+     */
+    @Override
+    public LocationList getExtentLocs() {
+        LocationList locList = new LocationList();
+        locList.add(location);
+        return locList;
+    }
+
+    /**
+     * Half the length of the longest rupture (see getMinDistance()).
+     */
+    @Override
+    public double getExtentPadding() {
+        return maxLength / 2;
+    }
+
     /**
      * get the name of this class
      * 
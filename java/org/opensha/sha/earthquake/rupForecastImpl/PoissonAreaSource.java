@@ -327,4 +327,13 @@ public class PoissonAreaSource extends PointToLineSource implements
 		return dist;
 	}
 
+	/**
+	 * The border of the region (the padding is half the length of the
+	 * longest rupture, as for the parent class).
+	 */
+	@Override
+	public LocationList getExtentLocs() {
+		return reg.getBorder();
+	}
+
 }
@@ -403,6 +403,30 @@ ScalarIntensityMeasureRelationshipAPI {
 		USER_MAX_DISTANCE = maxDist;
 	}
 
+	/**
+	 * This picks the standard deviation of the given type from the output of
+	 * PrimitiveIMR_API.compute(), for the getStdDev() of IMRs that adapt their
+	 * parameters to it.
+	 *
+	 * @param meanSigma
+	 *            output of compute() with all the standard deviations
+	 * @param stdDevType
+	 *            value of the StdDevTypeParam
+	 * @return the standard deviation, 0 for none or NaN for an unknown type
+	 */
+	protected static double getStdDev(double[] meanSigma, String stdDevType) {
+		if (stdDevType.equals(StdDevTypeParam.STD_DEV_TYPE_TOTAL))
+			return meanSigma[PrimitiveIMR_API.STD_DEV_TOTAL];
+		else if (stdDevType.equals(StdDevTypeParam.STD_DEV_TYPE_NONE))
+			return 0;
+		else if (stdDevType.equals(StdDevTypeParam.STD_DEV_TYPE_INTER))
+			return meanSigma[PrimitiveIMR_API.STD_DEV_INTER];
+		else if (stdDevType.equals(StdDevTypeParam.STD_DEV_TYPE_INTRA))
+			return meanSigma[PrimitiveIMR_API.STD_DEV_INTRA];
+		else
+			return Double.NaN;
+	}
+
 	/**
 	 * Sets the value of the currently selected intensityMeasure (if the value
 	 * is allowed); this will reject anything that is not a Double.
@@ -594,7 +618,7 @@ ScalarIntensityMeasureRelationshipAPI {
 	 * @throws ParameterException
 	 * @throws IMRException
 	 */
-	protected double
+	public double
 	getExceedProbability(double mean, double stdDev, double iml)
 			throws ParameterException, IMRException {
 
@@ -640,8 +664,28 @@ ScalarIntensityMeasureRelationshipAPI {
 			DiscretizedFuncAPI intensityMeasureLevels)
 					throws ParameterException {
 
-		double stdDev = getStdDev();
-		double mean = getMean();
+		return getExceedProbabilities(intensityMeasureLevels, getMean(),
+				getStdDev());
+	}
+
+	/**
+	 * This fills in the exceedance probabilities for multiple
+	 * intensityMeasure levels as getExceedProbabilities(DiscretizedFuncAPI)
+	 * does, but for the given mean and stdDev (those already computed from the
+	 * current independent parameter values, e.g. by a caller that has looked
+	 * at them first).
+	 * 
+	 * @param intensityMeasureLevels
+	 *            The function to be filled in
+	 * @param mean
+	 * @param stdDev
+	 * @return The function filled in
+	 * @exception ParameterException
+	 *                Description of the Exception
+	 */
+	public DiscretizedFuncAPI getExceedProbabilities(
+			DiscretizedFuncAPI intensityMeasureLevels, double mean,
+			double stdDev) throws ParameterException {
 
 		Iterator it = intensityMeasureLevels.getPointsIterator();
 		while (it.hasNext()) {
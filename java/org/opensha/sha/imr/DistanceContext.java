@@ -0,0 +1,39 @@
+package org.opensha.sha.imr;
+
+/**
+ * <p>
+ * Title: DistanceContext
+ * </p>
+ * <p>
+ * Description: The distances from a site to a rupture used by a
+ * PrimitiveIMR_API, as plain values (km).
+ * </p>
+ */
+public class DistanceContext {
+
+    /** Closest distance to the rupture */
+    public double rRup;
+
+    /** Closest distance to the surface projection of the rupture */
+    public double rJB;
+
+    /**
+     * Horizontal distance from the top edge of the rupture, measured
+     * perpendicular to strike: positive on the hanging wall side, negative on
+     * the footwall side (-0.0 is on the footwall side, right at the edge)
+     */
+    public double rX;
+
+    /**
+     * This sets the distances from a PropagationEffect whose site and rupture
+     * are set (the IMRs that need rJB to be exactly 0 above the rupture set
+     * fixDistanceJB() on their own).
+     *
+     * @param propagationEffect
+     */
+    public void setDistances(PropagationEffect propagationEffect) {
+        rRup = propagationEffect.getDistanceRup();
+        rJB = propagationEffect.getDistanceJB();
+        rX = propagationEffect.getDistanceX();
+    }
+}
@@ -0,0 +1,84 @@
+package org.opensha.sha.imr;
+
+/**
+ * <p>
+ * Title: PrimitiveIMR_API
+ * </p>
+ * <p>
+ * Description: A stateless form of an IMR, which computes the mean and
+ * standard deviations straight from plain rupture, site and distance values
+ * instead of through its parameters (whose change events and listeners are
+ * bypassed). compute() doesn't change the IMR, so one instance can be used by
+ * any number of threads at once, and the inputs can be reused and changed
+ * freely between calls. The parameter-based methods of the IMRs that
+ * implement this (getMean(), getStdDev()) are adapters to compute().
+ * </p>
+ * <p>
+ * Unlike getMean(), compute() doesn't apply the user's maximum distance, and
+ * it gives the standard deviations of the IMR's default component.
+ * </p>
+ * <p>
+ * For many sites of one rupture, the batch form of compute() works through
+ * parallel arrays (SitesContext) in one loop, computing the terms that depend
+ * only on the rupture (such as magnitude scaling and style of faulting) once.
+ * </p>
+ */
+public interface PrimitiveIMR_API {
+
+    /** Index in the output of the mean (natural log units) */
+    public final static int MEAN = 0;
+
+    /** Index in the output of the total standard deviation */
+    public final static int STD_DEV_TOTAL = 1;
+
+    /** Index in the output of the inter-event standard deviation */
+    public final static int STD_DEV_INTER = 2;
+
+    /** Index in the output of the intra-event standard deviation */
+    public final static int STD_DEV_INTRA = 3;
+
+    /**
+     * This returns the index of an intensity measure type for compute().
+     *
+     * @param imName
+     *            name of the intensity measure parameter (e.g. SA_Param.NAME)
+     * @param period
+     *            SA period (ignored for other intensity measures)
+     * @return
+     * @throws RuntimeException
+     *             if the intensity measure isn't supported
+     */
+    public int getIMT_Index(String imName, double period);
+
+    /**
+     * This computes the mean and standard deviations for the given inputs.
+     *
+     * @param rupture
+     * @param site
+     * @param distances
+     * @param imtIndex
+     *            from getIMT_Index()
+     * @param outMeanSigma
+     *            where the values are put, at MEAN, STD_DEV_TOTAL,
+     *            STD_DEV_INTER and STD_DEV_INTRA (as many as it has room for)
+     */
+    public void compute(RuptureContext rupture, SiteContext site,
+            DistanceContext distances, int imtIndex, double[] outMeanSigma);
+
+    /**
+     * This computes the means and total standard deviations at many sites of
+     * one rupture; the values are those compute() gives for each site.
+     *
+     * @param rupture
+     * @param sites
+     * @param imtIndex
+     *            from getIMT_Index()
+     * @param outMean
+     *            where the means are put (as long as sites)
+     * @param outSigma
+     *            where the total standard deviations are put (as long as
+     *            sites), or null if they aren't needed
+     */
+    public void compute(RuptureContext rupture, SitesContext sites,
+            int imtIndex, double[] outMean, double[] outSigma);
+}
@@ -0,0 +1,52 @@
+package org.opensha.sha.imr;
+
+import org.opensha.sha.earthquake.EqkRupture;
+import org.opensha.sha.faultSurface.EvenlyGriddedSurfaceAPI;
+
+/**
+ * <p>
+ * Title: RuptureContext
+ * </p>
+ * <p>
+ * Description: The rupture inputs of a PrimitiveIMR_API, as plain values.
+ * Each IMR uses the ones it needs and classifies the style of faulting from
+ * the rake itself (a rake of NaN is unknown, for the IMRs that allow that).
+ * </p>
+ */
+public class RuptureContext {
+
+    /** Moment magnitude */
+    public double mag;
+
+    /** Average rake (degrees) */
+    public double rake;
+
+    /** Average dip (degrees) */
+    public double dip;
+
+    /** Depth to the top of the rupture (km) */
+    public double zTor;
+
+    /** Down-dip width of the rupture (km) */
+    public double width;
+
+    /** Whether the rupture is an aftershock */
+    public boolean aftershock;
+
+    /**
+     * This sets the values from a rupture, as the IMRs' setEqkRupture() do
+     * (the depth of the first point of the surface is taken as the depth to
+     * top, and the rupture is not an aftershock).
+     *
+     * @param eqkRupture
+     */
+    public void setRupture(EqkRupture eqkRupture) {
+        EvenlyGriddedSurfaceAPI surface = eqkRupture.getRuptureSurface();
+        mag = eqkRupture.getMag();
+        rake = eqkRupture.getAveRake();
+        dip = surface.getAveDip();
+        zTor = surface.getLocation(0, 0).getDepth();
+        width = surface.getSurfaceWidth();
+        aftershock = false;
+    }
+}
@@ -0,0 +1,60 @@
+package org.opensha.sha.imr;
+
+import org.opensha.commons.data.Site;
+import org.opensha.sha.imr.param.SiteParams.DepthTo1pt0kmPerSecParam;
+import org.opensha.sha.imr.param.SiteParams.DepthTo2pt5kmPerSecParam;
+import org.opensha.sha.imr.param.SiteParams.Vs30_Param;
+import org.opensha.sha.imr.param.SiteParams.Vs30_TypeParam;
+
+/**
+ * <p>
+ * Title: SiteContext
+ * </p>
+ * <p>
+ * Description: The site inputs of a PrimitiveIMR_API, as plain values. An
+ * unknown basin depth is NaN, in which case the IMRs that use it estimate it
+ * from Vs30.
+ * </p>
+ */
+public class SiteContext {
+
+    /** Average shear-wave velocity in the top 30 m (m/sec) */
+    public double vs30;
+
+    /** Whether Vs30 was measured (rather than inferred) */
+    public boolean vs30Measured;
+
+    /** Depth to a shear-wave velocity of 1.0 km/sec (m), or NaN */
+    public double z1p0 = Double.NaN;
+
+    /** Depth to a shear-wave velocity of 2.5 km/sec (km), or NaN */
+    public double z2p5 = Double.NaN;
+
+    /**
+     * This sets the values from the parameters of a site; those it doesn't
+     * have are left as they are.
+     *
+     * @param site
+     */
+    public void setSite(Site site) {
+        if (site.containsParameter(Vs30_Param.NAME))
+            vs30 = (Double) site.getParameter(Vs30_Param.NAME).getValue();
+        if (site.containsParameter(Vs30_TypeParam.NAME))
+            vs30Measured =
+                    Vs30_TypeParam.Vs30Type.Measured.toString().equals(
+                            site.getParameter(Vs30_TypeParam.NAME).getValue());
+        if (site.containsParameter(DepthTo1pt0kmPerSecParam.NAME))
+            z1p0 =
+                    getValue(site.getParameter(DepthTo1pt0kmPerSecParam.NAME)
+                            .getValue());
+        if (site.containsParameter(DepthTo2pt5kmPerSecParam.NAME))
+            z2p5 =
+                    getValue(site.getParameter(DepthTo2pt5kmPerSecParam.NAME)
+                            .getValue());
+    }
+
+    // the value of a Double parameter, NaN for null
+    private static double getValue(Object value) {
+        return value == null ? Double.NaN : (Double) value;
+    }
+}
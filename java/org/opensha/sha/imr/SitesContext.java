@@ -0,0 +1,83 @@
+package org.opensha.sha.imr;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Title: SitesContext
+ * </p>
+ * <p>
+ * Description: The site and distance inputs of a PrimitiveIMR_API for many
+ * sites of one rupture, as parallel arrays (element i of each is site i). The
+ * values mean what those of SiteContext and DistanceContext do.
+ * </p>
+ */
+public class SitesContext {
+
+    /** Average shear-wave velocity in the top 30 m (m/sec) */
+    public final double[] vs30;
+
+    /** Whether Vs30 was measured (rather than inferred) */
+    public final boolean[] vs30Measured;
+
+    /** Depth to a shear-wave velocity of 1.0 km/sec (m), or NaN */
+    public final double[] z1p0;
+
+    /** Depth to a shear-wave velocity of 2.5 km/sec (km), or NaN */
+    public final double[] z2p5;
+
+    /** Closest distance to the rupture (km) */
+    public final double[] rRup;
+
+    /** Closest distance to the surface projection of the rupture (km) */
+    public final double[] rJB;
+
+    /**
+     * Horizontal distance from the top edge of the rupture (km), signed as in
+     * DistanceContext
+     */
+    public final double[] rX;
+
+    /**
+     * This creates the arrays for a number of sites, with unknown basin
+     * depths.
+     *
+     * @param numSites
+     */
+    public SitesContext(int numSites) {
+        vs30 = new double[numSites];
+        vs30Measured = new boolean[numSites];
+        z1p0 = new double[numSites];
+        z2p5 = new double[numSites];
+        rRup = new double[numSites];
+        rJB = new double[numSites];
+        rX = new double[numSites];
+        Arrays.fill(z1p0, Double.NaN);
+        Arrays.fill(z2p5, Double.NaN);
+    }
+
+    /**
+     * @return the number of sites
+     */
+    public int size() {
+        return vs30.length;
+    }
+
+    /**
+     * This sets the values of one site.
+     *
+     * @param index
+     * @param site
+     * @param distances
+     *            from the site to the rupture
+     */
+    public void set(int index, SiteContext site, DistanceContext distances) {
+        vs30[index] = site.vs30;
+        vs30Measured[index] = site.vs30Measured;
+        z1p0[index] = site.z1p0;
+        z2p5[index] = site.z2p5;
+        rRup[index] = distances.rRup;
+        rJB[index] = distances.rJB;
+        rX[index] = distances.rX;
+    }
+}
@@ -41,8 +41,13 @@ import org.opensha.sha.faultSurface.EvenlyGriddedSurfaceAPI;
 import org.opensha.sha.faultSurface.FaultTrace;
 import org.opensha.sha.faultSurface.StirlingGriddedSurface;
 import org.opensha.sha.imr.AttenuationRelationship;
+import org.opensha.sha.imr.DistanceContext;
+import org.opensha.sha.imr.PrimitiveIMR_API;
 import org.opensha.sha.imr.PropagationEffect;
+import org.opensha.sha.imr.RuptureContext;
 import org.opensha.sha.imr.ScalarIntensityMeasureRelationshipAPI;
+import org.opensha.sha.imr.SiteContext;
+import org.opensha.sha.imr.SitesContext;
 import org.opensha.sha.imr.param.EqkRuptureParams.AftershockParam;
 import org.opensha.sha.imr.param.EqkRuptureParams.DipParam;
 import org.opensha.sha.imr.param.EqkRuptureParams.FaultTypeParam;
@@ -121,6 +126,11 @@ import org.opensha.sha.imr.param.SiteParams.Vs30_TypeParam.Vs30Type;
  * AS_2008_test; and 2) by the test class NGA08_Site_EqkRup_Tests, which makes
  * sure parameters are set properly when Site and EqkRupture objects are passed
  * in.
+ * <p>
+ * The model is computed by compute() (see PrimitiveIMR_API), from plain
+ * rupture, site and distance values; getMean() and getStdDev() copy the
+ * parameters into those values and keep the result until a parameter
+ * changes.
  * 
  * @author Christine Goulet & Ned Field
  * @created 2008
@@ -129,7 +139,7 @@ import org.opensha.sha.imr.param.SiteParams.Vs30_TypeParam.Vs30Type;
 
 public class AS_2008_AttenRel extends AttenuationRelationship implements
         ScalarIntensityMeasureRelationshipAPI, NamedObjectAPI,
-        ParameterChangeListener {
+        ParameterChangeListener, PrimitiveIMR_API {
 
     // Name of IMR
     public final static String NAME = "Abrahamson & Silva (2008)";
@@ -159,15 +169,64 @@ public class AS_2008_AttenRel extends AttenuationRelationship implements
     // primitive form of parameters
     private int iper;
     double mag, f_rv, f_nm, depthTop, rupWidth, dip, f_as, f_hw;
-    double vs30, vsm, depthTo1pt0kmPerSec, pga_rock;
+    double vs30, vsm, depthTo1pt0kmPerSec;
     private double rRup, distRupMinusJB_OverRup, distRupMinusDistX_OverRup;
     private String component, stdDevType;
 
-    private boolean parameterChange, rock_pga_is_not_fresh;
+    private boolean parameterChange = true;
+
+    // the parameters as compute() inputs, and its output for them
+    private final RuptureContext rupContext = new RuptureContext();
+    private final SiteContext siteContext = new SiteContext();
+    private final DistanceContext distContext = new DistanceContext();
+    private final double[] meanSigma = new double[4];
+
+    // the arrays compute() works in, one set for each thread as compute() can
+    // be called by many threads at once
+    private final static ThreadLocal<RuptureTerms> computeScratch =
+            new ThreadLocal<RuptureTerms>() {
+                @Override
+                protected RuptureTerms initialValue() {
+                    return new RuptureTerms();
+                }
+            };
+
+    // Coefficients, read from AS_2008_CoeffFile when the class is loaded and
+    // shared by all instances (so they must never be changed)
+    private final static double[] per, VLIN, b, a1, a2, a8, a10, a12, a13,
+            a14, a15, a16, a18, s1e, s2e, s1m, s2m, s3, s4, rho;
+
+    // index in the coefficient arrays of each SA period
+    private final static HashMap<Double, Integer> indexFromPerHashMap;
+
+    static {
+        double[][] coeff = readCoeffFile();
+        per = coeff[0];
+        VLIN = coeff[1];
+        b = coeff[2];
+        a1 = coeff[3];
+        a2 = coeff[4];
+        a8 = coeff[5];
+        a10 = coeff[6];
+        a12 = coeff[7];
+        a13 = coeff[8];
+        a14 = coeff[9];
+        a15 = coeff[10];
+        a16 = coeff[11];
+        a18 = coeff[12];
+        s1e = coeff[13];
+        s2e = coeff[14];
+        s1m = coeff[15];
+        s2m = coeff[16];
+        s3 = coeff[17];
+        s4 = coeff[18];
+        rho = coeff[19];
 
-    // Local variables declaration
-    double[] per, VLIN, b, a1, a2, a8, a10, a12, a13, a14, a15, a16, a18, s1e,
-            s2e, s1m, s2m, s3, s4, rho;
+        indexFromPerHashMap = new HashMap<Double, Integer>();
+        for (int i = 2; i < per.length; i++) {
+            indexFromPerHashMap.put(new Double(per[i]), new Integer(i));
+        }
+    }
 
     double c1 = 6.75;
     double c4 = 4.5;
@@ -178,8 +237,6 @@ public class AS_2008_AttenRel extends AttenuationRelationship implements
     double c = 1.88;
     double c2 = 50.0;
 
-    private final HashMap<Double, Integer> indexFromPerHashMap;
-
     private final PropagationEffect propagationEffect;
 
     // values for warning parameters
@@ -215,12 +272,7 @@ public class AS_2008_AttenRel extends AttenuationRelationship implements
         super();
 
         this.warningListener = warningListener;
-        readCoeffFile();
         initSupportedIntensityMeasureParams();
-        indexFromPerHashMap = new HashMap<Double, Integer>();
-        for (int i = 2; i < per.length; i++) {
-            indexFromPerHashMap.put(new Double(per[i]), new Integer(i));
-        }
 
         initEqkRuptureParams();
         initSiteParams();
@@ -240,213 +292,27 @@ public class AS_2008_AttenRel extends AttenuationRelationship implements
         setParamDefaults();
     }
 
-    @SuppressWarnings("unchecked")
-    private void readCoeffFile() {
+    // reads each line of the coefficient file (a name followed by the value
+    // for each period) into a row of the returned array
+    private static double[][] readCoeffFile() {
         try {
-            // ArrayList<String> coeff=
-            // FileUtils.loadJarFile(AS_2008_CoeffFile);
-            ArrayList<String> coeff =
-                    FileUtils.loadFile(this.getClass().getResource(
-                            AS_2008_CoeffFile));
-            // reading the Period
-            String perLine = coeff.get(0);
-            ArrayList<Double> period = new ArrayList<Double>();
-            StringTokenizer st = new StringTokenizer(perLine);
-            int size = loadCoeffInArray(st, period);
-            per = new double[size];
-            this.createCoeffArray(period, per);
-            period = null;
-
-            // reading VLIN
-            String VLINLine = coeff.get(1);
-            ArrayList<Double> VLINList = new ArrayList<Double>();
-            st = new StringTokenizer(VLINLine);
-            size = loadCoeffInArray(st, VLINList);
-            VLIN = new double[size];
-            this.createCoeffArray(VLINList, VLIN);
-            VLINList = null;
-
-            // reading b
-            String bLine = coeff.get(2);
-            ArrayList<Double> bList = new ArrayList<Double>();
-            st = new StringTokenizer(bLine);
-            size = loadCoeffInArray(st, bList);
-            b = new double[size];
-            this.createCoeffArray(bList, b);
-            bList = null;
-
-            // reading a1
-            String a1Line = coeff.get(3);
-            ArrayList<Double> a1List = new ArrayList<Double>();
-            st = new StringTokenizer(a1Line);
-            size = loadCoeffInArray(st, a1List);
-            a1 = new double[size];
-            this.createCoeffArray(a1List, a1);
-            a1List = null;
-
-            // reading a2
-            String a2Line = coeff.get(4);
-            ArrayList<Double> a2List = new ArrayList<Double>();
-            st = new StringTokenizer(a2Line);
-            size = loadCoeffInArray(st, a2List);
-            a2 = new double[size];
-            this.createCoeffArray(a2List, a2);
-            a2List = null;
-
-            // reading a8
-            String a8Line = coeff.get(5);
-            ArrayList<Double> a8List = new ArrayList<Double>();
-            st = new StringTokenizer(a8Line);
-            size = loadCoeffInArray(st, a8List);
-            a8 = new double[size];
-            this.createCoeffArray(a8List, a8);
-            a8List = null;
-
-            // reading a10
-            String a10Line = coeff.get(6);
-            ArrayList<Double> a10List = new ArrayList<Double>();
-            st = new StringTokenizer(a10Line);
-            size = loadCoeffInArray(st, a10List);
-            a10 = new double[size];
-            this.createCoeffArray(a10List, a10);
-            a10List = null;
-
-            // reading a12
-            String a12Line = coeff.get(7);
-            ArrayList<Double> a12List = new ArrayList<Double>();
-            st = new StringTokenizer(a12Line);
-            size = loadCoeffInArray(st, a12List);
-            a12 = new double[size];
-            this.createCoeffArray(a12List, a12);
-            a12List = null;
-
-            // reading a13
-            String a13Line = coeff.get(8);
-            ArrayList<Double> a13List = new ArrayList<Double>();
-            st = new StringTokenizer(a13Line);
-            size = loadCoeffInArray(st, a13List);
-            a13 = new double[size];
-            this.createCoeffArray(a13List, a13);
-            a13List = null;
-
-            // reading a14
-            String a14Line = coeff.get(9);
-            ArrayList<Double> a14List = new ArrayList<Double>();
-            st = new StringTokenizer(a14Line);
-            size = loadCoeffInArray(st, a14List);
-            a14 = new double[size];
-            this.createCoeffArray(a14List, a14);
-            a14List = null;
-
-            // reading a15
-            String a15Line = coeff.get(10);
-            ArrayList<Double> a15List = new ArrayList<Double>();
-            st = new StringTokenizer(a15Line);
-            size = loadCoeffInArray(st, a15List);
-            a15 = new double[size];
-            this.createCoeffArray(a15List, a15);
-            a15List = null;
-
-            // reading a16
-            String a16Line = coeff.get(11);
-            ArrayList<Double> a16List = new ArrayList<Double>();
-            st = new StringTokenizer(a16Line);
-            size = loadCoeffInArray(st, a16List);
-            a16 = new double[size];
-            this.createCoeffArray(a16List, a16);
-            a16List = null;
-
-            // reading a18
-            String a18Line = coeff.get(12);
-            ArrayList<Double> a18List = new ArrayList<Double>();
-            st = new StringTokenizer(a18Line);
-            size = loadCoeffInArray(st, a18List);
-            a18 = new double[size];
-            this.createCoeffArray(a18List, a18);
-            a18List = null;
-
-            // reading s1e
-            String s1eLine = coeff.get(13);
-            ArrayList<Double> s1eList = new ArrayList<Double>();
-            st = new StringTokenizer(s1eLine);
-            size = loadCoeffInArray(st, s1eList);
-            s1e = new double[size];
-            this.createCoeffArray(s1eList, s1e);
-            s1eList = null;
-
-            // reading s2e
-            String s2eLine = coeff.get(14);
-            ArrayList<Double> s2eList = new ArrayList<Double>();
-            st = new StringTokenizer(s2eLine);
-            size = loadCoeffInArray(st, s2eList);
-            s2e = new double[size];
-            this.createCoeffArray(s2eList, s2e);
-            s2eList = null;
-
-            // reading s1m
-            String s1mLine = coeff.get(15);
-            ArrayList<Double> s1mList = new ArrayList<Double>();
-            st = new StringTokenizer(s1mLine);
-            size = loadCoeffInArray(st, s1mList);
-            s1m = new double[size];
-            this.createCoeffArray(s1mList, s1m);
-            s1mList = null;
-
-            // reading s2m
-            String s2mLine = coeff.get(16);
-            ArrayList<Double> s2mList = new ArrayList<Double>();
-            st = new StringTokenizer(s2mLine);
-            size = loadCoeffInArray(st, s2mList);
-            s2m = new double[size];
-            this.createCoeffArray(s2mList, s2m);
-            s2mList = null;
-
-            // reading s3
-            String s3Line = coeff.get(17);
-            ArrayList<Double> s3List = new ArrayList<Double>();
-            st = new StringTokenizer(s3Line);
-            size = loadCoeffInArray(st, s3List);
-            s3 = new double[size];
-            this.createCoeffArray(s3List, s3);
-            s3List = null;
-
-            // reading s4
-            String s4Line = coeff.get(18);
-            ArrayList<Double> s4List = new ArrayList<Double>();
-            st = new StringTokenizer(s4Line);
-            size = loadCoeffInArray(st, s4List);
-            s4 = new double[size];
-            this.createCoeffArray(s4List, s4);
-            s4List = null;
-
-            // reading rho
-            String rho_sLine = coeff.get(19);
-            ArrayList<Double> rho_sList = new ArrayList<Double>();
-            st = new StringTokenizer(rho_sLine);
-            size = loadCoeffInArray(st, rho_sList);
-            rho = new double[size];
-            this.createCoeffArray(rho_sList, rho);
-            rho_sList = null;
-
+            ArrayList<String> lines =
+                    FileUtils.loadFile(AS_2008_AttenRel.class
+                            .getResource(AS_2008_CoeffFile));
+            double[][] coeff = new double[lines.size()][];
+            for (int i = 0; i < coeff.length; i++) {
+                StringTokenizer st = new StringTokenizer(lines.get(i));
+                st.nextToken();
+                coeff[i] = new double[st.countTokens()];
+                for (int j = 0; j < coeff[i].length; j++)
+                    coeff[i][j] = Double.parseDouble(st.nextToken().trim());
+            }
+            return coeff;
         } catch (Exception e) {
             throw new RuntimeException(AS_2008_CoeffFile + " file Not Found", e);
-            // System.out.println(AS_2008_CoeffFile+" file Not Found");
-            // e.printStackTrace();
         }
     }
 
-    private int loadCoeffInArray(StringTokenizer st, ArrayList<Double> coeff) {
-        st.nextToken();
-        while (st.hasMoreTokens())
-            coeff.add(Double.parseDouble(st.nextToken().trim()));
-        return coeff.size();
-    }
-
-    private void createCoeffArray(ArrayList<Double> coeff, double c[]) {
-        for (int i = 0; i < c.length; ++i)
-            c[i] = coeff.get(i);
-    }
-
     /**
      * This sets the eqkRupture related parameters (magParam and fltTypeParam)
      * based on the eqkRupture passed in. The internally held eqkRupture object
@@ -599,17 +465,141 @@ public class AS_2008_AttenRel extends AttenuationRelationship implements
             setCoeffIndex(); // intensityMeasureChanged is set to false in this
                              // method
         }
+        updateMeanSigma();
+        return meanSigma[MEAN];
+    }
+
+    /**
+     * @return The stdDev value
+     */
+    @Override
+    public double getStdDev() {
+
+        if (intensityMeasureChanged) {
+            setCoeffIndex(); // intensityMeasureChanged is set to false in this
+                             // method
+        }
+        updateMeanSigma();
+        return getStdDev(meanSigma, stdDevType);
+    }
 
-        double rJB = rRup - distRupMinusJB_OverRup * rRup;
+    // recomputes the mean and standard deviations if a parameter has changed
+    private void updateMeanSigma() {
+        if (!parameterChange)
+            return;
+        rupContext.mag = mag;
+        rupContext.rake = f_rv == 1 ? 90 : (f_nm == 1 ? -90 : 0);
+        rupContext.dip = dip;
+        rupContext.zTor = depthTop;
+        rupContext.width = rupWidth;
+        rupContext.aftershock = f_as == 1;
+        siteContext.vs30 = vs30;
+        siteContext.vs30Measured = vsm == 1;
+        siteContext.z1p0 = depthTo1pt0kmPerSec;
+        distContext.rRup = rRup;
+        distContext.rJB = rRup - distRupMinusJB_OverRup * rRup;
         double rX = rRup - distRupMinusDistX_OverRup * rRup;
+        distContext.rX = hangingWallFlagParam.getValue() ? rX : -rX;
+        compute(rupContext, siteContext, distContext, iper, meanSigma);
+        parameterChange = false;
+    }
+
+    public int getIMT_Index(String imName, double period) {
+        if (imName.equals(PGV_Param.NAME))
+            return 0;
+        if (imName.equals(PGA_Param.NAME))
+            return 1;
+        Integer index = null;
+        if (imName.equals(SA_Param.NAME))
+            index = indexFromPerHashMap.get(period);
+        if (index == null)
+            throw new RuntimeException(C + ": " + imName + " (" + period
+                    + ") is not supported");
+        return index;
+    }
+
+    /**
+     * This computes the model from the magnitude, rake, dip, depth to top,
+     * width and whether it is an aftershock, Vs30, whether it was measured and
+     * depth to 1.0 km/sec (if it is NaN, it is estimated from Vs30), and rRup,
+     * rJB and rX (the sign of which says whether the site is on the hanging
+     * wall).
+     */
+    public void compute(RuptureContext rupture, SiteContext site,
+            DistanceContext distances, int iper, double[] outMeanSigma) {
+        RuptureTerms terms = computeScratch.get();
+        setRuptureTerms(iper, rupture, terms);
+        compute(iper, terms, rupture, site.vs30, site.vs30Measured, site.z1p0,
+                distances.rRup, distances.rJB, distances.rX, outMeanSigma);
+    }
+
+    /**
+     * Td and the terms of the mean that depend only on the rupture (magnitude
+     * scaling, style of faulting, aftershock and depth to top terms, and the
+     * rupture factors of the hanging wall and large distance terms) are
+     * computed once.
+     */
+    public void compute(RuptureContext rupture, SitesContext sites, int iper,
+            double[] outMean, double[] outSigma) {
+        RuptureTerms terms = computeScratch.get();
+        setRuptureTerms(iper, rupture, terms);
+        double[] meanSigma = outSigma == null ? terms.mean : terms.meanSigma;
+        for (int i = 0; i < sites.size(); i++) {
+            compute(iper, terms, rupture, sites.vs30[i],
+                    sites.vs30Measured[i], sites.z1p0[i], sites.rRup[i],
+                    sites.rJB[i], sites.rX[i], meanSigma);
+            outMean[i] = meanSigma[MEAN];
+            if (outSigma != null)
+                outSigma[i] = meanSigma[STD_DEV_TOTAL];
+        }
+    }
+
+    // puts the rupture terms of a rupture context in terms
+    private void setRuptureTerms(int iper, RuptureContext rupture,
+            RuptureTerms terms) {
+        double mag = rupture.mag, dip = rupture.dip;
+        double depthTop = rupture.zTor, rupWidth = rupture.width;
+        double f_rv = 0, f_nm = 0;
+        if (rupture.rake > 30 && rupture.rake < 150)
+            f_rv = 1;
+        else if (rupture.rake > -150 && rupture.rake < -30)
+            f_nm = 1;
+        double f_as = rupture.aftershock ? 1 : 0;
 
         // Returns the index of the period just below Td (Eq. 21)
-        double Td = Math.pow(10, -1.25 + 0.3 * mag);
-        int iTd = searchTdIndex(Td);
+        terms.Td = Math.pow(10, -1.25 + 0.3 * mag);
+        terms.iTd = searchTdIndex(terms.Td);
+        getRuptureTerms(1, f_rv, f_nm, f_as, mag, dip, rupWidth, depthTop,
+                terms.pga);
+        getRuptureTerms(iper, f_rv, f_nm, f_as, mag, dip, rupWidth, depthTop,
+                terms.imt);
+        terms.beyondTd =
+                !(per[iper] < terms.Td || (terms.Td >= 10.0
+                        && terms.iTd == 22));
+        if (terms.beyondTd) {
+            getRuptureTerms(terms.iTd, f_rv, f_nm, f_as, mag, dip, rupWidth,
+                    depthTop, terms.tdMinus);
+            getRuptureTerms(terms.iTd + 1, f_rv, f_nm, f_as, mag, dip,
+                    rupWidth, depthTop, terms.tdPlus);
+        }
+    }
+
+    // computes one site given the rupture terms
+    private void compute(int iper, RuptureTerms terms, RuptureContext rupture,
+            double vs30, boolean vs30Measured, double depthTo1pt0kmPerSec,
+            double rRup, double rJB, double signedRX, double[] outMeanSigma) {
+        double mag = rupture.mag, dip = rupture.dip, depthTop = rupture.zTor;
+        double vsm = vs30Measured ? 1 : 0;
+        double rX = Math.abs(signedRX);
+        boolean hw = Double.compare(signedRX, 0.0) >= 0;
+        double Td = terms.Td;
+        int iTd = terms.iTd;
 
         // compute rock PGA (note that value of depthTo1pt0kmPerSec has no
         // influence)
-        computeRockPGA(rJB, rX);
+        double pga_rock =
+                Math.exp(getMean(1, terms.pga, 1100.0, rRup, rJB, rX, hw, dip,
+                        depthTop, 0.0));
 
         double basinDepth;
         if (Double.isNaN(depthTo1pt0kmPerSec)) {
@@ -629,21 +619,21 @@ public class AS_2008_AttenRel extends AttenuationRelationship implements
         // System.out.println("From getf10, f10 = "+f10);
 
         double mean = 0.0;
-        if (per[iper] < Td || (Td >= 10.0 && iTd == 22)) {
+        if (!terms.beyondTd) {
             mean =
-                    (getMean(iper, 0, vs30, rRup, rJB, f_as, rX, f_rv, f_nm,
-                            mag, dip, rupWidth, depthTop, pga_rock)) + f10;
+                    (getMean(iper, terms.imt, vs30, rRup, rJB, rX, hw, dip,
+                            depthTop, pga_rock)) + f10;
             // System.out.println("From getMean, if(per<Td), mean = "+
             // Math.exp(mean));
 
         } else {
             double medSa1100WithTdMinus =
-                    Math.exp(getMean(iTd, 0, 1100.0, rRup, rJB, f_as, rX, f_rv,
-                            f_nm, mag, dip, rupWidth, depthTop, pga_rock));
+                    Math.exp(getMean(iTd, terms.tdMinus, 1100.0, rRup, rJB,
+                            rX, hw, dip, depthTop, pga_rock));
 
             double medSa1100WithTdPlus =
-                    Math.exp(getMean(iTd + 1, 0, 1100.0, rRup, rJB, f_as, rX,
-                            f_rv, f_nm, mag, dip, rupWidth, depthTop, pga_rock));
+                    Math.exp(getMean(iTd + 1, terms.tdPlus, 1100.0, rRup,
+                            rJB, rX, hw, dip, depthTop, pga_rock));
             // System.out.println("From getMean, pga_rock = "+pga_rock+" Tdminus = "+per[iTd]+", meanSa1100TdMinus= "+
             // medSa1100WithTdMinus
             // +", Tdplus = "+per[iTd+1]+", meanSa1100TdPlus= "+
@@ -656,13 +646,11 @@ public class AS_2008_AttenRel extends AttenuationRelationship implements
                     Math.exp(Math.log(medSa1100WithTdPlus
                             / medSa1100WithTdMinus)
                             / Math.log(per[iTd + 1] / per[iTd])
-                            * Math.log(Math.pow(10, -1.25 + 0.3 * mag)
-                                    / per[iTd])
+                            * Math.log(Td / per[iTd])
                             + Math.log(medSa1100WithTdMinus));
             double mean1100AtTd =
                     (medSa1100AtTd0)
-                            * Math.pow(Math.pow(10, -1.25 + 0.3 * mag)
-                                    / per[iper], 2);
+                            * Math.pow(Td / per[iper], 2);
             double f51100 = getf5(iper, 1100.0, pga_rock);
             f5 = getf5(iper, vs30, pga_rock);
             // System.out.println("From getf5, f51100 = "+f51100+", f5="+f5);
@@ -675,45 +663,26 @@ public class AS_2008_AttenRel extends AttenuationRelationship implements
             // +pga_rock+", mean1100atTd= " + mean1100AtTd + ", mean = "+mean);
         }
 
-        return mean;
+        outMeanSigma[MEAN] = mean;
+        if (outMeanSigma.length > STD_DEV_TOTAL)
+            getStdDevs(iper, vs30, mag, pga_rock, vsm, outMeanSigma);
     }
 
-    /**
-     * This computes rock PGA if it's not fresh.
-     * 
-     * @param rJB
-     * @param rX
-     */
-    private void computeRockPGA(double rJB, double rX) {
-        if (rock_pga_is_not_fresh) {
-            pga_rock =
-                    Math.exp(getMean(1, 0, 1100.0, rRup, rJB, f_as, rX, f_rv,
-                            f_nm, mag, dip, rupWidth, depthTop, 0.0));
-            rock_pga_is_not_fresh = false;
-        }
-    }
-
-    /**
-     * @return The stdDev value
-     */
-    @Override
-    public double getStdDev() {
-
-        if (intensityMeasureChanged) {
-            setCoeffIndex(); // intensityMeasureChanged is set to false in this
-                             // method
-        }
-
-        double rJB = rRup - distRupMinusJB_OverRup * rRup;
-        double rX = rRup - distRupMinusDistX_OverRup * rRup;
-
-        // compute rock PGA
-        computeRockPGA(rJB, rX);
-
-        double stdDev =
-                getStdDev(iper, stdDevType, component, vs30, pga_rock, vsm);
-
-        return stdDev;
+    // the terms of the mean that depend only on the rupture (see
+    // getRuptureTerms()) for rock PGA, the IMT and, if the IMT is at or beyond
+    // Td, the periods on either side of Td; with the output of one site of
+    // the batch compute(), these are the arrays of one thread's compute()
+    // calls
+    private static class RuptureTerms {
+        double Td;
+        int iTd;
+        boolean beyondTd;
+        final double[] pga = new double[6];
+        final double[] imt = new double[6];
+        final double[] tdMinus = new double[6];
+        final double[] tdPlus = new double[6];
+        final double[] mean = new double[1];
+        final double[] meanSigma = new double[2];
     }
 
     /**
@@ -1128,6 +1097,72 @@ public class AS_2008_AttenRel extends AttenuationRelationship implements
         return f10;
     }
 
+    // the terms of the median (see getMean()) that depend only on the
+    // rupture: f1 without its distance term, the magnitude-dependent factor of
+    // that, the style of faulting, aftershock and depth to top terms, f4
+    // without its distance factors (T1, T2 and T3), the factor of (rRup - 100)
+    // in f8 and the rX beyond which T2 is 1, put in terms
+    private void getRuptureTerms(int iper, double f_rv, double f_nm,
+            double f_as, double mag, double dip, double rupWidth,
+            double depthTop, double[] terms) {
+
+        double f1, f6;
+
+        // "Base model": f1 term (Eq. 2), dependent on magnitude and distance
+        if (mag <= c1) {
+            f1 =
+                    a1[iper] + a4 * (mag - c1) + a8[iper]
+                            * Math.pow(8.5 - mag, 2);
+        } else {
+            f1 =
+                    a1[iper] + a5 * (mag - c1) + a8[iper]
+                            * Math.pow(8.5 - mag, 2);
+        }
+
+        // "Hanging wall model": T4 (Eq. 11) and T5 (Eq. 12) of f4 (Eq. 7)
+        double T4, T5;
+        if (mag <= 6.0) {
+            T4 = 0.0;
+        } else if (mag >= 7.0) {
+            T4 = 1.0;
+        } else {
+            T4 = mag - 6.0;
+        }
+        if (dip >= 70.0) {
+            T5 = 1.0 - (dip - 70.0) / 20.0;
+        } else {
+            T5 = 1.0;
+        }
+
+        // T2 (Eq. 9) - rewritten 2009-01-29 to be consistent with ES paper
+        double rXtest = rupWidth * Math.cos(Math.toRadians(dip));
+
+        // "Depth to top of rupture model": f6 term (eq. 13)
+        if (depthTop < 10.0) {
+            f6 = a16[iper] * depthTop / 10.0;
+        } else {
+            f6 = a16[iper];
+        }
+        // "Large distance model": f8 term (Eq. 14) and required T6 computation
+        // (Eq. 15)
+        double T6;
+
+        if (mag < 5.5) {
+            T6 = 1.0;
+        } else if (mag > 6.5) {
+            T6 = 0.5;
+        } else {
+            T6 = 0.5 * (6.5 - mag) + 0.5;
+        }
+
+        terms[0] = f1;
+        terms[1] = a2[iper] + a3 * (mag - c1);
+        terms[2] = a12[iper] * f_rv + a13[iper] * f_nm + a15[iper] * f_as + f6;
+        terms[3] = a14[iper] * T4 * T5;
+        terms[4] = a18[iper] * T6;
+        terms[5] = rXtest;
+    }
+
     /**
      * Calculates the median IML, but does not include the f10 term from
      * depthTo1pt0kmPerSec (which is why it was made private).
@@ -1136,38 +1171,17 @@ public class AS_2008_AttenRel extends AttenuationRelationship implements
      * @return
      */
 
-    private double getMean(int iper, int iTd, double vs30, double rRup,
-            double rJB, double f_as, double rX, double f_rv, double f_nm,
-            double mag, double dip, double rupWidth, double depthTop,
-            double pga_rock) {
-
-        double rR, v1, vs30Star, f1, f4, f5, f6, f8;
+    private double getMean(int iper, double[] terms, double vs30,
+            double rRup, double rJB, double rX, boolean hw, double dip,
+            double depthTop, double pga_rock) {
 
-        boolean hw = hangingWallFlagParam.getValue();
+        double rR, v1, vs30Star, f1, f4, f5, f8;
 
         f4 = 0.0;
 
-        // if(rX>=0.0){
-        // hw = 1.0;
-        // }
-
         // "Base model": f1 term (Eq. 2), dependent on magnitude and distance
         rR = Math.sqrt(Math.pow(rRup, 2) + Math.pow(c4, 2)); // Eq. 3
-
-        if (mag <= c1) {
-            f1 =
-                    a1[iper] + a4 * (mag - c1) + a8[iper]
-                            * Math.pow(8.5 - mag, 2)
-                            + (a2[iper] + a3 * (mag - c1)) * Math.log(rR);
-        } else {
-            f1 =
-                    a1[iper] + a5 * (mag - c1) + a8[iper]
-                            * Math.pow(8.5 - mag, 2)
-                            + (a2[iper] + a3 * (mag - c1)) * Math.log(rR);
-        }
-        // System.out.println("a1= "+ a1[iper] +" a4= "+a4 +" mag= "+ mag
-        // +" c1="+c1+" a8= "+a8[iper]+" a2="+a2[iper]+" a3="+a3+" Rrup="+rRup+" R="+rR
-        // );
+        f1 = terms[0] + terms[1] * Math.log(rR);
 
         // "Site response model": f5_pga1100 (Eq. 5) term and required
         // computation for v1 and vs30Star
@@ -1204,13 +1218,10 @@ public class AS_2008_AttenRel extends AttenuationRelationship implements
             f5 = (a10[iper] + b[iper] * N) * Math.log(vs30Star / VLIN[iper]);
         }
 
-        // System.out.println("Inside Eqn getMean, per="+per[iper]+" hw="+hw+" f5="
-        // +f5+" v1=" +v1+" vs30Star=" +vs30Star);
-
         // "Hanging wall model": f4 (Eq. 7) term and required computation of T1,
-        // T2, T3, T4 and T5 (Eqs. 8-12)
+        // T2 and T3 (Eqs. 8-10)
         if (hw) {
-            double T1, T2, T3, T4, T5;
+            double T1, T2, T3;
 
             // T1 (Eq. 8)
             if (rJB < 30.0) {
@@ -1219,8 +1230,8 @@ public class AS_2008_AttenRel extends AttenuationRelationship implements
                 T1 = 0.0;
             }
 
-            // T2 (Eq. 9) - rewritten 2009-01-29 to be consistent with ES paper
-            double rXtest = rupWidth * Math.cos(Math.toRadians(dip));
+            // T2 (Eq. 9)
+            double rXtest = terms[5];
             if (rX > rXtest || dip == 90.0) { // if site is beyond the surface
                                               // projection
                 T2 = 1.0;
@@ -1235,55 +1246,17 @@ public class AS_2008_AttenRel extends AttenuationRelationship implements
                 T3 = rX / depthTop;
             }
 
-            // T4 (Eq. 11)
-            if (mag <= 6.0) {
-                T4 = 0.0;
-            } else if (mag >= 7.0) {
-                T4 = 1.0;
-            } else {
-                T4 = mag - 6.0;
-            }
-
-            // T5 (Eq. 12)
-            if (dip >= 70.0) {
-                T5 = 1.0 - (dip - 70.0) / 20.0;
-            } else {
-                T5 = 1.0;
-            }
-            f4 = a14[iper] * T1 * T2 * T3 * T4 * T5;
-            // System.out.println("Inside Eqn getMean, f4=" +f4+" T1="
-            // +T1+" T2=" +T2+" T3=" +T3+" T4=" +T4);
-        }
-
-        // "Depth to top of rupture model": f6 term (eq. 13)
-        if (depthTop < 10.0) {
-            f6 = a16[iper] * depthTop / 10.0;
-        } else {
-            f6 = a16[iper];
-        }
-        // "Large distance model": f8 term (Eq. 14) and required T6 computation
-        // (Eq. 15)
-        double T6;
-
-        if (mag < 5.5) {
-            T6 = 1.0;
-        } else if (mag > 6.5) {
-            T6 = 0.5;
-        } else {
-            T6 = 0.5 * (6.5 - mag) + 0.5;
+            f4 = terms[3] * T1 * T2 * T3;
         }
 
+        // "Large distance model": f8 term (Eq. 14)
         if (rRup < 100) {
             f8 = 0.0;
         } else {
-            f8 = a18[iper] * (rRup - 100.0) * T6;
+            f8 = terms[4] * (rRup - 100.0);
         }
 
-        // System.out.println("Inside Eqn getMean, per="+per[iper]+" rJB="+rJB+" hw="+hw+" f1="
-        // +f1+" f4=" +f4+" f5=" +f5+" f6=" +f6+" f8=" +f8);
-        double cgMean =
-                f1 + a12[iper] * f_rv + a13[iper] * f_nm + a15[iper] * f_as
-                        + f4 + f5 + f6 + f8;
+        double cgMean = f1 + terms[2] + f4 + f5 + f8;
 
         return cgMean;
     }
@@ -1302,135 +1275,139 @@ public class AS_2008_AttenRel extends AttenuationRelationship implements
 
         if (stdDevType.equals(StdDevTypeParam.STD_DEV_TYPE_NONE))
             return 0.0;
-        else {
-            // Compute sigma0 (eq. 27), tau0 (eq. 28) and dterm (eq. 26)
-            // NOTE: I created variables with the PGA suffix because it's easier
-            // to read the equations below (CGoulet)
-            double v1, vs30Star, dterm, s1, s1PGA, s2, s2PGA, sigma0, sigma0PGA, tau0, tau0PGA, sigmaB, sigmaBPGA, tauB, tauBPGA, sigma, tau;
-
-            // "Site response model": f5_pga1100 (Eq. 5) term and required
-            // computation for v1 and vs30Star
-            // Vs30 dependent term v1 (Eq. 6)
-            if (per[iper] == -1.0) {
-                v1 = 862.0;
-            } else if (per[iper] <= 0.5 && per[iper] > -1.0) {
-                v1 = 1500.0;
-            } else if (per[iper] > 0.5 && per[iper] <= 1.0) {
-                v1 = Math.exp(8.0 - 0.795 * Math.log(per[iper] / 0.21));
-            } else if (per[iper] > 1.0 && per[iper] < 2.0) {
-                v1 = Math.exp(6.76 - 0.297 * Math.log(per[iper]));
-            } else {
-                v1 = 700.0;
-            }
+        double[] sigmas = new double[4];
+        getStdDevs(iper, vs30, mag, pga_rock, vsm, sigmas);
+        return getStdDev(sigmas, stdDevType);
+    }
 
-            // Vs30 dependent term vs30Star (Eq. 5)
-            if (vs30 < v1) {
-                vs30Star = vs30;
-            } else {
-                vs30Star = v1;
-            }
+    // puts the total, inter- and intra-event standard deviations in the
+    // output of compute() (as many as it has room for)
+    private void getStdDevs(int iper, double vs30, double mag,
+            double pga_rock, double vsm, double[] outMeanSigma) {
 
-            // sugmaamp=0.3 for all periods as per page 81. below equation 23
-            double sigmaamp = 0.3;
-
-            // dterm (eq. 26)
-            // ** The published ES version has errors in this equation. Per Norm
-            // (2008-08-15, personal communication)
-            // 1) the test against VLIN should be made with vs30, but the
-            // computation with vs30Star
-            // 2) The (-b*pga_rock) is to multiply both terms of the equations
-            dterm = 0.0;
-            if (vs30 < VLIN[iper]) {
-                dterm =
-                        b[iper]
-                                * pga_rock
-                                * (-1.0 / (pga_rock + c) + 1.0 / (pga_rock + c
-                                        * Math.pow(vs30Star / VLIN[iper], N)));
-            }
+        // Compute sigma0 (eq. 27), tau0 (eq. 28) and dterm (eq. 26)
+        // NOTE: I created variables with the PGA suffix because it's easier
+        // to read the equations below (CGoulet)
+        double v1, vs30Star, dterm, s1, s1PGA, s2, s2PGA, sigma0, sigma0PGA, tau0, tau0PGA, sigmaB, sigmaBPGA, tauB, tauBPGA, sigma, tau;
 
-            // Define appropriate s1 and s2 values depending on how Vs30 was
-            // obtained
-            // (measured or estimated), using the vsm flag defined above which
-            // is input in the GUI
-            if (vsm == 1.0) {
-                s1PGA = s1m[1];
-                s2PGA = s2m[1];
-                s1 = s1m[iper];
-                s2 = s2m[iper];
-            } else {
-                s1PGA = s1e[1];
-                s2PGA = s2e[1];
-                s1 = s1e[iper];
-                s2 = s2e[iper];
-            }
+        // "Site response model": f5_pga1100 (Eq. 5) term and required
+        // computation for v1 and vs30Star
+        // Vs30 dependent term v1 (Eq. 6)
+        if (per[iper] == -1.0) {
+            v1 = 862.0;
+        } else if (per[iper] <= 0.5 && per[iper] > -1.0) {
+            v1 = 1500.0;
+        } else if (per[iper] > 0.5 && per[iper] <= 1.0) {
+            v1 = Math.exp(8.0 - 0.795 * Math.log(per[iper] / 0.21));
+        } else if (per[iper] > 1.0 && per[iper] < 2.0) {
+            v1 = Math.exp(6.76 - 0.297 * Math.log(per[iper]));
+        } else {
+            v1 = 700.0;
+        }
 
-            // Compute sigma0 (Eq. 27)
-            if (mag < 5.0) {
-                sigma0 = s1;
-                sigma0PGA = s1PGA;
-            } else if (mag > 7.0) {
-                sigma0 = s2;
-                sigma0PGA = s2PGA;
-            } else {
-                sigma0 = s1 + 0.5 * (s2 - s1) * (mag - 5.0);
-                sigma0PGA = s1PGA + 0.5 * (s2PGA - s1PGA) * (mag - 5.0);
-            }
+        // Vs30 dependent term vs30Star (Eq. 5)
+        if (vs30 < v1) {
+            vs30Star = vs30;
+        } else {
+            vs30Star = v1;
+        }
 
-            // Compute sigmaB (Eq. 23)
-            sigmaB = Math.sqrt(Math.pow(sigma0, 2) - Math.pow(sigmaamp, 2));
-            sigmaBPGA =
-                    Math.sqrt(Math.pow(sigma0PGA, 2) - Math.pow(sigmaamp, 2));
-
-            // Compute tau0 (Eq. 28)
-            if (mag < 5.0) {
-                tau0 = s3[iper];
-                tau0PGA = s3[1];
-            } else if (mag > 7.0) {
-                tau0 = s4[iper];
-                tau0PGA = s4[1];
-            } else {
-                tau0 = s3[iper] + 0.5 * (s4[iper] - s3[iper]) * (mag - 5.0);
-                tau0PGA = s3[1] + 0.5 * (s4[1] - s3[1]) * (mag - 5.0);
-            }
+        // sugmaamp=0.3 for all periods as per page 81. below equation 23
+        double sigmaamp = 0.3;
 
-            // Compute tauB (In text p. 81)
-            tauB = tau0;
-            tauBPGA = tau0PGA;
-
-            // compute intra-event sigma (Eq. 24)
-            // ** The published ES version has errors in this equation. Per Norm
-            // (2008-08-15, personal communication):
-            // 1) use sigmaB instead of sigma0 in the first term.
-            sigma =
-                    Math.sqrt(Math.pow(sigmaB, 2) + Math.pow(sigmaamp, 2)
-                            + Math.pow(dterm, 2) * Math.pow(sigmaBPGA, 2) + 2.0
-                            * dterm * sigmaB * sigmaBPGA * rho[iper]);
-
-            // get tau - inter-event term (Eq. 25)
-            tau =
-                    Math.sqrt(Math.pow(tau0, 2) + Math.pow(dterm, 2)
-                            * Math.pow(tauBPGA, 2) + 2.0 * dterm * tauB
-                            * tauBPGA * rho[iper]);
-
-            // System.out.println("PGArock="+pga_rock+" vsm="+vsm+" dterm="+
-            // dterm + " sigma="+sigma+" tau="+tau);
-            // System.out.println("test PGA index, a1 at index 1="+a1[1]+" at index 2="+a1[2]);
-
-            // compute total sigma
-            double sigma_total = Math.sqrt(tau * tau + sigma * sigma);
-
-            // System.out.println("pga_rock="+ pga_rock
-            // +"\t t0="+tau0+"\t sB="+sigmaB+"\t sBPGA="+sigmaBPGA+"\t s="+sigma+"\t t="+tau+"\t s_tot="+sigma_total);
-
-            // return appropriate value
-            if (stdDevType.equals(StdDevTypeParam.STD_DEV_TYPE_TOTAL))
-                return sigma_total;
-            else if (stdDevType.equals(StdDevTypeParam.STD_DEV_TYPE_INTRA))
-                return sigma;
-            else if (stdDevType.equals(StdDevTypeParam.STD_DEV_TYPE_INTER))
-                return tau;
-            else
-                return Double.NaN; // just in case invalid stdDev given
+        // dterm (eq. 26)
+        // ** The published ES version has errors in this equation. Per Norm
+        // (2008-08-15, personal communication)
+        // 1) the test against VLIN should be made with vs30, but the
+        // computation with vs30Star
+        // 2) The (-b*pga_rock) is to multiply both terms of the equations
+        dterm = 0.0;
+        if (vs30 < VLIN[iper]) {
+            dterm =
+                    b[iper]
+                            * pga_rock
+                            * (-1.0 / (pga_rock + c) + 1.0 / (pga_rock + c
+                                    * Math.pow(vs30Star / VLIN[iper], N)));
+        }
+
+        // Define appropriate s1 and s2 values depending on how Vs30 was
+        // obtained
+        // (measured or estimated), using the vsm flag defined above which
+        // is input in the GUI
+        if (vsm == 1.0) {
+            s1PGA = s1m[1];
+            s2PGA = s2m[1];
+            s1 = s1m[iper];
+            s2 = s2m[iper];
+        } else {
+            s1PGA = s1e[1];
+            s2PGA = s2e[1];
+            s1 = s1e[iper];
+            s2 = s2e[iper];
+        }
+
+        // Compute sigma0 (Eq. 27)
+        if (mag < 5.0) {
+            sigma0 = s1;
+            sigma0PGA = s1PGA;
+        } else if (mag > 7.0) {
+            sigma0 = s2;
+            sigma0PGA = s2PGA;
+        } else {
+            sigma0 = s1 + 0.5 * (s2 - s1) * (mag - 5.0);
+            sigma0PGA = s1PGA + 0.5 * (s2PGA - s1PGA) * (mag - 5.0);
+        }
+
+        // Compute sigmaB (Eq. 23)
+        sigmaB = Math.sqrt(Math.pow(sigma0, 2) - Math.pow(sigmaamp, 2));
+        sigmaBPGA =
+                Math.sqrt(Math.pow(sigma0PGA, 2) - Math.pow(sigmaamp, 2));
+
+        // Compute tau0 (Eq. 28)
+        if (mag < 5.0) {
+            tau0 = s3[iper];
+            tau0PGA = s3[1];
+        } else if (mag > 7.0) {
+            tau0 = s4[iper];
+            tau0PGA = s4[1];
+        } else {
+            tau0 = s3[iper] + 0.5 * (s4[iper] - s3[iper]) * (mag - 5.0);
+            tau0PGA = s3[1] + 0.5 * (s4[1] - s3[1]) * (mag - 5.0);
+        }
+
+        // Compute tauB (In text p. 81)
+        tauB = tau0;
+        tauBPGA = tau0PGA;
+
+        // compute intra-event sigma (Eq. 24)
+        // ** The published ES version has errors in this equation. Per Norm
+        // (2008-08-15, personal communication):
+        // 1) use sigmaB instead of sigma0 in the first term.
+        sigma =
+                Math.sqrt(Math.pow(sigmaB, 2) + Math.pow(sigmaamp, 2)
+                        + Math.pow(dterm, 2) * Math.pow(sigmaBPGA, 2) + 2.0
+                        * dterm * sigmaB * sigmaBPGA * rho[iper]);
+
+        // get tau - inter-event term (Eq. 25)
+        tau =
+                Math.sqrt(Math.pow(tau0, 2) + Math.pow(dterm, 2)
+                        * Math.pow(tauBPGA, 2) + 2.0 * dterm * tauB
+                        * tauBPGA * rho[iper]);
+
+        // System.out.println("PGArock="+pga_rock+" vsm="+vsm+" dterm="+
+        // dterm + " sigma="+sigma+" tau="+tau);
+        // System.out.println("test PGA index, a1 at index 1="+a1[1]+" at index 2="+a1[2]);
+
+        // compute total sigma
+        double sigma_total = Math.sqrt(tau * tau + sigma * sigma);
+
+        // System.out.println("pga_rock="+ pga_rock
+        // +"\t t0="+tau0+"\t sB="+sigmaB+"\t sBPGA="+sigmaBPGA+"\t s="+sigma+"\t t="+tau+"\t s_tot="+sigma_total);
+
+        outMeanSigma[STD_DEV_TOTAL] = sigma_total;
+        if (outMeanSigma.length > STD_DEV_INTRA) {
+            outMeanSigma[STD_DEV_INTER] = tau;
+            outMeanSigma[STD_DEV_INTRA] = sigma;
         }
     }
 
@@ -1447,7 +1424,6 @@ public class AS_2008_AttenRel extends AttenuationRelationship implements
         String pName = e.getParameterName();
         Object val = e.getNewValue();
         parameterChange = true;
-        rock_pga_is_not_fresh = true;
 
         // System.out.println(pName+"\t"+val);
 
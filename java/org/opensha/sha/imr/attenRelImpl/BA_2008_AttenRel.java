@@ -34,8 +34,13 @@ import org.opensha.commons.param.event.ParameterChangeListener;
 import org.opensha.commons.param.event.ParameterChangeWarningListener;
 import org.opensha.sha.earthquake.EqkRupture;
 import org.opensha.sha.imr.AttenuationRelationship;
+import org.opensha.sha.imr.DistanceContext;
+import org.opensha.sha.imr.PrimitiveIMR_API;
 import org.opensha.sha.imr.PropagationEffect;
+import org.opensha.sha.imr.RuptureContext;
 import org.opensha.sha.imr.ScalarIntensityMeasureRelationshipAPI;
+import org.opensha.sha.imr.SiteContext;
+import org.opensha.sha.imr.SitesContext;
 import org.opensha.sha.imr.param.EqkRuptureParams.FaultTypeParam;
 import org.opensha.sha.imr.param.EqkRuptureParams.MagParam;
 import org.opensha.sha.imr.param.IntensityMeasureParams.DampingParam;
@@ -88,6 +93,12 @@ import org.opensha.sha.imr.param.SiteParams.Vs30_Param;
  * in.
  * 
  * </p>
+ * <p>
+ * The model is computed by compute() (see PrimitiveIMR_API), from plain
+ * rupture, site and distance values; getMean() and getStdDev() copy the
+ * parameters into those values and keep the result until a parameter
+ * changes.
+ * </p>
  * 
  * 
  * @author Edward H. Field
@@ -97,7 +108,7 @@ import org.opensha.sha.imr.param.SiteParams.Vs30_Param;
 
 public class BA_2008_AttenRel extends AttenuationRelationship implements
         ScalarIntensityMeasureRelationshipAPI, NamedObjectAPI,
-        ParameterChangeListener {
+        ParameterChangeListener, PrimitiveIMR_API {
 
     // Debugging stuff
     private final static String C = "BA_2008_AttenRel";
@@ -204,7 +215,13 @@ public class BA_2008_AttenRel extends AttenuationRelationship implements
     private int iper;
     private double vs30, rjb, mag;
     private String stdDevType, fltType;
-    private boolean parameterChange;
+    private boolean parameterChange = true;
+
+    // the parameters as compute() inputs, and its output for them
+    private final RuptureContext rupContext = new RuptureContext();
+    private final SiteContext siteContext = new SiteContext();
+    private final DistanceContext distContext = new DistanceContext();
+    private final double[] meanSigma = new double[4];
 
     protected final static Double MAG_WARN_MIN = new Double(5);
     protected final static Double MAG_WARN_MAX = new Double(8);
@@ -346,10 +363,8 @@ public class BA_2008_AttenRel extends AttenuationRelationship implements
             setCoeffIndex(); // intensityMeasureChanged is set to false in this
                              // method
         }
-
-        // remember that pga4nl term uses coeff index 0
-        double pga4nl = Math.exp(getMean(0, 760, rjb, mag, fltType, 0.0));
-        return getMean(iper, vs30, rjb, mag, fltType, pga4nl);
+        updateMeanSigma();
+        return meanSigma[MEAN];
     }
 
     /**
@@ -360,7 +375,120 @@ public class BA_2008_AttenRel extends AttenuationRelationship implements
             setCoeffIndex();// intensityMeasureChanged is set to false in this
                             // method
         }
-        return getStdDev(iper, stdDevType, fltType);
+        updateMeanSigma();
+        return getStdDev(meanSigma, stdDevType);
+    }
+
+    // recomputes the mean and standard deviations if a parameter has changed
+    private void updateMeanSigma() {
+        if (!parameterChange)
+            return;
+        rupContext.mag = mag;
+        rupContext.rake = getRake(fltType);
+        siteContext.vs30 = vs30;
+        distContext.rJB = rjb;
+        compute(rupContext, siteContext, distContext, iper, meanSigma);
+        parameterChange = false;
+    }
+
+    public int getIMT_Index(String imName, double period) {
+        if (imName.equals(PGV_Param.NAME))
+            return 1;
+        if (imName.equals(PGA_Param.NAME))
+            return 2;
+        Integer index = null;
+        if (imName.equals(SA_Param.NAME))
+            index = (Integer) indexFromPerHashMap.get(period);
+        if (index == null)
+            throw new RuntimeException(C + ": " + imName + " (" + period
+                    + ") is not supported");
+        return index;
+    }
+
+    /**
+     * This computes the model from the magnitude and rake, Vs30, and rJB.
+     */
+    public void compute(RuptureContext rupture, SiteContext site,
+            DistanceContext distances, int imtIndex, double[] outMeanSigma) {
+        String fltType = getFaultType(rupture.rake);
+        // remember that pga4nl term uses coeff index 0
+        double pga4nl =
+                Math.exp(getMean(0, 760, distances.rJB, rupture.mag, fltType,
+                        0.0));
+        outMeanSigma[MEAN] =
+                getMean(imtIndex, site.vs30, distances.rJB, rupture.mag,
+                        fltType, pga4nl);
+        if (outMeanSigma.length > STD_DEV_TOTAL)
+            outMeanSigma[STD_DEV_TOTAL] =
+                    getStdDev(imtIndex, StdDevTypeParam.STD_DEV_TYPE_TOTAL,
+                            fltType);
+        if (outMeanSigma.length > STD_DEV_INTRA) {
+            outMeanSigma[STD_DEV_INTER] =
+                    getStdDev(imtIndex, StdDevTypeParam.STD_DEV_TYPE_INTER,
+                            fltType);
+            outMeanSigma[STD_DEV_INTRA] =
+                    getStdDev(imtIndex, StdDevTypeParam.STD_DEV_TYPE_INTRA,
+                            fltType);
+        }
+    }
+
+    /**
+     * The magnitude scaling, style of faulting and standard deviations are
+     * computed once for the rupture.
+     */
+    public void compute(RuptureContext rupture, SitesContext sites,
+            int imtIndex, double[] outMean, double[] outSigma) {
+        String fltType = getFaultType(rupture.rake);
+        double mag = rupture.mag;
+        double Fm_pga4nl = getFm(0, mag, fltType);
+        double slope_pga4nl = c1[0] + c2[0] * (mag - m_ref);
+        double Fm = getFm(imtIndex, mag, fltType);
+        double slope = c1[imtIndex] + c2[imtIndex] * (mag - m_ref);
+        double sigma =
+                getStdDev(imtIndex, StdDevTypeParam.STD_DEV_TYPE_TOTAL,
+                        fltType);
+        for (int i = 0; i < sites.size(); i++) {
+            double rjb = sites.rJB[i];
+            double pga4nl =
+                    Math.exp(getMean(0, Fm_pga4nl, slope_pga4nl, 760, rjb,
+                            0.0));
+            outMean[i] =
+                    getMean(imtIndex, Fm, slope, sites.vs30[i], rjb, pga4nl);
+            if (outSigma != null)
+                outSigma[i] = sigma;
+        }
+    }
+
+    /**
+     * The style of faulting for a rake (see setFaultTypeFromRake()).
+     *
+     * @param rake
+     *            in degrees, or NaN if unknown
+     * @return
+     */
+    public static String getFaultType(double rake) {
+        if (rake <= 30 && rake >= -30)
+            return FLT_TYPE_STRIKE_SLIP;
+        else if (rake <= -150 || rake >= 150)
+            return FLT_TYPE_STRIKE_SLIP;
+        else if (rake > 30 && rake < 150)
+            return FLT_TYPE_REVERSE;
+        else if (rake > -150 && rake < -30)
+            return FLT_TYPE_NORMAL;
+        else
+            return FLT_TYPE_UNKNOWN;
+    }
+
+    // a rake of the style of faulting (NaN if it is unknown)
+    private static double getRake(String fltType) {
+        if (fltType.equals(FLT_TYPE_STRIKE_SLIP))
+            return 0;
+        else if (fltType.equals(FLT_TYPE_REVERSE))
+            return 90;
+        else if (fltType.equals(FLT_TYPE_NORMAL))
+            return -90;
+        else
+            return Double.NaN;
     }
 
     /**
@@ -375,16 +503,7 @@ public class BA_2008_AttenRel extends AttenuationRelationship implements
      */
     protected void setFaultTypeFromRake(double rake)
             throws InvalidRangeException {
-        if (rake <= 30 && rake >= -30)
-            fltTypeParam.setValue(FLT_TYPE_STRIKE_SLIP);
-        else if (rake <= -150 || rake >= 150)
-            fltTypeParam.setValue(FLT_TYPE_STRIKE_SLIP);
-        else if (rake > 30 && rake < 150)
-            fltTypeParam.setValue(FLT_TYPE_REVERSE);
-        else if (rake > -150 && rake < -30)
-            fltTypeParam.setValue(FLT_TYPE_NORMAL);
-        else
-            fltTypeParam.setValue(FLT_TYPE_UNKNOWN);
+        fltTypeParam.setValue(getFaultType(rake));
     }
 
     /**
@@ -617,9 +736,13 @@ public class BA_2008_AttenRel extends AttenuationRelationship implements
 
     public double getMean(int iper, double vs30, double rjb, double mag,
             String fltType, double pga4nl) {
+        return getMean(iper, getFm(iper, mag, fltType), c1[iper] + c2[iper]
+                * (mag - m_ref), vs30, rjb, pga4nl);
+    }
 
-        // remember that pga4ln term uses coeff index 0
-        double Fm, Fd, Fs;
+    // the magnitude scaling and style of faulting term, Fm
+    private double getFm(int iper, double mag, String fltType) {
+        double Fm;
         int U = 0, S = 0, N = 0, R = 0;
         if (fltType.equals(FLT_TYPE_UNKNOWN))
             U = 1;
@@ -641,11 +764,18 @@ public class BA_2008_AttenRel extends AttenuationRelationship implements
                     e1[iper] * U + e2[iper] * S + e3[iper] * N + e4[iper] * R
                             + e7[iper] * (mag - mh[iper]);
         }
+        return Fm;
+    }
 
+    // the mean given Fm and the magnitude-dependent slope of the distance
+    // term, c1 + c2 * (mag - m_ref), which depend only on the rupture
+    private double getMean(int iper, double Fm, double slope, double vs30,
+            double rjb, double pga4nl) {
+
+        // remember that pga4ln term uses coeff index 0
+        double Fd, Fs;
         double r = Math.sqrt(rjb * rjb + h[iper] * h[iper]);
-        Fd =
-                (c1[iper] + c2[iper] * (mag - m_ref)) * Math.log(r / r_ref)
-                        + c3[iper] * (r - r_ref);
+        Fd = slope * Math.log(r / r_ref) + c3[iper] * (r - r_ref);
 
         // site response term
         if (iper == 0)
@@ -41,8 +41,13 @@ import org.opensha.sha.faultSurface.EvenlyGriddedSurfaceAPI;
 // import org.opensha.sha.faultSurface.FaultTrace;
 // import org.opensha.sha.faultSurface.StirlingGriddedSurface;
 import org.opensha.sha.imr.AttenuationRelationship;
+import org.opensha.sha.imr.DistanceContext;
+import org.opensha.sha.imr.PrimitiveIMR_API;
 import org.opensha.sha.imr.PropagationEffect;
+import org.opensha.sha.imr.RuptureContext;
 import org.opensha.sha.imr.ScalarIntensityMeasureRelationshipAPI;
+import org.opensha.sha.imr.SiteContext;
+import org.opensha.sha.imr.SitesContext;
 import org.opensha.sha.imr.param.EqkRuptureParams.DipParam;
 import org.opensha.sha.imr.param.EqkRuptureParams.FaultTypeParam;
 import org.opensha.sha.imr.param.EqkRuptureParams.MagParam;
@@ -110,6 +115,13 @@ import org.opensha.sha.imr.param.SiteParams.Vs30_Param;
  * sure parameters are set properly when Site and EqkRupture objects are passed
  * in.
  * </p>
+ * <p>
+ * The model is computed by compute() (see PrimitiveIMR_API), from plain
+ * rupture, site and distance values; getMean() and getStdDev() copy the
+ * parameters into those values and keep the result until a parameter changes
+ * (the random horizontal component is applied to the standard deviations
+ * afterwards).
+ * </p>
  * 
  * @author Ned Field
  * @created Oct., 2008
@@ -118,7 +130,7 @@ import org.opensha.sha.imr.param.SiteParams.Vs30_Param;
 
 public class CB_2008_AttenRel extends AttenuationRelationship implements
         ScalarIntensityMeasureRelationshipAPI, NamedObjectAPI,
-        ParameterChangeListener {
+        ParameterChangeListener, PrimitiveIMR_API {
 
     // Debugging stuff
     private final static String C = "CB_2006_AttenRel";
@@ -130,21 +142,69 @@ public class CB_2008_AttenRel extends AttenuationRelationship implements
     public final static String NAME = "Campbell & Bozorgnia (2008)";
     private final static String CB_2008_CoeffFile = "campbell_2008_coeff.txt";
 
-    double[] per, c0, c1, c2, c3, c4, c5, c6, c7, c8, c9, c10, c11, c12, k1,
-            k2, k3, s_lny, t_lny, s_c, rho;
+    // Coefficients, read from CB_2008_CoeffFile when the class is loaded and
+    // shared by all instances (so they must never be changed)
+    private final static double[] per, c0, c1, c2, c3, c4, c5, c6, c7, c8, c9,
+            c10, c11, c12, k1, k2, k3, s_lny, t_lny, s_c, rho;
+
+    // index in the coefficient arrays of each SA period
+    private final static HashMap<Double, Integer> indexFromPerHashMap;
+
+    static {
+        double[][] coeff = readCoeffFile();
+        per = coeff[0];
+        c0 = coeff[1];
+        c1 = coeff[2];
+        c2 = coeff[3];
+        c3 = coeff[4];
+        c4 = coeff[5];
+        c5 = coeff[6];
+        c6 = coeff[7];
+        c7 = coeff[8];
+        c8 = coeff[9];
+        c9 = coeff[10];
+        c10 = coeff[11];
+        c11 = coeff[12];
+        c12 = coeff[13];
+        k1 = coeff[14];
+        k2 = coeff[15];
+        k3 = coeff[16];
+        s_lny = coeff[17];
+        t_lny = coeff[18];
+        s_c = coeff[19];
+        rho = coeff[20];
+
+        indexFromPerHashMap = new HashMap<Double, Integer>();
+        for (int i = 3; i < per.length; i++) {
+            indexFromPerHashMap.put(new Double(per[i]), new Integer(i));
+        }
+    }
 
     double s_lnAF = 0.3;
     double n = 1.18;
     double c = 1.88;
 
-    private HashMap indexFromPerHashMap;
-
     private int iper;
-    private double vs30, rJB, rRup, distRupMinusJB_OverRup, f_rv, f_nm, mag,
+    private double vs30, rRup, distRupMinusJB_OverRup, f_rv, f_nm, mag,
             depthTop, depthTo2pt5kmPerSec, dip;
     private String stdDevType, component;
-    private boolean magSaturation;
-    private boolean parameterChange;
+    private boolean parameterChange = true;
+
+    // the parameters as compute() inputs, and its output for them
+    private final RuptureContext rupContext = new RuptureContext();
+    private final SiteContext siteContext = new SiteContext();
+    private final DistanceContext distContext = new DistanceContext();
+    private final double[] meanSigma = new double[4];
+
+    // the arrays compute() works in, one set for each thread as compute() can
+    // be called by many threads at once
+    private final static ThreadLocal<ComputeScratch> computeScratch =
+            new ThreadLocal<ComputeScratch>() {
+                @Override
+                protected ComputeScratch initialValue() {
+                    return new ComputeScratch();
+                }
+            };
 
     private PropagationEffect propagationEffect;
 
@@ -180,12 +240,7 @@ public class CB_2008_AttenRel extends AttenuationRelationship implements
         super();
 
         this.warningListener = warningListener;
-        readCoeffFile();
         initSupportedIntensityMeasureParams();
-        indexFromPerHashMap = new HashMap();
-        for (int i = 3; i < per.length; i++) {
-            indexFromPerHashMap.put(new Double(per[i]), new Integer(i));
-        }
 
         initEqkRuptureParams();
         initPropagationEffectParams();
@@ -240,219 +295,27 @@ public class CB_2008_AttenRel extends AttenuationRelationship implements
 
     }
 
-    private void readCoeffFile() {
+    // reads each line of the coefficient file (a name followed by the value
+    // for each period) into a row of the returned array
+    private static double[][] readCoeffFile() {
         try {
-            // ArrayList<String> coeff=
-            // FileUtils.loadJarFile(CB_2008_CoeffFile);
-            ArrayList<String> coeff =
-                    FileUtils.loadFile(this.getClass().getResource(
-                            CB_2008_CoeffFile));
-            // reading the Period
-            String perLine = coeff.get(0);
-            ArrayList period = new ArrayList<Double>();
-            StringTokenizer st = new StringTokenizer(perLine);
-            int size = loadCoeffInArray(st, period);
-            per = new double[size];
-            this.createCoeffArray(period, per);
-            period = null;
-
-            // reading c0
-            String c0Line = coeff.get(1);
-            ArrayList c0List = new ArrayList<Double>();
-            st = new StringTokenizer(c0Line);
-            size = loadCoeffInArray(st, c0List);
-            c0 = new double[size];
-            this.createCoeffArray(c0List, c0);
-            c0List = null;
-
-            // reading c1
-            String c1Line = coeff.get(2);
-            ArrayList c1List = new ArrayList<Double>();
-            st = new StringTokenizer(c1Line);
-            size = loadCoeffInArray(st, c1List);
-            c1 = new double[size];
-            this.createCoeffArray(c1List, c1);
-            c1List = null;
-
-            // reading c2
-            String c2Line = coeff.get(3);
-            ArrayList c2List = new ArrayList<Double>();
-            st = new StringTokenizer(c2Line);
-            size = loadCoeffInArray(st, c2List);
-            c2 = new double[size];
-            this.createCoeffArray(c2List, c2);
-            c2List = null;
-
-            // reading c3
-            String c3Line = coeff.get(4);
-            ArrayList c3List = new ArrayList<Double>();
-            st = new StringTokenizer(c3Line);
-            size = loadCoeffInArray(st, c3List);
-            c3 = new double[size];
-            this.createCoeffArray(c3List, c3);
-            c3List = null;
-
-            // reading c4
-            String c4Line = coeff.get(5);
-            ArrayList c4List = new ArrayList<Double>();
-            st = new StringTokenizer(c4Line);
-            size = loadCoeffInArray(st, c4List);
-            c4 = new double[size];
-            this.createCoeffArray(c4List, c4);
-            c4List = null;
-
-            // reading c5
-            String c5Line = coeff.get(6);
-            ArrayList c5List = new ArrayList<Double>();
-            st = new StringTokenizer(c5Line);
-            size = loadCoeffInArray(st, c5List);
-            c5 = new double[size];
-            this.createCoeffArray(c5List, c5);
-            c5List = null;
-
-            // reading c6
-            String c6Line = coeff.get(7);
-            ArrayList c6List = new ArrayList<Double>();
-            st = new StringTokenizer(c6Line);
-            size = loadCoeffInArray(st, c6List);
-            c6 = new double[size];
-            this.createCoeffArray(c6List, c6);
-            c6List = null;
-
-            // reading c7
-            String c7Line = coeff.get(8);
-            ArrayList c7List = new ArrayList<Double>();
-            st = new StringTokenizer(c7Line);
-            size = loadCoeffInArray(st, c7List);
-            c7 = new double[size];
-            this.createCoeffArray(c7List, c7);
-            c7List = null;
-
-            // reading c8
-            String c8Line = coeff.get(9);
-            ArrayList c8List = new ArrayList<Double>();
-            st = new StringTokenizer(c8Line);
-            size = loadCoeffInArray(st, c8List);
-            c8 = new double[size];
-            this.createCoeffArray(c8List, c8);
-            c8List = null;
-
-            // reading c9
-            String c9Line = coeff.get(10);
-            ArrayList c9List = new ArrayList<Double>();
-            st = new StringTokenizer(c9Line);
-            size = loadCoeffInArray(st, c9List);
-            c9 = new double[size];
-            this.createCoeffArray(c9List, c9);
-            c9List = null;
-
-            // reading c10
-            String c10Line = coeff.get(11);
-            ArrayList c10List = new ArrayList<Double>();
-            st = new StringTokenizer(c10Line);
-            size = loadCoeffInArray(st, c10List);
-            c10 = new double[size];
-            this.createCoeffArray(c10List, c10);
-            c10List = null;
-
-            // reading c11
-            String c11Line = coeff.get(12);
-            ArrayList c11List = new ArrayList<Double>();
-            st = new StringTokenizer(c11Line);
-            size = loadCoeffInArray(st, c11List);
-            c11 = new double[size];
-            this.createCoeffArray(c11List, c11);
-            c11List = null;
-
-            // reading c12
-            String c12Line = coeff.get(13);
-            ArrayList c12List = new ArrayList<Double>();
-            st = new StringTokenizer(c12Line);
-            size = loadCoeffInArray(st, c12List);
-            c12 = new double[size];
-            this.createCoeffArray(c12List, c12);
-            c12List = null;
-
-            // reading k1
-            String k1Line = coeff.get(14);
-            ArrayList k1List = new ArrayList<Double>();
-            st = new StringTokenizer(k1Line);
-            size = loadCoeffInArray(st, k1List);
-            k1 = new double[size];
-            this.createCoeffArray(k1List, k1);
-            k1List = null;
-
-            // reading k2
-            String k2Line = coeff.get(15);
-            ArrayList k2List = new ArrayList<Double>();
-            st = new StringTokenizer(k2Line);
-            size = loadCoeffInArray(st, k2List);
-            k2 = new double[size];
-            this.createCoeffArray(k2List, k2);
-            k2List = null;
-
-            // reading k3
-            String k3Line = coeff.get(16);
-            ArrayList k3List = new ArrayList<Double>();
-            st = new StringTokenizer(k3Line);
-            size = loadCoeffInArray(st, k3List);
-            k3 = new double[size];
-            this.createCoeffArray(k3List, k3);
-            k3List = null;
-
-            // reading s_lny
-            String s_lnyLine = coeff.get(17);
-            ArrayList s_lnyList = new ArrayList<Double>();
-            st = new StringTokenizer(s_lnyLine);
-            size = loadCoeffInArray(st, s_lnyList);
-            s_lny = new double[size];
-            this.createCoeffArray(s_lnyList, s_lny);
-            s_lnyList = null;
-
-            // reading t_lny
-            String t_lnyLine = coeff.get(18);
-            ArrayList t_lnyList = new ArrayList<Double>();
-            st = new StringTokenizer(t_lnyLine);
-            size = loadCoeffInArray(st, t_lnyList);
-            t_lny = new double[size];
-            this.createCoeffArray(t_lnyList, t_lny);
-            t_lnyList = null;
-
-            // reading s_c
-            String c_lnyLine = coeff.get(19);
-            ArrayList c_lnyList = new ArrayList<Double>();
-            st = new StringTokenizer(c_lnyLine);
-            size = loadCoeffInArray(st, c_lnyList);
-            s_c = new double[size];
-            this.createCoeffArray(c_lnyList, s_c);
-            c_lnyList = null;
-
-            // reading rho
-            String rho_sLine = coeff.get(20);
-            ArrayList rho_sList = new ArrayList<Double>();
-            st = new StringTokenizer(rho_sLine);
-            size = loadCoeffInArray(st, rho_sList);
-            rho = new double[size];
-            this.createCoeffArray(rho_sList, rho);
-            rho_sList = null;
-
+            ArrayList<String> lines =
+                    FileUtils.loadFile(CB_2008_AttenRel.class
+                            .getResource(CB_2008_CoeffFile));
+            double[][] coeff = new double[lines.size()][];
+            for (int i = 0; i < coeff.length; i++) {
+                StringTokenizer st = new StringTokenizer(lines.get(i));
+                st.nextToken();
+                coeff[i] = new double[st.countTokens()];
+                for (int j = 0; j < coeff[i].length; j++)
+                    coeff[i][j] = Double.parseDouble(st.nextToken().trim());
+            }
+            return coeff;
         } catch (Exception e) {
             throw new RuntimeException(CB_2008_CoeffFile + " file Not Found", e);
         }
     }
 
-    private int loadCoeffInArray(StringTokenizer st, ArrayList<Double> coeff) {
-        st.nextToken();
-        while (st.hasMoreTokens())
-            coeff.add(Double.parseDouble(st.nextToken().trim()));
-        return coeff.size();
-    }
-
-    private void createCoeffArray(ArrayList<Double> coeff, double c[]) {
-        for (int i = 0; i < c.length; ++i)
-            c[i] = coeff.get(i);
-    }
-
     /**
      * This sets the eqkRupture related parameters (magParam and fltTypeParam)
      * based on the eqkRupture passed in. The internally held eqkRupture object
@@ -553,9 +416,7 @@ public class CB_2008_AttenRel extends AttenuationRelationship implements
         }
 
         if (im.getName().equalsIgnoreCase(SA_Param.NAME)) {
-            iper =
-                    ((Integer) indexFromPerHashMap
-                            .get(saPeriodParam.getValue())).intValue();
+            iper = indexFromPerHashMap.get(saPeriodParam.getValue());
         } else if (im.getName().equalsIgnoreCase(PGV_Param.NAME)) {
             iper = 1;
         } else if (im.getName().equalsIgnoreCase(PGA_Param.NAME)) {
@@ -585,41 +446,8 @@ public class CB_2008_AttenRel extends AttenuationRelationship implements
             setCoeffIndex(); // intensityMeasureChanged is set to false in this
                              // method
         }
-
-        // compute rJB
-        rJB = rRup - distRupMinusJB_OverRup * rRup;
-
-        // set default value of basin depth based on the final value of vs30
-        // (must do this here because we get pga_rock below by passing in 1100
-        // m/s)
-        if (Double.isNaN(depthTo2pt5kmPerSec)) {
-            if (vs30 <= 2500)
-                depthTo2pt5kmPerSec = 2;
-            else
-                depthTo2pt5kmPerSec = 0;
-        }
-
-        double pga_rock =
-                Math.exp(getMean(2, 1100, rRup, rJB, f_rv, f_nm, mag, dip,
-                        depthTop, depthTo2pt5kmPerSec, magSaturation, 0));
-
-        double mean =
-                getMean(iper, vs30, rRup, rJB, f_rv, f_nm, mag, dip, depthTop,
-                        depthTo2pt5kmPerSec, magSaturation, pga_rock);
-
-        // System.out.println(mean+"\t"+iper+"\t"+vs30+"\t"+rRup+"\t"+rJB+"\t"+f_rv+"\t"+f_nm+"\t"+mag+"\t"+dip+"\t"+depthTop+"\t"+depthTo2pt5kmPerSec+"\t"+magSaturation+"\t"+pga_rock);
-
-        // make sure SA does not exceed PGA if per < 0.2 (page 11 of pre-print)
-        if (iper < 3 || iper > 11) // not SA period between 0.02 and 0.15
-            return mean;
-        else {
-            double pga_mean =
-                    getMean(2, vs30, rRup, rJB, f_rv, f_nm, mag, dip, depthTop,
-                            depthTo2pt5kmPerSec, magSaturation, pga_rock); // mean
-                                                                           // for
-                                                                           // PGA
-            return Math.max(mean, pga_mean);
-        }
+        updateMeanSigma();
+        return meanSigma[MEAN];
     }
 
     /**
@@ -630,33 +458,149 @@ public class CB_2008_AttenRel extends AttenuationRelationship implements
             setCoeffIndex(); // intensityMeasureChanged is set to false in this
                              // method
         }
+        updateMeanSigma();
+        double stdDev = getStdDev(meanSigma, stdDevType);
 
-        // compute rJB
-        rJB = rRup - distRupMinusJB_OverRup * rRup;
+        // compute multiplicative factor in case component is random
+        // horizontal
+        component = (String) componentParam.getValue();
+        if (component.equals(ComponentParam.COMPONENT_RANDOM_HORZ)) {
+            double sigma_total = meanSigma[STD_DEV_TOTAL];
+            stdDev *=
+                    Math.sqrt(1 + (s_c[iper] * s_c[iper])
+                            / (sigma_total * sigma_total));
+        }
+        return stdDev;
+    }
 
-        // set default value of basin depth based on the final value of vs30
-        // (must do this here because we get pga_rock below by passing in 1100
-        // m/s)
-        if (Double.isNaN(depthTo2pt5kmPerSec)) {
-            if (vs30 <= 2500)
-                depthTo2pt5kmPerSec = 2;
-            else
-                depthTo2pt5kmPerSec = 0;
+    // recomputes the mean and standard deviations if a parameter has changed
+    private void updateMeanSigma() {
+        if (!parameterChange)
+            return;
+        rupContext.mag = mag;
+        rupContext.rake = f_rv == 1 ? 90 : (f_nm == 1 ? -90 : 0);
+        rupContext.dip = dip;
+        rupContext.zTor = depthTop;
+        siteContext.vs30 = vs30;
+        siteContext.z2p5 = depthTo2pt5kmPerSec;
+        distContext.rRup = rRup;
+        distContext.rJB = rRup - distRupMinusJB_OverRup * rRup;
+        compute(rupContext, siteContext, distContext, iper, meanSigma);
+        parameterChange = false;
+    }
+
+    public int getIMT_Index(String imName, double period) {
+        if (imName.equals(PGD_Param.NAME))
+            return 0;
+        if (imName.equals(PGV_Param.NAME))
+            return 1;
+        if (imName.equals(PGA_Param.NAME))
+            return 2;
+        Integer index = null;
+        if (imName.equals(SA_Param.NAME))
+            index = indexFromPerHashMap.get(period);
+        if (index == null)
+            throw new RuntimeException(C + ": " + imName + " (" + period
+                    + ") is not supported");
+        return index;
+    }
+
+    /**
+     * This computes the model from the magnitude, rake, dip and depth to top,
+     * Vs30 and depth to 2.5 km/sec (if it is NaN, 2 km if Vs30 <= 2500 and
+     * zero otherwise), and rRup and rJB. The standard deviations are those of
+     * the average horizontal (GMRotI50) component.
+     */
+    public void compute(RuptureContext rupture, SiteContext site,
+            DistanceContext distances, int imtIndex, double[] outMeanSigma) {
+        ComputeScratch scratch = computeScratch.get();
+        double[] terms = setRuptureTerms(imtIndex, rupture, scratch);
+        compute(imtIndex, scratch.pgaTerms, terms, rupture.zTor, site.vs30,
+                site.z2p5, distances.rRup, distances.rJB, outMeanSigma);
+    }
+
+    /**
+     * The magnitude scaling, style of faulting and the parts of the distance
+     * and hanging wall terms that depend only on the rupture are computed
+     * once.
+     */
+    public void compute(RuptureContext rupture, SitesContext sites,
+            int imtIndex, double[] outMean, double[] outSigma) {
+        ComputeScratch scratch = computeScratch.get();
+        double[] terms = setRuptureTerms(imtIndex, rupture, scratch);
+        double[] meanSigma =
+                outSigma == null ? scratch.mean : scratch.meanSigma;
+        for (int i = 0; i < sites.size(); i++) {
+            compute(imtIndex, scratch.pgaTerms, terms, rupture.zTor,
+                    sites.vs30[i], sites.z2p5[i], sites.rRup[i], sites.rJB[i],
+                    meanSigma);
+            outMean[i] = meanSigma[MEAN];
+            if (outSigma != null)
+                outSigma[i] = meanSigma[STD_DEV_TOTAL];
         }
+    }
 
-        double pga_rock = Double.NaN;
-        if (vs30 < k1[iper])
-            pga_rock =
-                    Math.exp(getMean(2, 1100, rRup, rJB, f_rv, f_nm, mag, dip,
-                            depthTop, depthTo2pt5kmPerSec, magSaturation, 0));
+    // computes one site given the rupture terms of PGA and of the IMT
+    private void compute(int iper, double[] pgaTerms, double[] terms,
+            double depthTop, double vs30, double depthTo2pt5kmPerSec,
+            double rRup, double rJB, double[] outMeanSigma) {
+        if (Double.isNaN(depthTo2pt5kmPerSec))
+            depthTo2pt5kmPerSec = vs30 <= 2500 ? 2 : 0;
 
-        component = (String) componentParam.getValue();
+        double pga_rock =
+                Math.exp(getMean(2, pgaTerms, 1100, rRup, rJB, depthTop,
+                        depthTo2pt5kmPerSec, 0));
 
-        double stdDev = getStdDev(iper, stdDevType, component, vs30, pga_rock);
+        double mean =
+                getMean(iper, terms, vs30, rRup, rJB, depthTop,
+                        depthTo2pt5kmPerSec, pga_rock);
 
-        // System.out.println(stdDev+"\t"+iper+"\t"+stdDevType+"\t"+component+"\t"+vs30+"\t"+pga_rock);
+        // make sure SA does not exceed PGA if per < 0.2 (page 11 of pre-print)
+        if (iper >= 3 && iper <= 11) {
+            double pga_mean =
+                    getMean(2, pgaTerms, vs30, rRup, rJB, depthTop,
+                            depthTo2pt5kmPerSec, pga_rock);
+            mean = Math.max(mean, pga_mean);
+        }
+        outMeanSigma[MEAN] = mean;
 
-        return stdDev;
+        if (outMeanSigma.length > STD_DEV_TOTAL) {
+            double tau = t_lny[iper];
+            double sigma = getIntraEventStdDev(iper, vs30, pga_rock);
+            outMeanSigma[STD_DEV_TOTAL] = Math.sqrt(tau * tau + sigma * sigma);
+            if (outMeanSigma.length > STD_DEV_INTRA) {
+                outMeanSigma[STD_DEV_INTER] = tau;
+                outMeanSigma[STD_DEV_INTRA] = sigma;
+            }
+        }
+    }
+
+    // puts the rupture terms (see getRuptureTerms()) of PGA (iper=2) and, if
+    // it isn't PGA, of the IMT in the scratch arrays, returning those of the
+    // IMT
+    private double[] setRuptureTerms(int iper, RuptureContext rupture,
+            ComputeScratch scratch) {
+        double rake = rupture.rake;
+        double f_rv = 0, f_nm = 0;
+        if (rake > 30 && rake < 150)
+            f_rv = 1;
+        else if (rake > -150 && rake < -30)
+            f_nm = 1;
+        getRuptureTerms(2, f_rv, f_nm, rupture.mag, rupture.dip,
+                rupture.zTor, scratch.pgaTerms);
+        if (iper == 2)
+            return scratch.pgaTerms;
+        getRuptureTerms(iper, f_rv, f_nm, rupture.mag, rupture.dip,
+                rupture.zTor, scratch.imtTerms);
+        return scratch.imtTerms;
+    }
+
+    // the arrays of one thread's compute() calls
+    private static class ComputeScratch {
+        final double[] pgaTerms = new double[3];
+        final double[] imtTerms = new double[3];
+        final double[] mean = new double[1];
+        final double[] meanSigma = new double[2];
     }
 
     /**
@@ -907,15 +851,25 @@ public class CB_2008_AttenRel extends AttenuationRelationship implements
      * @param mag
      * @param depthTop
      * @param depthTo2pt5kmPerSec
-     * @param magSaturation
      * @param pga_rock
      * @return
      */
     public double getMean(int iper, double vs30, double rRup, double distJB,
             double f_rv, double f_nm, double mag, double dip, double depthTop,
-            double depthTo2pt5kmPerSec, boolean magSaturation, double pga_rock) {
+            double depthTo2pt5kmPerSec, double pga_rock) {
+        double[] terms = computeScratch.get().imtTerms;
+        getRuptureTerms(iper, f_rv, f_nm, mag, dip, depthTop, terms);
+        return getMean(iper, terms, vs30, rRup, distJB, depthTop,
+                depthTo2pt5kmPerSec, pga_rock);
+    }
+
+    // the terms of the mean that depend only on the rupture: fmag + fflt, the
+    // magnitude-dependent factor of fdis and fhng without its distance factor
+    // (fhngr), put in terms
+    private void getRuptureTerms(int iper, double f_rv, double f_nm,
+            double mag, double dip, double depthTop, double[] terms) {
 
-        double fmag, fdis, fflt, fhng, fsite, fsed;
+        double fmag, fflt;
 
         // modeling depence on magnitude
         if (mag <= 5.5)
@@ -927,11 +881,6 @@ public class CB_2008_AttenRel extends AttenuationRelationship implements
                     c0[iper] + c1[iper] * mag + c2[iper] * (mag - 5.5)
                             + c3[iper] * (mag - 6.5);
 
-        // source to site distance
-        fdis =
-                (c4[iper] + c5[iper] * mag)
-                        * Math.log(Math.sqrt(rRup * rRup + c6[iper] * c6[iper]));
-
         // style of faulting
         double ffltz; // getting the depth top or also called Ztor in Campbell's
                       // paper
@@ -944,19 +893,6 @@ public class CB_2008_AttenRel extends AttenuationRelationship implements
         fflt = c7[iper] * f_rv * ffltz + c8[iper] * f_nm;
 
         // hanging wall effects
-        double fhngr;
-        if (distJB == 0)
-            fhngr = 1;
-        else if (depthTop < 1 && distJB > 0)
-            fhngr =
-                    (Math.max(rRup, Math.sqrt(distJB * distJB + 1)) - distJB)
-                            / Math.max(rRup, Math.sqrt(distJB * distJB + 1));
-        else
-            fhngr = (rRup - distJB) / rRup;
-
-        // if(pga_rock !=0)
-        // System.out.print((float)distJB+"\t"+(float)rRup+"\t"+fhngr+"\n");
-
         double fhngm;
         if (mag <= 6.0)
             fhngm = 0;
@@ -977,7 +913,38 @@ public class CB_2008_AttenRel extends AttenuationRelationship implements
         else
             fhngd = (90 - dip) / 20;
 
-        fhng = c9[iper] * fhngr * fhngm * fhngz * fhngd;
+        terms[0] = fmag + fflt;
+        terms[1] = c4[iper] + c5[iper] * mag;
+        terms[2] = c9[iper] * fhngm * fhngz * fhngd;
+    }
+
+    // the mean given the rupture terms of getRuptureTerms()
+    private double getMean(int iper, double[] terms, double vs30, double rRup,
+            double distJB, double depthTop, double depthTo2pt5kmPerSec,
+            double pga_rock) {
+
+        double fdis, fhng, fsite, fsed;
+
+        // source to site distance
+        fdis =
+                terms[1]
+                        * Math.log(Math.sqrt(rRup * rRup + c6[iper] * c6[iper]));
+
+        // hanging wall effects
+        double fhngr;
+        if (distJB == 0)
+            fhngr = 1;
+        else if (depthTop < 1 && distJB > 0)
+            fhngr =
+                    (Math.max(rRup, Math.sqrt(distJB * distJB + 1)) - distJB)
+                            / Math.max(rRup, Math.sqrt(distJB * distJB + 1));
+        else
+            fhngr = (rRup - distJB) / rRup;
+
+        // if(pga_rock !=0)
+        // System.out.print((float)distJB+"\t"+(float)rRup+"\t"+fhngr+"\n");
+
+        fhng = terms[2] * fhngr;
 
         // modelling dependence on linear and non-linear site conditions
         if (vs30 < k1[iper])
@@ -1003,7 +970,7 @@ public class CB_2008_AttenRel extends AttenuationRelationship implements
                     c12[iper] * k3[iper] * Math.exp(-0.75)
                             * (1 - Math.exp(-0.25 * (depthTo2pt5kmPerSec - 3)));
 
-        return fmag + fdis + fflt + fhng + fsite + fsed;
+        return terms[0] + fdis + fhng + fsite + fsed;
     }
 
     /**
@@ -1024,27 +991,7 @@ public class CB_2008_AttenRel extends AttenuationRelationship implements
             double tau = t_lny[iper];
 
             // compute intra-event sigma
-            double sigma;
-            if (vs30 >= k1[iper])
-                sigma = s_lny[iper];
-            else {
-                double s_lnYb =
-                        Math.sqrt(s_lny[iper] * s_lny[iper] - s_lnAF * s_lnAF);
-                double s_lnAb =
-                        Math.sqrt(s_lny[2] * s_lny[2] - s_lnAF * s_lnAF); // iper=2
-                                                                          // is
-                                                                          // for
-                                                                          // PGA
-                double alpha =
-                        k2[iper]
-                                * rock_pga
-                                * ((1 / (rock_pga + c
-                                        * Math.pow(vs30 / k1[iper], n))) - 1 / (rock_pga + c));
-                sigma =
-                        Math.sqrt(s_lnYb * s_lnYb + s_lnAF * s_lnAF + alpha
-                                * alpha * s_lnAb * s_lnAb + 2 * alpha
-                                * rho[iper] * s_lnYb * s_lnAb);
-            }
+            double sigma = getIntraEventStdDev(iper, vs30, rock_pga);
 
             // compute total sigma
             double sigma_total = Math.sqrt(tau * tau + sigma * sigma);
@@ -1072,6 +1019,21 @@ public class CB_2008_AttenRel extends AttenuationRelationship implements
         }
     }
 
+    // the intra-event standard deviation (of the GMRotI50 component)
+    private double getIntraEventStdDev(int iper, double vs30, double rock_pga) {
+        if (vs30 >= k1[iper])
+            return s_lny[iper];
+        double s_lnYb = Math.sqrt(s_lny[iper] * s_lny[iper] - s_lnAF * s_lnAF);
+        // iper=2 is for PGA
+        double s_lnAb = Math.sqrt(s_lny[2] * s_lny[2] - s_lnAF * s_lnAF);
+        double alpha =
+                k2[iper]
+                        * rock_pga
+                        * ((1 / (rock_pga + c * Math.pow(vs30 / k1[iper], n))) - 1 / (rock_pga + c));
+        return Math.sqrt(s_lnYb * s_lnYb + s_lnAF * s_lnAF + alpha * alpha
+                * s_lnAb * s_lnAb + 2 * alpha * rho[iper] * s_lnYb * s_lnAb);
+    }
+
     /**
      * This listens for parameter changes and updates the primitive parameters
      * accordingly
@@ -35,8 +35,13 @@ import org.opensha.commons.param.event.ParameterChangeWarningListener;
 import org.opensha.sha.earthquake.EqkRupture;
 import org.opensha.sha.faultSurface.EvenlyGriddedSurfaceAPI;
 import org.opensha.sha.imr.AttenuationRelationship;
+import org.opensha.sha.imr.DistanceContext;
+import org.opensha.sha.imr.PrimitiveIMR_API;
 import org.opensha.sha.imr.PropagationEffect;
+import org.opensha.sha.imr.RuptureContext;
 import org.opensha.sha.imr.ScalarIntensityMeasureRelationshipAPI;
+import org.opensha.sha.imr.SiteContext;
+import org.opensha.sha.imr.SitesContext;
 import org.opensha.sha.imr.param.EqkRuptureParams.AftershockParam;
 import org.opensha.sha.imr.param.EqkRuptureParams.DipParam;
 import org.opensha.sha.imr.param.EqkRuptureParams.FaultTypeParam;
@@ -119,6 +124,12 @@ import org.opensha.sha.imr.param.SiteParams.Vs30_TypeParam.Vs30Type;
  * 
  * 
  * </p>
+ * <p>
+ * The model is computed by compute() (see PrimitiveIMR_API), from plain
+ * rupture, site and distance values; getMean() and getStdDev() copy the
+ * parameters into those values and keep the result until a parameter
+ * changes.
+ * </p>
  * 
  * @author Edward H. Field
  * @created Feb, 2009
@@ -127,7 +138,7 @@ import org.opensha.sha.imr.param.SiteParams.Vs30_TypeParam.Vs30Type;
 
 public class CY_2008_AttenRel extends AttenuationRelationship implements
 		ScalarIntensityMeasureRelationshipAPI, NamedObjectAPI,
-		ParameterChangeListener {
+		ParameterChangeListener, PrimitiveIMR_API {
 
 	// Debugging stuff
 	private final static String C = "CY_2008_AttenRel";
@@ -271,8 +282,13 @@ public class CY_2008_AttenRel extends AttenuationRelationship implements
 	private String stdDevType;
 	private double depthTo1pt0kmPerSec; // defined this way to support null
 										// values
-	private double lnYref;
-	private boolean lnYref_is_not_fresh;
+	private boolean parameterChange = true;
+
+	// the parameters as compute() inputs, and its output for them
+	private final RuptureContext rupContext = new RuptureContext();
+	private final SiteContext siteContext = new SiteContext();
+	private final DistanceContext distContext = new DistanceContext();
+	private final double[] meanSigma = new double[4];
 
 	// from page 66 of their report
 	protected final static Double MAG_WARN_MIN = new Double(4.);
@@ -479,12 +495,10 @@ public class CY_2008_AttenRel extends AttenuationRelationship implements
 		if (intensityMeasureChanged) {
 			setCoeffIndex();// intensityMeasureChanged is set to false in this
 							// method
-			lnYref_is_not_fresh = true;
+			parameterChange = true;
 		}
-
-		return getMean(iper, vs30, f_rv, f_nm, rRup, distRupMinusJB_OverRup,
-				depthTo1pt0kmPerSec, distRupMinusDistX_OverRup, f_hw, dip, mag,
-				depthTop, aftershock);
+		updateMeanSigma();
+		return meanSigma[MEAN];
 	}
 
 	/**
@@ -494,12 +508,105 @@ public class CY_2008_AttenRel extends AttenuationRelationship implements
 		if (intensityMeasureChanged) {
 			setCoeffIndex();// intensityMeasureChanged is set to false in this
 							// method
-			lnYref_is_not_fresh = true;
+			parameterChange = true;
+		}
+		updateMeanSigma();
+		return getStdDev(meanSigma, stdDevType);
+	}
+
+	// recomputes the mean and standard deviations if a parameter has changed
+	private void updateMeanSigma() {
+		if (!parameterChange)
+			return;
+		rupContext.mag = mag;
+		rupContext.rake = f_rv == 1 ? 90 : (f_nm == 1 ? -90 : 0);
+		rupContext.dip = dip;
+		rupContext.zTor = depthTop;
+		rupContext.aftershock = aftershock == 1;
+		siteContext.vs30 = vs30;
+		siteContext.vs30Measured = f_meas == 1;
+		siteContext.z1p0 = depthTo1pt0kmPerSec;
+		distContext.rRup = rRup;
+		distContext.rJB = rRup - distRupMinusJB_OverRup * rRup;
+		double distX = rRup - distRupMinusDistX_OverRup * rRup;
+		distContext.rX = f_hw == 1 ? distX : -distX;
+		compute(rupContext, siteContext, distContext, iper, meanSigma);
+		parameterChange = false;
+	}
+
+	public int getIMT_Index(String imName, double period) {
+		if (imName.equals(PGA_Param.NAME))
+			return 22;
+		if (imName.equals(PGV_Param.NAME))
+			return 23;
+		Integer index = null;
+		if (imName.equals(SA_Param.NAME))
+			index = (Integer) indexFromPerHashMap.get(period);
+		if (index == null)
+			throw new RuntimeException(C + ": " + imName + " (" + period
+					+ ") is not supported");
+		return index;
+	}
+
+	/**
+	 * This computes the model from the magnitude, rake, dip, depth to top and
+	 * whether it is an aftershock, Vs30, whether it was measured and depth to
+	 * 1.0 km/sec (if it is NaN, it is estimated from Vs30), and rRup, rJB and
+	 * rX (the sign of which says whether the site is on the hanging wall).
+	 */
+	public void compute(RuptureContext rupture, SiteContext site,
+			DistanceContext distances, int imtIndex, double[] outMeanSigma) {
+		compute(imtIndex, getRuptureTerms(imtIndex, rupture), rupture,
+				site.vs30, site.vs30Measured, site.z1p0, distances.rRup,
+				distances.rJB, distances.rX, outMeanSigma);
+	}
+
+	/**
+	 * The terms of lnYref that depend only on the rupture (magnitude scaling,
+	 * style of faulting, depth to top and the magnitude-dependent factors of
+	 * the distance terms) are computed once.
+	 */
+	public void compute(RuptureContext rupture, SitesContext sites,
+			int imtIndex, double[] outMean, double[] outSigma) {
+		double[] terms = getRuptureTerms(imtIndex, rupture);
+		double[] meanSigma = new double[outSigma == null ? 1 : 2];
+		for (int i = 0; i < sites.size(); i++) {
+			compute(imtIndex, terms, rupture, sites.vs30[i],
+					sites.vs30Measured[i], sites.z1p0[i], sites.rRup[i],
+					sites.rJB[i], sites.rX[i], meanSigma);
+			outMean[i] = meanSigma[MEAN];
+			if (outSigma != null)
+				outSigma[i] = meanSigma[STD_DEV_TOTAL];
 		}
+	}
 
-		return getStdDev(iper, vs30, f_rv, f_nm, rRup, distRupMinusJB_OverRup,
-				distRupMinusDistX_OverRup, f_hw, dip, mag, depthTop,
-				aftershock, stdDevType, f_meas);
+	// computes one site given the rupture terms of lnYref
+	private void compute(int iper, double[] terms, RuptureContext rupture,
+			double vs30, boolean vs30Measured, double depthTo1pt0kmPerSec,
+			double rRup, double distanceJB, double rX, double[] outMeanSigma) {
+		double aftershock = rupture.aftershock ? 1 : 0;
+		double f_hw = Double.compare(rX, 0.0) >= 0 ? 1 : 0;
+
+		double lnYref =
+				get_lnYref(iper, terms, rRup, distanceJB, Math.abs(rX), f_hw,
+						rupture.zTor);
+		outMeanSigma[MEAN] =
+				getMean(iper, vs30, lnYref, depthTo1pt0kmPerSec);
+		if (outMeanSigma.length > STD_DEV_TOTAL)
+			getStdDevs(iper, vs30, rupture.mag, aftershock,
+					vs30Measured ? 1 : 0, lnYref, outMeanSigma);
+	}
+
+	// the rupture terms (see getRuptureTerms()) of a rupture context
+	private double[] getRuptureTerms(int iper, RuptureContext rupture) {
+		double rake = rupture.rake;
+		double f_rv = 0, f_nm = 0;
+		if (rake >= 30 && rake <= 150)
+			f_rv = 1;
+		else if (rake >= -120 && rake <= -60)
+			f_nm = 1;
+		return getRuptureTerms(iper, f_rv, f_nm, rupture.dip, rupture.mag,
+				rupture.zTor, rupture.aftershock ? 1 : 0);
 	}
 
 	/**
@@ -789,11 +896,17 @@ public class CY_2008_AttenRel extends AttenuationRelationship implements
 			double depthTo1pt0kmPerSec, double distRupMinusDistX_OverRup,
 			double f_hw, double dip, double mag, double depthTop,
 			double aftershock) {
+		double lnYref =
+				get_lnYref(iper, f_rv, f_nm, rRup, rRup
+						- distRupMinusJB_OverRup * rRup, rRup
+						- distRupMinusDistX_OverRup * rRup, f_hw, dip, mag,
+						depthTop, aftershock);
+		return getMean(iper, vs30, lnYref, depthTo1pt0kmPerSec);
+	}
 
-		if (lnYref_is_not_fresh)
-			compute_lnYref(iper, f_rv, f_nm, rRup, distRupMinusJB_OverRup,
-					distRupMinusDistX_OverRup, f_hw, dip, mag, depthTop,
-					aftershock);
+	// the mean from lnYref and the site terms
+	private double getMean(int iper, double vs30, double lnYref,
+			double depthTo1pt0kmPerSec) {
 
 		// set basinDepth default if depthTo1pt0kmPerSec is NaN
 		double basinDepth;
@@ -826,16 +939,15 @@ public class CY_2008_AttenRel extends AttenuationRelationship implements
 	}
 
 	/**
-	 * This method returns lnYref (equation 13a in their paper). This could test
-	 * whether parameters have changed, and only update lnYref if so (more
-	 * efficient since it's compute for both mean and stddev)
+	 * This method returns lnYref (equation 13a in their paper).
 	 * 
 	 * @param iper
 	 * @param f_rv
 	 * @param f_nm
 	 * @param rRup
-	 * @param distRupMinusJB_OverRup
-	 * @param distRupMinusDistX_OverRup
+	 * @param distanceJB
+	 * @param distX
+	 *            (always >= 0; f_hw says which side of the fault it is on)
 	 * @param f_hw
 	 * @param dip
 	 * @param mag
@@ -843,20 +955,22 @@ public class CY_2008_AttenRel extends AttenuationRelationship implements
 	 * @param aftershock
 	 * @return
 	 */
-	private void compute_lnYref(int iper, double f_rv, double f_nm,
-			double rRup, double distRupMinusJB_OverRup,
-			double distRupMinusDistX_OverRup, double f_hw, double dip,
-			double mag, double depthTop, double aftershock) {
-		// compute rJB
-		double distanceJB = rRup - distRupMinusJB_OverRup * rRup;
-		double distX = rRup - distRupMinusDistX_OverRup * rRup;
-		// System.out.println(depthTop);
+	private double get_lnYref(int iper, double f_rv, double f_nm,
+			double rRup, double distanceJB, double distX, double f_hw,
+			double dip, double mag, double depthTop, double aftershock) {
+		return get_lnYref(iper, getRuptureTerms(iper, f_rv, f_nm, dip, mag,
+				depthTop, aftershock), rRup, distanceJB, distX, f_hw, depthTop);
+	}
+
+	// the terms of lnYref that depend only on the rupture: the source terms,
+	// the magnitude-dependent factors of the two distance terms that have one
+	// and the square of the cosine of the dip
+	private double[] getRuptureTerms(int iper, double f_rv, double f_nm,
+			double dip, double mag, double depthTop, double aftershock) {
 
 		double cosDelta = Math.cos(dip * Math.PI / 180);
-		double altDist = Math.sqrt(distanceJB * distanceJB + depthTop
-				* depthTop);
 
-		lnYref = c1[iper]
+		double source = c1[iper]
 				+ (c1a[iper] * f_rv + c1b[iper] * f_nm + c7[iper]
 						* (depthTop - 4.0))
 				* (1 - aftershock)
@@ -869,26 +983,25 @@ public class CY_2008_AttenRel extends AttenuationRelationship implements
 				c2
 				* (mag - 6.0)
 				+ ((c2 - c3) / cn[iper])
-				* Math.log(1.0 + Math.exp(cn[iper] * (cm[iper] - mag)))
-				+
+				* Math.log(1.0 + Math.exp(cn[iper] * (cm[iper] - mag)));
 
-				c4
-				* Math.log(rRup + c5[iper]
-						* Math.cosh(c6[iper] * Math.max(mag - chm, 0))) +
+		return new double[] { source,
+				c5[iper] * Math.cosh(c6[iper] * Math.max(mag - chm, 0)),
+				cg1[iper] + cg2[iper] / Math.cosh(Math.max(mag - cg3, 0.0)),
+				cosDelta * cosDelta };
+	}
 
-				(c4a - c4) * 0.5 * Math.log(rRup * rRup + crb * crb) +
+	// lnYref given the rupture terms of getRuptureTerms()
+	private double get_lnYref(int iper, double[] terms, double rRup,
+			double distanceJB, double distX, double f_hw, double depthTop) {
 
-				(cg1[iper] + cg2[iper] / Math.cosh(Math.max(mag - cg3, 0.0)))
-				* rRup +
+		double altDist = Math.sqrt(distanceJB * distanceJB + depthTop
+				* depthTop);
 
-				c9[iper] * f_hw
-				* Math.tanh(distX * cosDelta * cosDelta / c9a[iper])
+		return terms[0] + c4 * Math.log(rRup + terms[1]) + (c4a - c4) * 0.5
+				* Math.log(rRup * rRup + crb * crb) + terms[2] * rRup + c9[iper]
+				* f_hw * Math.tanh(distX * terms[3] / c9a[iper])
 				* (1 - altDist / (rRup + 0.001));
-
-		lnYref_is_not_fresh = false;
-
-		// System.out.println(rRup+"\t"+distanceJB+"\t"+distX+"\t"+f_hw+"\t"+lnYref);
-
 	}
 
 	/**
@@ -917,16 +1030,26 @@ public class CY_2008_AttenRel extends AttenuationRelationship implements
 			double distRupMinusDistX_OverRup, double f_hw, double dip,
 			double mag, double depthTop, double aftershock, String stdDevType,
 			double f_meas) {
+		double lnYref =
+				get_lnYref(iper, f_rv, f_nm, rRup, rRup
+						- distRupMinusJB_OverRup * rRup, rRup
+						- distRupMinusDistX_OverRup * rRup, f_hw, dip, mag,
+						depthTop, aftershock);
+		double[] sigmas = new double[4];
+		getStdDevs(iper, vs30, mag, aftershock, f_meas, lnYref, sigmas);
+		return getStdDev(sigmas, stdDevType);
+	}
+
+	// puts the total, inter- and intra-event standard deviations in the
+	// output of compute() (as many as it has room for)
+	private void getStdDevs(int iper, double vs30, double mag,
+			double aftershock, double f_meas, double lnYref,
+			double[] outMeanSigma) {
 
 		double magTest = Math.min(Math.max(mag, 5.0), 7.0) - 5.0;
 
 		double tau = tau1[iper] + (tau2[iper] - tau1[iper]) / 2 * magTest;
 
-		if (lnYref_is_not_fresh)
-			compute_lnYref(iper, f_rv, f_nm, rRup, distRupMinusJB_OverRup,
-					distRupMinusDistX_OverRup, f_hw, dip, mag, depthTop,
-					aftershock);
-
 		double b = phi2[iper]
 				* (Math.exp(phi3[iper] * (Math.min(vs30, 1130) - 360)) - Math
 						.exp(phi3[iper] * (1130 - 360))); // Equation 10
@@ -937,17 +1060,13 @@ public class CY_2008_AttenRel extends AttenuationRelationship implements
 		sigma *= Math.sqrt((sig3[iper] * (1 - f_meas) + 0.7 * f_meas)
 				+ (1 + NLo) * (1 + NLo));
 
-		if (stdDevType.equals(StdDevTypeParam.STD_DEV_TYPE_TOTAL))
-			return Math.sqrt((1 + NLo) * (1 + NLo) * tau * tau + sigma * sigma);
-		else if (stdDevType.equals(StdDevTypeParam.STD_DEV_TYPE_NONE))
-			return 0;
-		else if (stdDevType.equals(StdDevTypeParam.STD_DEV_TYPE_INTRA))
-			return sigma;
-		else if (stdDevType.equals(StdDevTypeParam.STD_DEV_TYPE_INTER))
-			return (1 + NLo) * tau; // not completely sure if this is the right
-									// thing to return here
-		else
-			return Double.NaN;
+		outMeanSigma[STD_DEV_TOTAL] =
+				Math.sqrt((1 + NLo) * (1 + NLo) * tau * tau + sigma * sigma);
+		if (outMeanSigma.length > STD_DEV_INTRA) {
+			// not completely sure if this is the right thing to return here
+			outMeanSigma[STD_DEV_INTER] = (1 + NLo) * tau;
+			outMeanSigma[STD_DEV_INTRA] = sigma;
+		}
 	}
 
 	/**
@@ -961,8 +1080,7 @@ public class CY_2008_AttenRel extends AttenuationRelationship implements
 
 		String pName = e.getParameterName();
 		Object val = e.getNewValue();
-		lnYref_is_not_fresh = true; // this could be placed below, only where
-									// really needed.
+		parameterChange = true;
 
 		if (pName.equals(MagParam.NAME)) {
 			mag = ((Double) val).doubleValue();
@@ -0,0 +1,121 @@
+package org.opensha.sha.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.ListIterator;
+import java.util.Map;
+
+import org.opensha.commons.metadata.MetadataLoader;
+import org.opensha.commons.param.DependentParameterAPI;
+import org.opensha.commons.param.ParameterAPI;
+import org.opensha.commons.param.WarningParameterAPI;
+import org.opensha.commons.param.event.ParameterChangeWarningListener;
+import org.opensha.sha.imr.ScalarIntensityMeasureRelationshipAPI;
+
+/**
+ * Static helpers for making independent copies of IMRs, e.g. so each thread of
+ * a parallel calculation can own an IMR (IMRs hold the current site and
+ * rupture as state, so they can't be shared between threads).
+ */
+public class IMRUtils {
+
+    /**
+     * This creates a new instance of the given IMR's class (using the
+     * constructor that takes a ParameterChangeWarningListener, which all
+     * AttenuationRelationships provide) and copies over the intensity measure
+     * (including its independent parameters, such as period and damping), the
+     * "other" parameters and the site parameters. The site and rupture are not
+     * copied; they must be set on the clone before use.
+     *
+     * @param imr
+     *            the IMR to copy
+     * @param listener
+     *            the warning listener handed to the new instance
+     * @return an independent IMR with the same settings
+     */
+    public static ScalarIntensityMeasureRelationshipAPI cloneIMR(
+            ScalarIntensityMeasureRelationshipAPI imr,
+            ParameterChangeWarningListener listener) {
+        ArrayList<Object> args = new ArrayList<Object>();
+        ArrayList<String> argNames = new ArrayList<String>();
+        args.add(listener);
+        argNames.add(ParameterChangeWarningListener.class.getName());
+        ScalarIntensityMeasureRelationshipAPI clone;
+        try {
+            clone =
+                    (ScalarIntensityMeasureRelationshipAPI) MetadataLoader
+                            .createClassInstance(imr.getClass().getName(),
+                                    args, argNames);
+        } catch (InvocationTargetException e) {
+            throw new RuntimeException("Unable to clone IMR "
+                    + imr.getName(), e.getCause());
+        }
+        clone.setParamDefaults();
+
+        copyValues(imr.getOtherParamsIterator(), clone);
+        copyValues(imr.getSiteParamsIterator(), clone);
+
+        ParameterAPI<?> im = imr.getIntensityMeasure();
+        if (im != null) {
+            clone.setIntensityMeasure(im.getName());
+            if (im instanceof DependentParameterAPI)
+                copyValues(((DependentParameterAPI) im)
+                        .getIndependentParametersIterator(), clone);
+        }
+        return clone;
+    }
+
+    /**
+     * This clones every IMR in the given map (see cloneIMR), keeping the
+     * tectonic region keys. An IMR that is mapped to more than one region is
+     * cloned only once, so the copy keeps the same sharing as the original.
+     *
+     * @param imrMap
+     * @param listener
+     * @return
+     */
+    public static
+            HashMap<TectonicRegionType, ScalarIntensityMeasureRelationshipAPI>
+            cloneIMRMap(
+                    Map<TectonicRegionType, ScalarIntensityMeasureRelationshipAPI> imrMap,
+                    ParameterChangeWarningListener listener) {
+        IdentityHashMap<ScalarIntensityMeasureRelationshipAPI, ScalarIntensityMeasureRelationshipAPI> clones =
+                new IdentityHashMap<ScalarIntensityMeasureRelationshipAPI, ScalarIntensityMeasureRelationshipAPI>();
+        HashMap<TectonicRegionType, ScalarIntensityMeasureRelationshipAPI> cloneMap =
+                new HashMap<TectonicRegionType, ScalarIntensityMeasureRelationshipAPI>();
+        for (TectonicRegionType trt : imrMap.keySet()) {
+            ScalarIntensityMeasureRelationshipAPI imr = imrMap.get(trt);
+            ScalarIntensityMeasureRelationshipAPI clone = clones.get(imr);
+            if (clone == null) {
+                clone = cloneIMR(imr, listener);
+                clones.put(imr, clone);
+            }
+            cloneMap.put(trt, clone);
+        }
+        return cloneMap;
+    }
+
+    private static void copyValues(ListIterator<?> paramIt,
+            ScalarIntensityMeasureRelationshipAPI clone) {
+        while (paramIt.hasNext()) {
+            ParameterAPI<?> param = (ParameterAPI<?>) paramIt.next();
+            if (param.getValue() == null)
+                continue;
+            ParameterAPI<?> cloneParam = clone.getParameter(param.getName());
+            setValue(cloneParam, param.getValue());
+        }
+    }
+
+    // sets the value of a parameter (ignoring warnings if it has them) to
+    // that of the parameter of the same name of another IMR, which has the
+    // same type
+    @SuppressWarnings("unchecked")
+    private static <T> void setValue(ParameterAPI<T> param, Object value) {
+        if (param instanceof WarningParameterAPI)
+            ((WarningParameterAPI<T>) param).setValueIgnoreWarning((T) value);
+        else
+            param.setValue((T) value);
+    }
+}
@@ -0,0 +1,79 @@
+package org.opensha.sha.calc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.opensha.commons.geo.GriddedRegion;
+import org.opensha.commons.geo.Location;
+import org.opensha.sha.earthquake.EqkRupForecast;
+import org.opensha.sha.imr.ScalarIntensityMeasureRelationshipAPI;
+
+/**
+ * Class providing methods for testing {@link AdaptiveHazardMapCalculator}.
+ */
+public class AdaptiveHazardMapCalculatorTest {
+
+	private static final double POE = 0.1;
+
+	/**
+	 * Checks that the adaptive map computes fewer curves than there are
+	 * nodes, that the values of the nodes it computes are those of the full
+	 * map and that the interpolated values are close to them.
+	 */
+	@Test
+	public void adaptiveMapIsCloseToFullMap() throws Exception {
+		EqkRupForecast erf = HazardCurveCalculatorTestHelper.getMultiSourceErf();
+		ScalarIntensityMeasureRelationshipAPI imr = HazardCurveCalculatorTestHelper
+				.getSadighGMPE();
+		GriddedRegion region = new GriddedRegion(new Location(37.4, -123.0),
+				new Location(38.6, -121.8), 0.1, GriddedRegion.ANCHOR_0_0);
+		SiteParamsProviderAPI siteParams = new UniformSiteParamsProvider(
+				HazardCurveCalculatorTestHelper.getRockSite(0, 0));
+
+		HazardCurveCalculator curveCalc = new HazardCurveCalculator();
+		curveCalc.setMaxSourceDistance(60);
+		curveCalc.setNumThreads(3);
+		HazardMapCalculator mapCalc = new HazardMapCalculator(curveCalc);
+		mapCalc.setTileSize(8);
+		AdaptiveHazardMapCalculator calc = new AdaptiveHazardMapCalculator(
+				mapCalc);
+
+		calc.setNumLevels(0);
+		double[] full = calc.getIMLs_AtPOE(region, siteParams,
+				HazardCurveCalculatorTestHelper.getLogPGA_Function(), POE,
+				imr, erf);
+		assertEquals(region.getNodeCount(), calc.getNumNodesComputed());
+
+		calc.setNumLevels(2);
+		calc.setTolerance(0.3);
+		double[] adaptive = calc.getIMLs_AtPOE(region, siteParams,
+				HazardCurveCalculatorTestHelper.getLogPGA_Function(), POE,
+				imr, erf);
+		assertTrue(calc.getNumNodesComputed() < 2 * region.getNodeCount() / 3);
+		for (int i = 0; i < full.length; i++) {
+			if (calc.isComputed(i))
+				assertEquals(full[i], adaptive[i], 1e-11);
+			else
+				assertEquals(full[i], adaptive[i], calc.getTolerance());
+		}
+	}
+
+	/**
+	 * Checks the interpolation of the IML at a probability of exceedance,
+	 * including its clamping outside the curve.
+	 */
+	@Test
+	public void imlAtPOE() {
+		double[] imls = { 0, 1, 2 };
+		double[] curve = { 0.5, 0.05, 0 };
+		assertEquals(0, AdaptiveHazardMapCalculator.getIML_AtPOE(imls, curve,
+				0.6), 0);
+		assertEquals(0.5, AdaptiveHazardMapCalculator.getIML_AtPOE(imls,
+				curve, Math.sqrt(0.5 * 0.05)), 1e-12);
+		assertEquals(1.5, AdaptiveHazardMapCalculator.getIML_AtPOE(imls,
+				curve, 0.025), 1e-12);
+		assertEquals(2, AdaptiveHazardMapCalculator.getIML_AtPOE(imls, curve,
+				0), 0);
+	}
+}
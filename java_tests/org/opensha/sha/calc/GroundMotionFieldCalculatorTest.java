@@ -0,0 +1,165 @@
+package org.opensha.sha.calc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.ListIterator;
+
+import org.junit.Test;
+import org.opensha.commons.data.Site;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.geo.LocationUtils;
+import org.opensha.commons.param.ParameterAPI;
+import org.opensha.commons.param.event.ParameterChangeWarningEvent;
+import org.opensha.commons.param.event.ParameterChangeWarningListener;
+import org.opensha.sha.earthquake.EqkRupture;
+import org.opensha.sha.earthquake.rupForecastImpl.PointEqkSource;
+import org.opensha.sha.imr.ScalarIntensityMeasureRelationshipAPI;
+import org.opensha.sha.imr.attenRelImpl.BA_2008_AttenRel;
+import org.opensha.sha.imr.param.IntensityMeasureParams.PGA_Param;
+import org.opensha.sha.imr.param.OtherParams.StdDevTypeParam;
+
+/**
+ * Class providing methods for testing {@link GroundMotionFieldCalculator}.
+ */
+public class GroundMotionFieldCalculatorTest {
+
+	private static final double TOLERANCE = 1e-12;
+
+	/**
+	 * Checks that the means and standard deviations are those the IMR gives
+	 * for each site.
+	 */
+	@Test
+	public void meansAndSigmasMatchIMR() {
+		ScalarIntensityMeasureRelationshipAPI imr = getIMR();
+		EqkRupture rupture = getRupture();
+		Site[] sites = getSites(imr, 5);
+		GroundMotionFieldCalculator calc = new GroundMotionFieldCalculator(
+				rupture, sites, imr);
+		assertEquals(StdDevTypeParam.STD_DEV_TYPE_TOTAL, imr.getParameter(
+				StdDevTypeParam.NAME).getValue());
+
+		double[] means = calc.getMeans();
+		double[] inter = calc.getInterEventSigmas();
+		double[] intra = calc.getIntraEventSigmas();
+		ParameterAPI stdDevType = imr.getParameter(StdDevTypeParam.NAME);
+		imr.setEqkRupture(rupture);
+		for (int i = 0; i < sites.length; i++) {
+			imr.setSite(sites[i]);
+			assertEquals(imr.getMean(), means[i], TOLERANCE);
+			stdDevType.setValue(StdDevTypeParam.STD_DEV_TYPE_INTER);
+			assertEquals(imr.getStdDev(), inter[i], TOLERANCE);
+			stdDevType.setValue(StdDevTypeParam.STD_DEV_TYPE_INTRA);
+			assertEquals(imr.getStdDev(), intra[i], TOLERANCE);
+			stdDevType.setValue(StdDevTypeParam.STD_DEV_TYPE_TOTAL);
+			assertTrue(inter[i] > 0);
+		}
+		assertTrue(means[0] > means[sites.length - 1]);
+	}
+
+	/**
+	 * Checks that realizations depend only on the seed and their index, and
+	 * that their mean, variance and the covariance of two sites are those of
+	 * the model.
+	 */
+	@Test
+	public void realizationsFollowModel() {
+		ScalarIntensityMeasureRelationshipAPI imr = getIMR();
+		Site[] sites = getSites(imr, 3);
+		GroundMotionFieldCalculator calc = new GroundMotionFieldCalculator(
+				getRupture(), sites, imr);
+		calc.setSeed(42);
+
+		int num = 4000;
+		double[][] fields = new double[num][sites.length];
+		calc.drawRealizations(fields);
+		double[][] block = new double[10][sites.length];
+		calc.drawRealizations(block, 100);
+		for (int r = 0; r < block.length; r++)
+			assertTrue(Arrays.equals(fields[100 + r], block[r]));
+
+		double[] means = calc.getMeans();
+		double[] inter = calc.getInterEventSigmas();
+		double[] intra = calc.getIntraEventSigmas();
+		double[] sums = new double[sites.length];
+		double[] squares = new double[sites.length];
+		double products = 0;
+		for (double[] field : fields) {
+			for (int i = 0; i < sites.length; i++) {
+				double residual = field[i] - means[i];
+				sums[i] += residual;
+				squares[i] += residual * residual;
+			}
+			products += (field[0] - means[0]) * (field[2] - means[2]);
+		}
+		for (int i = 0; i < sites.length; i++) {
+			double variance = inter[i] * inter[i] + intra[i] * intra[i];
+			assertEquals(0, sums[i] / num, 4 * Math.sqrt(variance / num));
+			assertEquals(variance, squares[i] / num, 0.1 * variance);
+		}
+		assertEquals(inter[0] * inter[2], products / num, 0.1 * (inter[0]
+				* inter[2] + intra[0] * intra[2]));
+	}
+
+	/**
+	 * Checks that with a correlation model the covariance of the residuals of
+	 * two sites is that of the inter-event residual plus the correlated
+	 * intra-event residuals.
+	 */
+	@Test
+	public void correlatedRealizationsFollowModel() {
+		ScalarIntensityMeasureRelationshipAPI imr = getIMR();
+		Site[] sites = getSites(imr, 3);
+		GroundMotionFieldCalculator calc = new GroundMotionFieldCalculator(
+				getRupture(), sites, imr);
+		SpatialCorrelationModelAPI model = new JB_2009_CorrelationModel(0,
+				false);
+		calc.setCorrelationModel(model);
+
+		int num = 4000;
+		double[][] fields = new double[num][sites.length];
+		calc.drawRealizations(fields);
+		double[] means = calc.getMeans();
+		double[] inter = calc.getInterEventSigmas();
+		double[] intra = calc.getIntraEventSigmas();
+		double products = 0;
+		for (double[] field : fields)
+			products += (field[0] - means[0]) * (field[1] - means[1]);
+		double rho = model.getCorrelation(LocationUtils.horzDistance(sites[0]
+				.getLocation(), sites[1].getLocation()));
+		double cov = inter[0] * inter[1] + rho * intra[0] * intra[1];
+		assertEquals(cov, products / num, 0.1 * cov);
+	}
+
+	private ScalarIntensityMeasureRelationshipAPI getIMR() {
+		ScalarIntensityMeasureRelationshipAPI imr = new BA_2008_AttenRel(
+				new ParameterChangeWarningListener() {
+					@Override
+					public void parameterChangeWarning(
+							ParameterChangeWarningEvent event) {
+					}
+				});
+		imr.setParamDefaults();
+		imr.setIntensityMeasure(PGA_Param.NAME);
+		return imr;
+	}
+
+	private EqkRupture getRupture() {
+		return new PointEqkSource(new Location(38.0, -122.0), 6.5, 0.01, 0.0,
+				90.0).getRupture(0);
+	}
+
+	// sites east of the rupture, with the IMR's default site parameters
+	private Site[] getSites(ScalarIntensityMeasureRelationshipAPI imr, int num) {
+		Site[] sites = new Site[num];
+		for (int i = 0; i < num; i++) {
+			sites[i] = new Site(new Location(38.0, -121.95 + 0.1 * i));
+			ListIterator<ParameterAPI<?>> it = imr.getSiteParamsIterator();
+			while (it.hasNext())
+				sites[i].addParameter((ParameterAPI) it.next().clone());
+		}
+		return sites;
+	}
+}
@@ -0,0 +1,582 @@
+package org.opensha.sha.calc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.opensha.commons.data.Site;
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.commons.data.function.DiscretizedFuncAPI;
+import org.opensha.commons.exceptions.InvalidRangeException;
+import org.opensha.commons.param.event.ParameterChangeWarningListener;
+import org.opensha.sha.earthquake.EqkRupForecast;
+import org.opensha.sha.earthquake.EqkRupture;
+import org.opensha.sha.earthquake.ProbEqkSource;
+import org.opensha.sha.imr.ScalarIntensityMeasureRelationshipAPI;
+import org.opensha.sha.imr.attenRelImpl.SadighEtAl_1997_AttenRel;
+import org.opensha.sha.imr.param.IntensityMeasureParams.PGA_Param;
+import org.opensha.sha.util.TRTUtils;
+
+/**
+ * Class providing methods for testing {@link HazardCurveCalculator}.
+ */
+public class HazardCurveCalculatorTest {
+
+	private static final double TOLERANCE = 1e-11;
+
+	/**
+	 * Checks that the parallel source loop reproduces the serial hazard curve
+	 * (to within round-off) for several thread counts.
+	 */
+	@Test
+	public void parallelCurveMatchesSerialCurve() throws Exception {
+		EqkRupForecast erf = HazardCurveCalculatorTestHelper.getMultiSourceErf();
+		ScalarIntensityMeasureRelationshipAPI imr = HazardCurveCalculatorTestHelper
+				.getSadighGMPE();
+		Site site = HazardCurveCalculatorTestHelper.getRockSite(37.9, -122.1);
+
+		HazardCurveCalculator calc = new HazardCurveCalculator();
+		ArbitrarilyDiscretizedFunc serialCurve = HazardCurveCalculatorTestHelper
+				.getLogPGA_Function();
+		calc.getHazardCurve(serialCurve, site, imr, erf);
+		assertTrue(serialCurve.getY(0) > 0);
+
+		for (int numThreads : new int[] { 2, 3, 8 }) {
+			calc.setNumThreads(numThreads);
+			ArbitrarilyDiscretizedFunc parallelCurve = HazardCurveCalculatorTestHelper
+					.getLogPGA_Function();
+			calc.getHazardCurve(parallelCurve, site, imr, erf);
+			for (int i = 0; i < serialCurve.getNum(); i++)
+				assertEquals(serialCurve.getY(i), parallelCurve.getY(i),
+						TOLERANCE);
+		}
+	}
+
+	/**
+	 * Checks that the parallel source loop honours the mag-dist filter the
+	 * same way the serial loop does.
+	 */
+	@Test
+	public void parallelCurveMatchesSerialCurveWithMagDistFilter()
+			throws Exception {
+		EqkRupForecast erf = HazardCurveCalculatorTestHelper.getMultiSourceErf();
+		ScalarIntensityMeasureRelationshipAPI imr = HazardCurveCalculatorTestHelper
+				.getSadighGMPE();
+		Site site = HazardCurveCalculatorTestHelper.getRockSite(38.5, -122.5);
+
+		HazardCurveCalculator calc = new HazardCurveCalculator();
+		calc.setIncludeMagDistCutoff(true);
+		ArbitrarilyDiscretizedFunc serialCurve = HazardCurveCalculatorTestHelper
+				.getLogPGA_Function();
+		calc.getHazardCurve(serialCurve, site, imr, erf);
+
+		calc.setNumThreads(4);
+		ArbitrarilyDiscretizedFunc parallelCurve = HazardCurveCalculatorTestHelper
+				.getLogPGA_Function();
+		calc.getHazardCurve(parallelCurve, site, imr, erf);
+		for (int i = 0; i < serialCurve.getNum(); i++)
+			assertEquals(serialCurve.getY(i), parallelCurve.getY(i),
+					TOLERANCE);
+	}
+
+	/**
+	 * Checks that the compiled mag-dist cutoff gives the values of the
+	 * function it was made from, at its points, between them and at its
+	 * ends.
+	 */
+	@Test
+	public void magDistCutoffTableMatchesFunction() throws Exception {
+		HazardCurveCalculator calc = new HazardCurveCalculator();
+		calc.setIncludeMagDistCutoff(true);
+		ArbitrarilyDiscretizedFunc func = calc.getMagDistCutoffFunc();
+		MagDistCutoffTable table = new MagDistCutoffTable(func);
+		double maxDist = func.getX(func.getNum() - 1);
+		for (double dist = func.getX(0); dist <= maxDist; dist += 0.37)
+			assertEquals(func.getInterpolatedY(dist), table
+					.getMagThreshold(dist), 0.0);
+		for (int i = 0; i < func.getNum(); i++)
+			assertEquals(func.getY(i), table.getMagThreshold(func.getX(i)),
+					0.0);
+		try {
+			table.getMagThreshold(maxDist + 1);
+			fail("distance beyond the cutoff function accepted");
+		} catch (InvalidRangeException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Checks that a worker that has seen a source (and so visits its
+	 * ruptures by decreasing magnitude, stopping at the mag-dist threshold)
+	 * adds the same contribution as the first time.
+	 */
+	@Test
+	public void sortedRupturesGiveSameContribution() throws Exception {
+		EqkRupForecast erf = HazardCurveCalculatorTestHelper.getMultiSourceErf();
+		ScalarIntensityMeasureRelationshipAPI imr = HazardCurveCalculatorTestHelper
+				.getSadighGMPE();
+		Site site = HazardCurveCalculatorTestHelper.getRockSite(38.5, -122.5);
+
+		HazardCurveCalculator calc = new HazardCurveCalculator();
+		calc.setIncludeMagDistCutoff(true);
+		SourceCalcWorker worker = calc.createSourceCalcWorker(TRTUtils
+				.wrapInHashMap(imr), HazardCurveCalculatorTestHelper
+				.getLogPGA_Function());
+		worker.setSite(site);
+		for (int s = 0; s < erf.getNumSources(); s++) {
+			ProbEqkSource source = erf.getSource(s);
+			double[] first = new double[worker.getNumPoints()];
+			double[] again = new double[worker.getNumPoints()];
+			worker.addSource(source, site, first);
+			worker.addSource(source, site, again);
+			for (int k = 0; k < first.length; k++)
+				assertEquals(first[k], again[k], Math.abs(first[k]) * 1e-12);
+		}
+
+		int[] order = SourceCalcWorker.getIndicesByDecreasingValue(
+				new double[] { 5.0, 7.0, 5.0, 6.5, 0 }, 4);
+		assertArrayEquals(new int[] { 1, 3, 0, 2 }, order);
+	}
+
+	/**
+	 * Checks that a profiled calculation counts the same sources and ruptures
+	 * serially, in parallel and rupture-outer, and that nothing is counted
+	 * when profiling is off.
+	 */
+	@Test
+	public void profileCountsSourcesAndRuptures() throws Exception {
+		EqkRupForecast erf = HazardCurveCalculatorTestHelper.getMultiSourceErf();
+		ScalarIntensityMeasureRelationshipAPI imr = HazardCurveCalculatorTestHelper
+				.getSadighGMPE();
+		Site site = HazardCurveCalculatorTestHelper.getRockSite(38.5, -122.5);
+
+		HazardCurveCalculator calc = new HazardCurveCalculator();
+		calc.setMaxSourceDistance(80);
+		calc.setIncludeMagDistCutoff(true);
+		calc.getHazardCurve(HazardCurveCalculatorTestHelper
+				.getLogPGA_Function(), site, imr, erf);
+		assertTrue(calc.getProfile().getSourceCounters().isEmpty());
+
+		calc.setProfileCalc(true);
+		calc.getHazardCurve(HazardCurveCalculatorTestHelper
+				.getLogPGA_Function(), site, imr, erf);
+		HazardCalcProfile serial = calc.getProfile();
+		HazardCalcProfile.Counters imrCounts = serial.getIMRCounters().get(
+				imr.getClass().getName());
+		assertEquals(erf.getNumSources(), imrCounts.getNumSources());
+		assertTrue(imrCounts.getNumRupturesEvaluated() > 0);
+		assertTrue(imrCounts.getNumRupturesSkippedByMagDist() > 0);
+		assertEquals(imrCounts.getNumRupturesEvaluated(), imrCounts
+				.getNumExceedProbCalcs());
+		assertTrue(imrCounts.getExceedProbNanos() > 0);
+		long numRuptures = 0;
+		for (int s = 0; s < erf.getNumSources(); s++)
+			numRuptures += erf.getSource(s).getNumRuptures();
+		long numSourceRuptures = 0;
+		for (HazardCalcProfile.Counters counts : serial.getSourceCounters()
+				.values())
+			numSourceRuptures += counts.getNumRupturesEvaluated()
+					+ counts.getNumRupturesSkippedByMagDist()
+					+ counts.getNumRupturesSkippedByDistance();
+		assertEquals(numRuptures, numSourceRuptures);
+
+		String[] lines = serial.getSummary().split("\n");
+		assertEquals(HazardCalcProfile.SUMMARY_HEADER, lines[0]);
+		assertEquals(1 + serial.getSourceCounters().size()
+				+ serial.getIMRCounters().size(), lines.length);
+		assertEquals(HazardCalcProfile.SUMMARY_HEADER.split("\t").length,
+				lines[1].split("\t").length);
+
+		calc.resetProfile();
+		calc.setNumThreads(3);
+		calc.getHazardCurve(HazardCurveCalculatorTestHelper
+				.getLogPGA_Function(), site, imr, erf);
+		checkSameCounts(serial, calc.getProfile());
+
+		calc.resetProfile();
+		calc.setCalcOrder(HazardCurveCalculator.CALC_ORDER_RUPTURE_OUTER);
+		List<DiscretizedFuncAPI> curves = new ArrayList<DiscretizedFuncAPI>();
+		curves.add(HazardCurveCalculatorTestHelper.getLogPGA_Function());
+		List<Site> sites = new ArrayList<Site>();
+		sites.add(site);
+		calc.getHazardCurves(curves, sites, imr, erf);
+		checkSameCounts(serial, calc.getProfile());
+	}
+
+	private void checkSameCounts(HazardCalcProfile expected,
+			HazardCalcProfile actual) {
+		assertEquals(expected.getSourceCounters().keySet(), actual
+				.getSourceCounters().keySet());
+		for (String name : expected.getSourceCounters().keySet()) {
+			HazardCalcProfile.Counters e = expected.getSourceCounters().get(
+					name);
+			HazardCalcProfile.Counters a = actual.getSourceCounters().get(name);
+			assertEquals(e.getNumSources(), a.getNumSources());
+			assertEquals(e.getNumSourcesSkippedByDistance(), a
+					.getNumSourcesSkippedByDistance());
+			assertEquals(e.getNumRupturesSkippedByDistance(), a
+					.getNumRupturesSkippedByDistance());
+			assertEquals(e.getNumRupturesSkippedByMagDist(), a
+					.getNumRupturesSkippedByMagDist());
+			assertEquals(e.getNumRupturesEvaluated(), a
+					.getNumRupturesEvaluated());
+		}
+	}
+
+	/**
+	 * Checks that pruning negligible ruptures changes the curve by no more
+	 * than the tolerance per rupture pruned, and that the serial and parallel
+	 * calculations prune the same ruptures.
+	 */
+	@Test
+	public void prunedCurveIsWithinTolerance() throws Exception {
+		EqkRupForecast erf = HazardCurveCalculatorTestHelper.getMultiSourceErf();
+		ScalarIntensityMeasureRelationshipAPI imr = HazardCurveCalculatorTestHelper
+				.getSadighGMPE();
+		Site site = HazardCurveCalculatorTestHelper.getRockSite(38.5, -122.5);
+
+		HazardCurveCalculator calc = new HazardCurveCalculator();
+		ArbitrarilyDiscretizedFunc curve = getHighLogPGA_Function();
+		calc.getHazardCurve(curve, site, imr, erf);
+		assertEquals(0, calc.getNumRupturesPruned());
+
+		double tolerance = 1e-7;
+		calc.setRupturePruneTolerance(tolerance);
+		ArbitrarilyDiscretizedFunc prunedCurve = getHighLogPGA_Function();
+		calc.getHazardCurve(prunedCurve, site, imr, erf);
+		long numPruned = calc.getNumRupturesPruned();
+		assertTrue(numPruned > 0);
+		for (int k = 0; k < curve.getNum(); k++)
+			assertEquals(curve.getY(k), prunedCurve.getY(k), numPruned
+					* tolerance);
+
+		calc.resetNumRupturesPruned();
+		calc.setNumThreads(3);
+		ArbitrarilyDiscretizedFunc parallelCurve = getHighLogPGA_Function();
+		calc.getHazardCurve(parallelCurve, site, imr, erf);
+		assertEquals(numPruned, calc.getNumRupturesPruned());
+		for (int k = 0; k < curve.getNum(); k++)
+			assertEquals(prunedCurve.getY(k), parallelCurve.getY(k),
+					TOLERANCE);
+	}
+
+	// ln(PGA) from 0.3 to 2 g, which the smaller and farther ruptures have
+	// little chance of exceeding
+	private static ArbitrarilyDiscretizedFunc getHighLogPGA_Function() {
+		ArbitrarilyDiscretizedFunc func = new ArbitrarilyDiscretizedFunc();
+		for (double iml : new double[] { 0.3, 0.5, 0.75, 1.0, 1.5, 2.0 })
+			func.set(Math.log(iml), 1.0);
+		return func;
+	}
+
+	/**
+	 * Checks that the rupture-outer calculation order gives the same curves as
+	 * the site-outer one, including sites beyond the cutoff of some sources,
+	 * serially and in parallel, with and without the source spatial index.
+	 */
+	@Test
+	public void ruptureOuterCurvesMatchSiteOuterCurves() throws Exception {
+		EqkRupForecast erf = HazardCurveCalculatorTestHelper.getMultiSourceErf();
+		ScalarIntensityMeasureRelationshipAPI imr = HazardCurveCalculatorTestHelper
+				.getSadighGMPE();
+		List<Site> sites = new ArrayList<Site>();
+		sites.add(HazardCurveCalculatorTestHelper.getRockSite(37.9, -122.1));
+		sites.add(HazardCurveCalculatorTestHelper.getRockSite(38.5, -122.5));
+		sites.add(HazardCurveCalculatorTestHelper.getRockSite(37.0, -121.0));
+
+		HazardCurveCalculator calc = new HazardCurveCalculator();
+		calc.setMaxSourceDistance(80);
+		calc.setIncludeMagDistCutoff(true);
+		List<DiscretizedFuncAPI> siteOuterCurves = new ArrayList<DiscretizedFuncAPI>();
+		List<DiscretizedFuncAPI> ruptureOuterCurves = new ArrayList<DiscretizedFuncAPI>();
+		for (int i = 0; i < sites.size(); i++) {
+			siteOuterCurves.add(HazardCurveCalculatorTestHelper
+					.getLogPGA_Function());
+			ruptureOuterCurves.add(HazardCurveCalculatorTestHelper
+					.getLogPGA_Function());
+		}
+		calc.getHazardCurves(siteOuterCurves, sites, imr, erf);
+		calc.setCalcOrder(HazardCurveCalculator.CALC_ORDER_RUPTURE_OUTER);
+		for (int numThreads : new int[] { 1, 3 })
+			for (boolean useIndex : new boolean[] { false, true }) {
+				calc.setNumThreads(numThreads);
+				calc.setUseSourceSpatialIndex(useIndex);
+				calc.getHazardCurves(ruptureOuterCurves, sites, imr, erf);
+
+				for (int i = 0; i < sites.size(); i++) {
+					assertTrue(siteOuterCurves.get(i).getY(0) > 0);
+					for (int k = 0; k < siteOuterCurves.get(i).getNum(); k++)
+						assertEquals(siteOuterCurves.get(i).getY(k),
+								ruptureOuterCurves.get(i).getY(k), TOLERANCE);
+				}
+			}
+	}
+
+	/**
+	 * Checks that finding the nearby sources with the ERF's spatial index
+	 * gives the same curves as looping over all sources, serially and in
+	 * parallel.
+	 */
+	@Test
+	public void sourceSpatialIndexGivesSameCurve() throws Exception {
+		EqkRupForecast erf = HazardCurveCalculatorTestHelper.getMultiSourceErf();
+		ScalarIntensityMeasureRelationshipAPI imr = HazardCurveCalculatorTestHelper
+				.getSadighGMPE();
+		HazardCurveCalculator calc = new HazardCurveCalculator();
+		calc.setMaxSourceDistance(50);
+		for (Site site : new Site[] {
+				HazardCurveCalculatorTestHelper.getRockSite(37.9, -122.1),
+				HazardCurveCalculatorTestHelper.getRockSite(37.0, -121.5) }) {
+			for (int numThreads : new int[] { 1, 3 }) {
+				calc.setNumThreads(numThreads);
+				calc.setUseSourceSpatialIndex(false);
+				ArbitrarilyDiscretizedFunc fullCurve = HazardCurveCalculatorTestHelper
+						.getLogPGA_Function();
+				calc.getHazardCurve(fullCurve, site, imr, erf);
+				calc.setUseSourceSpatialIndex(true);
+				ArbitrarilyDiscretizedFunc indexCurve = HazardCurveCalculatorTestHelper
+						.getLogPGA_Function();
+				calc.getHazardCurve(indexCurve, site, imr, erf);
+				for (int i = 0; i < fullCurve.getNum(); i++)
+					assertEquals(fullCurve.getY(i), indexCurve.getY(i),
+							TOLERANCE);
+			}
+		}
+	}
+
+	/**
+	 * Checks that the single-pass calculation for several IMTs gives the same
+	 * curves as one getHazardCurve() per IMT, leaves the IMR as it was, and
+	 * is profiled and pruned as getHazardCurve() is.
+	 */
+	@Test
+	public void multiIMT_CurvesMatchSingleIMT_Curves() throws Exception {
+		EqkRupForecast erf = HazardCurveCalculatorTestHelper.getMultiSourceErf();
+		ScalarIntensityMeasureRelationshipAPI imr = HazardCurveCalculatorTestHelper
+				.getSadighGMPE();
+		Site site = HazardCurveCalculatorTestHelper.getRockSite(37.9, -122.1);
+		HazardCurveCalculator calc = new HazardCurveCalculator();
+		calc.setIncludeMagDistCutoff(true);
+
+		Map<IntensityMeasureType, DiscretizedFuncAPI> curves = new LinkedHashMap<IntensityMeasureType, DiscretizedFuncAPI>();
+		curves.put(new IntensityMeasureType(PGA_Param.NAME),
+				HazardCurveCalculatorTestHelper.getLogPGA_Function());
+		curves.put(IntensityMeasureType.SA(0.2), HazardCurveCalculatorTestHelper
+				.getLogPGA_Function());
+		curves.put(IntensityMeasureType.SA(1.0), HazardCurveCalculatorTestHelper
+				.getLogPGA_Function());
+		calc.getHazardCurves(curves, site, imr, erf);
+		assertEquals(PGA_Param.NAME, imr.getIntensityMeasure().getName());
+
+		for (IntensityMeasureType imt : curves.keySet()) {
+			ScalarIntensityMeasureRelationshipAPI singleIMR = HazardCurveCalculatorTestHelper
+					.getSadighGMPE();
+			imt.setIntensityMeasure(singleIMR);
+			ArbitrarilyDiscretizedFunc curve = HazardCurveCalculatorTestHelper
+					.getLogPGA_Function();
+			calc.getHazardCurve(curve, site, singleIMR, erf);
+			assertTrue(curve.getY(0) > 0);
+			for (int i = 0; i < curve.getNum(); i++)
+				assertEquals(imt.toString(), curve.getY(i), curves.get(imt)
+						.getY(i), TOLERANCE);
+		}
+
+		calc.setProfileCalc(true);
+		calc.setRupturePruneTolerance(1e-4);
+		calc.getHazardCurves(curves, site, imr, erf);
+		assertTrue(calc.getNumRupturesPruned() > 0);
+		HazardCalcProfile.Counters imrCounts = calc.getProfile()
+				.getIMRCounters().get(imr.getClass().getName());
+		assertTrue(imrCounts.getNumRupturesPruned() > 0);
+		assertTrue(imrCounts.getNumExceedProbCalcs() > 0);
+	}
+
+	/**
+	 * Checks that the single-pass calculation for several IMTs sets each
+	 * rupture in the IMR once, as getHazardCurve() does for one IMT, rather
+	 * than once per IMT.
+	 */
+	@Test
+	public void multiIMT_SetsEachRuptureOnce() throws Exception {
+		EqkRupForecast erf = HazardCurveCalculatorTestHelper.getMultiSourceErf();
+		ScalarIntensityMeasureRelationshipAPI imr = new CountingSadighAttenRel(
+				null);
+		imr.setParamDefaults();
+		imr.setIntensityMeasure(PGA_Param.NAME);
+		Site site = HazardCurveCalculatorTestHelper.getRockSite(37.9, -122.1);
+		HazardCurveCalculator calc = new HazardCurveCalculator();
+		calc.setIncludeMagDistCutoff(true);
+
+		CountingSadighAttenRel.numRupturesSet = 0;
+		calc.getHazardCurve(HazardCurveCalculatorTestHelper
+				.getLogPGA_Function(), site, imr, erf);
+		int numSingle = CountingSadighAttenRel.numRupturesSet;
+		assertTrue(numSingle > 0);
+
+		Map<IntensityMeasureType, DiscretizedFuncAPI> curves = new LinkedHashMap<IntensityMeasureType, DiscretizedFuncAPI>();
+		curves.put(new IntensityMeasureType(PGA_Param.NAME),
+				HazardCurveCalculatorTestHelper.getLogPGA_Function());
+		curves.put(IntensityMeasureType.SA(0.2), HazardCurveCalculatorTestHelper
+				.getLogPGA_Function());
+		curves.put(IntensityMeasureType.SA(1.0), HazardCurveCalculatorTestHelper
+				.getLogPGA_Function());
+		CountingSadighAttenRel.numRupturesSet = 0;
+		calc.getHazardCurves(curves, site, imr, erf);
+		assertEquals(numSingle, CountingSadighAttenRel.numRupturesSet);
+	}
+
+	/**
+	 * Sadigh et al. (1997) counting the ruptures set in it (by all instances,
+	 * as the calculator works on clones).
+	 */
+	public static class CountingSadighAttenRel extends SadighEtAl_1997_AttenRel {
+
+		static int numRupturesSet;
+
+		public CountingSadighAttenRel(
+				ParameterChangeWarningListener warningListener) {
+			super(warningListener);
+		}
+
+		@Override
+		public void setEqkRupture(EqkRupture eqkRupture)
+				throws InvalidRangeException {
+			numRupturesSet++;
+			super.setEqkRupture(eqkRupture);
+		}
+	}
+
+	/**
+	 * DEVELOPER NOTE
+	 * 
+	 * Speed comparison of the inner (per rupture) loop of getHazardCurve():
+	 * the original loop, which multiplied (1-qkProb)^condProb into the hazard
+	 * function with indexed getY/set calls, against the current one, which
+	 * copies the conditional probabilities out once and sums
+	 * ln(1-qkProb)*condProb in a double[]. The IMR is left out so only the
+	 * accumulation is timed. Also times a whole curve for the test ERF.
+	 * 
+	 * 100K ruptures gave the following times (ms, after warm up):
+	 * 
+	 * 12 IMLs: func get/set + pow ~100, double[] log sum ~18
+	 * 50 IMLs: func get/set + pow ~1600, double[] log sum ~27
+	 */
+	public static void main(String[] args) throws Exception {
+		int numRups = 100000;
+		ArbitrarilyDiscretizedFunc imls = HazardCurveCalculatorTestHelper
+				.getLogPGA_Function();
+		for (int numPoints : new int[] { imls.getNum(), 50 }) {
+			ArbitrarilyDiscretizedFunc hazFunc = new ArbitrarilyDiscretizedFunc();
+			ArbitrarilyDiscretizedFunc condProbFunc = new ArbitrarilyDiscretizedFunc();
+			for (int k = 0; k < numPoints; k++) {
+				hazFunc.set(0.01 * k, 1.0);
+				condProbFunc.set(0.01 * k, 1.0 - k / (double) numPoints);
+			}
+			double qkProb = 1e-5;
+			System.out.println("IMLs: " + numPoints + ", ruptures: "
+					+ numRups);
+			for (int i = 0; i < 5; i++) {
+				long T = System.currentTimeMillis();
+				for (int n = 0; n < numRups; n++)
+					for (int k = 0; k < numPoints; k++)
+						hazFunc.set(k, hazFunc.getY(k)
+								* Math.pow(1 - qkProb, condProbFunc.getY(k)));
+				T = (System.currentTimeMillis() - T);
+				System.out.println("  func get/set + pow: " + T);
+			}
+			for (int i = 0; i < 5; i++) {
+				long T = System.currentTimeMillis();
+				double[] logProbs = new double[numPoints];
+				double[] condProbs = new double[numPoints];
+				for (int n = 0; n < numRups; n++) {
+					SourceCalcWorker.getYValues(condProbFunc, condProbs);
+					double logNonExceedProb = Math.log(1.0 - qkProb);
+					for (int k = 0; k < numPoints; k++)
+						logProbs[k] += logNonExceedProb * condProbs[k];
+				}
+				for (int k = 0; k < numPoints; k++)
+					hazFunc.set(k, -Math.expm1(logProbs[k]));
+				T = (System.currentTimeMillis() - T);
+				System.out.println("  double[] log sum:   " + T);
+			}
+		}
+
+		EqkRupForecast erf = HazardCurveCalculatorTestHelper.getMultiSourceErf();
+		ScalarIntensityMeasureRelationshipAPI imr = HazardCurveCalculatorTestHelper
+				.getSadighGMPE();
+		Site site = HazardCurveCalculatorTestHelper.getRockSite(37.9, -122.1);
+		HazardCurveCalculator calc = new HazardCurveCalculator();
+		for (int i = 0; i < 5; i++) {
+			long T = System.currentTimeMillis();
+			calc.getHazardCurve(imls, site, imr, erf);
+			T = (System.currentTimeMillis() - T);
+			System.out.println("getHazardCurve(): " + T);
+		}
+		// the calculator is an exported remote object, which would keep the
+		// JVM alive
+		System.exit(0);
+	}
+
+	/**
+	 * Checks that with a site cluster distance, sites with the same parameters
+	 * within the distance share the curve of one of them, which is the curve
+	 * computed without clustering, and that sites with other parameters are
+	 * computed separately.
+	 */
+	@Test
+	public void clusteredSitesShareCurves() throws Exception {
+		EqkRupForecast erf = HazardCurveCalculatorTestHelper.getMultiSourceErf();
+		ScalarIntensityMeasureRelationshipAPI imr = HazardCurveCalculatorTestHelper
+				.getSadighGMPE();
+		List<Site> sites = new ArrayList<Site>();
+		for (int j = 0; j < 5; j++) {
+			double lat = 37.5 + 0.1 * j;
+			sites.add(HazardCurveCalculatorTestHelper.getRockSite(lat, -122.5));
+			sites.add(HazardCurveCalculatorTestHelper.getRockSite(lat + 0.001,
+					-122.5));
+			Site soilSite = HazardCurveCalculatorTestHelper.getRockSite(lat,
+					-122.5);
+			soilSite.setValue("Sadigh Site Type", "Deep-Soil");
+			sites.add(soilSite);
+		}
+
+		HazardCurveCalculator calc = new HazardCurveCalculator();
+		calc.setMaxSourceDistance(60);
+		List<DiscretizedFuncAPI> exact = getFunctions(sites.size());
+		calc.getHazardCurves(exact, sites, imr, erf);
+		assertTrue(calc.getSiteClusters() == null);
+
+		calc.setSiteClusterDistance(0.5);
+		List<DiscretizedFuncAPI> clustered = getFunctions(sites.size());
+		calc.getHazardCurves(clustered, sites, imr, erf);
+		SiteClusters clusters = calc.getSiteClusters();
+		assertEquals(10, clusters.getNumClusters());
+		assertTrue(clusters.getMaxOffset() > 0);
+		assertTrue(clusters.getMaxOffset() <= 0.5);
+		for (int i = 0; i < sites.size(); i++) {
+			int rep = clusters.getRepresentative(clusters.getCluster(i));
+			assertEquals(sites.get(rep).getValue("Sadigh Site Type"), sites
+					.get(i).getValue("Sadigh Site Type"));
+			for (int k = 0; k < exact.get(i).getNum(); k++) {
+				assertEquals(exact.get(rep).getY(k), clustered.get(i).getY(k),
+						TOLERANCE);
+				assertEquals(exact.get(i).getY(k), clustered.get(i).getY(k),
+						0.02 * exact.get(i).getY(k));
+			}
+		}
+	}
+
+	private List<DiscretizedFuncAPI> getFunctions(int num) {
+		List<DiscretizedFuncAPI> functions = new ArrayList<DiscretizedFuncAPI>();
+		for (int i = 0; i < num; i++)
+			functions.add(HazardCurveCalculatorTestHelper.getLogPGA_Function());
+		return functions;
+	}
+}
@@ -0,0 +1,124 @@
+package org.opensha.sha.calc;
+
+import java.util.ArrayList;
+
+import org.opensha.commons.data.Site;
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.param.StringParameter;
+import org.opensha.commons.param.event.ParameterChangeWarningEvent;
+import org.opensha.commons.param.event.ParameterChangeWarningListener;
+import org.opensha.sha.earthquake.EqkRupForecast;
+import org.opensha.sha.earthquake.ProbEqkSource;
+import org.opensha.sha.earthquake.rupForecastImpl.FloatingPoissonFaultSourceTestHelper;
+import org.opensha.sha.earthquake.rupForecastImpl.PointEqkSource;
+import org.opensha.sha.earthquake.rupForecastImpl.PoissonianAreaSourceTestHelper;
+import org.opensha.sha.imr.ScalarIntensityMeasureRelationshipAPI;
+import org.opensha.sha.imr.attenRelImpl.SadighEtAl_1997_AttenRel;
+import org.opensha.sha.imr.param.IntensityMeasureParams.PGA_Param;
+import org.opensha.sha.magdist.GutenbergRichterMagFreqDist;
+import org.opensha.sha.util.TectonicRegionType;
+
+/**
+ * Class providing helper methods for the calculator tests: a small forecast
+ * with many sources of different types (so source loops have something to
+ * split), a GMPE and sites to run it with.
+ */
+public class HazardCurveCalculatorTestHelper {
+
+	private final static ParameterChangeWarningListener testParamChangeListener = new ParameterChangeWarningListener() {
+		@Override
+		public void parameterChangeWarning(ParameterChangeWarningEvent event) {
+		}
+	};
+
+	/**
+	 * Returns a forecast made of a 10x10 grid of point sources (0.2 degree
+	 * spacing, south-west corner at 37N, 123W), the Peer Test Set 1 Case 5
+	 * fault source and the Peer Test Set 1 Case 10 area source.
+	 */
+	public static EqkRupForecast getMultiSourceErf() {
+		final ArrayList<ProbEqkSource> sources = new ArrayList<ProbEqkSource>();
+		for (int i = 0; i < 10; i++) {
+			for (int j = 0; j < 10; j++) {
+				GutenbergRichterMagFreqDist mfd = new GutenbergRichterMagFreqDist(
+						1.0, 0.01, 5.05, 6.95, 20);
+				sources.add(new PointEqkSource(new Location(37.0 + 0.2 * i,
+						-123.0 + 0.2 * j), mfd, 1.0, 0.0, 90.0));
+			}
+		}
+		sources.add(FloatingPoissonFaultSourceTestHelper
+				.getPeerTestSet1Case5FaultSource());
+		sources.add(PoissonianAreaSourceTestHelper
+				.getPeerTestSet1Case10AreaSource());
+		return new EqkRupForecast() {
+
+			@Override
+			public String getName() {
+				return "Multi-Source Test ERF";
+			}
+
+			@Override
+			public void updateForecast() {
+			}
+
+			@Override
+			public int getNumSources() {
+				return sources.size();
+			}
+
+			@Override
+			public ProbEqkSource getSource(int iSource) {
+				return sources.get(iSource);
+			}
+
+			@Override
+			public ArrayList getSourceList() {
+				return sources;
+			}
+
+			@Override
+			public ArrayList<TectonicRegionType> getIncludedTectonicRegionTypes() {
+				ArrayList<TectonicRegionType> trts = new ArrayList<TectonicRegionType>();
+				trts.add(TectonicRegionType.ACTIVE_SHALLOW);
+				return trts;
+			}
+		};
+	}
+
+	/**
+	 * Returns Sadigh et al (1997) for PGA with the default (total) standard
+	 * deviation.
+	 */
+	public static ScalarIntensityMeasureRelationshipAPI getSadighGMPE() {
+		ScalarIntensityMeasureRelationshipAPI gmpe = new SadighEtAl_1997_AttenRel(
+				testParamChangeListener);
+		gmpe.setParamDefaults();
+		gmpe.setIntensityMeasure(PGA_Param.NAME);
+		return gmpe;
+	}
+
+	/**
+	 * Returns a rock site (as Sadigh et al (1997) defines it) at the given
+	 * location.
+	 */
+	public static Site getRockSite(double lat, double lon) {
+		StringParameter sadighSiteType = new StringParameter("Sadigh Site Type");
+		sadighSiteType.setValue("Rock");
+		Site site = new Site(new Location(lat, lon));
+		site.addParameter(sadighSiteType);
+		return site;
+	}
+
+	/**
+	 * Returns a function with ln(PGA) values from 0.001 to 2 g as x values.
+	 */
+	public static ArbitrarilyDiscretizedFunc getLogPGA_Function() {
+		double[] imls = { 0.001, 0.005, 0.01, 0.05, 0.1, 0.2, 0.3, 0.5, 0.75,
+				1.0, 1.5, 2.0 };
+		ArbitrarilyDiscretizedFunc func = new ArbitrarilyDiscretizedFunc();
+		for (double iml : imls)
+			func.set(Math.log(iml), 1.0);
+		return func;
+	}
+}
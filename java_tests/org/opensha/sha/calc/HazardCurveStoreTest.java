@@ -0,0 +1,90 @@
+package org.opensha.sha.calc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Class providing methods for testing {@link HazardCurveStore}.
+ */
+public class HazardCurveStoreTest {
+
+	private static final double[] IMLS = { -4.0, -3.0, -2.0, -1.0, 0.0 };
+
+	private File file;
+
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("curves", ".bin");
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	/**
+	 * Checks that curves written as doubles are read back exactly, after
+	 * the store is closed and opened again.
+	 */
+	@Test
+	public void doubleCurvesRoundTrip() {
+		checkRoundTrip(false, 0.0);
+	}
+
+	/**
+	 * Checks that curves written as floats are read back to float
+	 * precision.
+	 */
+	@Test
+	public void floatCurvesRoundTrip() {
+		checkRoundTrip(true, 1e-7);
+	}
+
+	private void checkRoundTrip(boolean floatValues, double tolerance) {
+		int numNodes = 1000;
+		HazardCurveStore store = HazardCurveStore.create(file, IMLS,
+				numNodes, floatValues);
+		for (int i = 0; i < numNodes; i += 2)
+			store.putCurve(i, getCurve(i));
+		store.close();
+
+		store = HazardCurveStore.open(file, false);
+		assertEquals(numNodes, store.getNumNodes());
+		assertEquals(floatValues, store.isFloatValues());
+		double[] imls = store.getIMLs();
+		for (int k = 0; k < IMLS.length; k++)
+			assertEquals(IMLS[k], imls[k], 0.0);
+		double[] curve = new double[IMLS.length];
+		for (int i = 0; i < numNodes; i++) {
+			store.getCurve(i, curve);
+			double[] expected = i % 2 == 0 ? getCurve(i)
+					: new double[IMLS.length];
+			for (int k = 0; k < IMLS.length; k++) {
+				assertEquals(expected[k], curve[k], expected[k] * tolerance);
+				assertEquals(curve[k], store.getValue(i, k), 0.0);
+			}
+		}
+		store.close();
+	}
+
+	/**
+	 * Checks that a file that isn't a store is refused.
+	 */
+	@Test(expected = RuntimeException.class)
+	public void otherFileRefused() {
+		HazardCurveStore.open(file, false);
+	}
+
+	private double[] getCurve(int node) {
+		double[] curve = new double[IMLS.length];
+		for (int k = 0; k < curve.length; k++)
+			curve[k] = Math.exp(-k - node / 1000.0) / 3;
+		return curve;
+	}
+}
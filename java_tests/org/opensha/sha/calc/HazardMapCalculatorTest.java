@@ -0,0 +1,285 @@
+package org.opensha.sha.calc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.opensha.commons.data.Site;
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.commons.geo.GriddedRegion;
+import org.opensha.commons.geo.Location;
+import org.opensha.sha.earthquake.EqkRupForecast;
+import org.opensha.sha.earthquake.ProbEqkSource;
+import org.opensha.sha.imr.ScalarIntensityMeasureRelationshipAPI;
+import org.opensha.sha.util.TRTUtils;
+import org.opensha.sha.util.TectonicRegionType;
+
+/**
+ * Class providing methods for testing {@link HazardMapCalculator}.
+ */
+public class HazardMapCalculatorTest {
+
+	private static final double TOLERANCE = 1e-11;
+
+	/**
+	 * Checks that the curve at every node of the map is the one the
+	 * HazardCurveCalculator gives for that site, with several tiles and
+	 * threads.
+	 */
+	@Test
+	public void mapCurvesMatchSiteCurves() throws Exception {
+		checkMapCurves(HazardCurveCalculator.CALC_ORDER_SITE_OUTER, false);
+	}
+
+	/**
+	 * As mapCurvesMatchSiteCurves, with the nodes of each tile evaluated
+	 * together for each rupture.
+	 */
+	@Test
+	public void ruptureOuterMapCurvesMatchSiteCurves() throws Exception {
+		checkMapCurves(HazardCurveCalculator.CALC_ORDER_RUPTURE_OUTER, false);
+	}
+
+	/**
+	 * As mapCurvesMatchSiteCurves and ruptureOuterMapCurvesMatchSiteCurves
+	 * with the mag-dist filter, for which the workers visit the ruptures of
+	 * the sources they have already seen by decreasing magnitude.
+	 */
+	@Test
+	public void mapCurvesMatchSiteCurvesWithMagDistFilter() throws Exception {
+		checkMapCurves(HazardCurveCalculator.CALC_ORDER_SITE_OUTER, true);
+		checkMapCurves(HazardCurveCalculator.CALC_ORDER_RUPTURE_OUTER, true);
+	}
+
+	private void checkMapCurves(String calcOrder, boolean magDistFilter)
+			throws Exception {
+		EqkRupForecast erf = HazardCurveCalculatorTestHelper.getMultiSourceErf();
+		ScalarIntensityMeasureRelationshipAPI imr = HazardCurveCalculatorTestHelper
+				.getSadighGMPE();
+		GriddedRegion region = new GriddedRegion(new Location(37.5, -123.0),
+				new Location(38.5, -122.0), 0.25, GriddedRegion.ANCHOR_0_0);
+		Site template = HazardCurveCalculatorTestHelper.getRockSite(0, 0);
+
+		HazardCurveCalculator curveCalc = new HazardCurveCalculator();
+		curveCalc.setMaxSourceDistance(60);
+		curveCalc.setNumThreads(3);
+		curveCalc.setCalcOrder(calcOrder);
+		curveCalc.setIncludeMagDistCutoff(magDistFilter);
+		HazardMapCalculator mapCalc = new HazardMapCalculator(curveCalc);
+		mapCalc.setTileSize(4);
+		double[][] curves = mapCalc.getHazardCurves(region,
+				new UniformSiteParamsProvider(template),
+				HazardCurveCalculatorTestHelper.getLogPGA_Function(), imr, erf);
+		assertEquals(region.getNodeCount(), curves.length);
+
+		curveCalc.setNumThreads(1);
+		for (int i = 0; i < region.getNodeCount(); i++) {
+			Location loc = region.locationForIndex(i);
+			Site site = HazardCurveCalculatorTestHelper.getRockSite(loc
+					.getLatitude(), loc.getLongitude());
+			ArbitrarilyDiscretizedFunc curve = HazardCurveCalculatorTestHelper
+					.getLogPGA_Function();
+			curveCalc.getHazardCurve(curve, site, imr, erf);
+			assertTrue(curve.getY(0) > 0);
+			for (int k = 0; k < curve.getNum(); k++)
+				assertEquals(curve.getY(k), curves[i][k], TOLERANCE);
+		}
+	}
+
+	/**
+	 * Checks that the curves are the same, and returned by node, whether the
+	 * nodes are computed in Hilbert order or in index order, for the whole
+	 * region and for a list of nodes.
+	 */
+	@Test
+	public void spatialNodeOrderGivesSameCurves() throws Exception {
+		EqkRupForecast erf = HazardCurveCalculatorTestHelper.getMultiSourceErf();
+		ScalarIntensityMeasureRelationshipAPI imr = HazardCurveCalculatorTestHelper
+				.getSadighGMPE();
+		GriddedRegion region = new GriddedRegion(new Location(37.5, -123.0),
+				new Location(38.5, -122.0), 0.25, GriddedRegion.ANCHOR_0_0);
+		SiteParamsProviderAPI siteParams = new UniformSiteParamsProvider(
+				HazardCurveCalculatorTestHelper.getRockSite(0, 0));
+		ArbitrarilyDiscretizedFunc imlFunc = HazardCurveCalculatorTestHelper
+				.getLogPGA_Function();
+		HazardCurveCalculator curveCalc = new HazardCurveCalculator();
+		curveCalc.setMaxSourceDistance(60);
+		curveCalc.setNumThreads(3);
+		HazardMapCalculator mapCalc = new HazardMapCalculator(curveCalc);
+		mapCalc.setTileSize(4);
+
+		mapCalc.setSpatialNodeOrder(false);
+		double[][] curves = mapCalc.getHazardCurves(region, siteParams,
+				imlFunc, imr, erf);
+		mapCalc.setSpatialNodeOrder(true);
+		double[][] ordered = mapCalc.getHazardCurves(region, siteParams,
+				imlFunc, imr, erf);
+		assertEquals(curves.length, ordered.length);
+		for (int i = 0; i < curves.length; i++)
+			for (int k = 0; k < curves[i].length; k++)
+				assertEquals(curves[i][k], ordered[i][k], TOLERANCE);
+
+		int[] nodes = { 20, 3, 11, 0, 24, 7 };
+		double[][] nodeCurves = mapCalc.getHazardCurves(region, nodes,
+				siteParams, imlFunc, TRTUtils.wrapInHashMap(imr), erf);
+		for (int i = 0; i < nodes.length; i++)
+			for (int k = 0; k < nodeCurves[i].length; k++)
+				assertEquals(curves[nodes[i]][k], nodeCurves[i][k], TOLERANCE);
+	}
+
+	/**
+	 * Checks that the centre of a tile across the antimeridian is between
+	 * its nodes, not on the other side of the Earth.
+	 */
+	@Test
+	public void boxCentreSpansAntimeridian() {
+		Location centre = HazardMapCalculator.getBoxCentre(new Location[] {
+				new Location(-17.0, 179.5), new Location(-18.0, -179.5),
+				new Location(-17.5, 179.9) });
+		assertEquals(-17.5, centre.getLatitude(), 1e-12);
+		assertEquals(180.0, Math.abs(centre.getLongitude()), 1e-12);
+
+		centre = HazardMapCalculator.getBoxCentre(new Location[] {
+				new Location(37.0, -122.0), new Location(38.0, -121.0) });
+		assertEquals(37.5, centre.getLatitude(), 1e-12);
+		assertEquals(-121.5, centre.getLongitude(), 1e-12);
+	}
+
+	/**
+	 * Checks that curves written into a store are those that are returned
+	 * otherwise.
+	 */
+	@Test
+	public void storeCurvesMatchReturnedCurves() throws Exception {
+		EqkRupForecast erf = HazardCurveCalculatorTestHelper.getMultiSourceErf();
+		ScalarIntensityMeasureRelationshipAPI imr = HazardCurveCalculatorTestHelper
+				.getSadighGMPE();
+		GriddedRegion region = new GriddedRegion(new Location(37.5, -123.0),
+				new Location(38.5, -122.0), 0.25, GriddedRegion.ANCHOR_0_0);
+		SiteParamsProviderAPI siteParams = new UniformSiteParamsProvider(
+				HazardCurveCalculatorTestHelper.getRockSite(0, 0));
+		ArbitrarilyDiscretizedFunc imlFunc = HazardCurveCalculatorTestHelper
+				.getLogPGA_Function();
+		HazardCurveCalculator curveCalc = new HazardCurveCalculator();
+		curveCalc.setMaxSourceDistance(60);
+		curveCalc.setNumThreads(3);
+		HazardMapCalculator mapCalc = new HazardMapCalculator(curveCalc);
+		mapCalc.setTileSize(4);
+		double[][] curves = mapCalc.getHazardCurves(region, siteParams,
+				imlFunc, imr, erf);
+
+		File file = File.createTempFile("hazardMap", ".bin");
+		file.deleteOnExit();
+		double[] imls = new double[imlFunc.getNum()];
+		for (int k = 0; k < imls.length; k++)
+			imls[k] = imlFunc.getX(k);
+		HazardCurveStore store = HazardCurveStore.create(file, imls, region
+				.getNodeCount(), false);
+		mapCalc.getHazardCurves(region, siteParams, imlFunc, imr, erf, store);
+		store.close();
+		store = HazardCurveStore.open(file, false);
+		for (int i = 0; i < curves.length; i++)
+			assertTrue(Arrays.equals(curves[i], store.getCurve(i)));
+		store.close();
+		file.delete();
+	}
+
+	/**
+	 * Checks that a job run with a checkpoint file can be resumed: a second
+	 * run reads every tile (the forecast it is given can't be used), and after
+	 * losing the end of the index (as if the JVM died before a sync) the
+	 * missing tiles are recomputed, giving the same curves.
+	 */
+	@Test
+	public void checkpointResumesJob() throws Exception {
+		File file = File.createTempFile("hazardMap", ".ckp");
+		File indexFile = new File(file.getPath()
+				+ HazardMapCheckpoint.INDEX_SUFFIX);
+		file.delete();
+		file.deleteOnExit();
+		indexFile.deleteOnExit();
+
+		EqkRupForecast erf = HazardCurveCalculatorTestHelper.getMultiSourceErf();
+		double[][] curves = getCheckpointedCurves(file, "job", erf);
+		assertTrue(indexFile.length() > 0);
+
+		double[][] resumed = getCheckpointedCurves(file, "job",
+				getUnusableErf(erf.getNumSources()));
+		assertTrue(Arrays.deepEquals(curves, resumed));
+
+		RandomAccessFile index = new RandomAccessFile(indexFile, "rw");
+		index.setLength(index.length() / 2 - 3);
+		index.close();
+		RandomAccessFile data = new RandomAccessFile(file, "rw");
+		data.seek(data.length());
+		data.writeInt(12345);
+		data.close();
+		resumed = getCheckpointedCurves(file, "job", erf);
+		assertTrue(Arrays.deepEquals(curves, resumed));
+
+		try {
+			getCheckpointedCurves(file, "another job", erf);
+			assertTrue("checkpoint of another job was used", false);
+		} catch (RuntimeException e) {
+		}
+		file.delete();
+		indexFile.delete();
+	}
+
+	private double[][] getCheckpointedCurves(File file, String job,
+			EqkRupForecast erf) throws Exception {
+		GriddedRegion region = new GriddedRegion(new Location(37.5, -123.0),
+				new Location(38.5, -122.0), 0.25, GriddedRegion.ANCHOR_0_0);
+		HazardCurveCalculator curveCalc = new HazardCurveCalculator();
+		curveCalc.setMaxSourceDistance(60);
+		curveCalc.setNumThreads(3);
+		HazardMapCalculator mapCalc = new HazardMapCalculator(curveCalc);
+		mapCalc.setTileSize(4);
+		mapCalc.setCheckpoint(file, job);
+		mapCalc.setCheckpointSyncInterval(0);
+		return mapCalc.getHazardCurves(region, new UniformSiteParamsProvider(
+				HazardCurveCalculatorTestHelper.getRockSite(0, 0)),
+				HazardCurveCalculatorTestHelper.getLogPGA_Function(),
+				HazardCurveCalculatorTestHelper.getSadighGMPE(), erf);
+	}
+
+	// a forecast whose sources can't be got
+	private EqkRupForecast getUnusableErf(final int numSources) {
+		return new EqkRupForecast() {
+
+			@Override
+			public String getName() {
+				return "Unusable ERF";
+			}
+
+			@Override
+			public void updateForecast() {
+			}
+
+			@Override
+			public int getNumSources() {
+				return numSources;
+			}
+
+			@Override
+			public ProbEqkSource getSource(int iSource) {
+				throw new RuntimeException("source used");
+			}
+
+			@Override
+			public ArrayList getSourceList() {
+				throw new RuntimeException("source used");
+			}
+
+			@Override
+			public ArrayList<TectonicRegionType> getIncludedTectonicRegionTypes() {
+				return new ArrayList<TectonicRegionType>();
+			}
+		};
+	}
+}
@@ -0,0 +1,119 @@
+package org.opensha.sha.calc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Map;
+
+import org.junit.Test;
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.commons.geo.GriddedRegion;
+import org.opensha.commons.geo.Location;
+import org.opensha.sha.earthquake.EqkRupForecastAPI;
+import org.opensha.sha.imr.ScalarIntensityMeasureRelationshipAPI;
+import org.opensha.sha.util.TRTUtils;
+import org.opensha.sha.util.TectonicRegionType;
+
+/**
+ * Class providing methods for testing {@link HazardMapProcessPool}.
+ */
+public class HazardMapProcessPoolTest {
+
+	private static final double TOLERANCE = 1e-11;
+
+	/**
+	 * The multi-source test job, built in each worker from the test helper.
+	 */
+	public static class TestJob implements HazardMapJobAPI {
+
+		private static final long serialVersionUID = 1L;
+
+		private final boolean failing;
+
+		public TestJob(boolean failing) {
+			this.failing = failing;
+		}
+
+		public GriddedRegion getRegion() {
+			return new GriddedRegion(new Location(37.5, -123.0), new Location(
+					38.5, -122.0), 0.25, GriddedRegion.ANCHOR_0_0);
+		}
+
+		public SiteParamsProviderAPI getSiteParams() {
+			return new UniformSiteParamsProvider(
+					HazardCurveCalculatorTestHelper.getRockSite(0, 0));
+		}
+
+		public ArbitrarilyDiscretizedFunc getIMLs() {
+			return HazardCurveCalculatorTestHelper.getLogPGA_Function();
+		}
+
+		public Map<TectonicRegionType, ScalarIntensityMeasureRelationshipAPI> getIMRMap() {
+			return TRTUtils.wrapInHashMap(HazardCurveCalculatorTestHelper
+					.getSadighGMPE());
+		}
+
+		public EqkRupForecastAPI getERF() {
+			if (failing)
+				throw new RuntimeException("no forecast");
+			return HazardCurveCalculatorTestHelper.getMultiSourceErf();
+		}
+
+		public void setCalcParams(HazardCurveCalculator calc)
+				throws java.rmi.RemoteException {
+			calc.setMaxSourceDistance(60);
+		}
+	}
+
+	/**
+	 * Checks that the curves computed by worker JVMs, returned and written
+	 * into a store, are those of a HazardMapCalculator in this JVM.
+	 */
+	@Test
+	public void workerCurvesMatchMapCurves() throws Exception {
+		TestJob job = new TestJob(false);
+		HazardCurveCalculator curveCalc = new HazardCurveCalculator();
+		job.setCalcParams(curveCalc);
+		double[][] curves = new HazardMapCalculator(curveCalc).getHazardCurves(
+				job.getRegion(), job.getSiteParams(), job.getIMLs(), job
+						.getIMRMap(), job.getERF());
+
+		HazardMapProcessPool pool = new HazardMapProcessPool(2);
+		pool.setTileSize(4);
+		pool.setThreadsPerWorker(2);
+		double[][] poolCurves = pool.getHazardCurves(job);
+		assertEquals(curves.length, poolCurves.length);
+		for (int i = 0; i < curves.length; i++)
+			for (int k = 0; k < curves[i].length; k++)
+				assertEquals(curves[i][k], poolCurves[i][k], TOLERANCE);
+
+		File file = File.createTempFile("hazardMap", ".bin");
+		file.deleteOnExit();
+		ArbitrarilyDiscretizedFunc imlFunc = job.getIMLs();
+		double[] imls = new double[imlFunc.getNum()];
+		for (int k = 0; k < imls.length; k++)
+			imls[k] = imlFunc.getX(k);
+		HazardCurveStore store = HazardCurveStore.create(file, imls,
+				curves.length, false);
+		pool.getHazardCurves(job, store);
+		for (int i = 0; i < curves.length; i++)
+			for (int k = 0; k < curves[i].length; k++)
+				assertEquals(curves[i][k], store.getCurve(i)[k], TOLERANCE);
+		store.close();
+		file.delete();
+	}
+
+	/**
+	 * Checks that an error in a worker is thrown by the pool.
+	 */
+	@Test
+	public void workerErrorIsThrown() {
+		try {
+			new HazardMapProcessPool(2).getHazardCurves(new TestJob(true));
+			assertTrue("worker error not thrown", false);
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage().contains("no forecast"));
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package org.opensha.sha.calc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.opensha.commons.geo.GriddedRegion;
+import org.opensha.commons.geo.Location;
+
+/**
+ * Class providing methods for testing {@link HilbertOrder}.
+ */
+public class HilbertOrderTest {
+
+	/**
+	 * Checks that the first 256 positions of the curve fill the 16 by 16
+	 * corner of the lattice, each next to the one before.
+	 */
+	@Test
+	public void curveVisitsNeighbouringCells() {
+		int[][] cells = new int[256][];
+		for (int x = 0; x < 16; x++)
+			for (int y = 0; y < 16; y++) {
+				long index = HilbertOrder.getIndex(x, y);
+				assertTrue(index < 256);
+				assertTrue(cells[(int) index] == null);
+				cells[(int) index] = new int[] { x, y };
+			}
+		for (int i = 1; i < cells.length; i++)
+			assertEquals(1, Math.abs(cells[i][0] - cells[i - 1][0])
+					+ Math.abs(cells[i][1] - cells[i - 1][1]));
+	}
+
+	/**
+	 * Checks that the order of the nodes of a region is a permutation, and
+	 * that runs of consecutive nodes are more compact than in index order.
+	 */
+	@Test
+	public void orderIsCompactPermutation() {
+		GriddedRegion region = new GriddedRegion(new Location(37.0, -123.0),
+				new Location(38.0, -119.0), 0.1, GriddedRegion.ANCHOR_0_0);
+		Location[] locs = new Location[region.getNodeCount()];
+		int[] indexOrder = new int[locs.length];
+		for (int i = 0; i < locs.length; i++) {
+			locs[i] = region.locationForIndex(i);
+			indexOrder[i] = i;
+		}
+		int[] order = HilbertOrder.getOrder(locs);
+		int[] sorted = order.clone();
+		Arrays.sort(sorted);
+		assertTrue(Arrays.equals(indexOrder, sorted));
+		assertTrue(getMaxRunSpan(locs, order, 64) < getMaxRunSpan(locs,
+				indexOrder, 64) / 2);
+	}
+
+	// the largest extent (degrees) of a run of consecutive locations
+	private double getMaxRunSpan(Location[] locs, int[] order, int runLength) {
+		double maxSpan = 0;
+		for (int start = 0; start < order.length; start += runLength) {
+			double minLat = 90, maxLat = -90, minLon = 180, maxLon = -180;
+			for (int i = start; i < Math.min(start + runLength, order.length); i++) {
+				Location loc = locs[order[i]];
+				minLat = Math.min(minLat, loc.getLatitude());
+				maxLat = Math.max(maxLat, loc.getLatitude());
+				minLon = Math.min(minLon, loc.getLongitude());
+				maxLon = Math.max(maxLon, loc.getLongitude());
+			}
+			maxSpan = Math.max(maxSpan, Math.max(maxLat - minLat, maxLon
+					- minLon));
+		}
+		return maxSpan;
+	}
+}
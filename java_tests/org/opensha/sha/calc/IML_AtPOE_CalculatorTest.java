@@ -0,0 +1,88 @@
+package org.opensha.sha.calc;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+
+/**
+ * Class providing methods for testing {@link IML_AtPOE_Calculator}.
+ */
+public class IML_AtPOE_CalculatorTest {
+
+	private static final double TOLERANCE = 1e-12;
+
+	private static final double[] IMLS = { 0.005, 0.01, 0.02, 0.05, 0.1, 0.2,
+			0.5, 1.0, 2.0 };
+
+	/**
+	 * Checks that the batch inversion in log-log space matches the functions'
+	 * getFirstInterpolatedX_inLogXLogYDomain() for probabilities within the
+	 * curves, whatever the number of threads.
+	 */
+	@Test
+	public void batchMatchesFunctionInversion() {
+		double[][] curves = getCurves(5000);
+		double[] poes = { 0.002, 0.05, 0.01 };
+
+		IML_AtPOE_Calculator calc = new IML_AtPOE_Calculator(IMLS, true);
+		calc.setNumThreads(1);
+		double[][] serial = calc.getIMLs(curves, poes);
+		calc.setNumThreads(4);
+		double[][] parallel = calc.getIMLs(curves, poes);
+
+		for (int n = 0; n < curves.length; n += 37) {
+			ArbitrarilyDiscretizedFunc func = new ArbitrarilyDiscretizedFunc();
+			for (int k = 0; k < IMLS.length; k++)
+				func.set(IMLS[k], curves[n][k]);
+			for (int p = 0; p < poes.length; p++) {
+				double expected = func
+						.getFirstInterpolatedX_inLogXLogYDomain(poes[p]);
+				assertEquals(expected, serial[p][n], expected * TOLERANCE);
+				assertEquals(calc.getIML(curves[n], poes[p]), serial[p][n],
+						TOLERANCE);
+			}
+		}
+		for (int p = 0; p < poes.length; p++)
+			for (int n = 0; n < curves.length; n++)
+				assertEquals(serial[p][n], parallel[p][n], 0);
+	}
+
+	/**
+	 * Checks the clamping outside the curve and the interpolation of IMLs
+	 * that are already logarithms.
+	 */
+	@Test
+	public void logIMLsAndClamping() {
+		double[] lnIMLs = new double[IMLS.length];
+		for (int k = 0; k < IMLS.length; k++)
+			lnIMLs[k] = Math.log(IMLS[k]);
+		double[][] curves = getCurves(10);
+		double[] poes = { 0.5, 0.01, 1e-9 };
+
+		double[][] linear = new IML_AtPOE_Calculator(IMLS, true).getIMLs(
+				curves, poes);
+		double[][] log = new IML_AtPOE_Calculator(lnIMLs, false).getIMLs(
+				curves, poes);
+		for (int n = 0; n < curves.length; n++) {
+			assertEquals(IMLS[0], linear[0][n], TOLERANCE);
+			assertEquals(IMLS[IMLS.length - 1], linear[2][n], TOLERANCE);
+			for (int p = 0; p < poes.length; p++)
+				assertEquals(Math.log(linear[p][n]), log[p][n], TOLERANCE);
+		}
+	}
+
+	// decreasing curves between 0.2 and 1e-6
+	private static double[][] getCurves(int num) {
+		Random random = new Random(42);
+		double[][] curves = new double[num][IMLS.length];
+		for (int n = 0; n < num; n++) {
+			double scale = 0.5 + random.nextDouble();
+			for (int k = 0; k < IMLS.length; k++)
+				curves[n][k] = 0.2 * Math.exp(-scale * 1.45 * k);
+		}
+		return curves;
+	}
+}
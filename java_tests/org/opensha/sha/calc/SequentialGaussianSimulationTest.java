@@ -0,0 +1,102 @@
+package org.opensha.sha.calc;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.SplittableRandom;
+
+import org.junit.Test;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.geo.LocationUtils;
+
+/**
+ * Class providing methods for testing {@link SequentialGaussianSimulation}
+ * and {@link JB_2009_CorrelationModel}.
+ */
+public class SequentialGaussianSimulationTest {
+
+	/**
+	 * Checks the ranges of the Jayaram and Baker (2009) model.
+	 */
+	@Test
+	public void jayaramBakerRanges() {
+		assertEquals(8.5, new JB_2009_CorrelationModel(0, true).getRange(),
+				1e-12);
+		assertEquals(40.7, new JB_2009_CorrelationModel(0, false).getRange(),
+				1e-12);
+		assertEquals(8.5 + 17.2 * 0.5, new JB_2009_CorrelationModel(0.5, true)
+				.getRange(), 1e-12);
+		assertEquals(29.4, new JB_2009_CorrelationModel(2, false).getRange(),
+				1e-12);
+		JB_2009_CorrelationModel model = new JB_2009_CorrelationModel(0, true);
+		assertEquals(Math.exp(-1), model.getCorrelation(8.5 / 3), 1e-12);
+		assertEquals(0.01, model.getCorrelation(model.getMaxDistance()), 1e-12);
+	}
+
+	/**
+	 * Checks that with every site as a neighbour the fields have unit
+	 * variance and the correlation of the model.
+	 */
+	@Test
+	public void fieldsHaveModelCorrelation() {
+		Location[] locs = new Location[6];
+		for (int i = 0; i < locs.length; i++)
+			locs[i] = new Location(38.0 + 0.01 * i * i, -122.0 + 0.02 * i);
+		JB_2009_CorrelationModel model = new JB_2009_CorrelationModel(0, false);
+		double[][] cov = getSampleCovariance(locs, model, 10, 20000);
+		for (int i = 0; i < locs.length; i++)
+			for (int j = 0; j <= i; j++)
+				assertEquals(model.getCorrelation(LocationUtils.horzDistance(
+						locs[i], locs[j])), cov[i][j], 0.03);
+	}
+
+	/**
+	 * Checks that with a bounded neighbourhood on a grid of sites the fields
+	 * still have about unit variance and the correlation of the model between
+	 * neighbouring nodes.
+	 */
+	@Test
+	public void boundedNeighbourhoodKeepsNearCorrelation() {
+		int size = 30;
+		Location[] locs = new Location[size * size];
+		for (int r = 0; r < size; r++)
+			for (int c = 0; c < size; c++)
+				locs[r * size + c] = new Location(38.0 + 0.01 * r,
+						-122.0 + 0.01 * c);
+		JB_2009_CorrelationModel model = new JB_2009_CorrelationModel(0, true);
+		SequentialGaussianSimulation simulation = new SequentialGaussianSimulation(
+				locs, model, 8);
+		int num = 400;
+		double variance = 0, product = 0;
+		int numPairs = 0;
+		double[] field = new double[locs.length];
+		for (int n = 0; n < num; n++) {
+			simulation.drawField(new SplittableRandom(n), field);
+			for (int i = 0; i < locs.length; i++)
+				variance += field[i] * field[i];
+			for (int r = 0; r < size; r++)
+				for (int c = 0; c + 1 < size; c++) {
+					product += field[r * size + c] * field[r * size + c + 1];
+					numPairs++;
+				}
+		}
+		assertEquals(1, variance / (num * locs.length), 0.05);
+		assertEquals(model.getCorrelation(LocationUtils.horzDistance(locs[0],
+				locs[1])), product / numPairs, 0.05);
+	}
+
+	private double[][] getSampleCovariance(Location[] locs,
+			SpatialCorrelationModelAPI model, int numNeighbours, int num) {
+		SequentialGaussianSimulation simulation = new SequentialGaussianSimulation(
+				locs, model, numNeighbours);
+		double[][] cov = new double[locs.length][locs.length];
+		double[] field = new double[locs.length];
+		SplittableRandom random = new SplittableRandom(1);
+		for (int n = 0; n < num; n++) {
+			simulation.drawField(random, field);
+			for (int i = 0; i < locs.length; i++)
+				for (int j = 0; j <= i; j++)
+					cov[i][j] += field[i] * field[j] / num;
+		}
+		return cov;
+	}
+}
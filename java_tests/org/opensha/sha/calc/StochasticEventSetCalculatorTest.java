@@ -0,0 +1,120 @@
+package org.opensha.sha.calc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.opensha.commons.data.Site;
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.sha.earthquake.EqkRupForecast;
+import org.opensha.sha.earthquake.ProbEqkRupture;
+import org.opensha.sha.earthquake.ProbEqkSource;
+import org.opensha.sha.imr.ScalarIntensityMeasureRelationshipAPI;
+
+/**
+ * Class providing methods for testing {@link StochasticEventSetCalculator}.
+ */
+public class StochasticEventSetCalculatorTest {
+
+	/**
+	 * Checks that the average event-set curve for a seed is the same,
+	 * bit-for-bit, whatever the number of threads.
+	 */
+	@Test
+	public void averageCurveIndependentOfThreads() throws Exception {
+		double[] serial = getAverageCurve(1, 1234L, 60);
+		assertTrue(serial[0] > 0);
+		assertTrue(Arrays.equals(serial, getAverageCurve(2, 1234L, 60)));
+		assertTrue(Arrays.equals(serial, getAverageCurve(5, 1234L, 60)));
+		assertFalse(Arrays.equals(serial, getAverageCurve(2, 4321L, 60)));
+	}
+
+	/**
+	 * Checks that the average event-set curve approaches the classical
+	 * (Poisson) hazard curve as the number of realizations grows.
+	 */
+	@Test
+	public void averageCurveConvergesToClassicalCurve() throws Exception {
+		int numRealizations = 2000;
+		double[] average = getAverageCurve(4, 99L, numRealizations);
+
+		HazardCurveCalculator curveCalc = new HazardCurveCalculator();
+		curveCalc.setMaxSourceDistance(100);
+		ArbitrarilyDiscretizedFunc curve = HazardCurveCalculatorTestHelper
+				.getLogPGA_Function();
+		curveCalc.getHazardCurve(curve, HazardCurveCalculatorTestHelper
+				.getRockSite(38.0, -122.2), HazardCurveCalculatorTestHelper
+				.getSadighGMPE(), HazardCurveCalculatorTestHelper
+				.getMultiSourceErf());
+		for (int k = 0; k < curve.getNum(); k++) {
+			double p = curve.getY(k);
+			// four standard errors of the mean of numRealizations Bernoulli
+			// trials (plus a little for the tails of the curve)
+			double tolerance = 4 * Math.sqrt(p * (1 - p) / numRealizations)
+					+ 1e-3;
+			assertEquals(p, average[k], tolerance);
+		}
+	}
+
+	/**
+	 * Checks that drawing the event sets of a seed twice gives the same
+	 * events, and that another seed gives different ones (the forecast has
+	 * about one event per realization, so several are drawn).
+	 */
+	@Test
+	public void eventSetsAreReproducible() throws Exception {
+		EqkRupForecast erf = HazardCurveCalculatorTestHelper.getMultiSourceErf();
+		StochasticEventSetCalculator calc = new StochasticEventSetCalculator();
+		calc.setSeed(7L);
+		ArrayList<String> events = drawEvents(calc, erf, 20);
+		assertFalse(events.isEmpty());
+		assertEquals(events, drawEvents(calc, erf, 20));
+		calc.setSeed(8L);
+		assertFalse(events.equals(drawEvents(calc, erf, 20)));
+	}
+
+	private ArrayList<String> drawEvents(StochasticEventSetCalculator calc,
+			EqkRupForecast erf, int numRealizations) {
+		final ArrayList<String> events = new ArrayList<String>();
+		for (int r = 0; r < numRealizations; r++) {
+			final int realization = r;
+			calc.drawEventSet(erf, r, new StochasticEventVisitorAPI() {
+				@Override
+				public void visitEvent(int sourceIndex, ProbEqkSource source,
+						int rupIndex, ProbEqkRupture rupture, int numOccurrences) {
+					events.add(realization + ":" + sourceIndex + "/" + rupIndex
+							+ "x" + numOccurrences);
+				}
+			});
+		}
+		return events;
+	}
+
+	private double[] getAverageCurve(int numThreads, long seed,
+			int numRealizations) throws Exception {
+		EqkRupForecast erf = HazardCurveCalculatorTestHelper.getMultiSourceErf();
+		ScalarIntensityMeasureRelationshipAPI imr = HazardCurveCalculatorTestHelper
+				.getSadighGMPE();
+		Site site = HazardCurveCalculatorTestHelper.getRockSite(38.0, -122.2);
+
+		HazardCurveCalculator curveCalc = new HazardCurveCalculator();
+		curveCalc.setMaxSourceDistance(100);
+		curveCalc.setNumThreads(numThreads);
+		curveCalc.setNumStochEventSetRealizations(numRealizations);
+		StochasticEventSetCalculator calc = new StochasticEventSetCalculator(
+				curveCalc);
+		calc.setSeed(seed);
+		ArbitrarilyDiscretizedFunc curve = HazardCurveCalculatorTestHelper
+				.getLogPGA_Function();
+		calc.getAverageEventSetHazardCurve(curve, site, imr, erf);
+
+		double[] values = new double[curve.getNum()];
+		for (int k = 0; k < values.length; k++)
+			values[k] = curve.getY(k);
+		return values;
+	}
+}
@@ -0,0 +1,67 @@
+package org.opensha.sha.calc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.opensha.commons.data.Site;
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.sha.earthquake.EqkRupForecast;
+import org.opensha.sha.imr.ScalarIntensityMeasureRelationshipAPI;
+import org.opensha.sha.util.TRTUtils;
+
+/**
+ * Class providing methods for testing {@link UniformHazardSpectrumCalculator}.
+ */
+public class UniformHazardSpectrumCalculatorTest {
+
+	private static final double TOLERANCE = 1e-9;
+
+	/**
+	 * Checks that the spectra from the single pass over the ERF match those
+	 * read from one getHazardCurve() per period.
+	 */
+	@Test
+	public void spectraMatchSinglePeriodCurves() throws Exception {
+		EqkRupForecast erf = HazardCurveCalculatorTestHelper.getMultiSourceErf();
+		ScalarIntensityMeasureRelationshipAPI imr = HazardCurveCalculatorTestHelper
+				.getSadighGMPE();
+		Site site = HazardCurveCalculatorTestHelper.getRockSite(37.9, -122.1);
+		HazardCurveCalculator calc = new HazardCurveCalculator();
+		UniformHazardSpectrumCalculator uhsCalc = new UniformHazardSpectrumCalculator(
+				calc);
+
+		double[] periods = UniformHazardSpectrumCalculator
+				.getSupportedPeriods(TRTUtils.wrapInHashMap(imr));
+		assertTrue(periods.length > 2);
+		double[] poes = { 0.1, 0.02 };
+		ArbitrarilyDiscretizedFunc imlFunc = HazardCurveCalculatorTestHelper
+				.getLogPGA_Function();
+		double[][] uhs = uhsCalc.getUHS(site, imr, erf, imlFunc, poes);
+		assertEquals(poes.length, uhs.length);
+
+		double[] imls = new double[imlFunc.getNum()];
+		for (int k = 0; k < imls.length; k++)
+			imls[k] = imlFunc.getX(k);
+		for (int i = 0; i < periods.length; i++) {
+			ScalarIntensityMeasureRelationshipAPI singleIMR = HazardCurveCalculatorTestHelper
+					.getSadighGMPE();
+			IntensityMeasureType.SA(periods[i]).setIntensityMeasure(singleIMR);
+			ArbitrarilyDiscretizedFunc curve = HazardCurveCalculatorTestHelper
+					.getLogPGA_Function();
+			calc.getHazardCurve(curve, site, singleIMR, erf);
+			double[] values = new double[curve.getNum()];
+			for (int k = 0; k < values.length; k++)
+				values[k] = curve.getY(k);
+			for (int p = 0; p < poes.length; p++) {
+				assertEquals(uhs[p].length, periods.length);
+				assertEquals("period " + periods[i], AdaptiveHazardMapCalculator
+						.getIML_AtPOE(imls, values, poes[p]), uhs[p][i],
+						TOLERANCE);
+			}
+		}
+		// the rarer spectrum is higher
+		for (int i = 0; i < periods.length; i++)
+			assertTrue(uhs[1][i] >= uhs[0][i]);
+	}
+}
@@ -0,0 +1,147 @@
+package org.opensha.sha.calc.disaggregation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opensha.commons.data.Site;
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.sha.calc.HazardCurveCalculator;
+import org.opensha.sha.calc.HazardCurveCalculatorTestHelper;
+import org.opensha.sha.earthquake.EqkRupForecast;
+import org.opensha.sha.imr.ScalarIntensityMeasureRelationshipAPI;
+import org.opensha.sha.util.TRTUtils;
+import org.opensha.sha.util.TectonicRegionType;
+
+/**
+ * Class providing methods for testing {@link DisaggregationCalculator}.
+ */
+public class DisaggregationCalculatorTest {
+
+	private static final double MAX_DIST = 100.0;
+
+	private EqkRupForecast erf;
+	private Map<TectonicRegionType, ScalarIntensityMeasureRelationshipAPI> imrMap;
+	private Site site;
+	private ArbitrarilyDiscretizedFunc hazardCurve;
+
+	@Before
+	public void setUp() throws Exception {
+		erf = HazardCurveCalculatorTestHelper.getMultiSourceErf();
+		imrMap = TRTUtils.wrapInHashMap(HazardCurveCalculatorTestHelper
+				.getSadighGMPE());
+		site = HazardCurveCalculatorTestHelper.getRockSite(38.0, -122.2);
+		HazardCurveCalculator curveCalc = new HazardCurveCalculator();
+		curveCalc.setMaxSourceDistance(MAX_DIST);
+		hazardCurve = HazardCurveCalculatorTestHelper.getLogPGA_Function();
+		curveCalc.getHazardCurve(hazardCurve, site, imrMap, erf);
+	}
+
+	/**
+	 * Checks that the total rate disaggregated at each IML is the rate of
+	 * exceedance of the hazard curve (the forecast has no time span, so
+	 * probabilities are for one year), and that the bins and the part
+	 * outside them add up to 100%.
+	 */
+	@Test
+	public void totalRatesMatchHazardCurve() throws Exception {
+		double[] imls = getIMLs();
+		DisaggregationCalculator calc = new DisaggregationCalculator();
+		boolean[] success = calc.disaggregate(imls, site, imrMap, erf,
+				MAX_DIST, null);
+		assertTrue(calc.done());
+		assertEquals(calc.getTotRuptures(), calc.getCurrRuptures());
+		for (int i = 0; i < imls.length; i++) {
+			assertTrue(success[i]);
+			double rate = -Math.log(1 - hazardCurve.getY(i + 2));
+			assertEquals(rate, calc.getTotalRate(i), rate * 1e-9);
+
+			double sum = calc.getPercentOutsideBins(i);
+			for (double[][] magBins : calc.getPdf3D(i))
+				for (double[] epsBins : magBins)
+					for (double p : epsBins)
+						sum += p;
+			assertEquals(100.0, sum, 1e-9);
+			assertTrue(calc.getMbar(i) > 5.0 && calc.getMbar(i) < 7.0);
+		}
+	}
+
+	/**
+	 * Checks that disaggregating several IMLs in one pass gives the same
+	 * results as disaggregating them one at a time.
+	 */
+	@Test
+	public void severalIMLsMatchSingleIMLs() throws Exception {
+		double[] imls = getIMLs();
+		DisaggregationCalculator calc = new DisaggregationCalculator();
+		calc.disaggregate(imls, site, imrMap, erf, MAX_DIST, null);
+		for (int i = 0; i < imls.length; i++) {
+			DisaggregationCalculator single = new DisaggregationCalculator();
+			assertTrue(single.disaggregate(imls[i], site, imrMap, erf,
+					MAX_DIST, null));
+			assertEquals(single.getTotalRate(0), calc.getTotalRate(i), 0.0);
+			assertEquals(single.getDbar(0), calc.getDbar(i), 0.0);
+			assertEquals(single.getEbar(0), calc.getEbar(i), 0.0);
+			assertEquals(single.getBinData(), calc.getBinData(i));
+			assertEquals(single.getMeanAndModeInfo(), calc
+					.getMeanAndModeInfo(i));
+		}
+	}
+
+	/**
+	 * Checks that the top sources kept by the bounded heap are the largest
+	 * ones, in decreasing order.
+	 */
+	@Test
+	public void topSourcesAreLargest() throws Exception {
+		double[] imls = getIMLs();
+		DisaggregationCalculator all = new DisaggregationCalculator();
+		all.setNumSourcestoShow(erf.getNumSources());
+		all.disaggregate(imls, site, imrMap, erf, MAX_DIST, null);
+		DisaggregationCalculator top = new DisaggregationCalculator();
+		top.setNumSourcestoShow(5);
+		top.disaggregate(imls, site, imrMap, erf, MAX_DIST, null);
+
+		DisaggregationSourceRuptureInfo[] allSources = all.getTopSources(0);
+		DisaggregationSourceRuptureInfo[] topSources = top.getTopSources(0);
+		assertEquals(5, topSources.length);
+		assertTrue(allSources.length > 5);
+		double total = 0;
+		for (int j = 0; j < allSources.length; j++) {
+			if (j > 0)
+				assertTrue(allSources[j].getRate() <= allSources[j - 1]
+						.getRate());
+			if (j < topSources.length)
+				assertEquals(allSources[j].getRate(), topSources[j].getRate(),
+						0.0);
+			total += allSources[j].getRate();
+		}
+		assertEquals(all.getTotalRate(0), total, total * 1e-9);
+	}
+
+	/**
+	 * Checks that disaggregating at a return period gives (about) its rate,
+	 * to within the interpolation of the hazard curve.
+	 */
+	@Test
+	public void returnPeriodsMatchRates() throws Exception {
+		double[] returnPeriods = { 10, 50 };
+		DisaggregationCalculator calc = new DisaggregationCalculator();
+		calc.disaggregateAtReturnPeriods(returnPeriods, hazardCurve, site,
+				imrMap, erf, MAX_DIST, null);
+		for (int i = 0; i < returnPeriods.length; i++)
+			assertEquals(1 / returnPeriods[i], calc.getTotalRate(i),
+					0.1 / returnPeriods[i]);
+	}
+
+	// some IMLs of the hazard curve (indices 2 to 6)
+	private double[] getIMLs() {
+		double[] imls = new double[5];
+		for (int i = 0; i < imls.length; i++)
+			imls[i] = hazardCurve.getX(i + 2);
+		return imls;
+	}
+}
@@ -0,0 +1,252 @@
+package org.opensha.sha.calc.logicTree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensha.commons.data.Site;
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.commons.geo.Location;
+import org.opensha.sha.calc.HazardCurveCalculator;
+import org.opensha.sha.calc.HazardCurveCalculatorTestHelper;
+import org.opensha.sha.earthquake.rupForecastImpl.GEM1.GEM1ERF;
+import org.opensha.sha.earthquake.rupForecastImpl.GEM1.SourceData.GEMFaultSourceData;
+import org.opensha.sha.earthquake.rupForecastImpl.GEM1.SourceData.GEMSourceData;
+import org.opensha.sha.imr.ScalarIntensityMeasureRelationshipAPI;
+import org.opensha.sha.magdist.GutenbergRichterMagFreqDist;
+import org.opensha.sha.util.TectonicRegionType;
+
+/**
+ * Class providing methods for testing {@link LogicTreeHazardCalculator}.
+ */
+public class LogicTreeHazardCalculatorTest {
+
+	private static final File ERF_LOGIC_TREE = new File(
+			"test_data/ErfLogicTree.inp");
+
+	private File gmpeFile;
+	private ErfLogicTree erfTree;
+	private GmpeLogicTree gmpeTree;
+
+	@Before
+	public void setUp() throws Exception {
+		// the GMPE tree of test_data with one for the subduction source too
+		gmpeFile = File.createTempFile("GmpeLogicTree", ".inp");
+		FileWriter writer = new FileWriter(gmpeFile);
+		writer.write("# test GMPE logic tree\n" + "Active Shallow Crust\n"
+				+ "BA_2008_AttenRel CB_2008_AttenRel\n" + "0.5 0.5\n"
+				+ "Subduction Interface\n" + "ZhaoEtAl_2006_AttenRel\n"
+				+ "1.0\n");
+		writer.close();
+		erfTree = new ErfLogicTree(ERF_LOGIC_TREE);
+		gmpeTree = new GmpeLogicTree(gmpeFile);
+	}
+
+	@After
+	public void tearDown() {
+		gmpeFile.delete();
+	}
+
+	/**
+	 * Checks that the trees of test_data are read.
+	 */
+	@Test
+	public void readsLogicTrees() throws Exception {
+		assertEquals(3, erfTree.getNumBranchingLevels());
+		assertEquals(2, erfTree.getSourceModelFiles().length);
+		assertTrue(erfTree.getSourceModelFiles()[0].exists());
+		assertEquals(ErfLogicTree.RULE_MMAX_GR_RELATIVE, erfTree
+				.getRuleName(1));
+		assertEquals(-0.1, erfTree.getRuleValue(2, 2), 0.0);
+		assertEquals(18, erfTree.getEndBranches().size());
+
+		GmpeLogicTree testDataTree = new GmpeLogicTree(new File(
+				"test_data/GmpeLogicTree.inp"));
+		assertEquals(Arrays.asList(TectonicRegionType.ACTIVE_SHALLOW),
+				testDataTree.getTectonicRegionTypes());
+		assertEquals("CB_2008_AttenRel", testDataTree.getGMPEName(
+				TectonicRegionType.ACTIVE_SHALLOW, 1));
+	}
+
+	/**
+	 * Checks that the rules keep the moment rate, and that a rule of zero
+	 * leaves the source data (so the sources) unchanged.
+	 */
+	@Test
+	public void rulesKeepMomentRate() throws Exception {
+		LogicTreeHazardCalculator calc = new LogicTreeHazardCalculator(
+				erfTree, gmpeTree);
+		ArrayList<GEMSourceData> model = calc.getSourceData(new LogicTreeBranch(
+				new int[] { 0, 1, 1 }, 1.0));
+		assertEquals(4, model.size());
+		ArrayList<GEMSourceData> larger = calc.getSourceData(new LogicTreeBranch(
+				new int[] { 0, 0, 1 }, 1.0));
+		ArrayList<GEMSourceData> unchanged = calc.getSourceData(new LogicTreeBranch(
+				new int[] { 0, 1, 1 }, 1.0));
+		for (int i = 0; i < model.size(); i++)
+			assertSame(model.get(i), unchanged.get(i));
+
+		GutenbergRichterMagFreqDist mfd = (GutenbergRichterMagFreqDist) ((GEMFaultSourceData) model
+				.get(2)).getMfd();
+		GutenbergRichterMagFreqDist largerMfd = (GutenbergRichterMagFreqDist) ((GEMFaultSourceData) larger
+				.get(2)).getMfd();
+		assertEquals(mfd.getMagUpper() + 0.2, largerMfd.getMagUpper(), 1e-9);
+		assertEquals(mfd.getTotalMomentRate(), largerMfd.getTotalMomentRate(),
+				mfd.getTotalMomentRate() * 1e-9);
+	}
+
+	/**
+	 * Checks that the mean and fractiles of all the end branches are those of
+	 * the curves of the end branches computed one at a time.
+	 */
+	@Test
+	public void statisticsMatchBranchCurves() throws Exception {
+		LogicTreeHazardCalculator calc = new LogicTreeHazardCalculator(
+				erfTree, gmpeTree);
+		Site site = getSite(calc);
+		ArbitrarilyDiscretizedFunc imlFunc = HazardCurveCalculatorTestHelper
+				.getLogPGA_Function();
+		CurveStatistics stats = calc.getCurveStatistics(
+				Arrays.asList(site), imlFunc)[0];
+		assertEquals(36, stats.getNumCurves());
+		assertEquals(1.0, stats.getTotalWeight(), 1e-9);
+		assertTrue(stats.isExact());
+
+		// the curves of the end branches, computed separately
+		List<TectonicRegionType> trts = calc.getTectonicRegionTypes();
+		HazardCurveCalculator curveCalc = new HazardCurveCalculator();
+		ArrayList<double[]> curves = new ArrayList<double[]>();
+		ArrayList<Double> weights = new ArrayList<Double>();
+		for (LogicTreeBranch erfBranch : erfTree.getEndBranches()) {
+			GEM1ERF erf = GEM1ERF.getGEM1ERF(calc.getSourceData(erfBranch),
+					LogicTreeHazardCalculator.DEFAULT_INVESTIGATION_TIME);
+			for (LogicTreeBranch gmpeBranch : gmpeTree.getEndBranches(trts)) {
+				HashMap<TectonicRegionType, ScalarIntensityMeasureRelationshipAPI> imrMap = new HashMap<TectonicRegionType, ScalarIntensityMeasureRelationshipAPI>();
+				for (int t = 0; t < trts.size(); t++) {
+					ScalarIntensityMeasureRelationshipAPI imr = gmpeTree
+							.createGMPE(trts.get(t), gmpeBranch.getChoice(t),
+									curveCalc);
+					calc.getIntensityMeasureType().setIntensityMeasure(imr);
+					imrMap.put(trts.get(t), imr);
+				}
+				ArbitrarilyDiscretizedFunc curve = imlFunc.deepClone();
+				curveCalc.getHazardCurve(curve, site, imrMap, erf);
+				double[] values = new double[curve.getNum()];
+				for (int k = 0; k < values.length; k++)
+					values[k] = curve.getY(k);
+				curves.add(values);
+				weights.add(erfBranch.getWeight() * gmpeBranch.getWeight());
+			}
+		}
+
+		double[] mean = stats.getMean();
+		double[] median = stats.getFractile(0.5);
+		double[] p90 = stats.getFractile(0.9);
+		for (int k = 0; k < mean.length; k++) {
+			double sum = 0;
+			for (int b = 0; b < curves.size(); b++)
+				sum += weights.get(b) * curves.get(b)[k];
+			assertEquals(sum, mean[k], 1e-12);
+			assertEquals(getFractile(curves, weights, k, 0.5), median[k], 0.0);
+			assertEquals(getFractile(curves, weights, k, 0.9), p90[k], 0.0);
+		}
+		assertTrue(mean[0] > 0);
+	}
+
+	/**
+	 * Checks that sampled end branches are the same for a seed and give a
+	 * mean near that of all the end branches.
+	 */
+	@Test
+	public void samplingIsReproducible() throws Exception {
+		LogicTreeHazardCalculator calc = new LogicTreeHazardCalculator(
+				erfTree, gmpeTree);
+		Site site = getSite(calc);
+		ArbitrarilyDiscretizedFunc imlFunc = HazardCurveCalculatorTestHelper
+				.getLogPGA_Function();
+		List<Site> sites = Arrays.asList(site);
+		CurveStatistics sampled = calc.getCurveStatistics(sites, imlFunc, 20,
+				5L)[0];
+		assertEquals(20, sampled.getNumCurves());
+		assertEquals(1.0, sampled.getTotalWeight(), 1e-9);
+		assertTrue(Arrays.equals(sampled.getMean(), calc.getCurveStatistics(
+				sites, imlFunc, 20, 5L)[0].getMean()));
+		assertFalse(Arrays.equals(sampled.getMean(), calc.getCurveStatistics(
+				sites, imlFunc, 20, 6L)[0].getMean()));
+
+		double[] mean = calc.getCurveStatistics(sites, imlFunc)[0].getMean();
+		double[] sampledMean = sampled.getMean();
+		for (int k = 0; k < mean.length; k++)
+			assertEquals(mean[k], sampledMean[k], 0.5 * mean[k] + 1e-6);
+	}
+
+	/**
+	 * Checks that with fewer centroids than curves the mean stays exact and
+	 * the fractiles stay within the range of the values, close to the exact
+	 * ones.
+	 */
+	@Test
+	public void boundedCentroidsApproximateFractiles() {
+		CurveStatistics exact = new CurveStatistics(1, 1000);
+		CurveStatistics bounded = new CurveStatistics(1, 20);
+		Random random = new Random(3);
+		for (int i = 0; i < 1000; i++) {
+			double[] curve = { random.nextDouble() };
+			double weight = 0.5 + random.nextDouble();
+			exact.add(curve, weight);
+			bounded.add(curve, weight);
+		}
+		assertTrue(exact.isExact());
+		assertFalse(bounded.isExact());
+		assertEquals(exact.getMean()[0], bounded.getMean()[0], 1e-12);
+		for (double f : new double[] { 0.1, 0.5, 0.9 })
+			assertEquals(exact.getFractile(f)[0], bounded.getFractile(f)[0],
+					0.1);
+		assertTrue(bounded.getFractile(0)[0] >= exact.getFractile(0)[0]);
+		assertTrue(bounded.getFractile(1)[0] <= exact.getFractile(1)[0]);
+	}
+
+	private Site getSite(LogicTreeHazardCalculator calc) {
+		Site site = new Site(new Location(38.0, -122.0));
+		calc.addSiteParams(site);
+		return site;
+	}
+
+	// the weighted fractile of the k-th values of the curves
+	private static double getFractile(List<double[]> curves,
+			List<Double> weights, final int k, double fraction) {
+		Integer[] order = new Integer[curves.size()];
+		double total = 0;
+		for (int b = 0; b < order.length; b++) {
+			order[b] = b;
+			total += weights.get(b);
+		}
+		final List<double[]> c = curves;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer b1, Integer b2) {
+				return Double.compare(c.get(b1)[k], c.get(b2)[k]);
+			}
+		});
+		double cumWeight = 0;
+		for (int b : order) {
+			cumWeight += weights.get(b);
+			if (cumWeight >= fraction * total * (1 - 1e-12))
+				return curves.get(b)[k];
+		}
+		return curves.get(order[order.length - 1])[k];
+	}
+}
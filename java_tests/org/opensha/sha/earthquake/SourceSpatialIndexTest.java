@@ -0,0 +1,54 @@
+package org.opensha.sha.earthquake;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import org.opensha.commons.data.Site;
+import org.opensha.commons.geo.Location;
+import org.opensha.sha.calc.HazardCurveCalculatorTestHelper;
+
+/**
+ * Class providing methods for testing {@link SourceSpatialIndex}.
+ */
+public class SourceSpatialIndexTest {
+
+	/**
+	 * Checks, for random sites in and around the sources of the test ERF (point,
+	 * fault and area sources), that the candidates include every source
+	 * within the distance and are in ascending order without repeats.
+	 */
+	@Test
+	public void candidatesIncludeAllSourcesWithinDistance() {
+		EqkRupForecast erf = HazardCurveCalculatorTestHelper.getMultiSourceErf();
+		SourceSpatialIndex index = erf.getSourceSpatialIndex();
+		Random random = new Random(12345);
+		for (double distance : new double[] { 0, 20, 60, 200 }) {
+			for (int i = 0; i < 200; i++) {
+				Location loc = new Location(36 + 4 * random.nextDouble(),
+						-125 + 5 * random.nextDouble());
+				int[] candidates = index.getCandidateSources(loc, distance);
+				for (int c = 1; c < candidates.length; c++)
+					assertTrue(candidates[c] > candidates[c - 1]);
+				Site site = new Site(loc);
+				for (int s = 0; s < erf.getNumSources(); s++)
+					if (erf.getSource(s).getMinDistance(site) <= distance)
+						assertTrue("source " + s + " missing at " + loc,
+								Arrays.binarySearch(candidates, s) >= 0);
+			}
+		}
+	}
+
+	/**
+	 * Checks that a site far from all sources gets no candidates.
+	 */
+	@Test
+	public void farSiteHasNoCandidates() {
+		EqkRupForecast erf = HazardCurveCalculatorTestHelper.getMultiSourceErf();
+		int[] candidates = erf.getSourceSpatialIndex().getCandidateSources(
+				new Location(10, 150), 200);
+		assertTrue(candidates.length == 0);
+	}
+}
@@ -0,0 +1,201 @@
+package org.opensha.sha.imr;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ListIterator;
+
+import org.junit.Test;
+import org.opensha.commons.data.Site;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.param.ParameterAPI;
+import org.opensha.commons.param.event.ParameterChangeWarningEvent;
+import org.opensha.commons.param.event.ParameterChangeWarningListener;
+import org.opensha.sha.earthquake.EqkRupture;
+import org.opensha.sha.faultSurface.FaultTrace;
+import org.opensha.sha.faultSurface.StirlingGriddedSurface;
+import org.opensha.sha.imr.attenRelImpl.AS_2008_AttenRel;
+import org.opensha.sha.imr.attenRelImpl.BA_2008_AttenRel;
+import org.opensha.sha.imr.attenRelImpl.CB_2008_AttenRel;
+import org.opensha.sha.imr.attenRelImpl.CY_2008_AttenRel;
+import org.opensha.sha.imr.param.IntensityMeasureParams.MMI_Param;
+import org.opensha.sha.imr.param.IntensityMeasureParams.PGA_Param;
+import org.opensha.sha.imr.param.IntensityMeasureParams.PeriodParam;
+import org.opensha.sha.imr.param.IntensityMeasureParams.SA_Param;
+import org.opensha.sha.imr.param.OtherParams.StdDevTypeParam;
+
+/**
+ * Class providing methods for testing the {@link PrimitiveIMR_API} of the NGA
+ * models.
+ */
+public class PrimitiveIMR_APITest {
+
+	// BA's distance parameter computes rJB on its own, which can differ
+	// slightly from that of a PropagationEffect
+	private static final double TOLERANCE = 1e-6;
+
+	private static final ParameterChangeWarningListener LISTENER =
+			new ParameterChangeWarningListener() {
+				@Override
+				public void parameterChangeWarning(
+						ParameterChangeWarningEvent event) {
+				}
+			};
+
+	/**
+	 * Checks that compute(), given the values of a rupture, a site and their
+	 * distances, gives what the parameter-based getMean() and getStdDev() do
+	 * after setEqkRupture() and setSite(), on both sides of a dipping fault.
+	 */
+	@Test
+	public void computeMatchesParameters() {
+		AttenuationRelationship[] imrs = { new AS_2008_AttenRel(LISTENER),
+				new BA_2008_AttenRel(LISTENER), new CB_2008_AttenRel(LISTENER),
+				new CY_2008_AttenRel(LISTENER) };
+		for (AttenuationRelationship imr : imrs)
+			imr.setParamDefaults();
+		EqkRupture rupture = getRupture();
+		Site[] sites = getSites(imrs);
+
+		RuptureContext rupContext = new RuptureContext();
+		rupContext.setRupture(rupture);
+		SiteContext siteContext = new SiteContext();
+		DistanceContext distContext = new DistanceContext();
+		PropagationEffect propEffect = new PropagationEffect();
+		double[] meanSigma = new double[4];
+		for (AttenuationRelationship imr : imrs) {
+			PrimitiveIMR_API primitive = (PrimitiveIMR_API) imr;
+			ParameterAPI stdDevType = imr.getParameter(StdDevTypeParam.NAME);
+			imr.setEqkRupture(rupture);
+			// rJB is exactly 0 above the rupture, except in BA's parameter
+			propEffect.fixDistanceJB(!(imr instanceof BA_2008_AttenRel));
+			for (double period : new double[] { 0, 0.2, 1.0 }) {
+				int index;
+				if (period == 0) {
+					imr.setIntensityMeasure(PGA_Param.NAME);
+					index = primitive.getIMT_Index(PGA_Param.NAME, 0);
+				} else {
+					imr.setIntensityMeasure(SA_Param.NAME);
+					imr.getParameter(PeriodParam.NAME).setValue(period);
+					index = primitive.getIMT_Index(SA_Param.NAME, period);
+				}
+				for (Site site : sites) {
+					imr.setSite(site);
+					siteContext.setSite(site);
+					propEffect.setAll(rupture, site);
+					distContext.setDistances(propEffect);
+					primitive.compute(rupContext, siteContext, distContext,
+							index, meanSigma);
+
+					String msg = imr.getShortName() + " " + period + " "
+							+ site.getLocation();
+					assertEquals(msg, imr.getMean(), meanSigma[0], TOLERANCE);
+					stdDevType.setValue(StdDevTypeParam.STD_DEV_TYPE_TOTAL);
+					assertEquals(msg, imr.getStdDev(), meanSigma[1], TOLERANCE);
+					stdDevType.setValue(StdDevTypeParam.STD_DEV_TYPE_INTER);
+					assertEquals(msg, imr.getStdDev(), meanSigma[2], TOLERANCE);
+					stdDevType.setValue(StdDevTypeParam.STD_DEV_TYPE_INTRA);
+					assertEquals(msg, imr.getStdDev(), meanSigma[3], TOLERANCE);
+					stdDevType.setValue(StdDevTypeParam.STD_DEV_TYPE_TOTAL);
+
+					double[] mean = new double[1];
+					primitive.compute(rupContext, siteContext, distContext,
+							index, mean);
+					assertEquals(meanSigma[0], mean[0], 0);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks that the batch compute() gives, for each site, what compute() of
+	 * that site does (including periods beyond AS's Td).
+	 */
+	@Test
+	public void batchMatchesSingleSites() {
+		AttenuationRelationship[] imrs = { new AS_2008_AttenRel(LISTENER),
+				new BA_2008_AttenRel(LISTENER), new CB_2008_AttenRel(LISTENER),
+				new CY_2008_AttenRel(LISTENER) };
+		EqkRupture rupture = getRupture();
+		Site[] sites = getSites(imrs);
+		RuptureContext rupContext = new RuptureContext();
+		rupContext.setRupture(rupture);
+		SiteContext siteContext = new SiteContext();
+		DistanceContext distContext = new DistanceContext();
+		PropagationEffect propEffect = new PropagationEffect();
+		SitesContext sitesContext = new SitesContext(sites.length);
+		for (int i = 0; i < sites.length; i++) {
+			siteContext.setSite(sites[i]);
+			propEffect.setAll(rupture, sites[i]);
+			distContext.setDistances(propEffect);
+			sitesContext.set(i, siteContext, distContext);
+		}
+		sitesContext.vs30Measured[0] = !sitesContext.vs30Measured[0];
+
+		double[] meanSigma = new double[2];
+		double[] means = new double[sites.length];
+		double[] sigmas = new double[sites.length];
+		double[] meansOnly = new double[sites.length];
+		for (AttenuationRelationship attenRel : imrs) {
+			PrimitiveIMR_API imr = (PrimitiveIMR_API) attenRel;
+			for (double period : new double[] { 0.2, 1.0, 10.0 }) {
+				int index = imr.getIMT_Index(SA_Param.NAME, period);
+				imr.compute(rupContext, sitesContext, index, means, sigmas);
+				imr.compute(rupContext, sitesContext, index, meansOnly, null);
+				for (int i = 0; i < sites.length; i++) {
+					siteContext.vs30 = sitesContext.vs30[i];
+					siteContext.vs30Measured = sitesContext.vs30Measured[i];
+					siteContext.z1p0 = sitesContext.z1p0[i];
+					siteContext.z2p5 = sitesContext.z2p5[i];
+					distContext.rRup = sitesContext.rRup[i];
+					distContext.rJB = sitesContext.rJB[i];
+					distContext.rX = sitesContext.rX[i];
+					imr.compute(rupContext, siteContext, distContext, index,
+							meanSigma);
+					assertEquals(meanSigma[0], means[i], 0);
+					assertEquals(meanSigma[1], sigmas[i], 0);
+					assertEquals(meanSigma[0], meansOnly[i], 0);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks that an intensity measure an IMR doesn't support is rejected.
+	 */
+	@Test(expected = RuntimeException.class)
+	public void unsupportedIMT_IsRejected() {
+		new CY_2008_AttenRel(LISTENER).getIMT_Index(MMI_Param.NAME, 0);
+	}
+
+	// a reverse rupture dipping 45 degrees to the east
+	private EqkRupture getRupture() {
+		FaultTrace trace = new FaultTrace("test trace");
+		trace.add(new Location(37.8, -122.0, 2.0));
+		trace.add(new Location(38.2, -122.0, 2.0));
+		EqkRupture rupture = new EqkRupture();
+		rupture.setRuptureSurface(new StirlingGriddedSurface(trace, 45, 2.0,
+				12.0, 1.0));
+		rupture.setMag(6.8);
+		rupture.setAveRake(90);
+		return rupture;
+	}
+
+	// sites on the footwall, above the rupture and on the hanging wall, with
+	// the IMRs' default site parameters
+	private Site[] getSites(AttenuationRelationship[] imrs) {
+		double[] lons = { -122.3, -122.02, -121.95, -121.9, -121.5 };
+		Site[] sites = new Site[lons.length];
+		for (int i = 0; i < lons.length; i++) {
+			sites[i] = new Site(new Location(38.0, lons[i]));
+			for (AttenuationRelationship imr : imrs) {
+				ListIterator<ParameterAPI<?>> it = imr.getSiteParamsIterator();
+				while (it.hasNext()) {
+					ParameterAPI<?> param = it.next();
+					if (!sites[i].containsParameter(param))
+						sites[i].addParameter((ParameterAPI) param.clone());
+				}
+			}
+		}
+		return sites;
+	}
+}
@@ -22,6 +22,7 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
 import org.opensha.sha.imr.AttenuationRelationshipTest;
+import org.opensha.sha.imr.PrimitiveIMR_APITest;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({ Spudich_1999_test.class, Abrahamson_2000_test.class,
@@ -29,7 +30,7 @@ import org.opensha.sha.imr.AttenuationRelationshipTest;
         BW_1997_AttenRelTest.class, CB_2003_test.class, Campbell_1997_test.class, 
         Field_2000_test.class, AS_2008_test.class, BA_2008_test.class, 
         CB_2008_test.class, CY_2008_test.class, NGA08_Site_EqkRup_Tests.class, CL_2002_test.class,
-        AttenuationRelationshipTest.class })
+        AttenuationRelationshipTest.class, PrimitiveIMR_APITest.class })
 /**
  * <p>Title: </p>
  * <p>Description: </p>